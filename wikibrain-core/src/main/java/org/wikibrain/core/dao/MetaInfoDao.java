@@ -45,7 +45,7 @@ public interface MetaInfoDao extends Dao<MetaInfo> {
      * null.
      *
      * @param component
-     * @return The updated record count
+     * @return The updated record count, or a lower bound on it if other threads are incrementing it too
      */
     public int incrementRecords(Class component) throws DaoException;
 
@@ -56,7 +56,7 @@ public interface MetaInfoDao extends Dao<MetaInfo> {
      *
      * @param component
      * @param lang
-     * @return The updated record count
+     * @return The updated record count, or a lower bound on it if other threads are incrementing it too
      */
     public int incrementRecords(Class component, Language lang) throws DaoException;
 
@@ -67,7 +67,7 @@ public interface MetaInfoDao extends Dao<MetaInfo> {
      * every increment. Equivalent to calling incrementErrors with lang null.
      *
      * @param component
-     * @return The updated error count
+     * @return The updated error count, or a lower bound on it if other threads are incrementing it too
      */
     public int incrementErrors(Class component) throws DaoException;
 
@@ -78,10 +78,14 @@ public interface MetaInfoDao extends Dao<MetaInfo> {
      *
      * @param component
      * @param lang
-     * @return The updated error count
+     * @return The updated error count, or a lower bound on it if other threads are incrementing it too
      */
     public int incrementErrors(Class component, Language lang) throws DaoException;
 
+    int incrementErrors(Class component, int n) throws DaoException;
+
+    int incrementErrors(Class component, Language lang, int n) throws DaoException;
+
     /**
      * Like incrementErrors, but throws no exceptions.
      * @param component
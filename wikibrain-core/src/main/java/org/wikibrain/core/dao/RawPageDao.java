@@ -3,6 +3,9 @@ package org.wikibrain.core.dao;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.model.RawPage;
 
+import java.util.Collection;
+import java.util.Map;
+
 public interface RawPageDao extends Dao<RawPage> {
 
     /**
@@ -14,6 +17,15 @@ public interface RawPageDao extends Dao<RawPage> {
      */
     public RawPage getById(Language language, int rawLocalPageId) throws DaoException;
 
+    /**
+     * Get a map of raw pages by their ids. Missing pages map to null.
+     * @param language
+     * @param rawLocalPageIds
+     * @return
+     * @throws DaoException
+     */
+    public Map<Integer, RawPage> getByIds(Language language, Collection<Integer> rawLocalPageIds) throws DaoException;
+
     /**
      * Returns the body (i.e. wikitext) of a particular local page.
      * @param language
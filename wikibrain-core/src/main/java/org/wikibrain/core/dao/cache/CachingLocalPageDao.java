@@ -0,0 +1,280 @@
+package org.wikibrain.core.dao.cache;
+
+import com.typesafe.config.Config;
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.Configurator;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.DaoFilter;
+import org.wikibrain.core.dao.LocalPageDao;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.core.lang.LocalId;
+import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.core.model.Title;
+import org.wikibrain.utils.LongSlruCache;
+
+import java.util.*;
+
+/**
+ * Wraps a local page dao delegate and keeps recently used pages in memory.
+ *
+ * Two bounded caches are maintained: local id to page and title to local id.
+ * Title lookups resolve through the title cache to the page cache, so a title
+ * and its page are only fetched from the delegate once.
+ *
+ * Queries using a DaoFilter and all loading calls go directly to the delegate.
+ * The caches are cleared when a load finishes or the redirect policy changes.
+ *
+ * @author Shilad Sen
+ */
+public class CachingLocalPageDao implements LocalPageDao {
+    public static final int DEFAULT_PAGE_CACHE_SIZE = 100000;
+    public static final int DEFAULT_TITLE_CACHE_SIZE = 200000;
+
+    private final LocalPageDao delegate;
+    private final LongSlruCache<LocalPage> pages;
+    private final LongSlruCache<Integer> titles;
+
+    public CachingLocalPageDao(LocalPageDao delegate) {
+        this(delegate, DEFAULT_PAGE_CACHE_SIZE, DEFAULT_TITLE_CACHE_SIZE);
+    }
+
+    /**
+     * @param delegate
+     * @param pageCacheSize Maximum number of pages held in memory.
+     * @param titleCacheSize Maximum number of title to id mappings held in memory.
+     */
+    public CachingLocalPageDao(LocalPageDao delegate, int pageCacheSize, int titleCacheSize) {
+        this.delegate = delegate;
+        this.pages = new LongSlruCache<LocalPage>(pageCacheSize);
+        this.titles = new LongSlruCache<Integer>(titleCacheSize);
+    }
+
+    @Override
+    public LocalPage getById(Language language, int pageId) throws DaoException {
+        long key = pageKey(language, pageId);
+        LocalPage page = pages.get(key);
+        if (page == null) {
+            page = delegate.getById(language, pageId);
+            pages.put(key, page);
+        }
+        return page;
+    }
+
+    @Override
+    public LocalPage getById(LocalId localId) throws DaoException {
+        return getById(localId.getLanguage(), localId.getId());
+    }
+
+    @Override
+    public Map<Integer, LocalPage> getByIds(Language language, Collection<Integer> pageIds) throws DaoException {
+        if (pageIds == null || pageIds.isEmpty()) {
+            return null;
+        }
+        Map<Integer, LocalPage> result = new HashMap<Integer, LocalPage>();
+        Set<Integer> missing = new HashSet<Integer>();
+        for (Integer pageId : pageIds) {
+            LocalPage page = pages.get(pageKey(language, pageId));
+            if (page == null) {
+                missing.add(pageId);
+            }
+            result.put(pageId, page);
+        }
+        if (!missing.isEmpty()) {
+            for (Map.Entry<Integer, LocalPage> entry : delegate.getByIds(language, missing).entrySet()) {
+                pages.put(pageKey(language, entry.getKey()), entry.getValue());
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public LocalPage getByTitle(Title title, NameSpace ns) throws DaoException {
+        Language language = title.getLanguage();
+        long key = Title.longHashCode(language, title.getCanonicalTitle(), ns);
+        Integer pageId = titles.get(key);
+        if (pageId != null) {
+            return getById(language, pageId);
+        }
+        LocalPage page = delegate.getByTitle(title, ns);
+        if (page != null) {
+            titles.put(key, page.getLocalId());
+            pages.put(pageKey(language, page.getLocalId()), page);
+        }
+        return page;
+    }
+
+    @Override
+    public LocalPage getByTitle(Language language, NameSpace ns, String title) throws DaoException {
+        return getByTitle(new Title(title, language), ns);
+    }
+
+    @Override
+    public LocalPage getByTitle(Language lang, String title) throws DaoException {
+        return getByTitle(lang, NameSpace.ARTICLE, title);
+    }
+
+    @Override
+    public Map<Title, LocalPage> getByTitles(Language language, Collection<Title> titles, NameSpace ns) throws DaoException {
+        if (titles == null || titles.isEmpty()) {
+            return null;
+        }
+        Map<Title, LocalPage> result = new HashMap<Title, LocalPage>();
+        List<Title> missing = new ArrayList<Title>();
+        for (Title title : titles) {
+            Integer pageId = this.titles.get(Title.longHashCode(language, title.getCanonicalTitle(), ns));
+            LocalPage page = (pageId == null) ? null : pages.get(pageKey(language, pageId));
+            if (page == null) {
+                missing.add(title);
+            }
+            result.put(title, page);
+        }
+        if (!missing.isEmpty()) {
+            for (Map.Entry<Title, LocalPage> entry : delegate.getByTitles(language, missing, ns).entrySet()) {
+                LocalPage page = entry.getValue();
+                if (page != null) {
+                    this.titles.put(Title.longHashCode(language, entry.getKey().getCanonicalTitle(), ns), page.getLocalId());
+                    pages.put(pageKey(language, page.getLocalId()), page);
+                }
+                result.put(entry.getKey(), page);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int getIdByTitle(String title, Language language, NameSpace nameSpace) throws DaoException {
+        long key = Title.longHashCode(language, title, nameSpace);
+        Integer pageId = titles.get(key);
+        if (pageId == null) {
+            pageId = delegate.getIdByTitle(title, language, nameSpace);
+            if (pageId >= 0) {
+                titles.put(key, pageId);
+            }
+        }
+        return pageId;
+    }
+
+    @Override
+    public int getIdByTitle(Title title) throws DaoException {
+        long key = title.longHashCode();
+        Integer pageId = titles.get(key);
+        if (pageId == null) {
+            pageId = delegate.getIdByTitle(title);
+            if (pageId >= 0) {
+                titles.put(key, pageId);
+            }
+        }
+        return pageId;
+    }
+
+    @Override
+    public void setFollowRedirects(boolean followRedirects) throws DaoException {
+        delegate.setFollowRedirects(followRedirects);
+        clearCaches();
+    }
+
+    @Override
+    public Iterable<LocalPage> get(DaoFilter daoFilter) throws DaoException {
+        return delegate.get(daoFilter);
+    }
+
+    @Override
+    public Set<LocalId> getIds(DaoFilter daoFilter) throws DaoException {
+        return delegate.getIds(daoFilter);
+    }
+
+    @Override
+    public int getCount(DaoFilter daoFilter) throws DaoException {
+        return delegate.getCount(daoFilter);
+    }
+
+    @Override
+    public LanguageSet getLoadedLanguages() throws DaoException {
+        return delegate.getLoadedLanguages();
+    }
+
+    @Override
+    public void clear() throws DaoException {
+        delegate.clear();
+        clearCaches();
+    }
+
+    @Override
+    public void beginLoad() throws DaoException {
+        delegate.beginLoad();
+    }
+
+    @Override
+    public void save(LocalPage page) throws DaoException {
+        delegate.save(page);
+    }
+
+    @Override
+    public void endLoad() throws DaoException {
+        delegate.endLoad();
+        clearCaches();
+    }
+
+    public void clearCaches() {
+        pages.clear();
+        titles.clear();
+    }
+
+    public long getPageHits() {
+        return pages.getHits();
+    }
+
+    public long getPageMisses() {
+        return pages.getMisses();
+    }
+
+    public long getTitleHits() {
+        return titles.getHits();
+    }
+
+    public long getTitleMisses() {
+        return titles.getMisses();
+    }
+
+    public LocalPageDao getDelegate() {
+        return delegate;
+    }
+
+    private static long pageKey(Language language, int pageId) {
+        return ((long) language.getId() << 32) | (pageId & 0xFFFFFFFFL);
+    }
+
+    public static class Provider extends org.wikibrain.conf.Provider<LocalPageDao> {
+        public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
+            super(configurator, config);
+        }
+
+        @Override
+        public Class getType() {
+            return LocalPageDao.class;
+        }
+
+        @Override
+        public String getPath() {
+            return "dao.localPage";
+        }
+
+        @Override
+        public LocalPageDao get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+            if (!config.getString("type").equals("cached")) {
+                return null;
+            }
+            return new CachingLocalPageDao(
+                    getConfigurator().get(
+                            LocalPageDao.class,
+                            config.getString("delegate")),
+                    config.getInt("pageCacheSize"),
+                    config.getInt("titleCacheSize")
+            );
+        }
+    }
+}
@@ -0,0 +1,588 @@
+package org.wikibrain.core.dao.file;
+
+import com.typesafe.config.Config;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.set.TShortSet;
+import gnu.trove.set.hash.TShortHashSet;
+import org.apache.commons.io.FileUtils;
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.Configurator;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.DaoFilter;
+import org.wikibrain.core.dao.RawPageDao;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.core.model.RawPage;
+import org.wikibrain.utils.MappedColumnFile;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A raw page dao that stores pages in compressed segment files instead of a database.
+ *
+ * Each page is stored as a record with uncompressed metadata (language, ids, title,
+ * namespace, flags) followed by the Deflate-compressed wikitext and the Deflate-compressed
+ * plain text (without templates). The plain text is computed once when the page is saved,
+ * so RawPage.getPlainText() on pages read from this dao does not strip markup again.
+ *
+ * Segment files are memory mapped. An index file maps (language, page id) to the
+ * address of each record. It holds a header, the sorted keys and then the addresses,
+ * is also memory mapped, and is binary searched for point lookups.
+ * Scans walk the index in (language, page id) order and only decompress pages
+ * that pass the filter.
+ *
+ * Loading appends new segments; pages that are saved again replace older copies.
+ *
+ * @author Shilad Sen
+ */
+public class CompressedRawPageDao implements RawPageDao {
+    private static final Logger LOG = Logger.getLogger(CompressedRawPageDao.class.getName());
+
+    /**
+     * Segments are capped so that each can be memory mapped as a single buffer.
+     */
+    public static final long MAX_SEGMENT_SIZE = 1L << 30;
+
+    public static final int INDEX_HEADER = 0x4a3e1d01;
+    private static final String INDEX_NAME = "index.bin";
+    private static final int FLAG_REDIRECT = 1;
+    private static final int FLAG_DISAMBIG = 2;
+    private static final int FLAG_REDIRECT_TITLE = 4;
+    private static final int FLAG_LAST_EDIT = 8;
+
+    private final File dir;
+
+    // Read state
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private volatile LongBuffer indexKeys = LongBuffer.allocate(0);
+    private volatile LongBuffer indexAddresses = LongBuffer.allocate(0);
+
+    // Write state, guarded by this
+    private FileOutputStream out = null;
+    private int outSegment = -1;
+    private long outSize = 0;
+    private TLongArrayList newKeys = null;
+    private TLongArrayList newAddresses = null;
+
+    public CompressedRawPageDao(File dir) throws DaoException {
+        this.dir = dir;
+        dir.mkdirs();
+        try {
+            openForReading();
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    @Override
+    public void clear() throws DaoException {
+        close();
+        try {
+            FileUtils.deleteDirectory(dir);
+            dir.mkdirs();
+            openForReading();
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    @Override
+    public synchronized void beginLoad() throws DaoException {
+        newKeys = new TLongArrayList();
+        newAddresses = new TLongArrayList();
+        outSegment = numSegmentFiles() - 1;
+        try {
+            startSegment();
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    @Override
+    public void save(RawPage page) throws DaoException {
+        byte [] record;
+        try {
+            record = encode(page);
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+        long key = key(page.getLanguage().getId(), page.getLocalId());
+        synchronized (this) {
+            if (out == null) {
+                throw new IllegalStateException("save() called outside of beginLoad() / endLoad()");
+            }
+            try {
+                if (outSize > 0 && outSize + record.length > MAX_SEGMENT_SIZE) {
+                    startSegment();
+                }
+                out.write(record);
+                newKeys.add(key);
+                newAddresses.add(address(outSegment, outSize));
+                outSize += record.length;
+            } catch (IOException e) {
+                throw new DaoException(e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void endLoad() throws DaoException {
+        try {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+            writeIndex();
+            newKeys = null;
+            newAddresses = null;
+            openForReading();
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    @Override
+    public RawPage getById(Language language, int rawLocalPageId) throws DaoException {
+        long address = lookup(key(language.getId(), rawLocalPageId));
+        return (address < 0) ? null : decode(address);
+    }
+
+    @Override
+    public Map<Integer, RawPage> getByIds(Language language, Collection<Integer> rawLocalPageIds) throws DaoException {
+        if (rawLocalPageIds == null || rawLocalPageIds.isEmpty()) {
+            return null;
+        }
+        Map<Integer, RawPage> map = new HashMap<Integer, RawPage>();
+        for (Integer id : rawLocalPageIds) {
+            map.put(id, getById(language, id));
+        }
+        return map;
+    }
+
+    @Override
+    public String getBody(Language language, int rawLocalPageId) throws DaoException {
+        RawPage page = getById(language, rawLocalPageId);
+        return (page == null) ? null : page.getBody();
+    }
+
+    @Override
+    public Iterable<RawPage> get(final DaoFilter daoFilter) throws DaoException {
+        return new Iterable<RawPage>() {
+            @Override
+            public Iterator<RawPage> iterator() {
+                return new ScanIterator(daoFilter);
+            }
+        };
+    }
+
+    @Override
+    public int getCount(DaoFilter daoFilter) throws DaoException {
+        LongBuffer keys = indexKeys;
+        LongBuffer addresses = indexAddresses;
+        int limit = daoFilter.getLimitOrInfinity();
+        int n = 0;
+        for (int i = 0; i < keys.limit() && n < limit; i++) {
+            if (matches(daoFilter, keys.get(i), addresses.get(i))) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public LanguageSet getLoadedLanguages() throws DaoException {
+        LongBuffer keys = indexKeys;
+        Set<Language> langs = new HashSet<Language>();
+        int i = 0;
+        while (i < keys.limit()) {
+            int langId = (int) (keys.get(i) >>> 32);
+            langs.add(Language.getById(langId));
+            // skip to the first key of the next language. Page ids are the unsigned
+            // low half of a key, so page id 0 has the smallest key of a language.
+            int next = search(keys, key(langId + 1, 0));
+            i = (next >= 0) ? next : -next - 1;
+        }
+        return new LanguageSet(langs);
+    }
+
+    /**
+     * Releases the memory mapped files.
+     */
+    public synchronized void close() {
+        segments = new MappedByteBuffer[0];
+        indexKeys = LongBuffer.allocate(0);
+        indexAddresses = LongBuffer.allocate(0);
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "closing segment failed", e);
+            }
+            out = null;
+        }
+    }
+
+    private void startSegment() throws IOException {
+        if (out != null) {
+            out.close();
+        }
+        outSegment++;
+        out = new FileOutputStream(getSegmentFile(outSegment));
+        outSize = 0;
+    }
+
+    /**
+     * Merges the existing index with pages saved during this load and writes it.
+     * Later copies of the same page replace earlier ones.
+     */
+    private void writeIndex() throws IOException {
+        // the last copy of each page saved during this load
+        TLongIntMap latest = new TLongIntHashMap(newKeys.size());
+        for (int i = 0; i < newKeys.size(); i++) {
+            latest.put(newKeys.get(i), i);
+        }
+        long[] added = latest.keys();
+        Arrays.sort(added);
+
+        // merge them with the existing keys, which are sorted and unique
+        LongBuffer oldKeys = indexKeys;
+        LongBuffer oldAddresses = indexAddresses;
+        int numOld = oldKeys.limit();
+        long[] keys = new long[numOld + added.length];
+        long[] addresses = new long[keys.length];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < numOld || j < added.length) {
+            if (j == added.length || (i < numOld && oldKeys.get(i) < added[j])) {
+                keys[n] = oldKeys.get(i);
+                addresses[n] = oldAddresses.get(i);
+                i++;
+            } else {
+                if (i < numOld && oldKeys.get(i) == added[j]) {
+                    i++;    // replaced by the new copy
+                }
+                keys[n] = added[j];
+                addresses[n] = newAddresses.get(latest.get(added[j]));
+                j++;
+            }
+            n++;
+        }
+
+        File index = new File(dir, INDEX_NAME);
+        MappedColumnFile.Output columns = new MappedColumnFile.Output(index);
+        try {
+            columns.writeInt(INDEX_HEADER);
+            columns.writeInt(n);
+            columns.writeColumn(LongBuffer.wrap(keys, 0, n));
+            columns.writeColumn(LongBuffer.wrap(addresses, 0, n));
+            close();    // release the old index before it is replaced
+            columns.commit();
+        } finally {
+            columns.close();
+        }
+        LOG.info("wrote index of " + n + " raw pages to " + index);
+    }
+
+    private synchronized void openForReading() throws IOException {
+        File index = new File(dir, INDEX_NAME);
+        if (!index.isFile()) {
+            return;
+        }
+        MappedByteBuffer[] mapped = new MappedByteBuffer[numSegmentFiles()];
+        for (int i = 0; i < mapped.length; i++) {
+            mapped[i] = MappedColumnFile.map(getSegmentFile(i));
+        }
+        ByteBuffer buffer = MappedColumnFile.map(index, INDEX_HEADER, "raw page index");
+        int n = buffer.getInt(4);
+        segments = mapped;
+        indexKeys = MappedColumnFile.longColumn(buffer, 8, n);
+        indexAddresses = MappedColumnFile.longColumn(buffer, 8 + 8 * n, n);
+    }
+
+    private int numSegmentFiles() {
+        int n = 0;
+        while (getSegmentFile(n).isFile()) {
+            n++;
+        }
+        return n;
+    }
+
+    private File getSegmentFile(int i) {
+        return new File(dir, String.format("segment-%04d.bin", i));
+    }
+
+    private long lookup(long key) {
+        int i = search(indexKeys, key);
+        return (i < 0) ? -1 : indexAddresses.get(i);
+    }
+
+    /**
+     * Binary search using absolute gets, so it is safe to call concurrently.
+     * @return As Arrays.binarySearch.
+     */
+    private static int search(LongBuffer keys, long key) {
+        int lo = 0;
+        int hi = keys.limit() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long k = keys.get(mid);
+            if (k < key) {
+                lo = mid + 1;
+            } else if (k > key) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    private static long key(int langId, int pageId) {
+        return ((long) langId << 32) | (pageId & 0xFFFFFFFFL);
+    }
+
+    private static long address(int segment, long offset) {
+        return ((long) segment << 40) | offset;
+    }
+
+    private ByteBuffer recordAt(long address) {
+        ByteBuffer buffer = segments[(int) (address >>> 40)].duplicate();
+        buffer.position((int) (address & ((1L << 40) - 1)));
+        return buffer;
+    }
+
+    private boolean matches(DaoFilter filter, long key, long address) {
+        if (filter.getLangIds() != null && !filter.getLangIds().contains((short) (key >>> 32))) {
+            return false;
+        }
+        if (filter.getNameSpaceIds() == null && filter.isRedirect() == null && filter.isDisambig() == null) {
+            return true;
+        }
+        // Header: total length, language, page id, revision id, namespace, flags
+        ByteBuffer buffer = recordAt(address);
+        buffer.position(buffer.position() + 4 + 2 + 4 + 4);
+        short ns = buffer.getShort();
+        int flags = buffer.get();
+        return (filter.getNameSpaceIds() == null || filter.getNameSpaceIds().contains(ns))
+                && (filter.isRedirect() == null || filter.isRedirect() == ((flags & FLAG_REDIRECT) != 0))
+                && (filter.isDisambig() == null || filter.isDisambig() == ((flags & FLAG_DISAMBIG) != 0));
+    }
+
+    /**
+     * Encodes a page as:
+     * total length, language, page id, revision id, namespace, flags, [last edit],
+     * title, [redirect title], compressed body, compressed plain text.
+     */
+    private static byte[] encode(RawPage page) throws IOException {
+        String plainText = null;
+        try {
+            plainText = page.getPlainText(false);
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "stripping markup of " + page + " failed; plain text will be computed on demand", e);
+        }
+        int flags = 0;
+        if (page.isRedirect()) flags |= FLAG_REDIRECT;
+        if (page.isDisambig()) flags |= FLAG_DISAMBIG;
+        if (page.getRedirectTitle() != null) flags |= FLAG_REDIRECT_TITLE;
+        if (page.getLastEdit() != null) flags |= FLAG_LAST_EDIT;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bytes);
+        dos.writeInt(0);    // placeholder for the total length
+        dos.writeShort(page.getLanguage().getId());
+        dos.writeInt(page.getLocalId());
+        dos.writeInt(page.getRevisionId());
+        dos.writeShort(page.getNamespace().getArbitraryId());
+        dos.writeByte(flags);
+        if (page.getLastEdit() != null) {
+            dos.writeLong(page.getLastEdit().getTime());
+        }
+        dos.writeUTF(page.getTitle().getCanonicalTitle());
+        if (page.getRedirectTitle() != null) {
+            dos.writeUTF(page.getRedirectTitle());
+        }
+        writeCompressed(dos, page.getBody() == null ? "" : page.getBody());
+        writeCompressed(dos, plainText);
+        dos.close();
+
+        byte [] record = bytes.toByteArray();
+        ByteBuffer.wrap(record).putInt(0, record.length);
+        return record;
+    }
+
+    private RawPage decode(long address) throws DaoException {
+        ByteBuffer buffer = recordAt(address);
+        try {
+            buffer.getInt();    // total length
+            Language lang = Language.getById(buffer.getShort());
+            int localId = buffer.getInt();
+            int revisionId = buffer.getInt();
+            NameSpace ns = NameSpace.getNameSpaceByArbitraryId(buffer.getShort());
+            int flags = buffer.get();
+            Date lastEdit = ((flags & FLAG_LAST_EDIT) != 0) ? new Date(buffer.getLong()) : null;
+            String title = readUTF(buffer);
+            String redirectTitle = ((flags & FLAG_REDIRECT_TITLE) != 0) ? readUTF(buffer) : null;
+            String body = readCompressed(buffer);
+            String plainText = readCompressed(buffer);
+            RawPage page = new RawPage(localId, revisionId, title, body, lastEdit, lang, ns,
+                    (flags & FLAG_REDIRECT) != 0, (flags & FLAG_DISAMBIG) != 0, redirectTitle);
+            page.setPlainText(plainText);
+            return page;
+        } catch (IOException e) {
+            throw new DaoException(e);
+        } catch (DataFormatException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    private static void writeCompressed(DataOutputStream dos, String text) throws IOException {
+        if (text == null) {
+            dos.writeInt(-1);
+            return;
+        }
+        byte [] raw = text.getBytes("UTF-8");
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 3 + 64);
+            byte [] buffer = new byte[16 * 1024];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                compressed.write(buffer, 0, n);
+            }
+            dos.writeInt(raw.length);
+            dos.writeInt(compressed.size());
+            compressed.writeTo(dos);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static String readCompressed(ByteBuffer buffer) throws IOException, DataFormatException {
+        int rawLength = buffer.getInt();
+        if (rawLength < 0) {
+            return null;
+        }
+        byte [] compressed = new byte[buffer.getInt()];
+        buffer.get(compressed);
+        byte [] raw = new byte[rawLength];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int n = 0;
+            while (n < rawLength && !inflater.finished()) {
+                n += inflater.inflate(raw, n, rawLength - n);
+            }
+        } finally {
+            inflater.end();
+        }
+        return new String(raw, "UTF-8");
+    }
+
+    private static String readUTF(ByteBuffer buffer) throws IOException {
+        int length = buffer.getShort() & 0xFFFF;
+        byte [] bytes = new byte[length + 2];
+        bytes[0] = (byte) (length >>> 8);
+        bytes[1] = (byte) length;
+        buffer.get(bytes, 2, length);
+        return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+    }
+
+    /**
+     * Walks the index in key order, returning pages that match a filter.
+     */
+    private class ScanIterator implements Iterator<RawPage> {
+        private final DaoFilter filter;
+        private final LongBuffer keys = indexKeys;
+        private final LongBuffer addresses = indexAddresses;
+        private final int limit;
+        private int i = 0;
+        private int returned = 0;
+        private RawPage next = null;
+
+        ScanIterator(DaoFilter filter) {
+            this.filter = filter;
+            this.limit = filter.getLimitOrInfinity();
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            while (returned < limit && i < keys.limit()) {
+                long key = keys.get(i);
+                long address = addresses.get(i);
+                i++;
+                if (matches(filter, key, address)) {
+                    try {
+                        next = decode(address);
+                    } catch (DaoException e) {
+                        throw new RuntimeException(e);
+                    }
+                    returned++;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public RawPage next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            RawPage page = next;
+            next = null;
+            return page;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    public static class Provider extends org.wikibrain.conf.Provider<RawPageDao> {
+        public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
+            super(configurator, config);
+        }
+
+        @Override
+        public Class<RawPageDao> getType() {
+            return RawPageDao.class;
+        }
+
+        @Override
+        public String getPath() {
+            return "dao.rawPage";
+        }
+
+        @Override
+        public RawPageDao get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+            if (!config.getString("type").equals("compressed")) {
+                return null;
+            }
+            try {
+                return new CompressedRawPageDao(new File(config.getString("path")));
+            } catch (DaoException e) {
+                throw new ConfigurationException(e);
+            }
+        }
+    }
+}
@@ -30,6 +30,12 @@ public abstract class AbstractSqlDao<T> implements Dao<T> {
 
     public static final int DEFAULT_FETCH_SIZE = 1000;
 
+    /**
+     * Maximum number of values in a single IN (...) clause used by batched lookups.
+     * Larger batches are split into several queries.
+     */
+    public static final int MAX_IN_CLAUSE_SIZE = 1000;
+
     protected final SQLDialect dialect;
     private final String sqlScriptPrefix;
     private final TableField[] fields;
@@ -131,6 +137,7 @@ public abstract class AbstractSqlDao<T> implements Dao<T> {
     public void endLoad() throws  DaoException {
         if (loader != null) {
             loader.endLoad();
+            recordFailedRows(loader.getNumFailed());
         }
         executeSqlScriptWithSuffix("-create-indexes.sql");
         if (fields != null && fields.length > 0) {
@@ -138,6 +145,22 @@ public abstract class AbstractSqlDao<T> implements Dao<T> {
         }
     }
 
+    /**
+     * Counts rows that the loader could not write as errors of this dao's component.
+     */
+    private void recordFailedRows(long numFailed) {
+        if (numFailed == 0) {
+            return;
+        }
+        LOG.severe("failed to load " + numFailed + " rows for " + klass.getSimpleName());
+        try {
+            metaDao.incrementErrors(klass, (int) Math.min(numFailed, Integer.MAX_VALUE));
+            metaDao.sync(klass);
+        } catch (DaoException e) {
+            LOG.log(Level.WARNING, "recording failed rows in meta info failed:", e);
+        }
+    }
+
     /**
      * Executes the appropriate sql script with a particular suffix (.e.g. "-drop-tables.sql").
      * @param suffix
@@ -0,0 +1,503 @@
+package org.wikibrain.core.dao.sql;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.postgresql.PGConnection;
+import org.wikibrain.core.dao.DaoException;
+
+import java.io.*;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Loads rows through the database's native bulk load path.
+ *
+ * Calling threads encode rows into chunk files in the temporary directory.
+ * Each full chunk is handed to a background loader that streams it into the database
+ * using COPY ... FROM STDIN (PostgreSQL) or INSERT ... DIRECT SELECT ... FROM CSVREAD (H2),
+ * and then deletes it. A chunk that fails to load is bisected and the halves are
+ * retried, down to single rows, so a bad row only loses itself. If both halves of a chunk
+ * fail for a reason other than bad row data (e.g. a missing table or a lost connection),
+ * the whole chunk is skipped rather than retried row by row. Rows that could not be
+ * loaded are logged and counted by getNumFailed().
+ *
+ * If a loader thread dies unexpectedly, the remaining chunks are discarded and
+ * load() and endLoad() throw instead of waiting on the dead loader.
+ *
+ * @author Shilad Sen
+ */
+class BulkLoader {
+    static final Logger LOG = Logger.getLogger(BulkLoader.class.getName());
+
+    /**
+     * Maximum rows and characters in a single chunk.
+     */
+    static final int CHUNK_ROWS = 200000;
+    static final long CHUNK_CHARS = 32 * 1024 * 1024;
+
+    /**
+     * How long loaders and producers wait on the chunk queue before checking for a failure.
+     */
+    private static final long POLL_MILLIS = 100;
+
+    private static final Chunk POISON_PILL = new Chunk();
+
+    private final WpDataSource ds;
+    private final String table;
+    private final String[] fields;
+    private final FastLoader.LoadMode mode;
+    private final File tmpDir;
+
+    private final BlockingQueue<Chunk> chunks;
+    private final Thread[] loaders;
+
+    private Chunk current = null;   // guarded by this
+    private final AtomicLong numLoaded = new AtomicLong();
+    private final AtomicLong numFailed = new AtomicLong();
+    private volatile Throwable failure = null;
+
+    BulkLoader(WpDataSource ds, String table, String[] fields, FastLoader.LoadMode mode, int numLoaders) {
+        if (mode == FastLoader.LoadMode.BATCH) {
+            throw new IllegalArgumentException("BulkLoader does not support batch mode");
+        }
+        this.ds = ds;
+        this.table = table;
+        this.fields = fields;
+        this.mode = mode;
+        this.tmpDir = FileUtils.getTempDirectory();
+        this.chunks = new ArrayBlockingQueue<Chunk>(numLoaders);
+        this.loaders = new Thread[numLoaders];
+        for (int i = 0; i < loaders.length; i++) {
+            loaders[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        loadChunks();
+                    } catch (Throwable t) {
+                        fail(t);
+                    }
+                }
+            }, "bulk-loader-" + table + "-" + i);
+            loaders[i].start();
+        }
+    }
+
+    /**
+     * Encodes a row and appends it to the current chunk.
+     * Blocks if the background loaders have fallen behind.
+     */
+    void load(Object[] values) throws DaoException {
+        checkFailure();
+        String line = (mode == FastLoader.LoadMode.COPY) ? encodeCopyRow(values) : encodeCsvRow(values);
+        Chunk full = null;
+        try {
+            synchronized (this) {
+                if (current == null) {
+                    current = new Chunk(tmpDir, table);
+                }
+                current.write(line);
+                if (current.rows >= CHUNK_ROWS || current.chars >= CHUNK_CHARS) {
+                    full = current;
+                    current = null;
+                }
+            }
+            if (full != null) {
+                full.close();
+                enqueue(full);
+            }
+        } catch (IOException e) {
+            throw new DaoException(e);
+        } catch (InterruptedException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    /**
+     * Loads any remaining rows and waits for all chunks to be loaded.
+     */
+    void endLoad() throws DaoException {
+        try {
+            Chunk last;
+            synchronized (this) {
+                last = current;
+                current = null;
+            }
+            if (last != null) {
+                last.close();
+                enqueue(last);
+            }
+            for (int i = 0; i < loaders.length; i++) {
+                enqueue(POISON_PILL);
+            }
+            for (Thread loader : loaders) {
+                loader.join();
+            }
+        } catch (IOException e) {
+            throw new DaoException(e);
+        } catch (InterruptedException e) {
+            throw new DaoException(e);
+        } finally {
+            if (failure != null) {
+                discardQueued();
+            }
+        }
+        checkFailure();
+        if (numFailed.get() > 0) {
+            LOG.severe("bulk load into " + table + " skipped " + numFailed.get() +
+                    " rows that failed to load (loaded " + numLoaded.get() + ")");
+        }
+    }
+
+    /**
+     * @return The number of rows that could not be loaded.
+     */
+    long getNumFailed() {
+        return numFailed.get();
+    }
+
+    /**
+     * Hands a closed chunk to the loaders, waiting for room in the queue
+     * unless the loaders have failed.
+     */
+    private void enqueue(Chunk chunk) throws DaoException, InterruptedException {
+        while (!chunks.offer(chunk, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (failure != null) {
+                if (chunk != POISON_PILL) {
+                    numFailed.addAndGet(chunk.rows);
+                    FileUtils.deleteQuietly(chunk.file);
+                }
+                checkFailure();
+            }
+        }
+    }
+
+    private void checkFailure() throws DaoException {
+        Throwable t = failure;
+        if (t != null) {
+            DaoException e = new DaoException("bulk loader for " + table + " failed");
+            e.initCause(t);
+            throw e;
+        }
+    }
+
+    /**
+     * Records that a loader died and discards the queued chunks so
+     * nothing waits on it. Only the first failure is kept.
+     */
+    private void fail(Throwable t) {
+        LOG.log(Level.SEVERE, "bulk loader for " + table + " failed, discarding remaining chunks:", t);
+        synchronized (this) {
+            if (failure == null) {
+                failure = t;
+            }
+        }
+        discardQueued();
+    }
+
+    private void discardQueued() {
+        List<Chunk> queued = new ArrayList<Chunk>();
+        chunks.drainTo(queued);
+        for (Chunk chunk : queued) {
+            if (chunk != POISON_PILL) {
+                numFailed.addAndGet(chunk.rows);
+                FileUtils.deleteQuietly(chunk.file);
+            }
+        }
+    }
+
+    private void loadChunks() throws InterruptedException {
+        while (failure == null) {
+            Chunk chunk = chunks.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (chunk == null) {
+                continue;
+            }
+            if (chunk == POISON_PILL) {
+                return;
+            }
+            try {
+                loadChunk(chunk);
+            } finally {
+                FileUtils.deleteQuietly(chunk.file);
+            }
+        }
+    }
+
+    private void loadChunk(Chunk chunk) {
+        Exception e = tryLoad(chunk.file);
+        if (e == null) {
+            numLoaded.addAndGet(chunk.rows);
+            return;
+        }
+        logFailure(Level.WARNING, "bulk load of " + chunk.rows + " rows into " + table + " failed, retrying in smaller pieces:", e);
+        try {
+            List<String> rows = readRows(chunk.file);
+            loadPieces(rows, 0, rows.size(), e, true);
+        } catch (IOException e2) {
+            numFailed.addAndGet(chunk.rows);
+            LOG.log(Level.SEVERE, "retrying bulk load of " + chunk.rows + " rows into " + table + " failed, attempting to continue:", e2);
+        }
+    }
+
+    /**
+     * Bisects rows [from, to), which failed to load with exception e, and loads each half.
+     * Halves that fail are bisected again until single rows fail, which are skipped.
+     * If both halves of a whole chunk fail and the cause is not bad row data, the failure
+     * is systemic and retrying row by row would only repeat it, so the chunk is skipped.
+     */
+    private void loadPieces(List<String> rows, int from, int to, Exception e, boolean wholeChunk) throws IOException {
+        if (to - from == 1) {
+            numFailed.incrementAndGet();
+            logFailure(Level.SEVERE, "skipping row that failed to load into " + table + ": " +
+                    StringUtils.abbreviate(rows.get(from).trim(), 200), e);
+            return;
+        }
+        int mid = (from + to) / 2;
+        Exception e1 = tryLoad(rows, from, mid);
+        Exception e2 = tryLoad(rows, mid, to);
+        if (wholeChunk && e1 != null && e2 != null && !isRowError(e1) && !isRowError(e2)) {
+            numFailed.addAndGet(to - from);
+            logFailure(Level.SEVERE, "both halves of a failed chunk of " + (to - from) + " rows into " + table +
+                    " failed too, skipping the chunk:", e2);
+            return;
+        }
+        if (e1 == null) {
+            numLoaded.addAndGet(mid - from);
+        } else {
+            loadPieces(rows, from, mid, e1, false);
+        }
+        if (e2 == null) {
+            numLoaded.addAndGet(to - mid);
+        } else {
+            loadPieces(rows, mid, to, e2, false);
+        }
+    }
+
+    /**
+     * Loads rows [from, to) as a temporary chunk file.
+     * @return The exception that caused the load to fail, or null if it succeeded.
+     */
+    private Exception tryLoad(List<String> rows, int from, int to) throws IOException {
+        Chunk piece = new Chunk(tmpDir, table);
+        try {
+            for (int i = from; i < to; i++) {
+                piece.write(rows.get(i));
+            }
+            piece.close();
+            return tryLoad(piece.file);
+        } finally {
+            FileUtils.deleteQuietly(piece.file);
+        }
+    }
+
+    /**
+     * @return True if e was caused by the data in a row: a data exception (SQL state
+     * class 22) or an integrity constraint violation (class 23).
+     */
+    private static boolean isRowError(Exception e) {
+        if (!(e instanceof SQLException)) {
+            return false;
+        }
+        String state = ((SQLException) e).getSQLState();
+        return state != null && (state.startsWith("22") || state.startsWith("23"));
+    }
+
+    /**
+     * Loads a chunk file in a single transaction.
+     * @return The exception that caused the load to fail, or null if it succeeded.
+     */
+    private Exception tryLoad(File file) {
+        Connection cnx = null;
+        try {
+            cnx = ds.getConnection();
+            if (mode == FastLoader.LoadMode.COPY) {
+                copyChunk(cnx, file);
+            } else {
+                csvReadChunk(cnx, file);
+            }
+            cnx.commit();
+            return null;
+        } catch (SQLException e) {
+            WpDataSource.rollbackQuietly(cnx);
+            return e;
+        } catch (IOException e) {
+            WpDataSource.rollbackQuietly(cnx);
+            return e;
+        } finally {
+            AbstractSqlDao.quietlyCloseConn(cnx);
+        }
+    }
+
+    private static void logFailure(Level level, String message, Exception e) {
+        LOG.log(level, message, e);
+        if (e instanceof SQLException) {
+            SQLException next = ((SQLException) e).getNextException();
+            while (next != null) {
+                LOG.log(level, message, next);
+                next = next.getNextException();
+            }
+        }
+    }
+
+    /**
+     * Reads the encoded rows of a chunk file.
+     * CSV rows may contain quoted newlines, so a row only ends at a newline outside quotes.
+     */
+    private List<String> readRows(File file) throws IOException {
+        List<String> rows = new ArrayList<String>();
+        Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"), 256 * 1024);
+        try {
+            StringBuilder row = new StringBuilder();
+            boolean quoted = false;
+            int c;
+            while ((c = reader.read()) >= 0) {
+                row.append((char) c);
+                if (c == '"' && mode == FastLoader.LoadMode.CSVREAD) {
+                    quoted = !quoted;
+                } else if (c == '\n' && !quoted) {
+                    rows.add(row.toString());
+                    row.setLength(0);
+                }
+            }
+            if (row.length() > 0) {
+                rows.add(row.toString());
+            }
+        } finally {
+            reader.close();
+        }
+        return rows;
+    }
+
+    private void copyChunk(Connection cnx, File file) throws SQLException, IOException {
+        PGConnection pg = cnx.isWrapperFor(PGConnection.class) ? cnx.unwrap(PGConnection.class) : (PGConnection) cnx;
+        String sql = "COPY " + table + " (" + StringUtils.join(fields, ",") + ") FROM STDIN";
+        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            pg.getCopyAPI().copyIn(sql, reader, 64 * 1024);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void csvReadChunk(Connection cnx, File file) throws SQLException {
+        String columns = StringUtils.join(fields, ",");
+        String sql = "INSERT INTO " + table + " (" + columns + ") DIRECT " +
+                "SELECT * FROM CSVREAD('" + file.getAbsolutePath().replace("'", "''") + "', " +
+                "'" + columns + "', 'charset=UTF-8')";
+        Statement st = cnx.createStatement();
+        try {
+            st.executeUpdate(sql);
+        } finally {
+            st.close();
+        }
+    }
+
+    /**
+     * Encodes a row in the PostgreSQL COPY text format.
+     */
+    static String encodeCopyRow(Object[] values) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append('\t');
+            }
+            Object v = values[i];
+            if (v == null) {
+                sb.append("\\N");
+            } else if (v instanceof Boolean) {
+                sb.append(((Boolean) v) ? 't' : 'f');
+            } else if (v instanceof byte[]) {
+                sb.append("\\\\x").append(toHex((byte[]) v));
+            } else if (v instanceof Number) {
+                sb.append(v.toString());
+            } else {
+                String s = v.toString();
+                for (int j = 0; j < s.length(); j++) {
+                    char c = s.charAt(j);
+                    switch (c) {
+                        case '\\': sb.append("\\\\"); break;
+                        case '\t': sb.append("\\t"); break;
+                        case '\n': sb.append("\\n"); break;
+                        case '\r': sb.append("\\r"); break;
+                        default: sb.append(c);
+                    }
+                }
+            }
+        }
+        sb.append('\n');
+        return sb.toString();
+    }
+
+    /**
+     * Encodes a row as CSV readable by H2's CSVREAD.
+     * Nulls are unquoted empty fields; all other non-numeric values are quoted.
+     */
+    static String encodeCsvRow(Object[] values) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            Object v = values[i];
+            if (v == null) {
+                // empty
+            } else if (v instanceof Number || v instanceof Boolean) {
+                sb.append(v.toString());
+            } else {
+                String s = (v instanceof byte[]) ? toHex((byte[]) v) : v.toString();
+                sb.append('"').append(s.replace("\"", "\"\"")).append('"');
+            }
+        }
+        sb.append('\n');
+        return sb.toString();
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * A chunk file of encoded rows.
+     */
+    private static final class Chunk {
+        final File file;
+        final Writer writer;
+        int rows = 0;
+        long chars = 0;
+
+        Chunk() {
+            file = null;
+            writer = null;
+        }
+
+        Chunk(File dir, String table) throws IOException {
+            file = File.createTempFile("bulk-" + table.toLowerCase() + "-", ".txt", dir);
+            file.deleteOnExit();
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 256 * 1024);
+        }
+
+        void write(String line) throws IOException {
+            writer.write(line);
+            rows++;
+            chars += line.length();
+        }
+
+        void close() throws IOException {
+            writer.close();
+        }
+    }
+}
@@ -82,14 +82,14 @@ public class CategoryBfs {
                 for (int catId : cats) {
                     int ci = graph.getCategoryIndex(catId);
                     if (ci >= 0) {
-                        openCats.add(new CategoryDistance(ci, graph.cats[ci], graph.catCosts[ci], (byte)direction));
+                        openCats.add(new CategoryDistance(ci, graph.getCost(ci), (byte)direction));
                     }
                 }
             }
         } else if (startNamespace == NameSpace.CATEGORY) {
             int ci = graph.getCategoryIndex(startId);
             if (ci >= 0) {
-                openCats.add(new CategoryDistance(ci, graph.cats[ci], 0.000000001, (byte)direction));
+                openCats.add(new CategoryDistance(ci, 0.000000001, (byte)direction));
             }
         } else {
             throw new IllegalArgumentException();
@@ -128,8 +128,10 @@ public class CategoryBfs {
 //        System.out.println("visited " + cs.toString());
 
         // add directly linked pages
+        int ci = cs.getCatIndex();
         if (addPages) {
-            for (int i : graph.catPages[cs.getCatIndex()]) {
+            for (int j = 0; j < graph.getNumPages(ci); j++) {
+                int i = graph.getPage(ci, j);
                 if (validWpIds != null && !validWpIds.contains(i)) {
                     continue;
                 }
@@ -145,20 +147,22 @@ public class CategoryBfs {
 
         // next steps downwards
         if (exploreChildren) {
-            for (int i : graph.catChildren[cs.getCatIndex()]) {
+            for (int j = 0; j < graph.getNumChildren(ci); j++) {
+                int i = graph.getChild(ci, j);
                 if (!catDistances.containsKey(i)) {
-                    double d = cs.getDistance() + graph.catCosts[i];
-                    openCats.add(new CategoryDistance(i, graph.cats[i], d, (byte)-1));
+                    double d = cs.getDistance() + graph.getCost(i);
+                    openCats.add(new CategoryDistance(i, d, (byte)-1));
                 }
             }
         }
 
         // next steps upwards (if still possible)
         if (cs.getDirection() == +1) {
-            for (int i : graph.catParents[cs.getCatIndex()]) {
+            for (int j = 0; j < graph.getNumParents(ci); j++) {
+                int i = graph.getParent(ci, j);
                 if (!catDistances.containsKey(i)) {
-                    double d = cs.getDistance() + graph.catCosts[i];
-                    openCats.add(new CategoryDistance(i, graph.cats[i], d, (byte)+1));
+                    double d = cs.getDistance() + graph.getCost(i);
+                    openCats.add(new CategoryDistance(i, d, (byte)+1));
                 }
             }
         }
@@ -6,21 +6,15 @@ package org.wikibrain.core.dao.sql;
  */
 final class CategoryDistance implements Comparable<CategoryDistance> {
     private int catIndex;
-    private String catString;
     private double distance;
     private byte direction; // +1 (heading upwards) or -1 (heading downwards)
 
-    public CategoryDistance(int catIndex, String catString, double distance, byte direction) {
+    public CategoryDistance(int catIndex, double distance, byte direction) {
         this.catIndex = catIndex;
-        this.catString = catString;
         this.distance = distance;
         this.direction = direction;
     }
 
-    public final String getCatString() {
-        return this.catString;
-    }
-
     public final int getCatIndex() {
         return catIndex;
     }
@@ -46,7 +40,6 @@ final class CategoryDistance implements Comparable<CategoryDistance> {
     public String toString() {
         return "CategoryDistance{" +
                 "catIndex=" + catIndex +
-                ", catString='" + catString + '\'' +
                 ", distance=" + distance +
                 ", direction=" + direction +
                 '}';
@@ -1,6 +1,7 @@
 package org.wikibrain.core.dao.sql;
 
 import org.apache.commons.lang3.StringUtils;
+import org.jooq.SQLDialect;
 import org.jooq.Table;
 import org.jooq.TableField;
 import org.jooq.tools.jdbc.JDBCUtils;
@@ -17,20 +18,33 @@ import java.util.Date;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Bulk loads data in batch form to speed up insertions.
  *
+ * The load mode is chosen from the data source: PostgreSQL uses COPY, embedded H2
+ * uses CSVREAD, and everything else (including PostGIS geometries) uses JDBC batches.
+ *
  * @author Shilad Sen
  */
 public class FastLoader {
 
+    /**
+     * How rows are written to the database.
+     */
+    public static enum LoadMode {
+        BATCH,      // JDBC batch inserts
+        COPY,       // PostgreSQL COPY ... FROM STDIN
+        CSVREAD     // H2 INSERT ... DIRECT SELECT ... FROM CSVREAD
+    }
+
     private static final int NUM_INSERTERS = Math.min(WpThreadUtils.getMaxThreads(), 4);
 
     private static final Object POSION_PILL = new Object();
-    private boolean isPostGisLoader = false;
+    private final boolean isPostGisLoader;
 
     static final Logger LOG = Logger.getLogger(FastLoader.class.getName());
     static final int BATCH_SIZE = 1000;
@@ -38,6 +52,9 @@ public class FastLoader {
     private final WpDataSource ds;
     private final String table;
     private final String[] fields;
+    private final LoadMode mode;
+    private final BulkLoader bulkLoader;
+    private final AtomicLong numFailed = new AtomicLong();
 
     private BlockingQueue<Object[]> rowBuffer =
             new ArrayBlockingQueue<Object[]>(BATCH_SIZE * NUM_INSERTERS * 2);
@@ -57,14 +74,35 @@ public class FastLoader {
     }
 
     public FastLoader(WpDataSource ds, String table, String[] fields, boolean isPostGisLoader) throws DaoException {
-        this(ds,table, fields);
-        this.isPostGisLoader = isPostGisLoader;
+        this(ds, table, fields, isPostGisLoader ? LoadMode.BATCH : chooseMode(ds), isPostGisLoader);
     }
 
     public FastLoader(WpDataSource ds, String table, String[] fields) throws DaoException {
+        this(ds, table, fields, false);
+    }
+
+    public FastLoader(WpDataSource ds, String table, String[] fields, LoadMode mode) throws DaoException {
+        this(ds, table, fields, mode, false);
+    }
+
+    private FastLoader(WpDataSource ds, String table, String[] fields, LoadMode mode, boolean isPostGisLoader) throws DaoException {
         this.ds = ds;
         this.table = table;
         this.fields = fields;
+        this.mode = mode;
+        this.isPostGisLoader = isPostGisLoader;
+
+        if (mode == LoadMode.COPY) {
+            bulkLoader = new BulkLoader(ds, table, fields, mode, NUM_INSERTERS);
+            inserterState = InserterState.RUNNING;
+            return;
+        } else if (mode == LoadMode.CSVREAD) {
+            // H2 locks the table for each chunk, so parallel loaders would only contend.
+            bulkLoader = new BulkLoader(ds, table, fields, mode, 1);
+            inserterState = InserterState.RUNNING;
+            return;
+        }
+        bulkLoader = null;
 
         for (int i = 0; i < inserters.length; i++) {
             inserters[i] = new Thread(new Runnable() {
@@ -91,6 +129,36 @@ public class FastLoader {
         inserterState = InserterState.RUNNING;
     }
 
+    /**
+     * Selects the fastest load mode supported by a data source.
+     * CSVREAD reads files on the database host, so it is only used for embedded H2 databases.
+     */
+    public static LoadMode chooseMode(WpDataSource ds) throws DaoException {
+        if (ds.getDialect() == SQLDialect.POSTGRES) {
+            return LoadMode.COPY;
+        } else if (ds.getDialect() == SQLDialect.H2) {
+            Connection cnx = null;
+            try {
+                cnx = ds.getConnection();
+                String url = cnx.getMetaData().getURL();
+                if (url.startsWith("jdbc:h2:tcp:") || url.startsWith("jdbc:h2:ssl:")) {
+                    return LoadMode.BATCH;
+                }
+                return LoadMode.CSVREAD;
+            } catch (SQLException e) {
+                throw new DaoException(e);
+            } finally {
+                AbstractSqlDao.quietlyCloseConn(cnx);
+            }
+        } else {
+            return LoadMode.BATCH;
+        }
+    }
+
+    public LoadMode getMode() {
+        return mode;
+    }
+
     private static String[] getFieldNames(TableField[] fields) {
         String names[] = new String[fields.length];
         for (int i = 0; i < fields.length; i++) {
@@ -106,7 +174,7 @@ public class FastLoader {
      */
     private static final DateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss");
     public void load(Object ... values) throws DaoException {
-        if (inserters == null || inserterState != InserterState.RUNNING) {
+        if (inserterState != InserterState.RUNNING) {
             throw new IllegalStateException("inserter thread in state " + inserterState);
         }
         // Hack convert dates to Timestamps
@@ -118,6 +186,10 @@ public class FastLoader {
         if (values.length != fields.length) {
             throw new IllegalArgumentException();
         }
+        if (bulkLoader != null) {
+            bulkLoader.load(values);
+            return;
+        }
         try {
             rowBuffer.put(values);
         } catch (InterruptedException e) {
@@ -179,6 +251,7 @@ public class FastLoader {
                     cnx.commit();
                 } catch (SQLException e) {
                     cnx.rollback();
+                    numFailed.addAndGet(batchSize);
                     while (e != null) {
                         LOG.log(Level.SEVERE, "insert batch failed, attempting to continue:", e);
                         e = e.getNextException();
@@ -195,6 +268,14 @@ public class FastLoader {
     }
 
     public void endLoad() throws DaoException {
+        if (bulkLoader != null) {
+            if (inserterState == InserterState.RUNNING) {
+                inserterState = InserterState.SHUTTING_DOWN;
+                bulkLoader.endLoad();
+            }
+            inserterState = InserterState.SHUTDOWN;
+            return;
+        }
         try {
             if (inserterState == InserterState.RUNNING) {
                 rowBuffer.put(new Object[]{POSION_PILL});
@@ -215,6 +296,13 @@ public class FastLoader {
         inserterState = InserterState.SHUTDOWN;
     }
 
+    /**
+     * @return The number of rows that could not be written to the database.
+     */
+    public long getNumFailed() {
+        return (bulkLoader != null) ? bulkLoader.getNumFailed() : numFailed.get();
+    }
+
     public void close() throws  DaoException {
         endLoad();
     }
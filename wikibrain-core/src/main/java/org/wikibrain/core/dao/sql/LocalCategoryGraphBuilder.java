@@ -1,17 +1,13 @@
 package org.wikibrain.core.dao.sql;
 
-import com.typesafe.config.Config;
-import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
-import gnu.trove.map.hash.TIntIntHashMap;
-import org.wikibrain.conf.Configuration;
-import org.wikibrain.conf.ConfigurationException;
-import org.wikibrain.conf.Configurator;
+import gnu.trove.map.hash.TIntObjectHashMap;
 import org.wikibrain.core.dao.*;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.model.*;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
 
-import java.io.File;
 import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -19,6 +15,9 @@ import java.util.logging.Logger;
 /**
  * Builds a directed graph among categories and pages using daos.
  * Also calculates page rank among pages.
+ *
+ * The category members of a language are streamed once, and the parent, child
+ * and page edges are laid out in compressed sparse row form with a counting sort.
  */
 public class LocalCategoryGraphBuilder {
 
@@ -32,6 +31,29 @@ public class LocalCategoryGraphBuilder {
         this.catDao = catDao;
     }
 
+    /**
+     * Builds the graphs of several languages in parallel, one language per thread.
+     *
+     * @param languages
+     * @return
+     * @throws DaoException if the graph of any language could not be built.
+     */
+    public Map<Language, CategoryGraph> build(Collection<Language> languages) throws DaoException {
+        final Map<Language, CategoryGraph> graphs = Collections.synchronizedMap(new HashMap<Language, CategoryGraph>());
+        ParallelForEach.loop(languages, new Procedure<Language>() {
+            @Override
+            public void call(Language lang) throws Exception {
+                graphs.put(lang, build(lang));
+            }
+        });
+        for (Language lang : languages) {
+            if (!graphs.containsKey(lang)) {
+                throw new DaoException("building category graph for " + lang + " failed");
+            }
+        }
+        return graphs;
+    }
+
     /**
      *
      * @param language
@@ -39,122 +61,154 @@ public class LocalCategoryGraphBuilder {
      * @throws DaoException
      */
     public CategoryGraph build(Language language) throws DaoException {
-        CategoryGraph graph = new CategoryGraph(language);
-        loadCategories(graph);
-        buildGraph(graph);
-        computePageRanks(graph);
-        return graph;
-    }
-
-    private void loadCategories(CategoryGraph graph) throws DaoException {
-        LOG.info("loading categories...");
-        graph.catIndexes = new TIntIntHashMap();
-        List<String> catList = new ArrayList<String>();
+        // categories, ordered by local id
+        LOG.info("loading categories for " + language);
+        TIntObjectHashMap<String> titles = new TIntObjectHashMap<String>();
         Iterable<LocalPage> catIter = pageDao.get(new DaoFilter()
                 .setNameSpaces(NameSpace.CATEGORY)
-                .setLanguages(graph.language)
+                .setLanguages(language)
         );
-        TIntList catIds = new TIntArrayList();
         for (LocalPage cat : catIter) {
-            if (cat != null) {
-                if (graph.catIndexes.containsKey(cat.getLocalId())) {
-                    continue;
-                }
-                assert(catList.size() == graph.catIndexes.size());
-                assert(catIds.size() == graph.catIndexes.size());
-                int ci = graph.catIndexes.size();
-                graph.catIndexes.put (cat.getLocalId(), ci);
-                catList.add(cat.getTitle().getCanonicalTitle());
-                catIds.add(cat.getLocalId());
+            if (cat != null && !titles.containsKey(cat.getLocalId())) {
+                titles.put(cat.getLocalId(), cat.getTitle().getCanonicalTitle());
             }
         }
-        graph.cats = catList.toArray(new String[0]);
-        graph.catIds = catIds.toArray();
-        LOG.info("finished loading " + graph.cats.length + " categories");
-    }
-
-    private void buildGraph(CategoryGraph graph) throws DaoException {
-        LOG.info("building category graph");
-        graph.catPages = new int[graph.catIndexes.size()][];
-        graph.catParents = new int[graph.catIndexes.size()][];
-        graph.catChildren = new int[graph.catIndexes.size()][];
-        graph.catCosts = new double[graph.catIndexes.size()];
-
-        Arrays.fill(graph.catPages, new int[0]);
-        Arrays.fill(graph.catParents, new int[0]);
-        Arrays.fill(graph.catChildren, new int[0]);
-
-        // count reverse edges
+        int[] catIds = titles.keys();
+        Arrays.sort(catIds);
+        String[] cats = new String[catIds.length];
+        for (int i = 0; i < catIds.length; i++) {
+            cats[i] = titles.get(catIds[i]);
+        }
+        titles = null;
+        int n = catIds.length;
+        LOG.info("finished loading " + n + " categories for " + language);
+
+        // edges
+        LOG.info("building category graph for " + language);
+        TIntArrayList edgeCats = new TIntArrayList();
+        TIntArrayList edgeChildren = new TIntArrayList();
+        TIntArrayList pageCats = new TIntArrayList();
+        TIntArrayList pageIds = new TIntArrayList();
         int totalEdges = 0;
-        int numCatChildren[] = new int[graph.catIndexes.size()];
-        int numCatParents[] = new int[graph.catIndexes.size()];
-        int numCatPages[] = new int[graph.catIndexes.size()];
-
-        DaoFilter filter = new DaoFilter().setLanguages(graph.language);
-        for (LocalCategoryMember lcm : catDao.get(filter)) {
-            int catIndex1 = graph.getCategoryIndex(lcm.getArticleId());     // cat index for page (probably -1)
-            int catIndex2 = graph.getCategoryIndex(lcm.getCategoryId());    // cat index for cat
+        for (LocalCategoryMember lcm : catDao.get(new DaoFilter().setLanguages(language))) {
+            int catIndex1 = Arrays.binarySearch(catIds, lcm.getArticleId());    // cat index for page (probably negative)
+            int catIndex2 = Arrays.binarySearch(catIds, lcm.getCategoryId());   // cat index for cat
             if (catIndex1 >= 0 && catIndex2 >= 0) {
-                numCatChildren[catIndex2]++;
-                numCatParents[catIndex1]++;
+                edgeCats.add(catIndex2);
+                edgeChildren.add(catIndex1);
             } else if (catIndex2 >= 0) {
-                numCatPages[catIndex2]++;
+                pageCats.add(catIndex2);
+                pageIds.add(lcm.getArticleId());
             }
             totalEdges++;
         }
+        int[] childOffsets = offsets(n, edgeCats);
+        int[] children = group(childOffsets, edgeCats, edgeChildren);
+        int[] parentOffsets = offsets(n, edgeChildren);
+        int[] parents = group(parentOffsets, edgeChildren, edgeCats);
+        edgeCats = edgeChildren = null;
+        int[] pageOffsets = offsets(n, pageCats);
+        int[] pages = group(pageOffsets, pageCats, pageIds);
+        pageCats = pageIds = null;
+        LOG.info("loaded " + totalEdges + " edges in category graph for " + language);
+
+        double[] costs = computePageRanks(parentOffsets, parents, pageOffsets);
+        double minCost = logCosts(costs, cats);
+        return new CategoryGraph(language, catIds, cats, costs, minCost,
+                parentOffsets, parents, childOffsets, children, pageOffsets, pages);
+    }
 
-        // allocate space
-        for (int i = 0; i < graph.catIndexes.size(); i++) {
-            graph.catPages[i] = new int[numCatPages[i]];
-            graph.catChildren[i] = new int[numCatChildren[i]];
-            graph.catParents[i] = new int[numCatParents[i]];
+    /**
+     * @return Offsets of each row in a CSR grouping of the rows, with a final entry for the end.
+     */
+    private static int[] offsets(int numRows, TIntArrayList rows) {
+        int[] offsets = new int[numRows + 1];
+        for (int i = 0; i < rows.size(); i++) {
+            offsets[rows.get(i) + 1]++;
         }
-
-        // fill it
-        for (LocalCategoryMember lcm : catDao.get(filter)) {
-            int catIndex1 = graph.getCategoryIndex(lcm.getArticleId());     // cat index for page (probably -1)
-            int catIndex2 = graph.getCategoryIndex(lcm.getCategoryId());    // cat index for cat
-            if (catIndex1 >= 0 && catIndex2 >= 0) {
-                graph.catChildren[catIndex2][--numCatChildren[catIndex2]] = catIndex1;
-                graph.catParents[catIndex1][--numCatParents[catIndex1]] = catIndex2;
-            } else if (catIndex2 >= 0) {
-                graph.catPages[catIndex2][--numCatPages[catIndex2]] = lcm.getArticleId();
-            }
+        for (int i = 0; i < numRows; i++) {
+            offsets[i + 1] += offsets[i];
         }
+        return offsets;
+    }
 
-        for (int n : numCatChildren) { assert(n == 0); }
-        for (int n : numCatPages) { assert(n == 0); }
-        for (int n : numCatParents) { assert(n == 0); }
-        LOG.info("loaded " + totalEdges + " edges in category graph");
+    /**
+     * @return The values grouped by row, in the order they appear within each row.
+     */
+    private static int[] group(int[] offsets, TIntArrayList rows, TIntArrayList values) {
+        int[] grouped = new int[rows.size()];
+        int[] fill = Arrays.copyOf(offsets, offsets.length - 1);
+        for (int i = 0; i < rows.size(); i++) {
+            grouped[fill[rows.get(i)]++] = values.get(i);
+        }
+        return grouped;
     }
 
-    public void computePageRanks(CategoryGraph graph) {
+    /**
+     * @return The cost of each category, 1 / -log(page rank), where rank flows
+     *         from each category to its parents.
+     */
+    private double[] computePageRanks(int[] parentOffsets, int[] parents, int[] pageOffsets) {
         LOG.info("computing category page ranks...");
+        int n = parentOffsets.length - 1;
 
         // initialize page rank
-        long sumCredits = graph.catPages.length;    // each category gets 1 credit to start
-        for (int i = 0; i < graph.catPages.length; i++) {
-            sumCredits += graph.catPages[i].length; // one more credit per page that references it.
-        }
-        for (int i = 0; i < graph.catPages.length; i++) {
-            graph.catCosts[i] = (1.0 + graph.catPages[i].length) / sumCredits;
+        long sumCredits = n;    // each category gets 1 credit to start
+        sumCredits += pageOffsets[n];   // one more credit per page that references it.
+        double[] ranks = new double[n];
+        for (int i = 0; i < n; i++) {
+            ranks[i] = (1.0 + pageOffsets[i + 1] - pageOffsets[i]) / sumCredits;
         }
 
+        double[] nextRanks = new double[n];
         for (int i = 0; i < 20; i++) {
             LOG.log(Level.INFO, "performing page ranks iteration {0}.", i);
-            double error = onePageRankIteration(graph);
+            double error = onePageRankIteration(parentOffsets, parents, ranks, nextRanks);
+            double[] tmp = ranks;
+            ranks = nextRanks;
+            nextRanks = tmp;
             LOG.log(Level.INFO, "Error for iteration is {0}.", error);
             if (error == 0) {
                 break;
             }
         }
-        Integer sortedIndexes[] = new Integer[graph.catCosts.length];
-        for (int i = 0; i < graph.catParents.length; i++) {
-            graph.catCosts[i] = 1.0/-Math.log(graph.catCosts[i]);
-            sortedIndexes[i] = i;
+        for (int i = 0; i < n; i++) {
+            ranks[i] = 1.0/-Math.log(ranks[i]);
         }
         LOG.info("finished computing page ranks...");
-        final double[] costs = graph.catCosts;
+        return ranks;
+    }
+
+    private static final double DAMPING_FACTOR = 0.85;
+    private static double onePageRankIteration(int[] parentOffsets, int[] parents, double[] ranks, double[] nextRanks) {
+        int n = ranks.length;
+        Arrays.fill(nextRanks, (1.0 - DAMPING_FACTOR) / n);
+        for (int i = 0; i < n; i++) {
+            int d = parentOffsets[i + 1] - parentOffsets[i];   // degree
+            double pr = ranks[i];    // current page-rank
+            for (int j = parentOffsets[i]; j < parentOffsets[i + 1]; j++) {
+                nextRanks[parents[j]] += DAMPING_FACTOR * pr / d;
+            }
+        }
+        double diff = 0.0;
+        for (int i = 0; i < n; i++) {
+            diff += Math.abs(ranks[i] - nextRanks[i]);
+        }
+        return diff;
+    }
+
+    /**
+     * Logs the most expensive categories.
+     * @return The smallest cost.
+     */
+    private double logCosts(final double[] costs, String[] cats) {
+        if (costs.length == 0) {
+            return -1;
+        }
+        Integer sortedIndexes[] = new Integer[costs.length];
+        for (int i = 0; i < costs.length; i++) {
+            sortedIndexes[i] = i;
+        }
         Arrays.sort(sortedIndexes, new Comparator<Integer>() {
             @Override
             public int compare(Integer i1, Integer i2) {
@@ -165,34 +219,15 @@ public class LocalCategoryGraphBuilder {
         });
 
         StringBuilder b = new StringBuilder();
-        for (int i = 0; i < 20; i++) {
+        for (int i = 0; i < Math.min(20, sortedIndexes.length); i++) {
             int j = sortedIndexes[i];
-            b.append("" + i + ". " + graph.cats[j] + "=" + graph.catCosts[j]);
+            b.append("" + i + ". " + cats[j] + "=" + costs[j]);
             b.append(", ");
         }
-        graph.minCost = graph.catCosts[sortedIndexes[sortedIndexes.length - 1]];
+        double minCost = costs[sortedIndexes[sortedIndexes.length - 1]];
 
-        LOG.info("Min cat cost: " + graph.minCost);
+        LOG.info("Min cat cost: " + minCost);
         LOG.info("Top cat costs: " + b.toString());
+        return minCost;
     }
-
-    private static final double DAMPING_FACTOR = 0.85;
-    public double onePageRankIteration(CategoryGraph graph) {
-        double nextRanks [] = new double[graph.catCosts.length];
-        Arrays.fill(nextRanks, (1.0 - DAMPING_FACTOR) / graph.catCosts.length);
-        for (int i = 0; i < graph.catParents.length; i++) {
-            int d = graph.catParents[i].length;   // degree
-            double pr = graph.catCosts[i];    // current page-rank
-            for (int j : graph.catParents[i]) {
-                nextRanks[j] += DAMPING_FACTOR * pr / d;
-            }
-        }
-        double diff = 0.0;
-        for (int i = 0; i < graph.catParents.length; i++) {
-            diff += Math.abs(graph.catCosts[i] - nextRanks[i]);
-        }
-        graph.catCosts = nextRanks;
-        return diff;
-    }
-
 }
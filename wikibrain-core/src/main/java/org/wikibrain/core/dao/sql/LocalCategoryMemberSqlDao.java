@@ -12,8 +12,10 @@ import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.model.*;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
 
 /**
  *
@@ -30,13 +32,29 @@ public class LocalCategoryMemberSqlDao extends AbstractSqlDao<LocalCategoryMembe
             Tables.CATEGORY_MEMBERS.ARTICLE_ID,
     };
     private final LocalPageDao localPageDao;
-    private Map<Language, CategoryGraph> graphs = new HashMap<Language, CategoryGraph>();
+
+    /**
+     * Category graphs for languages whose category members are not changing.
+     */
+    private final Map<Language, CategoryGraph> graphs = new ConcurrentHashMap<Language, CategoryGraph>();
 
     public LocalCategoryMemberSqlDao(WpDataSource dataSource, LocalPageDao localArticleDao) throws DaoException {
         super(dataSource, INSERT_FIELDS, "/db/category-members");
         this.localPageDao = localArticleDao;
     }
 
+    @Override
+    public void clear() throws DaoException {
+        graphs.clear();
+        super.clear();
+    }
+
+    @Override
+    public void beginLoad() throws DaoException {
+        graphs.clear();
+        super.beginLoad();
+    }
+
     @Override
     public void save(LocalCategoryMember member) throws DaoException {
         insert(
@@ -193,24 +211,87 @@ public class LocalCategoryMemberSqlDao extends AbstractSqlDao<LocalCategoryMembe
         return localPageDao.getByIds(localArticle.getLanguage(), categoryIds);
     }
 
+    /**
+     * Returns the category graph of a language. The graph is memory mapped
+     * from the cache if it is up to date, and is otherwise built from the
+     * database and written to the cache.
+     */
     @Override
-    public synchronized  CategoryGraph getGraph(Language language) throws DaoException {
-        if (graphs.containsKey(language)) {
-            return graphs.get(language);
+    public CategoryGraph getGraph(Language language) throws DaoException {
+        CategoryGraph graph = graphs.get(language);
+        if (graph != null) {
+            return graph;
         }
-        String key = "cat-graph-" + language.getLangCode();
-        if (cache != null) {
-            CategoryGraph graph = (CategoryGraph) cache.get(key, LocalPage.class, LocalCategoryMember.class);
-            if (graph != null) {
-                graphs.put(language, graph);
-                return graph;
+        synchronized (this) {
+            graph = graphs.get(language);
+            if (graph == null) {
+                graph = openGraph(language);
+            }
+            if (graph == null) {
+                graph = new LocalCategoryGraphBuilder(localPageDao, this).build(language);
+                saveGraph(graph);
+            }
+            graphs.put(language, graph);
+            return graph;
+        }
+    }
+
+    /**
+     * Builds the category graphs of several languages in parallel and writes
+     * them to the cache. Languages whose cached graphs are up to date are skipped.
+     * This should be called after category members and pages have been loaded.
+     *
+     * @param languages
+     * @throws DaoException
+     */
+    public synchronized void buildGraphs(Collection<Language> languages) throws DaoException {
+        List<Language> stale = new ArrayList<Language>();
+        for (Language lang : languages) {
+            if (!graphs.containsKey(lang) && (cache == null || !isGraphCached(lang))) {
+                stale.add(lang);
             }
         }
+        if (stale.isEmpty()) {
+            return;
+        }
         LocalCategoryGraphBuilder builder = new LocalCategoryGraphBuilder(localPageDao, this);
-        CategoryGraph graph =  builder.build(language);
-        cache.put(key, graph);
-        graphs.put(language, graph);
-        return graph;
+        for (CategoryGraph graph : builder.build(stale).values()) {
+            saveGraph(graph);
+            graphs.put(graph.getLanguage(), graph);
+        }
+    }
+
+    private CategoryGraph openGraph(Language lang) {
+        if (cache != null && isGraphCached(lang)) {
+            try {
+                return CategoryGraph.open(getGraphFile(lang));
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "reading category graph for " + lang + " failed:", e);
+            }
+        }
+        return null;
+    }
+
+    private void saveGraph(CategoryGraph graph) {
+        if (cache != null) {
+            try {
+                graph.write(getGraphFile(graph.getLanguage()));
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "writing category graph for " + graph.getLanguage() + " failed:", e);
+            }
+        }
+    }
+
+    private File getGraphFile(Language lang) {
+        return cache.getCacheFile("category-graph." + lang.getLangCode() + ".bin");
+    }
+
+    private boolean isGraphCached(Language lang) {
+        try {
+            return cache.isUpToDate(getGraphFile(lang).getName(), LocalPage.class, LocalCategoryMember.class);
+        } catch (DaoException e) {
+            return false;   // pages or category members have not been loaded
+        }
     }
 
     private Collection<Integer> extractIds(Result<Record> result, boolean categoryIds) {
@@ -1,5 +1,6 @@
 package org.wikibrain.core.dao.sql;
 
+import com.google.common.collect.Iterables;
 import com.typesafe.config.Config;
 import gnu.trove.impl.Constants;
 import gnu.trove.map.hash.TLongIntHashMap;
@@ -184,10 +185,21 @@ public class LocalPageSqlDao extends AbstractSqlDao<LocalPage> implements LocalP
         return getById(localId.getLanguage(), localId.getId());
     }
 
+    @Override
+    public void useCache(File dir) throws DaoException {
+        super.useCache(dir);
+        if (redirectSqlDao != null) {
+            redirectSqlDao.useCache(dir);
+        }
+    }
+
     @Override
     public void setFollowRedirects(boolean followRedirects) throws DaoException {
         if (followRedirects){
             redirectSqlDao = new RedirectSqlDao(wpDs);
+            if (cache != null) {
+                redirectSqlDao.cache = cache;
+            }
         } else {
             redirectSqlDao = null;
         }
@@ -221,9 +233,10 @@ public class LocalPageSqlDao extends AbstractSqlDao<LocalPage> implements LocalP
         if (pageIds == null || pageIds.isEmpty()) {
             return null;
         }
+        Map<Integer, LocalPage> pages = buildLocalPages(fetchByIds(language, pageIds));
         Map<Integer, LocalPage> map = new HashMap<Integer, LocalPage>();
         for (Integer pageId : pageIds){
-            map.put(pageId, getById(language, pageId));
+            map.put(pageId, pages.get(pageId));
         }
         return map;
     }
@@ -233,13 +246,98 @@ public class LocalPageSqlDao extends AbstractSqlDao<LocalPage> implements LocalP
         if (titles == null || titles.isEmpty()) {
             return null;
         }
+        Set<String> canonical = new HashSet<String>();
+        for (Title title : titles) {
+            canonical.add(title.getCanonicalTitle());
+        }
+        Map<String, Record> byTitle = new HashMap<String, Record>();
+        DSLContext context = getJooq();
+        try {
+            for (List<String> chunk : Iterables.partition(canonical, MAX_IN_CLAUSE_SIZE)) {
+                Result<Record> records = context.select().
+                        from(Tables.LOCAL_PAGE).
+                        where(Tables.LOCAL_PAGE.TITLE.in(chunk)).
+                        and(Tables.LOCAL_PAGE.LANG_ID.eq(language.getId())).
+                        and(Tables.LOCAL_PAGE.NAME_SPACE.eq(nameSpace.getArbitraryId())).
+                        fetch();
+                for (Record record : records) {
+                    String title = record.getValue(Tables.LOCAL_PAGE.TITLE);
+                    if (!byTitle.containsKey(title)) {
+                        byTitle.put(title, record);
+                    }
+                }
+            }
+        } finally {
+            freeJooq(context);
+        }
+        Map<Integer, LocalPage> pages = buildLocalPages(byTitle.values());
         Map<Title, LocalPage> map = new HashMap<Title, LocalPage>();
         for (Title title : titles){
-            map.put(title, getByTitle(title, nameSpace));
+            Record record = byTitle.get(title.getCanonicalTitle());
+            map.put(title, record == null ? null : pages.get(record.getValue(Tables.LOCAL_PAGE.PAGE_ID)));
         }
         return map;
     }
 
+    /**
+     * Fetches the records for many pages using IN queries of at most MAX_IN_CLAUSE_SIZE ids.
+     */
+    private List<Record> fetchByIds(Language language, Collection<Integer> pageIds) throws DaoException {
+        Set<Integer> distinct = new HashSet<Integer>(pageIds);
+        distinct.remove(null);
+        List<Record> records = new ArrayList<Record>();
+        DSLContext context = getJooq();
+        try {
+            for (List<Integer> chunk : Iterables.partition(distinct, MAX_IN_CLAUSE_SIZE)) {
+                records.addAll(context.select().
+                        from(Tables.LOCAL_PAGE).
+                        where(Tables.LOCAL_PAGE.PAGE_ID.in(chunk)).
+                        and(Tables.LOCAL_PAGE.LANG_ID.eq(language.getId())).
+                        fetch());
+            }
+        } finally {
+            freeJooq(context);
+        }
+        return records;
+    }
+
+    /**
+     * Builds the pages for a batch of records from a single language.
+     * Redirects are resolved with a single batched lookup instead of a query per redirect.
+     *
+     * @return A map from the page id of each record to its (possibly resolved) page.
+     */
+    private Map<Integer, LocalPage> buildLocalPages(Collection<Record> records) throws DaoException {
+        Map<Integer, LocalPage> pages = new HashMap<Integer, LocalPage>();
+        Language lang = null;
+        List<Integer> redirects = new ArrayList<Integer>();
+        for (Record record : records) {
+            int pageId = record.getValue(Tables.LOCAL_PAGE.PAGE_ID);
+            lang = Language.getById(record.getValue(Tables.LOCAL_PAGE.LANG_ID));
+            if (redirectSqlDao != null && record.getValue(Tables.LOCAL_PAGE.IS_REDIRECT)) {
+                redirects.add(pageId);
+            }
+            pages.put(pageId, buildUnresolvedLocalPage(lang, record));
+        }
+        if (redirects.isEmpty()) {
+            return pages;
+        }
+
+        Map<Integer, Integer> dests = redirectSqlDao.resolveRedirects(lang, redirects);
+        Map<Integer, LocalPage> targets = new HashMap<Integer, LocalPage>();
+        for (Record record : fetchByIds(lang, dests.values())) {
+            // Double redirects are rare; resolve them one at a time.
+            targets.put(record.getValue(Tables.LOCAL_PAGE.PAGE_ID), buildLocalPage(record));
+        }
+        for (int pageId : redirects) {
+            LocalPage target = targets.get(dests.get(pageId));
+            if (target != null) {
+                pages.put(pageId, target);
+            }
+        }
+        return pages;
+    }
+
     @Override
     public int getIdByTitle(String title, Language language, NameSpace nameSpace) throws DaoException {
         if (titlesToIds==null){
@@ -285,6 +383,10 @@ public class LocalPageSqlDao extends AbstractSqlDao<LocalPage> implements LocalP
                 return page;
             }
         }
+        return buildUnresolvedLocalPage(lang, record);
+    }
+
+    private LocalPage buildUnresolvedLocalPage(Language lang, Record record) {
         Title title = new Title(
                 record.getValue(Tables.LOCAL_PAGE.TITLE), true,
                 LanguageInfo.getByLanguage(lang));
@@ -338,9 +440,10 @@ public class LocalPageSqlDao extends AbstractSqlDao<LocalPage> implements LocalP
                                 record.getValue(Tables.LOCAL_PAGE.NAME_SPACE));
                             if (redirectSqlDao != null && record.getValue(Tables.LOCAL_PAGE.IS_REDIRECT)){
                                 numRedirects.incrementAndGet();
-                                Integer dest = redirectSqlDao.resolveRedirect(
-                                        Language.getById(record.getValue(Tables.LOCAL_PAGE.LANG_ID)),
-                                        record.getValue(Tables.LOCAL_PAGE.PAGE_ID));
+                                // one bulk read (or memory map) of each language's redirects
+                                Integer dest = redirectSqlDao.getRedirectArray(
+                                        Language.getById(record.getValue(Tables.LOCAL_PAGE.LANG_ID))
+                                ).resolve(record.getValue(Tables.LOCAL_PAGE.PAGE_ID));
                                 if (dest != null) {
                                     numResolved.incrementAndGet();
                                     synchronized (map) {
@@ -18,10 +18,16 @@ import org.wikibrain.utils.JvmUtils;
 import java.sql.Timestamp;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Counts are accumulated in memory by striped counters keyed by (component, language),
+ * so that concurrent loader threads rarely touch the same cache line and never take a lock.
+ * A background timer writes the deltas to the database every few seconds, and sync() writes
+ * them immediately.
+ *
  * @author Shilad Sen
  */
 public class MetaInfoSqlDao extends AbstractSqlDao<MetaInfo> implements MetaInfoDao {
@@ -29,10 +35,12 @@ public class MetaInfoSqlDao extends AbstractSqlDao<MetaInfo> implements MetaInfo
 
     private static final Object NULL_KEY = new Object();
 
-    private static final int COUNTS_PER_FLUSH = 5000;
+    private static final long FLUSH_INTERVAL_MILLIS = 5000;
 
-    private final ConcurrentHashMap<Class, Map<Language, MetaInfo>> counters =
-            new ConcurrentHashMap<Class, Map<Language, MetaInfo>>();
+    private final ConcurrentHashMap<Class, Map<Language, Counter>> counters =
+            new ConcurrentHashMap<Class, Map<Language, Counter>>();
+
+    private Timer flusher = null;
 
     public MetaInfoSqlDao(WpDataSource dataSource) throws DaoException {
         super(dataSource, null, "/db/meta-info");
@@ -51,8 +59,15 @@ public class MetaInfoSqlDao extends AbstractSqlDao<MetaInfo> implements MetaInfo
         return JooqUtils.tableExists(context, Tables.META_INFO);
     }
 
+    @Override
+    public void clear() throws DaoException {
+        counters.clear();
+        super.clear();
+    }
+
     @Override
     public void clear(Class component) throws DaoException {
+        counters.remove(component);
         if (!tableExists()) {
             return;
         }
@@ -71,6 +86,10 @@ public class MetaInfoSqlDao extends AbstractSqlDao<MetaInfo> implements MetaInfo
 
     @Override
     public void clear(Class component, Language lang) throws DaoException {
+        Map<Language, Counter> langCounters = counters.get(component);
+        if (langCounters != null) {
+            langCounters.remove(lang == null ? NULL_KEY : lang);
+        }
         if (!tableExists()) {
             return;
         }
@@ -99,10 +118,7 @@ public class MetaInfoSqlDao extends AbstractSqlDao<MetaInfo> implements MetaInfo
 
     @Override
     public int incrementRecords(Class component, Language lang, int n) throws DaoException {
-        MetaInfo info = getInfo(component, lang);
-        n = info.incrementNumRecords(n);
-        maybeFlush(info);
-        return n;
+        return getCounter(component, lang).incrementRecords(n);
     }
 
     @Override
@@ -142,34 +158,39 @@ public class MetaInfoSqlDao extends AbstractSqlDao<MetaInfo> implements MetaInfo
 
     @Override
     public int incrementErrors(Class component, Language lang) throws DaoException {
-        MetaInfo info = getInfo(component, lang);
-        int n = info.incrementNumErrors();
-        maybeFlush(info);
-        return n;
+        return incrementErrors(component, lang, 1);
+    }
+
+    @Override
+    public int incrementErrors(Class component, int n) throws DaoException {
+        return incrementErrors(component, null, n);
+    }
+
+    @Override
+    public int incrementErrors(Class component, Language lang, int n) throws DaoException {
+        return getCounter(component, lang).incrementErrors(n);
     }
 
     @Override
     public void sync(Class component) throws DaoException {
-        if (counters.containsKey(component)) {
-            for (MetaInfo mi : counters.get(component).values()) {
-                flush(mi);
+        Map<Language, Counter> langCounters = counters.get(component);
+        if (langCounters != null) {
+            for (Counter counter : langCounters.values()) {
+                flush(counter);
             }
         }
     }
 
     @Override
     public void sync(Class component, Language lang) throws DaoException {
-        MetaInfo info = getInfo(component, lang);
-        flush(info);
+        flush(getCounter(component, lang));
     }
 
 
     @Override
     public void sync() throws DaoException {
         for (Class klass : counters.keySet()) {
-            for (MetaInfo mi : counters.get(klass).values()) {
-                flush(mi);
-            }
+            sync(klass);
         }
     }
 
@@ -242,47 +263,58 @@ public class MetaInfoSqlDao extends AbstractSqlDao<MetaInfo> implements MetaInfo
 
     @Override
     public MetaInfo getInfo(Class component, Language lang) throws DaoException {
-        counters.putIfAbsent(component, new ConcurrentHashMap<Language, MetaInfo>());
-        Map<Language, MetaInfo> langInfos = counters.get(component);
-        if (langInfos == null) {
-            throw new IllegalStateException();
+        return getCounter(component, lang).toMetaInfo();
+    }
+
+    private Counter getCounter(Class component, Language lang) throws DaoException {
+        Map<Language, Counter> langCounters = counters.get(component);
+        if (langCounters == null) {
+            counters.putIfAbsent(component, new ConcurrentHashMap<Language, Counter>());
+            langCounters = counters.get(component);
         }
         Object langKey = (lang == null ? NULL_KEY : lang);
-        MetaInfo info = langInfos.get(langKey);
-        if (info == null) {
-            synchronized (langInfos) {
-                if (langInfos.containsKey(langKey)) {
-                    info = langInfos.get(langKey);
+        Counter counter = langCounters.get(langKey);
+        if (counter == null) {
+            synchronized (langCounters) {
+                if (langCounters.containsKey(langKey)) {
+                    counter = langCounters.get(langKey);
                 } else {
-                    DSLContext context = getJooq();
-                    try {
-                        if (!tableExists(context)) {
-                            info = new MetaInfo(component, lang);
-                        } else {
-                            Condition langCondition = (lang == null)
-                                    ? Tables.META_INFO.LANG_ID.isNull()
-                                    : Tables.META_INFO.LANG_ID.eq(lang.getId());
-
-                            Record3<Integer, Integer, Timestamp> record =
-                                    context.select(Tables.META_INFO.NUM_RECORDS, Tables.META_INFO.NUM_ERRORS, Tables.META_INFO.LAST_UPDATED)
-                                            .from(Tables.META_INFO)
-                                            .where(Tables.META_INFO.COMPONENT.eq(component.getSimpleName()))
-                                            .and(langCondition)
-                                            .fetchOne();
-                            if (record == null) {
-                                info = new MetaInfo(component, lang);
-                            } else {
-                                info = new MetaInfo(component, lang, record.value1(), record.value2(), record.value3());
-                            }
-                        }
-                    } finally {
-                        freeJooq(context);
-                    }
-                    ((Map)langInfos).put(langKey, info);
+                    counter = new Counter(readInfo(component, lang));
+                    ((Map)langCounters).put(langKey, counter);
+                    startFlusher();
                 }
             }
         }
-        return info;
+        return counter;
+    }
+
+    /**
+     * Reads the stored counts for a component and language.
+     */
+    private MetaInfo readInfo(Class component, Language lang) throws DaoException {
+        DSLContext context = getJooq();
+        try {
+            if (!tableExists(context)) {
+                return new MetaInfo(component, lang);
+            }
+            Condition langCondition = (lang == null)
+                    ? Tables.META_INFO.LANG_ID.isNull()
+                    : Tables.META_INFO.LANG_ID.eq(lang.getId());
+
+            Record3<Integer, Integer, Timestamp> record =
+                    context.select(Tables.META_INFO.NUM_RECORDS, Tables.META_INFO.NUM_ERRORS, Tables.META_INFO.LAST_UPDATED)
+                            .from(Tables.META_INFO)
+                            .where(Tables.META_INFO.COMPONENT.eq(component.getSimpleName()))
+                            .and(langCondition)
+                            .fetchOne();
+            if (record == null) {
+                return new MetaInfo(component, lang);
+            } else {
+                return new MetaInfo(component, lang, record.value1(), record.value2(), record.value3());
+            }
+        } finally {
+            freeJooq(context);
+        }
     }
 
     @Override
@@ -360,43 +392,66 @@ public class MetaInfoSqlDao extends AbstractSqlDao<MetaInfo> implements MetaInfo
         }
     }
 
-    private void maybeFlush(MetaInfo info) throws DaoException {
-        if (info.numNotWritten() > COUNTS_PER_FLUSH) {
-            synchronized (info) {
-                if (info.numNotWritten() > COUNTS_PER_FLUSH) {
-                    flush(info);
+    /**
+     * Starts the daemon thread that periodically writes counts, if it is not already running.
+     */
+    private synchronized void startFlusher() {
+        if (flusher != null) {
+            return;
+        }
+        flusher = new Timer("meta-info-flusher", true);
+        flusher.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    sync();
+                } catch (Exception e) {
+                    LOG.log(Level.WARNING, "periodic flush of meta info failed:", e);
                 }
             }
-        }
+        }, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS);
     }
 
-    private void flush(MetaInfo info) throws DaoException {
-        synchronized (info) {
+    /**
+     * Adds the counts accumulated since the last flush to the stored counts.
+     */
+    private void flush(Counter counter) throws DaoException {
+        synchronized (counter) {
+            long numRecords = counter.getNumRecords();
+            long numErrors = counter.getNumErrors();
+            int newRecords = (int) (numRecords - counter.writtenRecords);
+            int newErrors = (int) (numErrors - counter.writtenErrors);
+            if (newRecords == 0 && newErrors == 0) {
+                return;
+            }
+            counter.lastUpdated = counter.getLastUpdated();
+            Timestamp lastUpdated = new Timestamp(counter.lastUpdated);
+            Language lang = counter.language;
             DSLContext context = getJooq();
             try {
-                Condition langCondition = (info.getLanguage() == null)
+                Condition langCondition = (lang == null)
                         ? Tables.META_INFO.LANG_ID.isNull()
-                        : Tables.META_INFO.LANG_ID.eq(info.getLanguage().getId());
+                        : Tables.META_INFO.LANG_ID.eq(lang.getId());
 
                 int n = context.update(Tables.META_INFO)
-                        .set(Tables.META_INFO.NUM_ERRORS, info.getNumErrors())
-                        .set(Tables.META_INFO.NUM_RECORDS, info.getNumRecords())
-                        .set(Tables.META_INFO.LAST_UPDATED, new Timestamp(info.getLastUpdated().getTime()))
-                        .where(Tables.META_INFO.COMPONENT.eq(info.getComponent().getSimpleName()))
+                        .set(Tables.META_INFO.NUM_ERRORS, Tables.META_INFO.NUM_ERRORS.add(newErrors))
+                        .set(Tables.META_INFO.NUM_RECORDS, Tables.META_INFO.NUM_RECORDS.add(newRecords))
+                        .set(Tables.META_INFO.LAST_UPDATED, lastUpdated)
+                        .where(Tables.META_INFO.COMPONENT.eq(counter.component.getSimpleName()))
                         .and(langCondition)
                         .execute();
                 if (n == 0) {
-                    Short langId = (info.getLanguage() == null) ? null : info.getLanguage().getId();
+                    Short langId = (lang == null) ? null : lang.getId();
                     context.insertInto(Tables.META_INFO,
                             Tables.META_INFO.COMPONENT, Tables.META_INFO.LANG_ID,
                             Tables.META_INFO.NUM_RECORDS, Tables.META_INFO.NUM_ERRORS,
                             Tables.META_INFO.LAST_UPDATED)
-                            .values(info.getComponent().getSimpleName(), langId,
-                                    info.getNumRecords(), info.getNumErrors(),
-                                    new Timestamp(info.getLastUpdated().getTime()))
+                            .values(counter.component.getSimpleName(), langId,
+                                    (int) numRecords, (int) numErrors, lastUpdated)
                             .execute();
                 }
-                info.markAsWritten();
+                counter.writtenRecords = numRecords;
+                counter.writtenErrors = numErrors;
                 JooqUtils.commit(context);
             } catch (RuntimeException e) {
                 JooqUtils.rollbackQuietly(context);
@@ -424,6 +479,97 @@ public class MetaInfoSqlDao extends AbstractSqlDao<MetaInfo> implements MetaInfo
     public int getCount(DaoFilter daoFilter) throws DaoException { throw new UnsupportedOperationException(); }
 
 
+    /**
+     * Record and error counts for one (component, language), in the style of a LongAdder.
+     * Each thread adds to one of several stripes, padded so that stripes sit on different
+     * cache lines. Totals are the stored counts plus the sum of the stripes.
+     *
+     * Increments return the stored count plus the calling thread's stripe, which is exact
+     * for a single loading thread and a lower bound otherwise. Each stripe also records
+     * the time of its last increment in its padding, and flushes fold the latest of these
+     * into lastUpdated, so increments write nothing outside their own stripe.
+     */
+    private static final class Counter {
+        private static final int PADDING = 8;   // longs per 64 byte cache line
+        private static final int NUM_STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+
+        final Class component;
+        final Language language;
+
+        private final int storedRecords;
+        private final int storedErrors;
+        private final AtomicLongArray records = new AtomicLongArray(NUM_STRIPES * PADDING);
+        private final AtomicLongArray errors = new AtomicLongArray(NUM_STRIPES * PADDING);
+        volatile long lastUpdated;      // folded in from the stripes when counts are flushed
+
+        // totals already added to the database, guarded by the counter's monitor
+        long writtenRecords;
+        long writtenErrors;
+
+        Counter(MetaInfo stored) {
+            this.component = stored.getComponent();
+            this.language = stored.getLanguage();
+            this.storedRecords = stored.getNumRecords();
+            this.storedErrors = stored.getNumErrors();
+            this.lastUpdated = (stored.getLastUpdated() == null) ? 0 : stored.getLastUpdated().getTime();
+            this.writtenRecords = storedRecords;
+            this.writtenErrors = storedErrors;
+        }
+
+        int incrementRecords(int n) {
+            return (int) (storedRecords + add(records, n));
+        }
+
+        int incrementErrors(int n) {
+            return (int) (storedErrors + add(errors, n));
+        }
+
+        /**
+         * @return The new value of the calling thread's stripe.
+         */
+        private static long add(AtomicLongArray stripes, int n) {
+            int i = (int) (Thread.currentThread().getId() & (NUM_STRIPES - 1)) * PADDING;
+            long now = System.currentTimeMillis();
+            if (stripes.get(i + 1) != now) {
+                stripes.lazySet(i + 1, now);
+            }
+            return stripes.addAndGet(i, n);
+        }
+
+        /**
+         * @return The latest of the flushed update time and the stripes' increment times.
+         */
+        long getLastUpdated() {
+            long t = lastUpdated;
+            for (int i = 0; i < records.length(); i += PADDING) {
+                t = Math.max(t, Math.max(records.get(i + 1), errors.get(i + 1)));
+            }
+            return t;
+        }
+
+        long getNumRecords() {
+            return storedRecords + sum(records);
+        }
+
+        long getNumErrors() {
+            return storedErrors + sum(errors);
+        }
+
+        private static long sum(AtomicLongArray stripes) {
+            long sum = 0;
+            for (int i = 0; i < stripes.length(); i += PADDING) {
+                sum += stripes.get(i);
+            }
+            return sum;
+        }
+
+        MetaInfo toMetaInfo() {
+            long t = getLastUpdated();
+            return new MetaInfo(component, language, (int) getNumRecords(), (int) getNumErrors(),
+                    (t == 0) ? null : new Date(t));
+        }
+    }
+
     public static class Provider extends org.wikibrain.conf.Provider<MetaInfoDao> {
         public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
             super(configurator, config);
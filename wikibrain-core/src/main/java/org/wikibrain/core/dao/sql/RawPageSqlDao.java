@@ -1,5 +1,6 @@
 package org.wikibrain.core.dao.sql;
 
+import com.google.common.collect.Iterables;
 import com.typesafe.config.Config;
 import org.jooq.*;
 import org.wikibrain.conf.Configuration;
@@ -12,10 +13,7 @@ import org.wikibrain.core.model.NameSpace;
 import org.wikibrain.core.model.RawPage;
 
 import java.sql.Timestamp;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Date;
-import java.util.Map;
+import java.util.*;
 
 /**
  * Retrieves and stores page text.
@@ -125,6 +123,35 @@ public class RawPageSqlDao extends AbstractSqlDao<RawPage> implements RawPageDao
         }
     }
 
+    @Override
+    public Map<Integer, RawPage> getByIds(Language language, Collection<Integer> rawLocalPageIds) throws DaoException {
+        if (rawLocalPageIds == null || rawLocalPageIds.isEmpty()) {
+            return null;
+        }
+        Map<Integer, RawPage> pages = new HashMap<Integer, RawPage>();
+        DSLContext context = getJooq();
+        try {
+            for (List<Integer> chunk : Iterables.partition(new HashSet<Integer>(rawLocalPageIds), MAX_IN_CLAUSE_SIZE)) {
+                Result<Record> result = context.
+                        select().
+                        from(Tables.RAW_PAGE).
+                        where(Tables.RAW_PAGE.PAGE_ID.in(chunk)).
+                        and(Tables.RAW_PAGE.LANG_ID.eq(language.getId())).
+                        fetch();
+                for (Record record : result) {
+                    pages.put(record.getValue(Tables.RAW_PAGE.PAGE_ID), buildRawPage(record));
+                }
+            }
+        } finally {
+            freeJooq(context);
+        }
+        Map<Integer, RawPage> map = new HashMap<Integer, RawPage>();
+        for (Integer pageId : rawLocalPageIds) {
+            map.put(pageId, pages.get(pageId));
+        }
+        return map;
+    }
+
     @Override
     public String getBody(Language language, int rawLocalPageId) throws DaoException {
         DSLContext context = getJooq();
@@ -0,0 +1,146 @@
+package org.wikibrain.core.dao.sql;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.utils.MappedColumnFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * The resolved redirects of one language, stored as two parallel int columns:
+ * redirect page ids in increasing order and the ids of the pages they resolve to.
+ * A destination of -1 means the redirect could not be resolved.
+ *
+ * Arrays are either on the heap or memory mapped from a file written by write(),
+ * so that daos can look up redirects without querying the database.
+ *
+ * @author Shilad Sen
+ */
+public class RedirectArray {
+    public static final int FILE_HEADER = 0x4ed14ec7;
+    private static final int HEADER_SIZE = 12;
+
+    private final Language language;
+    private final IntBuffer srcIds;
+    private final IntBuffer destIds;
+
+    private RedirectArray(Language language, IntBuffer srcIds, IntBuffer destIds) {
+        this.language = language;
+        this.srcIds = srcIds;
+        this.destIds = destIds;
+    }
+
+    /**
+     * @param language
+     * @param srcIds Redirect page ids in increasing order, without duplicates.
+     * @param destIds The destination of each redirect, or -1.
+     */
+    public RedirectArray(Language language, int[] srcIds, int[] destIds) {
+        if (srcIds.length != destIds.length) {
+            throw new IllegalArgumentException("columns must have the same length");
+        }
+        for (int i = 1; i < srcIds.length; i++) {
+            if (srcIds[i - 1] >= srcIds[i]) {
+                throw new IllegalArgumentException("redirect ids must be increasing");
+            }
+        }
+        this.language = language;
+        this.srcIds = IntBuffer.wrap(srcIds);
+        this.destIds = IntBuffer.wrap(destIds);
+    }
+
+    public Language getLanguage() {
+        return language;
+    }
+
+    public int size() {
+        return srcIds.limit();
+    }
+
+    public int getSourceId(int index) {
+        return srcIds.get(index);
+    }
+
+    public int getDestId(int index) {
+        return destIds.get(index);
+    }
+
+    /**
+     * @return The index of the redirect, or -1 if the page is not a redirect.
+     */
+    public int indexOf(int srcId) {
+        int lo = 0;
+        int hi = size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int id = srcIds.get(mid);
+            if (id < srcId) {
+                lo = mid + 1;
+            } else if (id > srcId) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public boolean isRedirect(int srcId) {
+        return indexOf(srcId) >= 0;
+    }
+
+    /**
+     * @return The page the redirect resolves to, -1 if it is unresolved,
+     *         or null if the page is not a redirect.
+     */
+    public Integer resolve(int srcId) {
+        int i = indexOf(srcId);
+        return (i < 0) ? null : destIds.get(i);
+    }
+
+    public TIntIntMap toMap() {
+        TIntIntMap map = new TIntIntHashMap(
+                Math.max(size() * 2, Constants.DEFAULT_CAPACITY),
+                Constants.DEFAULT_LOAD_FACTOR,
+                -1, -1);
+        for (int i = 0; i < size(); i++) {
+            map.put(srcIds.get(i), destIds.get(i));
+        }
+        return map;
+    }
+
+    /**
+     * Writes the array to a temporary file that is then renamed to the file.
+     */
+    public void write(File file) throws IOException {
+        MappedColumnFile.Output out = new MappedColumnFile.Output(file);
+        try {
+            out.writeInt(FILE_HEADER);
+            out.writeInt(language.getId());
+            out.writeInt(size());
+            out.writeColumn(srcIds);
+            out.writeColumn(destIds);
+            out.commit();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Memory maps an array written by write().
+     */
+    public static RedirectArray open(File file) throws IOException {
+        ByteBuffer buffer = MappedColumnFile.map(file, FILE_HEADER, "redirect array");
+        Language lang = Language.getById(buffer.getInt(4));
+        int n = buffer.getInt(8);
+        return new RedirectArray(
+                lang,
+                MappedColumnFile.intColumn(buffer, HEADER_SIZE, n),
+                MappedColumnFile.intColumn(buffer, HEADER_SIZE + 4 * n, n));
+    }
+}
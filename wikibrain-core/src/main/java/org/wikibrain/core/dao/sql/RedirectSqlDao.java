@@ -1,7 +1,9 @@
 package org.wikibrain.core.dao.sql;
 
+import com.google.common.collect.Iterables;
 import com.typesafe.config.Config;
 import gnu.trove.map.TIntIntMap;
+import gnu.trove.list.array.TLongArrayList;
 import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
@@ -17,9 +19,11 @@ import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.model.LocalPage;
 import org.wikibrain.core.model.Redirect;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Map;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
 
 /**
  */
@@ -31,10 +35,114 @@ public class RedirectSqlDao extends AbstractSqlDao<Redirect> implements Redirect
             Tables.REDIRECT.DEST_PAGE_ID,
     };
 
+    /**
+     * Resolved redirects for languages whose redirect table is not changing.
+     */
+    private final Map<Language, RedirectArray> arrays = new ConcurrentHashMap<Language, RedirectArray>();
+
     public RedirectSqlDao(WpDataSource dataSource) throws DaoException {
         super(dataSource, INSERT_FIELDS, "/db/redirect");
     }
 
+    @Override
+    public void clear() throws DaoException {
+        arrays.clear();
+        super.clear();
+    }
+
+    @Override
+    public void beginLoad() throws DaoException {
+        arrays.clear();
+        super.beginLoad();
+    }
+
+    /**
+     * Returns all redirects in a language as an array. The array is memory mapped
+     * from the cache if it is up to date, and is otherwise read from the database
+     * and written to the cache.
+     *
+     * @param lang
+     * @return
+     * @throws DaoException
+     */
+    public synchronized RedirectArray getRedirectArray(Language lang) throws DaoException {
+        RedirectArray array = arrays.get(lang);
+        if (array != null) {
+            return array;
+        }
+        if (cache != null && isArrayCached(lang)) {
+            try {
+                array = RedirectArray.open(getArrayFile(lang));
+                arrays.put(lang, array);
+                return array;
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "reading redirect array for " + lang + " failed:", e);
+            }
+        }
+
+        DSLContext context = getJooq();
+        TLongArrayList pairs = new TLongArrayList();
+        try {
+            Cursor<Record2<Integer, Integer>> cursor = context
+                    .select(Tables.REDIRECT.SRC_PAGE_ID, Tables.REDIRECT.DEST_PAGE_ID)
+                    .from(Tables.REDIRECT)
+                    .where(Tables.REDIRECT.LANG_ID.equal(lang.getId()))
+                    .fetchLazy(getFetchSize());
+            for (Record2<Integer, Integer> record : cursor) {
+                pairs.add(((long) record.value1() << 32) | (record.value2() & 0xFFFFFFFFL));
+            }
+        } finally {
+            freeJooq(context);
+        }
+        pairs.sort();
+        int[] srcIds = new int[pairs.size()];
+        int[] destIds = new int[pairs.size()];
+        int n = 0;
+        for (int i = 0; i < pairs.size(); i++) {
+            int src = (int) (pairs.get(i) >>> 32);
+            if (n == 0 || srcIds[n - 1] != src) {
+                srcIds[n] = src;
+                destIds[n] = (int) pairs.get(i);
+                n++;
+            }
+        }
+        array = new RedirectArray(lang, Arrays.copyOf(srcIds, n), Arrays.copyOf(destIds, n));
+        saveRedirectArray(array);
+        return array;
+    }
+
+    /**
+     * Uses an array of resolved redirects for lookups in its language and
+     * writes it to the cache, if there is one.
+     *
+     * The array must match the contents of the redirect table for the language,
+     * so it should be saved after the table has been loaded.
+     *
+     * @param array
+     */
+    public void saveRedirectArray(RedirectArray array) {
+        arrays.put(array.getLanguage(), array);
+        if (cache != null) {
+            try {
+                array.write(getArrayFile(array.getLanguage()));
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "writing redirect array for " + array.getLanguage() + " failed:", e);
+            }
+        }
+    }
+
+    private File getArrayFile(Language lang) {
+        return cache.getCacheFile("redirects." + lang.getLangCode() + ".bin");
+    }
+
+    private boolean isArrayCached(Language lang) {
+        try {
+            return cache.isUpToDate(getArrayFile(lang).getName(), Redirect.class);
+        } catch (DaoException e) {
+            return false;   // no redirects have been loaded
+        }
+    }
+
     @Override
     public void save(Redirect redirect) throws DaoException {
         insert(
@@ -99,6 +207,10 @@ public class RedirectSqlDao extends AbstractSqlDao<Redirect> implements Redirect
 
     @Override
     public Integer resolveRedirect(Language lang, int id) throws DaoException {
+        RedirectArray array = arrays.get(lang);
+        if (array != null) {
+            return array.resolve(id);
+        }
         DSLContext context = getJooq();
         try {
             Record record = context.select().from(Tables.REDIRECT)
@@ -114,8 +226,44 @@ public class RedirectSqlDao extends AbstractSqlDao<Redirect> implements Redirect
         }
     }
 
+    /**
+     * Resolves many redirects at once using batched IN queries.
+     * @param lang
+     * @param ids Source page ids.
+     * @return A map from source page id to destination page id.
+     *         Ids that are not redirects are absent from the map.
+     * @throws DaoException
+     */
+    public Map<Integer, Integer> resolveRedirects(Language lang, Collection<Integer> ids) throws DaoException {
+        Map<Integer, Integer> result = new HashMap<Integer, Integer>();
+        if (ids == null || ids.isEmpty()) {
+            return result;
+        }
+        DSLContext context = getJooq();
+        try {
+            for (List<Integer> chunk : Iterables.partition(ids, MAX_IN_CLAUSE_SIZE)) {
+                Result<Record2<Integer, Integer>> records = context
+                        .select(Tables.REDIRECT.SRC_PAGE_ID, Tables.REDIRECT.DEST_PAGE_ID)
+                        .from(Tables.REDIRECT)
+                        .where(Tables.REDIRECT.SRC_PAGE_ID.in(chunk))
+                        .and(Tables.REDIRECT.LANG_ID.equal(lang.getId()))
+                        .fetch();
+                for (Record2<Integer, Integer> record : records) {
+                    result.put(record.value1(), record.value2());
+                }
+            }
+            return result;
+        } finally {
+            freeJooq(context);
+        }
+    }
+
     @Override
     public boolean isRedirect(Language lang, int id) throws DaoException {
+        RedirectArray array = arrays.get(lang);
+        if (array != null) {
+            return array.isRedirect(id);
+        }
         DSLContext context = getJooq();
         try {
             Record record = context.select().from(Tables.REDIRECT)
@@ -149,6 +297,10 @@ public class RedirectSqlDao extends AbstractSqlDao<Redirect> implements Redirect
 
     @Override
     public TIntIntMap getAllRedirectIdsToDestIds(Language lang) throws DaoException {
+        RedirectArray array = arrays.get(lang);
+        if (array != null) {
+            return array.toMap();
+        }
         DSLContext context = getJooq();
         try {
             Cursor<Record> cursor = context.select().
@@ -201,11 +353,18 @@ public class RedirectSqlDao extends AbstractSqlDao<Redirect> implements Redirect
                 return null;
             }
             try {
-                return new RedirectSqlDao(
+                RedirectSqlDao dao = new RedirectSqlDao(
                         getConfigurator().get(
                                 WpDataSource.class,
                                 config.getString("dataSource"))
                 );
+                String cachePath = getConfig().get().getString("dao.sqlCachePath");
+                File cacheDir = new File(cachePath);
+                if (!cacheDir.isDirectory()) {
+                    cacheDir.mkdirs();
+                }
+                dao.useCache(cacheDir);
+                return dao;
             } catch (DaoException e) {
                 throw new ConfigurationException(e);
             }
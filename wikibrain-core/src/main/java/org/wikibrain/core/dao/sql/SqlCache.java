@@ -47,25 +47,24 @@ public class SqlCache {
         FileUtils.deleteQuietly(getCacheFile(name));
     }
 
-    private File getCacheFile(String name) {
+    /**
+     * Returns the file for a named entry. Daos may use this to keep entries that
+     * are not serialized objects, such as memory mapped arrays, in the cache.
+     * @param name
+     * @return
+     */
+    public File getCacheFile(String name) {
         return new File(directory, name);
     }
 
     /**
-     * Returns the object if it exists and is up to date, otherwise returns null.
-     *
-     * @param name Name of the object as passed to "put"
-     * @param dependsOn List of classes the object depends on.
-     *                  The cache is up to date iff for each class k in dependsOn:
-     *                  - The MetaInfoDao knows about k
-     *                  - The cache entry was created after k was last updated.
-     * @return
-     * @throws DaoException
+     * Returns true if the named entry exists and is up to date.
+     * @see #get(String, Class[])
      */
-    public Object get(String name, Class ... dependsOn) throws DaoException {
+    public boolean isUpToDate(String name, Class ... dependsOn) throws DaoException {
         File cacheFile = getCacheFile(name);
         if (!cacheFile.isFile()) {
-            return null;
+            return false;
         }
         Date cacheTstamp = new Date(cacheFile.lastModified());
         for (Class klass : dependsOn) {
@@ -75,9 +74,27 @@ public class SqlCache {
             }
             Date tableTstamp = info.getLastUpdated();
             if (tableTstamp == null || tableTstamp.after(cacheTstamp)) {
-                return null;
+                return false;
             }
         }
+        return true;
+    }
+
+    /**
+     * Returns the object if it exists and is up to date, otherwise returns null.
+     *
+     * @param name Name of the object as passed to "put"
+     * @param dependsOn List of classes the object depends on.
+     *                  The cache is up to date iff for each class k in dependsOn:
+     *                  - The MetaInfoDao knows about k
+     *                  - The cache entry was created after k was last updated.
+     * @return
+     * @throws DaoException
+     */
+    public Object get(String name, Class ... dependsOn) throws DaoException {
+        if (!isUpToDate(name, dependsOn)) {
+            return null;
+        }
         try {
             FileInputStream fis = new FileInputStream(getCacheFile(name));
             ObjectInputStream ois = new ObjectInputStream(fis);
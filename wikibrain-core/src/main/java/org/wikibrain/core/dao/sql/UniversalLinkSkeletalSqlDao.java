@@ -80,6 +80,19 @@ public class UniversalLinkSkeletalSqlDao extends AbstractSqlDao<UniversalLink> i
         }
     }
 
+    /**
+     * Saves a link whose language set is already complete. Unlike save(), nothing is
+     * merged, so each (source, dest) pair must be saved exactly once per load.
+     */
+    public void saveMerged(UniversalLink item) throws DaoException {
+        insert(
+                item.getSourceId(),
+                item.getDestId(),
+                item.getAlgorithmId(),
+                item.getLanguageSet().toByteArray()
+        );
+    }
+
     @Override
     public void endLoad() throws DaoException {
         for (Pair<String, byte[]> pair : objectDb) {
@@ -62,8 +62,8 @@ public class UniversalLinkSqlDao extends AbstractSqlDao<UniversalLink> implement
     }
 
     public void save(LocalLink localLink, int sourceUnivId, int destUnivId, int algorithmId) throws DaoException {
-        insert(
-                localLink.getLanguage().getId(),
+        save(
+                localLink.getLanguage(),
                 localLink.getSourceId(),
                 localLink.getDestId(),
                 sourceUnivId,
@@ -72,6 +72,21 @@ public class UniversalLinkSqlDao extends AbstractSqlDao<UniversalLink> implement
         );
     }
 
+    /**
+     * Saves a single local link and the universal ids of its endpoints
+     * without building LocalLink or UniversalLink objects.
+     */
+    public void save(Language language, int localSourceId, int localDestId, int sourceUnivId, int destUnivId, int algorithmId) throws DaoException {
+        insert(
+                language.getId(),
+                localSourceId,
+                localDestId,
+                sourceUnivId,
+                destUnivId,
+                algorithmId
+        );
+    }
+
     @Override
     public Iterable<UniversalLink> get(DaoFilter daoFilter) throws DaoException {
         DSLContext context = getJooq();
@@ -1,6 +1,7 @@
 package org.wikibrain.core.dao.sql;
 
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Multimap;
 import com.typesafe.config.Config;
 import gnu.trove.map.TIntIntMap;
@@ -135,9 +136,29 @@ public class UniversalPageSqlDao<T extends UniversalPage> extends AbstractSqlDao
         if (univIds == null || univIds.isEmpty()) {
             return null;
         }
+        Map<Integer, List<Record>> grouped = new HashMap<Integer, List<Record>>();
+        DSLContext context = getJooq();
+        try {
+            for (List<Integer> chunk : Iterables.partition(new HashSet<Integer>(univIds), MAX_IN_CLAUSE_SIZE)) {
+                Result<Record> result = context.select()
+                        .from(Tables.UNIVERSAL_PAGE)
+                        .where(Tables.UNIVERSAL_PAGE.UNIV_ID.in(chunk))
+                        .and(Tables.UNIVERSAL_PAGE.ALGORITHM_ID.eq(algorithmId))
+                        .fetch();
+                for (Record record : result) {
+                    int univId = record.getValue(Tables.UNIVERSAL_PAGE.UNIV_ID);
+                    if (!grouped.containsKey(univId)) {
+                        grouped.put(univId, new ArrayList<Record>());
+                    }
+                    grouped.get(univId).add(record);
+                }
+            }
+        } finally {
+            freeJooq(context);
+        }
         Map<Integer, T> map = new HashMap<Integer, T>();
         for (Integer univId : univIds){
-            map.put(univId, getById(univId));
+            map.put(univId, (T)buildUniversalPage(grouped.get(univId)));
         }
         return map;
     }
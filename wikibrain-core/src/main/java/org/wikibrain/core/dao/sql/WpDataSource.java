@@ -67,6 +67,10 @@ public class WpDataSource implements Closeable {
         }
     }
 
+    public SQLDialect getDialect() {
+        return dialect;
+    }
+
     public Connection getConnection() throws SQLException {
         Connection conn = dataSource.getConnection();
         if (conn.getAutoCommit()) {
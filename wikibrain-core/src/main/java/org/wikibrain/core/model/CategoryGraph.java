@@ -1,43 +1,203 @@
 package org.wikibrain.core.model;
 
-import gnu.trove.map.TIntIntMap;
-import gnu.trove.set.TIntSet;
 import org.wikibrain.core.lang.Language;
+import org.wikibrain.utils.MappedColumnFile;
 
-import java.io.Serializable;
-import java.util.Arrays;
-import java.util.Map;
-import java.util.Set;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.Charset;
 
 /**
  * A compact graph representation of the category structure.
  *
- * The internals of this data structure are public for historical reasons.
- * TODO: It would probably be better to not expose the internal id scheme if it's not a performance hit.
+ * Categories are identified by a dense index in [0, numCategories), assigned in
+ * increasing order of their local page ids. Parent categories, child categories
+ * and member pages are stored in compressed sparse row form: a column of
+ * numCategories + 1 offsets into a flat column of targets. Parents and children
+ * are dense category indexes; pages are local page ids.
+ *
+ * All columns are either on the heap or memory mapped from a single file written
+ * by write(), so processes can share one copy of a graph through the page cache.
  *
  * @author Matt Lesicko
  * @author Shilad Sen
  */
-public class CategoryGraph implements Serializable{
-    public Language language;
+public class CategoryGraph {
+    public static final int FILE_HEADER = 0xca7e6a9f;
+    private static final int HEADER_SIZE = 32;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Language language;
+    private final double minCost;
 
-    // Mapping from local page id to internal dense index.
-    public TIntIntMap catIndexes;
+    private final IntBuffer catIds;         // dense category index -> local page id, increasing
+    private final DoubleBuffer catCosts;    // the cost of travelling through each category
 
-    public int[] catIds;    // dense category ids to sparse local page ids
-    public double[] catCosts;  // the cost of travelling through each category
-    public int[][] catParents;
-    public int[][] catPages;
-    public int[][] catChildren;
-    public String[] cats;
-    public double minCost = -1;
+    private final IntBuffer parentOffsets;
+    private final IntBuffer parents;
+    private final IntBuffer childOffsets;
+    private final IntBuffer children;
+    private final IntBuffer pageOffsets;
+    private final IntBuffer pages;
 
-    public CategoryGraph(Language language){
+    private final IntBuffer titleOffsets;
+    private final ByteBuffer titles;        // utf-8 canonical titles
+
+    private CategoryGraph(Language language, double minCost, IntBuffer catIds, DoubleBuffer catCosts,
+                          IntBuffer parentOffsets, IntBuffer parents,
+                          IntBuffer childOffsets, IntBuffer children,
+                          IntBuffer pageOffsets, IntBuffer pages,
+                          IntBuffer titleOffsets, ByteBuffer titles) {
         this.language = language;
+        this.minCost = minCost;
+        this.catIds = catIds;
+        this.catCosts = catCosts;
+        this.parentOffsets = parentOffsets;
+        this.parents = parents;
+        this.childOffsets = childOffsets;
+        this.children = children;
+        this.pageOffsets = pageOffsets;
+        this.pages = pages;
+        this.titleOffsets = titleOffsets;
+        this.titles = titles;
+    }
+
+    /**
+     * @param language
+     * @param catIds Local page ids of the categories in increasing order, without duplicates.
+     * @param cats Canonical titles of the categories.
+     * @param catCosts The cost of travelling through each category.
+     * @param minCost The smallest cost.
+     * @param parentOffsets Offsets of each category's parents, with a final entry for the end.
+     * @param parents Dense indexes of parent categories.
+     * @param childOffsets Offsets of each category's children, with a final entry for the end.
+     * @param children Dense indexes of child categories.
+     * @param pageOffsets Offsets of each category's pages, with a final entry for the end.
+     * @param pages Local ids of member pages that are not categories.
+     */
+    public CategoryGraph(Language language, int[] catIds, String[] cats, double[] catCosts, double minCost,
+                         int[] parentOffsets, int[] parents,
+                         int[] childOffsets, int[] children,
+                         int[] pageOffsets, int[] pages) {
+        int n = catIds.length;
+        if (cats.length != n || catCosts.length != n
+        ||  parentOffsets.length != n + 1 || childOffsets.length != n + 1 || pageOffsets.length != n + 1) {
+            throw new IllegalArgumentException("columns must have one entry per category");
+        }
+        for (int i = 1; i < n; i++) {
+            if (catIds[i - 1] >= catIds[i]) {
+                throw new IllegalArgumentException("category ids must be increasing");
+            }
+        }
+        byte[][] encoded = new byte[n][];
+        int[] titleOffsets = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            encoded[i] = cats[i].getBytes(UTF8);
+            titleOffsets[i + 1] = titleOffsets[i] + encoded[i].length;
+        }
+        ByteBuffer titles = ByteBuffer.allocate(titleOffsets[n]);
+        for (byte[] title : encoded) {
+            titles.put(title);
+        }
+        titles.flip();
+
+        this.language = language;
+        this.minCost = minCost;
+        this.catIds = IntBuffer.wrap(catIds);
+        this.catCosts = DoubleBuffer.wrap(catCosts);
+        this.parentOffsets = IntBuffer.wrap(parentOffsets);
+        this.parents = IntBuffer.wrap(parents);
+        this.childOffsets = IntBuffer.wrap(childOffsets);
+        this.children = IntBuffer.wrap(children);
+        this.pageOffsets = IntBuffer.wrap(pageOffsets);
+        this.pages = IntBuffer.wrap(pages);
+        this.titleOffsets = IntBuffer.wrap(titleOffsets);
+        this.titles = titles;
+    }
+
+    public Language getLanguage() {
+        return language;
     }
 
+    public int getNumCategories() {
+        return catIds.limit();
+    }
+
+    /**
+     * @return The smallest cost of any category.
+     */
+    public double getMinCost() {
+        return minCost;
+    }
+
+    /**
+     * @return The dense index of a category, or -1 if the page is not a category.
+     */
     public int getCategoryIndex(int catId) {
-        return catIndexes.containsKey(catId) ?  catIndexes.get(catId) : -1;
+        int lo = 0;
+        int hi = getNumCategories() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int id = catIds.get(mid);
+            if (id < catId) {
+                lo = mid + 1;
+            } else if (id > catId) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The local page id of a category.
+     */
+    public int getCategoryId(int catIndex) {
+        return catIds.get(catIndex);
+    }
+
+    public String getCategoryName(int catIndex) {
+        int begin = titleOffsets.get(catIndex);
+        byte[] bytes = new byte[titleOffsets.get(catIndex + 1) - begin];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = titles.get(begin + i);
+        }
+        return new String(bytes, UTF8);
+    }
+
+    public double getCost(int catIndex) {
+        return catCosts.get(catIndex);
+    }
+
+    public int getNumParents(int catIndex) {
+        return parentOffsets.get(catIndex + 1) - parentOffsets.get(catIndex);
+    }
+
+    public int getParent(int catIndex, int i) {
+        return parents.get(parentOffsets.get(catIndex) + i);
+    }
+
+    public int getNumChildren(int catIndex) {
+        return childOffsets.get(catIndex + 1) - childOffsets.get(catIndex);
+    }
+
+    public int getChild(int catIndex, int i) {
+        return children.get(childOffsets.get(catIndex) + i);
+    }
+
+    public int getNumPages(int catIndex) {
+        return pageOffsets.get(catIndex + 1) - pageOffsets.get(catIndex);
+    }
+
+    /**
+     * @return The local id of a member page.
+     */
+    public int getPage(int catIndex, int i) {
+        return pages.get(pageOffsets.get(catIndex) + i);
     }
 
     /**
@@ -50,11 +210,77 @@ public class CategoryGraph implements Serializable{
         if (parentIndex < 0) {
             return new int[0];
         }
-        int [] denseIds = catChildren[parentIndex];
-        int childIds[] = new int[denseIds.length];
-        for (int i = 0; i < denseIds.length; i++) {
-            childIds[i] = catIds[denseIds[i]];
+        int childIds[] = new int[getNumChildren(parentIndex)];
+        for (int i = 0; i < childIds.length; i++) {
+            childIds[i] = catIds.get(getChild(parentIndex, i));
         }
         return childIds;
     }
+
+    /**
+     * Writes the graph to a temporary file that is then renamed to the file.
+     */
+    public void write(File file) throws IOException {
+        MappedColumnFile.Output out = new MappedColumnFile.Output(file);
+        try {
+            out.writeInt(FILE_HEADER);
+            out.writeInt(language.getId());
+            out.writeInt(getNumCategories());
+            out.writeInt(parents.limit());
+            out.writeInt(pages.limit());
+            out.writeInt(titles.limit());
+            out.writeDouble(minCost);
+            out.writeColumn(catCosts);
+            out.writeColumn(catIds);
+            out.writeColumn(parentOffsets);
+            out.writeColumn(parents);
+            out.writeColumn(childOffsets);
+            out.writeColumn(children);
+            out.writeColumn(pageOffsets);
+            out.writeColumn(pages);
+            out.writeColumn(titleOffsets);
+            out.writeColumn(titles);
+            out.commit();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Memory maps a graph written by write().
+     */
+    public static CategoryGraph open(File file) throws IOException {
+        ByteBuffer buffer = MappedColumnFile.map(file, FILE_HEADER, "category graph");
+        Language lang = Language.getById(buffer.getInt(4));
+        int n = buffer.getInt(8);
+        int numEdges = buffer.getInt(12);
+        int numPages = buffer.getInt(16);
+        int numTitleBytes = buffer.getInt(20);
+        double minCost = buffer.getDouble(24);
+
+        int position = HEADER_SIZE;
+        DoubleBuffer costs = MappedColumnFile.doubleColumn(buffer, position, n);
+        position += 8 * n;
+        IntBuffer catIds = MappedColumnFile.intColumn(buffer, position, n);
+        position += 4 * n;
+        IntBuffer parentOffsets = MappedColumnFile.intColumn(buffer, position, n + 1);
+        position += 4 * (n + 1);
+        IntBuffer parents = MappedColumnFile.intColumn(buffer, position, numEdges);
+        position += 4 * numEdges;
+        IntBuffer childOffsets = MappedColumnFile.intColumn(buffer, position, n + 1);
+        position += 4 * (n + 1);
+        IntBuffer children = MappedColumnFile.intColumn(buffer, position, numEdges);
+        position += 4 * numEdges;
+        IntBuffer pageOffsets = MappedColumnFile.intColumn(buffer, position, n + 1);
+        position += 4 * (n + 1);
+        IntBuffer pages = MappedColumnFile.intColumn(buffer, position, numPages);
+        position += 4 * numPages;
+        IntBuffer titleOffsets = MappedColumnFile.intColumn(buffer, position, n + 1);
+        position += 4 * (n + 1);
+        ByteBuffer titles = MappedColumnFile.slice(buffer, position, numTitleBytes);
+
+        return new CategoryGraph(lang, minCost, catIds, costs,
+                parentOffsets, parents, childOffsets, children, pageOffsets, pages,
+                titleOffsets, titles);
+    }
 }
@@ -32,6 +32,9 @@ public class RawPage {
     private String model = null;
     private String format = null;
 
+    // Plain text without templates, computed at most once
+    private volatile String plainText = null;
+
     public RawPage(int localId, int revisionId, String title, String body, Date lastEdit, Language lang, NameSpace namespace) {
         this.title = new Title(title, LanguageInfo.getByLanguage(lang));
         this.body = body;
@@ -125,11 +128,31 @@ public class RawPage {
     public String getPlainText() {
         return getPlainText(false);
     }
+
+    /**
+     * Sets a precomputed plain text (without templates) for this page, e.g. one
+     * stored alongside the body by the dao.
+     * @param plainText
+     */
+    public void setPlainText(String plainText) {
+        this.plainText = plainText;
+    }
+
     /**
      * Returns a plain text output of the body of this RawPage
      * @return
      */
     public String getPlainText(boolean includeTemplates) {
+        if (!includeTemplates) {
+            if (plainText == null) {
+                plainText = stripMarkup(false);
+            }
+            return plainText;
+        }
+        return stripMarkup(true);
+    }
+
+    private String stripMarkup(boolean includeTemplates) {
         if (body.isEmpty()) {
             return "";
         } else {
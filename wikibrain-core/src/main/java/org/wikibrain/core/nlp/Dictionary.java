@@ -2,10 +2,8 @@ package org.wikibrain.core.nlp;
 
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
-import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.TLongIntMap;
 import gnu.trove.map.TLongObjectMap;
-import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.map.hash.TLongIntHashMap;
 import gnu.trove.map.hash.TLongObjectHashMap;
 import gnu.trove.procedure.TLongIntProcedure;
@@ -18,6 +16,7 @@ import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.dao.LocalPageDao;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.utils.ConcurrentLongCounter;
 import org.wikibrain.utils.ParallelForEach;
 import org.wikibrain.utils.Procedure;
 import org.wikibrain.utils.WpIOUtils;
@@ -34,7 +33,8 @@ import java.util.regex.Pattern;
  * A class to remember counts for unigrams and (optionally) bigrams.
  *
  * This class uses a hashing trick so that a word's counts can be kept in 12
- * bytes of memory.
+ * bytes of memory. Counts are kept in ConcurrentLongCounters, so counting threads
+ * do not contend for a lock on every word.
  *
  *
  * All methods that count words are mutually threadsafe.
@@ -89,8 +89,8 @@ public class Dictionary implements Closeable {
     private AtomicLong totalBigrams = new AtomicLong();
     private AtomicLong totalNgrams = new AtomicLong();
 
-    private final TLongIntMap unigramCounts = new TLongIntHashMap();
-    private final TLongIntMap bigramCounts = new TLongIntHashMap();
+    private final ConcurrentLongCounter unigramCounts = new ConcurrentLongCounter();
+    private final ConcurrentLongCounter bigramCounts = new ConcurrentLongCounter();
     private final TLongIntMap ngramCounts = new TLongIntHashMap();
 
     private StringTokenizer tokenizer = new StringTokenizer();
@@ -113,11 +113,16 @@ public class Dictionary implements Closeable {
      */
     private int minPruneCount = 1;
 
+    /**
+     * If true, counts beyond maxDictionarySize are spilled to disk instead of being pruned.
+     */
+    private boolean spilling = false;
+
     /**
      * Map of Wikipedia article id -> number of mentions in unigrams.
      * Only calculated if containsMentions is true.
      */
-    private final TIntIntMap mentionCounts = new TIntIntHashMap();
+    private final ConcurrentLongCounter mentionCounts = new ConcurrentLongCounter();
 
 
     /**
@@ -132,6 +137,12 @@ public class Dictionary implements Closeable {
      */
     private final TLongObjectMap<String> words = new TLongObjectHashMap<String>();
 
+    /**
+     * Hashes of words that have been written to the word file.
+     * Only maintained if wordStorage is ON_DISK.
+     */
+    private final TLongSet wordsOnDisk = new TLongHashSet();
+
     public Dictionary(Language language) {
         this(language, WordStorage.NONE);
     }
@@ -187,7 +198,7 @@ public class Dictionary implements Closeable {
         LineIterator lineIterator = FileUtils.lineIterator(corpus, "UTF-8");
         ParallelForEach.iterate(
                 lineIterator,
-                Math.min(3, WpThreadUtils.getMaxThreads()), // 3 seems the optimal number of threads here...
+                WpThreadUtils.getMaxThreads(),
                 1000,
                 new Procedure<String>() {
                     @Override
@@ -212,7 +223,7 @@ public class Dictionary implements Closeable {
         LineIterator lineIterator = FileUtils.lineIterator(corpus, "UTF-8");
         ParallelForEach.iterate(
                 lineIterator,
-                Math.min(3, WpThreadUtils.getMaxThreads()), // 3 seems the optimal number of threads here...
+                WpThreadUtils.getMaxThreads(),
                 1000,
                 new Procedure<String>() {
                     @Override
@@ -236,9 +247,7 @@ public class Dictionary implements Closeable {
             Matcher m = PATTERN_MENTION.matcher(text);
             while (m.find()) {
                 int wpId = Integer.valueOf(m.group(3));
-                synchronized (mentionCounts) {
-                    mentionCounts.adjustOrPutValue(wpId, 1, 1);
-                }
+                mentionCounts.increment(wpId);
             }
             text = PATTERN_MENTION.matcher(text).replaceAll("$1 ");
         }
@@ -289,28 +298,29 @@ public class Dictionary implements Closeable {
             if (m.matches()) {
                 word = m.group(1);
                 int wpId = Integer.valueOf(m.group(3));
-                synchronized (mentionCounts) {
-                    mentionCounts.adjustOrPutValue(wpId, 1, 1);
-                }
+                mentionCounts.increment(wpId);
             }
         }
         long hash = getHash(word);
-        if (wordStorage == WordStorage.IN_MEMORY) {
+        // Words are only looked up if this thread hasn't recently counted them.
+        int n = unigramCounts.adjust(hash, 1);
+        if (n == 1 && wordStorage == WordStorage.IN_MEMORY) {
             synchronized (words) {
                 if (!words.containsKey(hash)) {
                     words.put(hash, word);
                 }
             }
-        }
-        int n;
-        synchronized (unigramCounts) {
-            n = unigramCounts.adjustOrPutValue(hash, 1, 1);
-        }
-        if (n == 1 && wordStorage == WordStorage.ON_DISK) {
-            try {
-                wordWriter.write(word + "\n");
-            } catch (IOException e) {
-                throw new RuntimeException(e);  // shouldn't really happen
+        } else if (n == 1 && wordStorage == WordStorage.ON_DISK) {
+            boolean isNew;
+            synchronized (wordsOnDisk) {
+                isNew = wordsOnDisk.add(hash);
+            }
+            if (isNew) {
+                try {
+                    wordWriter.write(word + "\n");
+                } catch (IOException e) {
+                    throw new RuntimeException(e);  // shouldn't really happen
+                }
             }
         }
         if (totalWords.incrementAndGet() % PRUNE_INTERVAL == 0) {
@@ -333,9 +343,7 @@ public class Dictionary implements Closeable {
                 word = m.group(1);
             }
         }
-        synchronized (bigramCounts) {
-            bigramCounts.adjustOrPutValue(getHash(word), 1, 1);
-        }
+        bigramCounts.increment(getHash(word));
         if (totalBigrams.incrementAndGet() % PRUNE_INTERVAL == 0) {
             pruneIfNecessary();
         }
@@ -359,37 +367,35 @@ public class Dictionary implements Closeable {
     }
 
     public synchronized void pruneIfNecessary() {
+        if (spilling) {
+            return;
+        }
         while (true) {
-            int n1, n2;
-            synchronized (bigramCounts) {
-                n1 = unigramCounts.size();
-            }
-            synchronized (bigramCounts) {
-                n2 = bigramCounts.size();
+            // approximate sizes are upper bounds; only merge counts if they may be too large
+            long n1 = unigramCounts.getApproximateSize();
+            long n2 = bigramCounts.getApproximateSize();
+            if (n1 + n2 <= maxDictionarySize) {
+                return;
             }
+            unigramCounts.flush();
+            bigramCounts.flush();
+            n1 = unigramCounts.getApproximateSize();
+            n2 = bigramCounts.getApproximateSize();
             if (n1 + n2 <= maxDictionarySize) {
                 return;
             }
             minPruneCount++;
             LOG.info("pruning dictionary entries with frequency less than " + minPruneCount);
-            synchronized (unigramCounts) {
-                unigramCounts.retainEntries(new TLongIntProcedure() {
-                    @Override
-                    public boolean execute(long hash, int count) {
-                        return (count >= minPruneCount);
-                    }
-                });
-                n1 = unigramCounts.size();
-            }
-            synchronized (bigramCounts) {
-                bigramCounts.retainEntries(new TLongIntProcedure() {
-                    @Override
-                    public boolean execute(long hash, int count) {
-                        return (count >= minPruneCount);
-                    }
-                });
-                n2 = bigramCounts.size();
-            }
+            TLongIntProcedure isFrequent = new TLongIntProcedure() {
+                @Override
+                public boolean execute(long hash, int count) {
+                    return (count >= minPruneCount);
+                }
+            };
+            unigramCounts.retainEntries(isFrequent);
+            bigramCounts.retainEntries(isFrequent);
+            n1 = unigramCounts.getApproximateSize();
+            n2 = bigramCounts.getApproximateSize();
             LOG.info("after pruning dictionary size is " + (n1 + n2));
             // TODO: clear out words, but we need a triple lock... ugh.
         }
@@ -447,8 +453,9 @@ public class Dictionary implements Closeable {
         } else {
             throw new IllegalStateException();
         }
-        for (int wpId : mentionCounts.keys()) {
-            writer.write("m " + wpId + " " + mentionCounts.get(wpId) + "\n");
+        TLongIntMap mentions = getMentionCounts();
+        for (long wpId : mentions.keys()) {
+            writer.write("m " + wpId + " " + mentions.get(wpId) + "\n");
         }
         writer.close();
     }
@@ -611,6 +618,18 @@ public class Dictionary implements Closeable {
         this.nGramCreator = creator;
     }
 
+    /**
+     * Spills unigram and bigram counts to temporary files in a directory once they
+     * exceed the maximum dictionary size, instead of pruning infrequent entries.
+     * Spilled counts are exact but slower to read.
+     * @param dir
+     */
+    public void setSpillDirectory(File dir) {
+        this.spilling = true;
+        unigramCounts.setSpillDirectory(dir, maxDictionarySize / 2);
+        bigramCounts.setSpillDirectory(dir, maxDictionarySize / 2);
+    }
+
     public int getNumUnigrams() {
         return unigramCounts.size();
     }
@@ -633,8 +652,8 @@ public class Dictionary implements Closeable {
             throw new UnsupportedOperationException("WordStorage must be in memory to return strings");
         }
         int threshold = 0;
-        if (n < unigramCounts.size()) {
-            int counts[] = unigramCounts.values();
+        int counts[] = getUnigramCountValues();
+        if (n < counts.length) {
             Arrays.sort(counts);
             threshold = counts[counts.length - n];
         }
@@ -686,8 +705,8 @@ public class Dictionary implements Closeable {
             throw new UnsupportedOperationException("WordStorage must be in memory to return strings");
         }
         final int threshold;
-        if (maxWords < unigramCounts.size()) {
-            int counts[] = unigramCounts.values();
+        int counts[] = getUnigramCountValues();
+        if (maxWords < counts.length) {
             Arrays.sort(counts);
             threshold = Math.max(minWordFreq, counts[counts.length - maxWords]);
         } else {
@@ -719,9 +738,10 @@ public class Dictionary implements Closeable {
 
         List<String> result = topWords;
         if (result.size() > maxWords) result = result.subList(0, maxWords);
-        for (int wpId : mentionCounts.keys()) {
-            if (mentionCounts.get(wpId) >= minMentionFreq) {
-                LocalPage lp = lpd.getById(language, wpId);
+        TLongIntMap mentions = getMentionCounts();
+        for (long wpId : mentions.keys()) {
+            if (mentions.get(wpId) >= minMentionFreq) {
+                LocalPage lp = lpd.getById(language, (int) wpId);
                 if (lp != null) {
                     result.add(makeMentionUrl(lp));
                 }
@@ -745,6 +765,30 @@ public class Dictionary implements Closeable {
         return result;
     }
 
+    private int[] getUnigramCountValues() {
+        final TIntList counts = new TIntArrayList();
+        unigramCounts.forEachEntry(new TLongIntProcedure() {
+            @Override
+            public boolean execute(long hash, int count) {
+                counts.add(count);
+                return true;
+            }
+        });
+        return counts.toArray();
+    }
+
+    private TLongIntMap getMentionCounts() {
+        final TLongIntMap mentions = new TLongIntHashMap();
+        mentionCounts.forEachEntry(new TLongIntProcedure() {
+            @Override
+            public boolean execute(long wpId, int count) {
+                mentions.put(wpId, count);
+                return true;
+            }
+        });
+        return mentions;
+    }
+
     private String makeMentionUrl(LocalPage page) {
         return "/w/" + language.getLangCode() + "/" + page.getLocalId() + "/" + page.getTitle().getCanonicalTitle().replaceAll(" ", "_");
     }
@@ -755,6 +799,8 @@ public class Dictionary implements Closeable {
         if (this.wordWriter != null) {
             wordWriter.close();
         }
+        unigramCounts.close();
+        bigramCounts.close();
     }
 
     /**
@@ -0,0 +1,56 @@
+package org.wikibrain.core.dao;
+
+import org.junit.Test;
+import org.wikibrain.core.dao.cache.CachingLocalPageDao;
+import org.wikibrain.core.dao.sql.LocalPageSqlDao;
+import org.wikibrain.core.dao.sql.TestDaoUtil;
+import org.wikibrain.core.dao.sql.WpDataSource;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageInfo;
+import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.core.model.Title;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TestCachingLocalPageDao {
+    @Test
+    public void testCache() throws ClassNotFoundException, IOException, SQLException, DaoException {
+        WpDataSource wpDs = TestDaoUtil.getWpDataSource();
+        LanguageInfo lang = LanguageInfo.getByLangCode("en");
+        Language en = lang.getLanguage();
+        CachingLocalPageDao dao = new CachingLocalPageDao(new LocalPageSqlDao(wpDs), 10, 10);
+        dao.beginLoad();
+        for (int i = 0; i < 20; i++) {
+            dao.save(new LocalPage(en, i, new Title("page " + i, lang), NameSpace.ARTICLE));
+        }
+        dao.endLoad();
+
+        assertEquals(3, dao.getById(en, 3).getLocalId());
+        assertEquals(0, dao.getPageHits());
+        assertEquals(1, dao.getPageMisses());
+        assertEquals(3, dao.getById(en, 3).getLocalId());
+        assertEquals(1, dao.getPageHits());
+
+        assertEquals(5, dao.getByTitle(new Title("page 5", lang), NameSpace.ARTICLE).getLocalId());
+        assertEquals(5, dao.getByTitle(new Title("page 5", lang), NameSpace.ARTICLE).getLocalId());
+        assertEquals(1, dao.getTitleHits());
+        assertEquals(5, dao.getIdByTitle(new Title("page 5", lang)));
+
+        Map<Integer, LocalPage> pages = dao.getByIds(en, Arrays.asList(3, 4, 5, 100));
+        assertEquals(4, pages.size());
+        assertEquals(4, pages.get(4).getLocalId());
+        assertNull(pages.get(100));
+
+        // Bounded: all pages are still readable after eviction
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, dao.getById(en, i).getLocalId());
+        }
+        assertNull(dao.getById(en, 100));
+    }
+}
@@ -0,0 +1,141 @@
+package org.wikibrain.core.dao;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.wikibrain.core.dao.file.CompressedRawPageDao;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.core.model.RawPage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TestCompressedRawPageDao {
+    private static final Language EN = Language.getByLangCode("en");
+    private static final Language DE = Language.getByLangCode("de");
+    private static final Language FR = Language.getByLangCode("fr");
+    private static final Language SIMPLE = Language.getByLangCode("simple");
+
+    @Test
+    public void testRoundTrip() throws IOException, DaoException {
+        File dir = makeTempDir();
+        CompressedRawPageDao dao = new CompressedRawPageDao(dir);
+        dao.beginLoad();
+        String body = "'''Foo''' is a [[bar]] with \000 and \324 {{cite|x}}\n\nMore text.";
+        Date lastEdit = new Date(1234567890000L);
+        dao.save(new RawPage(7, 3242, "Foo", body, lastEdit, EN, NameSpace.ARTICLE, true, false, "Bar"));
+        dao.save(new RawPage(8, 11, "Category:Baz", "", null, EN, NameSpace.CATEGORY, false, true, null));
+        dao.endLoad();
+
+        RawPage page = dao.getById(EN, 7);
+        assertNotNull(page);
+        assertEquals(7, page.getLocalId());
+        assertEquals(3242, page.getRevisionId());
+        assertEquals("Foo", page.getTitle().getCanonicalTitle());
+        assertEquals(body, page.getBody());
+        assertEquals(lastEdit, page.getLastEdit());
+        assertEquals(NameSpace.ARTICLE, page.getNamespace());
+        assertTrue(page.isRedirect());
+        assertFalse(page.isDisambig());
+        assertEquals("Bar", page.getRedirectTitle());
+        assertEquals(new RawPage(7, 3242, "Foo", body, lastEdit, EN, NameSpace.ARTICLE).getPlainText(), page.getPlainText());
+
+        RawPage category = dao.getById(EN, 8);
+        assertEquals("", category.getBody());
+        assertNull(category.getLastEdit());
+        assertNull(category.getRedirectTitle());
+        assertEquals(NameSpace.CATEGORY, category.getNamespace());
+        assertTrue(category.isDisambig());
+
+        assertNull(dao.getById(EN, 9));
+        assertNull(dao.getById(SIMPLE, 7));
+        assertEquals(body, dao.getBody(EN, 7));
+        dao.close();
+
+        // Reopening reads the same index
+        dao = new CompressedRawPageDao(dir);
+        assertEquals(body, dao.getBody(EN, 7));
+        Map<Integer, RawPage> pages = dao.getByIds(EN, Arrays.asList(7, 8, 9));
+        assertEquals(3, pages.size());
+        assertEquals(8, pages.get(8).getLocalId());
+        assertNull(pages.get(9));
+        dao.clear();
+        assertNull(dao.getById(EN, 7));
+        dao.close();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testFiltersAndReloads() throws IOException, DaoException {
+        File dir = makeTempDir();
+        CompressedRawPageDao dao = new CompressedRawPageDao(dir);
+        dao.beginLoad();
+        for (int i = 0; i < 1000; i++) {
+            Language lang = (i % 2 == 0) ? EN : SIMPLE;
+            NameSpace ns = (i % 3 == 0) ? NameSpace.CATEGORY : NameSpace.ARTICLE;
+            dao.save(new RawPage(i, 1, "Page " + i, "body of " + i, null, lang, ns, i % 5 == 0, false, null));
+        }
+        dao.endLoad();
+
+        assertEquals(1000, dao.getCount(new DaoFilter()));
+        assertEquals(500, dao.getCount(new DaoFilter().setLanguages(EN)));
+        assertEquals(334, dao.getCount(new DaoFilter().setNameSpaces(NameSpace.CATEGORY)));
+        assertEquals(200, dao.getCount(new DaoFilter().setRedirect(true)));
+        assertEquals(100, dao.getCount(new DaoFilter().setLanguages(SIMPLE).setRedirect(true)));
+        assertEquals(10, dao.getCount(new DaoFilter().setLimit(10)));
+        assertEquals(2, dao.getLoadedLanguages().size());
+
+        int lastId = -1;
+        int n = 0;
+        for (RawPage page : dao.get(new DaoFilter().setLanguages(EN).setNameSpaces(NameSpace.ARTICLE))) {
+            assertEquals(EN, page.getLanguage());
+            assertEquals(NameSpace.ARTICLE, page.getNamespace());
+            assertTrue(page.getLocalId() > lastId);
+            assertEquals("body of " + page.getLocalId(), page.getBody());
+            lastId = page.getLocalId();
+            n++;
+        }
+        assertEquals(333, n);
+
+        // A second load adds pages and replaces existing ones
+        dao.beginLoad();
+        dao.save(new RawPage(4, 2, "Page 4", "new body", null, EN, NameSpace.ARTICLE, false, false, null));
+        dao.save(new RawPage(4, 3, "Page 4", "newer body", null, EN, NameSpace.ARTICLE, false, false, null));
+        dao.save(new RawPage(5000, 1, "Page 5000", "body of 5000", null, EN, NameSpace.ARTICLE, false, false, null));
+        dao.endLoad();
+        assertEquals(1001, dao.getCount(new DaoFilter()));
+        assertEquals("newer body", dao.getBody(EN, 4));
+        assertEquals("body of 6", dao.getBody(EN, 6));
+        assertEquals("body of 5000", dao.getBody(EN, 5000));
+        dao.close();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testAdjacentLanguages() throws IOException, DaoException {
+        // en, de and fr have consecutive language ids
+        File dir = makeTempDir();
+        CompressedRawPageDao dao = new CompressedRawPageDao(dir);
+        dao.beginLoad();
+        for (Language lang : Arrays.asList(EN, DE, FR, SIMPLE)) {
+            for (int i = 0; i < 10; i++) {
+                dao.save(new RawPage(i * 37, 1, "Page " + i, "body of " + i, null, lang, NameSpace.ARTICLE));
+            }
+        }
+        dao.endLoad();
+        Set<Language> expected = new HashSet<Language>(Arrays.asList(EN, DE, FR, SIMPLE));
+        assertEquals(expected, new HashSet<Language>(dao.getLoadedLanguages().getLanguages()));
+        dao.close();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private File makeTempDir() throws IOException {
+        File dir = File.createTempFile("compressed-raw-page", null);
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+}
@@ -0,0 +1,131 @@
+package org.wikibrain.core.dao;
+
+import org.junit.Test;
+import org.wikibrain.core.dao.sql.FastLoader;
+import org.wikibrain.core.dao.sql.TestDaoUtil;
+import org.wikibrain.core.dao.sql.WpDataSource;
+
+import java.io.IOException;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestFastLoader {
+    private static final String [] FIELDS = { "ID", "NAME", "FLAG", "EDITED", "DATA" };
+
+    @Test
+    public void testModes() throws ClassNotFoundException, IOException, SQLException, DaoException {
+        WpDataSource wpDs = TestDaoUtil.getWpDataSource();
+        assertEquals(FastLoader.LoadMode.CSVREAD, FastLoader.chooseMode(wpDs));
+
+        List<Object[]> rows = new ArrayList<Object[]>();
+        for (int i = 0; i < 1000; i++) {
+            rows.add(new Object[] {
+                    i,
+                    (i % 7 == 0) ? null : "name \"" + i + "\",\twith\nodd\\chars 'ü'",
+                    (i % 5 == 0) ? null : (i % 2 == 0),
+                    (i % 3 == 0) ? null : new Timestamp(1000000L * i),
+                    (i % 11 == 0) ? null : new byte[] { (byte) i, (byte) -i, 0 },
+            });
+        }
+        List<Object[]> batch = load(wpDs, "T_BATCH", FastLoader.LoadMode.BATCH, rows);
+        List<Object[]> csv = load(wpDs, "T_CSV", FastLoader.LoadMode.CSVREAD, rows);
+        assertEquals(rows.size(), batch.size());
+        assertEquals(rows.size(), csv.size());
+        for (int i = 0; i < rows.size(); i++) {
+            assertArrayEquals(batch.get(i), csv.get(i));
+        }
+    }
+
+    @Test
+    public void testFailedRows() throws ClassNotFoundException, IOException, SQLException, DaoException {
+        WpDataSource wpDs = TestDaoUtil.getWpDataSource();
+        List<Object[]> rows = new ArrayList<Object[]>();
+        int numBad = 0;
+        for (int i = 0; i < 1000; i++) {
+            boolean bad = (i % 97 == 13);    // ID is NOT NULL
+            rows.add(new Object[] {
+                    bad ? null : i,
+                    "name \"" + i + "\",\nwith a newline",
+                    null, null, null
+            });
+            if (bad) {
+                numBad++;
+            }
+        }
+        FastLoader loader = new FastLoader(wpDs, "T_FAILED", FIELDS, FastLoader.LoadMode.CSVREAD);
+        List<Object[]> loaded = load(wpDs, "T_FAILED", loader, rows);
+        assertEquals(numBad, loader.getNumFailed());
+        assertEquals(rows.size() - numBad, loaded.size());
+        for (Object[] row : loaded) {
+            int i = (Integer) row[0];
+            assertEquals(rows.get(i)[1], row[1]);
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testCopyOnH2() throws ClassNotFoundException, IOException, SQLException, DaoException {
+        // H2 has no COPY, so both halves of the chunk fail and it is skipped without row by row retries.
+        WpDataSource wpDs = TestDaoUtil.getWpDataSource();
+        List<Object[]> rows = new ArrayList<Object[]>();
+        for (int i = 0; i < 100; i++) {
+            rows.add(new Object[] { i, "name " + i, null, null, null });
+        }
+        FastLoader loader = new FastLoader(wpDs, "T_COPY", FIELDS, FastLoader.LoadMode.COPY);
+        List<Object[]> loaded = load(wpDs, "T_COPY", loader, rows);
+        assertEquals(0, loaded.size());
+        assertEquals(rows.size(), loader.getNumFailed());
+    }
+
+    @Test(timeout = 60000)
+    public void testSystemicFailure() throws ClassNotFoundException, IOException, SQLException, DaoException {
+        // Every row fails because the table does not exist; the chunk is skipped as a whole.
+        WpDataSource wpDs = TestDaoUtil.getWpDataSource();
+        FastLoader loader = new FastLoader(wpDs, "T_MISSING", FIELDS, FastLoader.LoadMode.CSVREAD);
+        for (int i = 0; i < 1000; i++) {
+            loader.load(i, "name " + i, null, null, null);
+        }
+        loader.endLoad();
+        assertEquals(1000, loader.getNumFailed());
+    }
+
+    private List<Object[]> load(WpDataSource wpDs, String table, FastLoader.LoadMode mode, List<Object[]> rows) throws SQLException, DaoException {
+        FastLoader loader = new FastLoader(wpDs, table, FIELDS, mode);
+        assertEquals(mode, loader.getMode());
+        return load(wpDs, table, loader, rows);
+    }
+
+    private List<Object[]> load(WpDataSource wpDs, String table, FastLoader loader, List<Object[]> rows) throws SQLException, DaoException {
+        Connection cnx = wpDs.getConnection();
+        try {
+            cnx.createStatement().execute(
+                    "CREATE TABLE " + table + " (ID INT NOT NULL, NAME TEXT, FLAG BOOLEAN, EDITED TIMESTAMP, DATA BYTEA)");
+            cnx.commit();
+        } finally {
+            cnx.close();
+        }
+
+        for (Object[] row : rows) {
+            loader.load(row.clone());
+        }
+        loader.endLoad();
+
+        List<Object[]> result = new ArrayList<Object[]>();
+        cnx = wpDs.getConnection();
+        try {
+            ResultSet rs = cnx.createStatement().executeQuery("SELECT * FROM " + table + " ORDER BY ID");
+            while (rs.next()) {
+                Object[] row = new Object[FIELDS.length];
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = (i == 1) ? rs.getString(i + 1) : (i == 4) ? rs.getBytes(i + 1) : rs.getObject(i + 1);
+                }
+                result.add(row);
+            }
+        } finally {
+            cnx.close();
+        }
+        return result;
+    }
+}
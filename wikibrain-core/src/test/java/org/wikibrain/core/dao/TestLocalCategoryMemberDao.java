@@ -3,13 +3,17 @@ package org.wikibrain.core.dao;
 import org.junit.Test;
 import org.wikibrain.core.WikiBrainException;
 import org.wikibrain.core.dao.sql.*;
+import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LanguageInfo;
+import org.wikibrain.core.model.CategoryGraph;
 import org.wikibrain.core.model.LocalPage;
 import org.wikibrain.core.model.NameSpace;
 import org.wikibrain.core.model.Title;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -79,6 +83,84 @@ public class TestLocalCategoryMemberDao {
         assert (map2.containsKey(3));
     }
 
+    @Test
+    public void testGraph() throws ClassNotFoundException, IOException, DaoException, WikiBrainException {
+        WpDataSource ds = TestDaoUtil.getWpDataSource();
+        LocalPageSqlDao pageDao = new LocalPageSqlDao(ds);
+        LocalCategoryMemberSqlDao dao = new LocalCategoryMemberSqlDao(ds, pageDao);
+        dao.beginLoad();
+        pageDao.beginLoad();
+
+        // category 1 contains categories 2 and 3; 2 contains pages 10 and 11; 3 contains page 12
+        for (String langCode : Arrays.asList("en", "la")) {
+            LanguageInfo lang = LanguageInfo.getByLangCode(langCode);
+            LocalPage c1 = new LocalPage(lang.getLanguage(), 1, new Title("Category:\u00dcn\u00efcode", lang), NameSpace.CATEGORY);
+            LocalPage c2 = new LocalPage(lang.getLanguage(), 2, new Title("Category:Two", lang), NameSpace.CATEGORY);
+            LocalPage c3 = new LocalPage(lang.getLanguage(), 3, new Title("Category:Three", lang), NameSpace.CATEGORY);
+            for (LocalPage c : Arrays.asList(c3, c1, c2)) {
+                pageDao.save(c);
+            }
+            dao.save(c1, c2);
+            dao.save(c1, c3);
+            for (int id = 10; id <= 12; id++) {
+                LocalPage p = new LocalPage(lang.getLanguage(), id, new Title("Article " + id, lang), NameSpace.ARTICLE);
+                pageDao.save(p);
+                dao.save(id == 12 ? c3 : c2, p);
+            }
+        }
+        dao.endLoad();
+        pageDao.endLoad();
+
+        Language en = Language.getByLangCode("en");
+        Language la = Language.getByLangCode("la");
+        dao.buildGraphs(Arrays.asList(en, la));
+        CategoryGraph graph = dao.getGraph(en);
+        assertSame(graph, dao.getGraph(en));
+        assertEquals(la, dao.getGraph(la).getLanguage());
+
+        File file = File.createTempFile("category-graph", ".bin");
+        try {
+            graph.write(file);
+            for (CategoryGraph g : Arrays.asList(graph, CategoryGraph.open(file))) {
+                assertEquals(en, g.getLanguage());
+                assertEquals(3, g.getNumCategories());
+                assertEquals(-1, g.getCategoryIndex(10));
+                int i1 = g.getCategoryIndex(1);
+                int i2 = g.getCategoryIndex(2);
+                int i3 = g.getCategoryIndex(3);
+                assertEquals(1, g.getCategoryId(i1));
+                assertEquals("Category:\u00dcn\u00efcode", g.getCategoryName(i1));
+                assertEquals("Category:Two", g.getCategoryName(i2));
+
+                assertEquals(0, g.getNumParents(i1));
+                assertEquals(1, g.getNumParents(i2));
+                assertEquals(i1, g.getParent(i3, 0));
+                int[] children = g.getChildren(1);
+                Arrays.sort(children);
+                assertArrayEquals(new int[] { 2, 3 }, children);
+                assertEquals(0, g.getChildren(2).length);
+
+                assertEquals(0, g.getNumPages(i1));
+                assertEquals(2, g.getNumPages(i2));
+                assertEquals(12, g.getPage(i3, 0));
+
+                assertEquals(graph.getMinCost(), g.getMinCost(), 0.0);
+                assertEquals(graph.getCost(i2), g.getCost(i2), 0.0);
+                assertTrue(g.getCost(i1) > g.getCost(i2));
+            }
+        } finally {
+            file.delete();
+        }
+
+        CategoryBfs bfs = new CategoryBfs(graph, 10, en, Integer.MAX_VALUE, null, dao);
+        while (bfs.hasMoreResults()) {
+            bfs.step();
+        }
+        assertTrue(bfs.hasCategoryDistance(1));
+        assertTrue(bfs.hasPageDistance(12));
+        assertEquals(graph.getCost(graph.getCategoryIndex(2)), bfs.getPageDistance(11), 0.00001);
+    }
+
     private boolean isPrime(int n) {
         if (n<2) return false;
         for (int i=2; i<=n/2; i++) {
@@ -2,7 +2,9 @@ package org.wikibrain.core.dao;
 
 
 import org.junit.Test;
+import org.wikibrain.core.dao.sql.AbstractSqlDao;
 import org.wikibrain.core.dao.sql.LocalPageSqlDao;
+import org.wikibrain.core.dao.sql.RedirectSqlDao;
 import org.wikibrain.core.dao.sql.TestDaoUtil;
 import org.wikibrain.core.dao.sql.WpDataSource;
 import org.wikibrain.core.lang.LanguageInfo;
@@ -14,6 +16,9 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
 public class TestLocalPageDao {
     @Test
     public void testArticle() throws ClassNotFoundException, IOException, SQLException, DaoException {
@@ -59,4 +64,45 @@ public class TestLocalPageDao {
         int savedId = dao.getIdByTitle("Test", lang.getLanguage(), NameSpace.ARTICLE);
         assert (savedId==7);
     }
+
+    @Test
+    public void testBatchedLookups() throws ClassNotFoundException, IOException, SQLException, DaoException {
+        WpDataSource wpDs = TestDaoUtil.getWpDataSource();
+        LanguageInfo lang = LanguageInfo.getByLangCode("en");
+        RedirectSqlDao redirectDao = new RedirectSqlDao(wpDs);
+        redirectDao.beginLoad();
+        redirectDao.save(lang.getLanguage(), 1, 2);
+        redirectDao.endLoad();
+
+        // More pages than fit in a single IN clause
+        int numPages = AbstractSqlDao.MAX_IN_CLAUSE_SIZE * 2 + 10;
+        LocalPageSqlDao dao = new LocalPageSqlDao(wpDs);
+        dao.beginLoad();
+        for (int i = 0; i < numPages; i++) {
+            dao.save(new LocalPage(lang.getLanguage(), i, new Title("page " + i, lang), NameSpace.ARTICLE, i == 1, false));
+        }
+        dao.endLoad();
+
+        List<Integer> pageIds = new ArrayList<Integer>();
+        List<Title> titles = new ArrayList<Title>();
+        for (int i = 0; i < numPages + 5; i++) {
+            pageIds.add(i);
+            titles.add(new Title("page " + i, lang));
+        }
+        Map<Integer, LocalPage> pages = dao.getByIds(lang.getLanguage(), pageIds);
+        Map<Title, LocalPage> pagesByTitle = dao.getByTitles(lang.getLanguage(), titles, NameSpace.ARTICLE);
+        assertEquals(numPages + 5, pages.size());
+        assertEquals(numPages + 5, pagesByTitle.size());
+        for (int i = 0; i < numPages + 5; i++) {
+            if (i >= numPages) {
+                assertNull(pages.get(i));
+                assertNull(pagesByTitle.get(titles.get(i)));
+            } else {
+                int expected = (i == 1) ? 2 : i;    // page 1 redirects to page 2
+                assertEquals(expected, pages.get(i).getLocalId());
+                assertEquals(expected, pagesByTitle.get(titles.get(i)).getLocalId());
+                assertEquals(dao.getById(lang.getLanguage(), i), pages.get(i));
+            }
+        }
+    }
 }
@@ -72,6 +72,45 @@ public class TestMetaInfoDao {
         assertEquals(0, dao.getInfo(String.class, EN).getNumErrors());
     }
 
+    @Test
+    public void testConcurrent() throws DaoException, InterruptedException {
+        Thread threads[] = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 10000; i++) {
+                            dao.incrementRecords(String.class, EN);
+                            dao.incrementRecords(String.class, IT, 3);
+                            if (i % 100 == 0) {
+                                dao.incrementErrorsQuietly(String.class, EN);
+                            }
+                        }
+                    } catch (DaoException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(80000, dao.getInfo(String.class, EN).getNumRecords());
+        assertEquals(800, dao.getInfo(String.class, EN).getNumErrors());
+        assertEquals(240000, dao.getInfo(String.class, IT).getNumRecords());
+
+        // counts are written as deltas, so a second dao adds to the first
+        dao.sync();
+        MetaInfoSqlDao dao2 = new MetaInfoSqlDao(ds);
+        dao2.incrementRecords(String.class, EN, 5);
+        dao.incrementRecords(String.class, EN, 7);
+        dao2.sync();
+        dao.sync();
+        assertEquals(80012, new MetaInfoSqlDao(ds).getInfo(String.class, EN).getNumRecords());
+        assertEquals(320812, dao.getInfo(String.class).getNumRecords() + dao.getInfo(String.class).getNumErrors());
+    }
+
     @Test
     public void testNoLang() throws DaoException {
         dao.incrementRecords(String.class, null);
@@ -3,6 +3,7 @@ package org.wikibrain.core.dao;
 import gnu.trove.map.TIntIntMap;
 import gnu.trove.set.TIntSet;
 import org.junit.Test;
+import org.wikibrain.core.dao.sql.RedirectArray;
 import org.wikibrain.core.dao.sql.RedirectSqlDao;
 import org.wikibrain.core.dao.sql.TestDaoUtil;
 import org.wikibrain.core.dao.sql.WpDataSource;
@@ -12,8 +13,12 @@ import org.wikibrain.core.model.LocalPage;
 import org.wikibrain.core.model.NameSpace;
 import org.wikibrain.core.model.Title;
 
+import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
 
 /**
  */
@@ -52,4 +57,46 @@ public class TestRedirectDao {
         assert (allRedirects.get(2)==6);
         assert (allRedirects.get(3)==-1);
     }
+
+    @Test
+    public void testRedirectArray() throws ClassNotFoundException, IOException, SQLException, DaoException {
+        WpDataSource wpDs = TestDaoUtil.getWpDataSource();
+        Language lang = Language.getByLangCode("en");
+        RedirectSqlDao redirectDao = new RedirectSqlDao(wpDs);
+        redirectDao.beginLoad();
+        redirectDao.save(lang, 7, 5);
+        redirectDao.save(lang, 1, 5);
+        redirectDao.save(lang, 2, -1);
+        redirectDao.save(Language.getByLangCode("la"), 3, 5);
+        redirectDao.endLoad();
+
+        RedirectArray array = redirectDao.getRedirectArray(lang);
+        assertEquals(3, array.size());
+        assertEquals(1, array.getSourceId(0));
+        assertEquals(7, array.getSourceId(2));
+
+        File file = File.createTempFile("redirects", ".bin");
+        try {
+            array.write(file);
+            for (RedirectArray a : Arrays.asList(array, RedirectArray.open(file))) {
+                assertEquals(lang, a.getLanguage());
+                assertEquals(5, (int) a.resolve(7));
+                assertEquals(5, (int) a.resolve(1));
+                assertEquals(-1, (int) a.resolve(2));
+                assertNull(a.resolve(3));
+                assertTrue(a.isRedirect(2));
+                assertFalse(a.isRedirect(5));
+                assertEquals(5, a.toMap().get(7));
+            }
+        } finally {
+            file.delete();
+        }
+
+        // lookups use the array once it exists
+        assertEquals(5, (int) redirectDao.resolveRedirect(lang, 7));
+        assertEquals(-1, (int) redirectDao.resolveRedirect(lang, 2));
+        assertNull(redirectDao.resolveRedirect(lang, 3));
+        assertFalse(redirectDao.isRedirect(lang, 3));
+        assertEquals(3, redirectDao.getAllRedirectIdsToDestIds(lang).size());
+    }
 }
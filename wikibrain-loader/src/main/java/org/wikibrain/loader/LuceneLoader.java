@@ -37,6 +37,9 @@ import java.util.logging.Logger;
  * It should not be called sooner than the WikiTextLoader,
  * but where after that I am not sure.
  *
+ * With more than one shard, pages are partitioned by local id into one queue per
+ * shard, and the workers of a shard only index into that shard's writer.
+ *
  * @author Ari Weiland
  *
  */
@@ -53,18 +56,30 @@ public class LuceneLoader {
     private final Collection<NameSpace> namespaces;
 
 
-    private final BlockingQueue<RawPage> queue = new ArrayBlockingQueue<RawPage>(MAX_QUEUE);
+    private final List<BlockingQueue<RawPage>> queues = new ArrayList<BlockingQueue<RawPage>>();
     private final List<Thread> workers = new ArrayList<Thread>();
     private final MetaInfoDao metaDao;
     private final LuceneOptions[] luceneOptions;
+    private final int numShards;
 
     private LuceneIndexer luceneIndexer;
 
     public LuceneLoader(RawPageDao rawPageDao, MetaInfoDao metaDao, LuceneOptions[] luceneOptions, Collection<NameSpace> namespaces) {
+        this(rawPageDao, metaDao, luceneOptions, namespaces, 1);
+    }
+
+    /**
+     * @param numShards Number of index writers per language. Shards are merged after each language.
+     */
+    public LuceneLoader(RawPageDao rawPageDao, MetaInfoDao metaDao, LuceneOptions[] luceneOptions, Collection<NameSpace> namespaces, int numShards) {
         this.rawPageDao = rawPageDao;
         this.metaDao = metaDao;
         this.luceneOptions = luceneOptions;
         this.namespaces = namespaces;
+        this.numShards = numShards;
+        for (int i = 0; i < numShards; i++) {
+            queues.add(new ArrayBlockingQueue<RawPage>(Math.max(MAX_QUEUE / numShards, 100)));
+        }
     }
 
     /**
@@ -81,21 +96,25 @@ public class LuceneLoader {
                     .setRedirect(false);
             int n = rawPageDao.getCount(filter);
             int i = 0;
-            luceneIndexer = new LuceneIndexer(language, luceneOptions);
+            luceneIndexer = new LuceneIndexer(language, numShards, luceneOptions);
             for (RawPage rawPage : rawPageDao.get(filter)) {
-                queue.put(rawPage);
+                queues.get(luceneIndexer.getShard(rawPage.getLocalId())).put(rawPage);
                 if (++i % 1000 == 0) {
                     LOG.log(Level.INFO, "RawPages indexed " + language + ": " + i + " of " + n);
                 }
             }
-            queue.put(POISON_PILL);
+            for (BlockingQueue<RawPage> queue : queues) {
+                queue.put(POISON_PILL);
+            }
         } catch (DaoException e) {
             throw new WikiBrainException(e);
         } catch (InterruptedException e) {
             throw new WikiBrainException(e);
         } finally {
             cleanupWorkers();
-            queue.clear();
+            for (BlockingQueue<RawPage> queue : queues) {
+                queue.clear();
+            }
             if (luceneIndexer != null) {
                 IOUtils.closeQuietly(luceneIndexer);
                 luceneIndexer = null;
@@ -111,8 +130,8 @@ public class LuceneLoader {
 
     private void createWorkers() {
         workers.clear();
-        for (int i = 0; i < WpThreadUtils.getMaxThreads(); i++) {
-            Thread t = new Thread(new Worker());
+        for (int i = 0; i < Math.max(WpThreadUtils.getMaxThreads(), numShards); i++) {
+            Thread t = new Thread(new Worker(queues.get(i % numShards)));
             t.start();
             workers.add(t);
         }
@@ -134,7 +153,11 @@ public class LuceneLoader {
     }
 
     private class Worker implements Runnable {
-        public Worker() { }
+        private final BlockingQueue<RawPage> queue;
+
+        public Worker(BlockingQueue<RawPage> queue) {
+            this.queue = queue;
+        }
         @Override
         public void run() {
             boolean finished = false;
@@ -185,6 +208,12 @@ public class LuceneLoader {
                         .withLongOpt("indexes")
                         .withDescription("the types of indexes to store, separated by commas")
                         .create("i"));
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("shards")
+                        .withDescription("the number of index writers per language (default 1)")
+                        .create("s"));
         EnvBuilder.addStandardOptions(options);
 
         CommandLineParser parser = new PosixParser();
@@ -231,7 +260,8 @@ public class LuceneLoader {
             metaDao.clear(LuceneSearcher.class, lang);
         }
 
-        final LuceneLoader loader = new LuceneLoader(rawPageDao, metaDao, luceneOptions, namespaces);
+        int numShards = Integer.valueOf(cmd.getOptionValue("s", "1"));
+        final LuceneLoader loader = new LuceneLoader(rawPageDao, metaDao, luceneOptions, namespaces, numShards);
 
         LOG.log(Level.INFO, "Begin indexing");
 
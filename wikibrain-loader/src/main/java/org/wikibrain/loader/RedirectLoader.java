@@ -1,7 +1,9 @@
 package org.wikibrain.loader;
 
 import gnu.trove.impl.Constants;
-import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongIntHashMap;
 import org.apache.commons.cli.*;
 import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.conf.Configurator;
@@ -9,28 +11,34 @@ import org.wikibrain.conf.DefaultOptionBuilder;
 import org.wikibrain.core.cmd.Env;
 import org.wikibrain.core.cmd.EnvBuilder;
 import org.wikibrain.core.dao.*;
+import org.wikibrain.core.dao.sql.RedirectArray;
+import org.wikibrain.core.dao.sql.RedirectSqlDao;
 import org.wikibrain.core.dao.sql.WpDataSource;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LanguageInfo;
+import org.wikibrain.core.model.LocalPage;
 import org.wikibrain.core.model.RawPage;
 import org.wikibrain.core.model.Redirect;
 import org.wikibrain.core.model.Title;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.logging.Logger;
 
 /**
+ * Loads the redirects of each language into the redirect dao.
  *
- * Idea for changing the flow of parsing:
- * - First load all redirect page id -> page id into memory (TIntIntHashMap).
- * - Fix chaining redirects
- * - Then save.
- * - RedirectSqlDao.update goes away.
+ * All titles of a language are first read into a map from title hash to page id,
+ * and all redirects are read into parallel arrays of source ids and target ids.
+ * Chains of redirects are then resolved in memory by following each chain to its
+ * end and pointing every redirect along it at the final page (path compression).
+ * Redirects that form a cycle are reported and left unresolved.
  */
 public class RedirectLoader {
     private static final Logger LOG = Logger.getLogger(RedirectLoader.class.getName());
     private final MetaInfoDao metaDao;
 
-    private TIntIntHashMap redirectIdsToPageIds;
     private final RawPageDao rawPages;
     private final LocalPageDao localPages;
     private final RedirectDao redirects;
@@ -47,51 +55,143 @@ public class RedirectLoader {
         return redirects;
     }
 
-    private void loadRedirectIdsIntoMemory(Language language) throws DaoException{
-        redirectIdsToPageIds = new TIntIntHashMap(Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1, -1);
-        int i = 0;
+    /**
+     * Reads, resolves and saves the redirects of a language.
+     * @param language
+     * @return The resolved redirects.
+     * @throws DaoException
+     */
+    public RedirectArray load(Language language) throws DaoException {
+        TLongIntHashMap titlesToIds = loadTitlesIntoMemory(language);
+        RedirectArray unresolved = loadRedirectIdsIntoMemory(language, titlesToIds);
+        titlesToIds = null;
+        RedirectArray array = resolveRedirectsInMemory(unresolved);
+        loadRedirectsIntoDatabase(array);
+        return array;
+    }
+
+    private TLongIntHashMap loadTitlesIntoMemory(Language language) throws DaoException {
+        LOG.info("Begin loading titles into memory: ");
+        TLongIntHashMap titlesToIds = new TLongIntHashMap(
+                Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1, -1);
+        for (LocalPage page : localPages.get(new DaoFilter().setLanguages(language))) {
+            titlesToIds.put(
+                    Title.longHashCode(language, page.getTitle().getCanonicalTitle(), page.getNameSpace()),
+                    page.getLocalId());
+            if (titlesToIds.size() % 500000 == 0) {
+                LOG.info("loading title # " + titlesToIds.size());
+            }
+        }
+        LOG.info("End loading " + titlesToIds.size() + " titles into memory.");
+        return titlesToIds;
+    }
+
+    private RedirectArray loadRedirectIdsIntoMemory(Language language, TLongIntHashMap titlesToIds) throws DaoException{
         LOG.info("Begin loading redirects into memory: ");
+        LanguageInfo langInfo = LanguageInfo.getByLanguage(language);
+        TLongArrayList pairs = new TLongArrayList();
         for (RawPage p : rawPages.get(new DaoFilter().setLanguages(language).setRedirect(true))) {
-           Title pTitle = new Title(p.getRedirectTitle(), LanguageInfo.getByLanguage(language));
-           redirectIdsToPageIds.put(p.getLocalId(),
-                    localPages.getIdByTitle(pTitle.getCanonicalTitle(), language, pTitle.getNamespace()));
-           if(i%100000==0)
-               LOG.info("loading redirect # " + i);
-            i++;
+            Title pTitle = new Title(p.getRedirectTitle(), langInfo);
+            int dest = titlesToIds.get(Title.longHashCode(language, pTitle.getCanonicalTitle(), pTitle.getNamespace()));
+            pairs.add(((long) p.getLocalId() << 32) | (dest & 0xFFFFFFFFL));
+            if (pairs.size() % 100000 == 0) {
+                LOG.info("loading redirect # " + pairs.size());
+            }
         }
-        LOG.info("End loading redirects into memory.");
+
+        // sort by source id, dropping duplicate sources
+        pairs.sort();
+        int[] srcIds = new int[pairs.size()];
+        int[] destIds = new int[pairs.size()];
+        int n = 0;
+        for (int i = 0; i < pairs.size(); i++) {
+            int src = (int) (pairs.get(i) >>> 32);
+            if (n == 0 || srcIds[n - 1] != src) {
+                srcIds[n] = src;
+                destIds[n] = (int) pairs.get(i);
+                n++;
+            }
+        }
+        LOG.info("End loading " + n + " redirects into memory.");
+        return new RedirectArray(language, Arrays.copyOf(srcIds, n), Arrays.copyOf(destIds, n));
     }
 
-    private int resolveRedirect(int src){
-        int dest = redirectIdsToPageIds.get(src);
-        for(int i = 0; i<4; i++){
-            if (redirectIdsToPageIds.get(dest) == -1)
-                return dest;
-            dest = redirectIdsToPageIds.get(dest);
+    /**
+     * Returns the redirects with the destination of each replaced by the page at the
+     * end of its chain, or -1 if the chain ends in a missing page or a cycle.
+     */
+    private RedirectArray resolveRedirectsInMemory(RedirectArray array) {
+        int n = array.size();
+        int[] srcIds = new int[n];
+        int[] dests = new int[n];
+        byte[] state = new byte[n];     // 0 = unvisited, 1 = on the current path, 2 = resolved
+        TIntArrayList path = new TIntArrayList();
+        int numChains = 0;
+        int numCycles = 0;
+        for (int i = 0; i < n; i++) {
+            srcIds[i] = array.getSourceId(i);
+            if (state[i] != 0) {
+                continue;
+            }
+            // follow the chain until a page that is not a redirect or a resolved redirect
+            path.resetQuick();
+            int j = i;
+            int dest;
+            while (true) {
+                state[j] = 1;
+                path.add(j);
+                int next = array.getDestId(j);
+                int k = (next < 0) ? -1 : array.indexOf(next);
+                if (k < 0) {
+                    dest = next;
+                    break;
+                } else if (state[k] == 2) {
+                    dest = dests[k];
+                    break;
+                } else if (state[k] == 1) {
+                    reportCycle(array, path, k);
+                    numCycles++;
+                    dest = -1;
+                    break;
+                }
+                j = k;
+            }
+            if (path.size() > 1) {
+                numChains++;
+            }
+            for (int p = 0; p < path.size(); p++) {
+                dests[path.get(p)] = dest;
+                state[path.get(p)] = 2;
+            }
+        }
+        int numUnresolved = 0;
+        for (int i = 0; i < n; i++) {
+            numUnresolved += (dests[i] < 0) ? 1 : 0;
         }
-        return -1;
+        LOG.info("resolved " + n + " redirects with " + numChains + " chains, " +
+                numCycles + " cycles and " + numUnresolved + " unresolved redirects.");
+        return new RedirectArray(array.getLanguage(), srcIds, dests);
     }
 
-    private void resolveRedirectsInMemory(){
-        int i = 0;
-        for (int src : redirectIdsToPageIds.keys()) {
-            redirectIdsToPageIds.put(src, resolveRedirect(src));
-            if(i%10000==0)
-                LOG.info("resolving redirect # " + i);
-            i++;
+    private void reportCycle(RedirectArray array, TIntArrayList path, int start) {
+        StringBuilder ids = new StringBuilder();
+        for (int p = path.indexOf(start); p < path.size(); p++) {
+            ids.append(array.getSourceId(path.get(p))).append(" -> ");
         }
+        ids.append(array.getSourceId(start));
+        LOG.warning("found redirect cycle in " + array.getLanguage() + ": " + ids);
     }
 
-    private void loadRedirectsIntoDatabase(Language language) throws DaoException{
-        int i = 0;
+    private void loadRedirectsIntoDatabase(RedirectArray array) throws DaoException{
         LOG.info("Begin loading redirects into database: ");
-        for(int src : redirectIdsToPageIds.keys()){
-            if(i%10000==0)
+        Language language = array.getLanguage();
+        for (int i = 0; i < array.size(); i++) {
+            if (i % 100000 == 0) {
                 LOG.info("loaded " + i + " into database.");
-            redirects.save(language, src, redirectIdsToPageIds.get(src));
-            metaDao.incrementRecords(Redirect.class, language);
-            i++;
+            }
+            redirects.save(language, array.getSourceId(i), array.getDestId(i));
         }
+        metaDao.incrementRecords(Redirect.class, language, array.size());
         LOG.info("End loading redirects into database.");
     }
 
@@ -135,15 +235,21 @@ public class RedirectLoader {
         redirectLoader.getDao().beginLoad();
         metaDao.beginLoad();
 
+        List<RedirectArray> arrays = new ArrayList<RedirectArray>();
         for(Language l : env.getLanguages()){
             LOG.info("LOADING REDIRECTS FOR " + l);
-            redirectLoader.loadRedirectIdsIntoMemory(l);
-            redirectLoader.resolveRedirectsInMemory();
-            redirectLoader.loadRedirectsIntoDatabase(l);
+            arrays.add(redirectLoader.load(l));
         }
 
         redirectLoader.getDao().endLoad();
         metaDao.endLoad();
+
+        // the arrays are written after the table is complete so that they are up to date
+        if (redirectLoader.getDao() instanceof RedirectSqlDao) {
+            for (RedirectArray array : arrays) {
+                ((RedirectSqlDao) redirectLoader.getDao()).saveRedirectArray(array);
+            }
+        }
     }
 
 }
@@ -35,6 +35,7 @@ public class SqlLinksLoader {
     private final LocalPageDao pageDao;
     private final LocalLinkSet existing;
     private final MetaInfoDao metaDao;
+    private final MySqlDumpParser dumpParser;
 
     private AtomicLong totalLinks = new AtomicLong();
     private AtomicLong interestingLinks = new AtomicLong();
@@ -42,7 +43,12 @@ public class SqlLinksLoader {
 
 
     public SqlLinksLoader(LocalLinkDao dao, LocalPageDao pageDao, MetaInfoDao metaDao, File file, LocalLinkSet existing) throws DaoException {
+        this(dao, pageDao, metaDao, file, existing, new MySqlDumpParser());
+    }
+
+    public SqlLinksLoader(LocalLinkDao dao, LocalPageDao pageDao, MetaInfoDao metaDao, File file, LocalLinkSet existing, MySqlDumpParser dumpParser) throws DaoException {
         this.dao = dao;
+        this.dumpParser = dumpParser;
         this.metaDao = metaDao;
         this.pageDao = pageDao;
         this.sqlDump = file;
@@ -60,7 +66,7 @@ public class SqlLinksLoader {
         interestingLinks.set(0);
 
         ParallelForEach.iterate(
-                new MySqlDumpParser().parse(sqlDump).iterator(),
+                dumpParser.parse(sqlDump).iterator(),
                 WpThreadUtils.getMaxThreads(),
                 1000,
                 new Procedure<Object[]>() {
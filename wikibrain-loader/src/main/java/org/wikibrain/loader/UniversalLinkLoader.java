@@ -2,8 +2,14 @@ package org.wikibrain.loader;
 
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
+import gnu.trove.iterator.TLongObjectIterator;
 import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
 import org.apache.commons.cli.*;
+import org.apache.commons.io.FileUtils;
 import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.conf.Configurator;
 import org.wikibrain.conf.DefaultOptionBuilder;
@@ -11,16 +17,25 @@ import org.wikibrain.core.WikiBrainException;
 import org.wikibrain.core.cmd.Env;
 import org.wikibrain.core.cmd.EnvBuilder;
 import org.wikibrain.core.dao.*;
-import org.wikibrain.core.dao.sql.WpDataSource;
+import org.wikibrain.core.dao.sql.UniversalLinkSkeletalSqlDao;
+import org.wikibrain.core.dao.sql.UniversalLinkSqlDao;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.model.LocalLink;
 import org.wikibrain.core.lang.LanguageSet;
 import org.wikibrain.core.model.UniversalLink;
 import org.wikibrain.mapper.ConceptMapper;
+import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.matrix.SparseMatrixEdgeSorter;
+import org.wikibrain.matrix.SparseMatrixRow;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+import org.wikibrain.utils.WpThreadUtils;
 
+import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -28,6 +43,21 @@ import java.util.logging.Logger;
  *
  * Generates and loads the Universal Link map into a database.
  *
+ * Languages are loaded in parallel, each with a single pass over its local links. Local
+ * ids are translated to universal ids with the maps from getAllLocalToUnivIdsMap(), and
+ * each local link (including red links) is bulk loaded.
+ *
+ * Universal edges go to an external sorter that drops duplicates and writes the universal
+ * link matrix and its transpose. Each language's edges also go to a temporary matrix of
+ * their own, and the skeletal dao is loaded from the rows of the universal matrix, with
+ * the languages of an edge being those whose matrices contain it. Each universal edge is
+ * thus saved once with all of its languages, without reading the local links again.
+ * Edges with an unmapped endpoint (universal id -1, e.g. red links) cannot be stored in
+ * the matrices, so each language collects them in a set, and they are merged and saved to
+ * the skeletal dao separately.
+ *
+ * Failures in the parallel loops are collected and rethrown once the loops finish.
+ *
  * @author Ari Weiland
  *
  */
@@ -40,14 +70,19 @@ public class UniversalLinkLoader {
     private final UniversalLinkDao universalLinkDao;
     private final UniversalLinkDao universalLinkSkeletalDao;
     private final MetaInfoDao metaDao;
+    private final File matrixDir;
 
-    public UniversalLinkLoader(LanguageSet languageSet, LocalLinkDao localLinkDao, UniversalPageDao universalPageDao, UniversalLinkDao universalLinkDao, UniversalLinkDao universalLinkSkeletalDao, MetaInfoDao metaDao) {
+    /**
+     * @param matrixDir Directory for the universal link matrices of each algorithm.
+     */
+    public UniversalLinkLoader(LanguageSet languageSet, LocalLinkDao localLinkDao, UniversalPageDao universalPageDao, UniversalLinkDao universalLinkDao, UniversalLinkDao universalLinkSkeletalDao, MetaInfoDao metaDao, File matrixDir) {
         this.languageSet = languageSet;
         this.localLinkDao = localLinkDao;
         this.universalPageDao = universalPageDao;
         this.universalLinkDao = universalLinkDao;
         this.universalLinkSkeletalDao = universalLinkSkeletalDao;
         this.metaDao = metaDao;
+        this.matrixDir = matrixDir;
     }
 
     public void beginLoad(boolean shouldClear) throws DaoException {
@@ -55,52 +90,238 @@ public class UniversalLinkLoader {
             LOG.log(Level.INFO, "Clearing data");
             universalLinkDao.clear();
             universalLinkSkeletalDao.clear();
+            FileUtils.deleteQuietly(matrixDir);
         }
         LOG.log(Level.INFO, "Begin Load");
         universalLinkDao.beginLoad();
         universalLinkSkeletalDao.beginLoad();
     }
 
+    public File getMatrixFile(int algorithmId) {
+        return new File(new File(matrixDir, "" + algorithmId), "links.matrix");
+    }
+
+    public File getTransposeFile(int algorithmId) {
+        return new File(new File(matrixDir, "" + algorithmId), "links-transpose.matrix");
+    }
+
+    /**
+     * @return The directory for the temporary universal link matrices of each language.
+     */
+    private File getLanguageDir(int algorithmId) {
+        return new File(new File(matrixDir, "" + algorithmId), "languages");
+    }
+
     /**
      * Loads the database of UniversalLinks. Requires a database of UniversalPages and LocalLinks
      * @throws WikiBrainException
      */
-    public void loadLinkMap(int algorithmId) throws WikiBrainException {
+    public void loadLinkMap(final int algorithmId) throws WikiBrainException {
+        final File langDir = getLanguageDir(algorithmId);
         try {
-            Iterable<LocalLink> localLinks = localLinkDao.get(new DaoFilter().setLanguages(languageSet));
             LOG.log(Level.INFO, "Fetching ID map");
-            Map<Language, TIntIntMap> map = universalPageDao.getAllLocalToUnivIdsMap(languageSet);
+            final Map<Language, TIntIntMap> map = universalPageDao.getAllLocalToUnivIdsMap(languageSet);
+            FileUtils.deleteQuietly(langDir);
+            langDir.mkdirs();
+
             LOG.log(Level.INFO, "Loading links");
             long start = System.currentTimeMillis();
-            int i=0;
-            for (LocalLink localLink : localLinks) {
-                i++;
-                if (i%100000 == 0)
-                    LOG.log(Level.INFO, "UniversalLinks loaded: " + i);
-                int univSourceId, univDestId;
-                if (localLink.getSourceId() < 0) {
-                    univSourceId = -1;
-                } else {
-                    univSourceId = map.get(localLink.getLanguage()).get(localLink.getSourceId());
+            final SparseMatrixEdgeSorter sorter = new SparseMatrixEdgeSorter();
+            sorter.setDeduplicate(true);
+            final AtomicLong numLinks = new AtomicLong();
+            final TLongObjectMap<List<Language>> unmappedEdges = new TLongObjectHashMap<List<Language>>();
+            final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+            ParallelForEach.loop(languageSet.getLanguages(), WpThreadUtils.getMaxThreads(), new Procedure<Language>() {
+                @Override
+                public void call(Language lang) throws Exception {
+                    try {
+                        SparseMatrixEdgeSorter langSorter = new SparseMatrixEdgeSorter();
+                        langSorter.setDeduplicate(true);
+                        TLongSet unmapped = new TLongHashSet();
+                        int n = loadLinks(lang, map.get(lang), algorithmId, sorter, langSorter, unmapped);
+                        langSorter.write(
+                                new File(langDir, lang.getLangCode() + ".matrix"),
+                                new File(langDir, lang.getLangCode() + "-transpose.matrix"));
+                        synchronized (unmappedEdges) {
+                            for (long edge : unmapped.toArray()) {
+                                List<Language> langs = unmappedEdges.get(edge);
+                                if (langs == null) {
+                                    langs = new ArrayList<Language>(2);
+                                    unmappedEdges.put(edge, langs);
+                                }
+                                langs.add(lang);
+                            }
+                        }
+                        metaDao.incrementRecords(UniversalLink.class, n);
+                        LOG.log(Level.INFO, "UniversalLinks loaded for " + lang + ": " + n
+                                + " (" + numLinks.addAndGet(n) + " total)");
+                    } catch (Exception e) {
+                        failures.add(e);
+                        throw e;
+                    }
                 }
-                if (localLink.getDestId() < 0) {
-                    univDestId = -1;
-                } else {
-                    univDestId = map.get(localLink.getLanguage()).get(localLink.getDestId());
-                }
-                Multimap<Language, LocalLink> linkMap = HashMultimap.create();
-                linkMap.put(localLink.getLanguage(), localLink);
-                UniversalLink link = new UniversalLink(univSourceId, univDestId, algorithmId, linkMap);
-                universalLinkDao.save(link);
-                universalLinkSkeletalDao.save(link);
-                metaDao.incrementRecords(UniversalLink.class);
-            }
+            }, 1);
+            checkFailures(failures, "loading universal links");
+
+            LOG.log(Level.INFO, "Sorting and deduplicating universal edges");
+            getMatrixFile(algorithmId).getParentFile().mkdirs();
+            sorter.write(getMatrixFile(algorithmId), getTransposeFile(algorithmId));
+
+            LOG.log(Level.INFO, "Loading skeletal links");
+            int numEdges = loadSkeletalLinks(langDir, algorithmId);
+            numEdges += saveUnmappedSkeletalLinks(unmappedEdges, algorithmId);
+
             long end = System.currentTimeMillis();
             double seconds = (end - start) / 1000.0;
             LOG.log(Level.INFO, "Time (s): " + seconds);
-            LOG.log(Level.INFO, "All UniversalLinks loaded: " + i);
+            LOG.log(Level.INFO, "All UniversalLinks loaded: " + numLinks.get() + " local links, " + numEdges + " universal edges");
         } catch (DaoException e) {
             throw new WikiBrainException(e);
+        } catch (IOException e) {
+            throw new WikiBrainException(e);
+        } finally {
+            FileUtils.deleteQuietly(langDir);
+        }
+    }
+
+    /**
+     * Throws the first exception collected by a parallel loop, if any.
+     */
+    private static void checkFailures(List<Exception> failures, String what) throws WikiBrainException {
+        if (!failures.isEmpty()) {
+            throw new WikiBrainException(what + " failed (" + failures.size() + " errors)", failures.get(0));
+        }
+    }
+
+    /**
+     * Saves the universal links for every local link in a language, adds the universal
+     * edges between mapped pages to the sorters, and the other edges to unmapped.
+     * @return The number of local links.
+     */
+    private int loadLinks(Language lang, TIntIntMap ids, int algorithmId,
+                          SparseMatrixEdgeSorter sorter, SparseMatrixEdgeSorter langSorter,
+                          TLongSet unmapped) throws IOException, DaoException {
+        int n = 0;
+        for (LocalLink localLink : localLinkDao.get(new DaoFilter().setLanguages(lang))) {
+            int srcId = localLink.getSourceId();
+            int destId = localLink.getDestId();
+            int univSrcId = (srcId < 0) ? -1 : ids.get(srcId);
+            int univDestId = (destId < 0) ? -1 : ids.get(destId);
+            saveLink(lang, srcId, destId, univSrcId, univDestId, algorithmId);
+            if (univSrcId >= 0 && univDestId >= 0) {
+                sorter.add(univSrcId, univDestId);
+                langSorter.add(univSrcId, univDestId);
+            } else {
+                unmapped.add(((long) univSrcId << 32) | (univDestId & 0xFFFFFFFFL));
+            }
+            n++;
+        }
+        return n;
+    }
+
+    private void saveLink(Language lang, int srcId, int destId, int univSrcId, int univDestId,
+                          int algorithmId) throws DaoException {
+        if (universalLinkDao instanceof UniversalLinkSqlDao) {
+            ((UniversalLinkSqlDao) universalLinkDao).save(lang, srcId, destId, univSrcId, univDestId, algorithmId);
+        } else {
+            Multimap<Language, LocalLink> linkMap = HashMultimap.create();
+            linkMap.put(lang, new LocalLink(lang, null, srcId, destId, true, 0, true, LocalLink.LocationType.NONE));
+            universalLinkDao.save(new UniversalLink(univSrcId, univDestId, algorithmId, linkMap));
+        }
+    }
+
+    /**
+     * Saves each edge of the deduplicated universal link matrix to the skeletal dao,
+     * along with the languages whose universal link matrices contain it.
+     */
+    private int loadSkeletalLinks(File langDir, final int algorithmId) throws IOException, WikiBrainException {
+        final List<Language> langs = new ArrayList<Language>();
+        final List<SparseMatrix> langMatrices = new ArrayList<SparseMatrix>();
+        final AtomicLong numEdges = new AtomicLong();
+        final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+        SparseMatrix universal = new SparseMatrix(getMatrixFile(algorithmId));
+        try {
+            for (Language lang : languageSet) {
+                File file = new File(langDir, lang.getLangCode() + ".matrix");
+                if (file.isFile()) {
+                    langs.add(lang);
+                    langMatrices.add(new SparseMatrix(file));
+                }
+            }
+            ParallelForEach.iterate(universal.iterator(), new Procedure<SparseMatrixRow>() {
+                @Override
+                public void call(SparseMatrixRow row) throws Exception {
+                    if (failures.isEmpty()) {
+                        try {
+                            saveSkeletalRow(row);
+                        } catch (Exception e) {
+                            failures.add(e);
+                            throw e;
+                        }
+                    }
+                }
+
+                private void saveSkeletalRow(SparseMatrixRow row) throws DaoException, IOException {
+                    int univSrcId = row.getRowIndex();
+                    int numDests = row.getNumCols();
+                    List<List<Language>> edgeLangs = new ArrayList<List<Language>>(numDests);
+                    for (int i = 0; i < numDests; i++) {
+                        edgeLangs.add(new ArrayList<Language>(2));
+                    }
+                    for (int l = 0; l < langs.size(); l++) {
+                        SparseMatrixRow langRow = langMatrices.get(l).getRow(univSrcId);
+                        if (langRow == null) {
+                            continue;
+                        }
+                        // Both rows are sorted, and the universal row holds every edge of the language.
+                        int i = 0;
+                        for (int j = 0; j < langRow.getNumCols(); j++) {
+                            int destId = langRow.getColIndex(j);
+                            while (i < numDests && row.getColIndex(i) != destId) {
+                                i++;
+                            }
+                            if (i < numDests) {
+                                edgeLangs.get(i).add(langs.get(l));
+                            }
+                        }
+                    }
+                    for (int i = 0; i < numDests; i++) {
+                        if (!edgeLangs.get(i).isEmpty()) {
+                            saveSkeletalLink(new UniversalLink(univSrcId, row.getColIndex(i), algorithmId, new LanguageSet(edgeLangs.get(i))));
+                            numEdges.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            checkFailures(failures, "loading skeletal universal links");
+        } finally {
+            universal.close();
+            for (SparseMatrix matrix : langMatrices) {
+                matrix.close();
+            }
+        }
+        return (int) numEdges.get();
+    }
+
+    /**
+     * Saves the edges with an unmapped endpoint to the skeletal dao.
+     * @return The number of edges.
+     */
+    private int saveUnmappedSkeletalLinks(TLongObjectMap<List<Language>> edges, int algorithmId) throws DaoException {
+        TLongObjectIterator<List<Language>> iter = edges.iterator();
+        while (iter.hasNext()) {
+            iter.advance();
+            long edge = iter.key();
+            saveSkeletalLink(new UniversalLink((int) (edge >> 32), (int) edge, algorithmId, new LanguageSet(iter.value())));
+        }
+        return edges.size();
+    }
+
+    private void saveSkeletalLink(UniversalLink link) throws DaoException {
+        if (universalLinkSkeletalDao instanceof UniversalLinkSkeletalSqlDao) {
+            ((UniversalLinkSkeletalSqlDao) universalLinkSkeletalDao).saveMerged(link);
+        } else {
+            universalLinkSkeletalDao.save(link);
         }
     }
 
@@ -143,6 +364,7 @@ public class UniversalLinkLoader {
         UniversalLinkDao universalLinkSkeletalDao = conf.get(UniversalLinkDao.class, "skeletal-sql-wikidata");
         ConceptMapper mapper = conf.get(ConceptMapper.class, algorithm);
         MetaInfoDao metaDao = conf.get(MetaInfoDao.class);
+        File matrixDir = new File(conf.getConf().get().getString("dao.universalLinkMatrixPath"));
 
         UniversalLinkLoader loader = new UniversalLinkLoader(
                 env.getLanguages(),
@@ -150,7 +372,8 @@ public class UniversalLinkLoader {
                 universalPageDao,
                 universalLinkDao,
                 universalLinkSkeletalDao,
-                metaDao);
+                metaDao,
+                matrixDir);
 
         System.out.println("loading " + mapper.getId());
         loader.beginLoad(cmd.hasOption("d"));
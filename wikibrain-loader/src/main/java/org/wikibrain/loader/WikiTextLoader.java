@@ -8,6 +8,7 @@ import org.wikibrain.core.cmd.Env;
 import org.wikibrain.core.cmd.EnvBuilder;
 import org.wikibrain.core.cmd.FileMatcher;
 import org.wikibrain.core.dao.*;
+import org.wikibrain.core.dao.sql.LocalCategoryMemberSqlDao;
 import org.wikibrain.core.dao.sql.WpDataSource;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LanguageInfo;
@@ -16,6 +17,7 @@ import org.wikibrain.core.model.InterLanguageLink;
 import org.wikibrain.core.model.LocalCategoryMember;
 import org.wikibrain.core.model.LocalLink;
 import org.wikibrain.parser.wiki.*;
+import org.wikibrain.parser.sql.MySqlDumpParser;
 
 import java.io.File;
 import java.io.IOException;
@@ -104,7 +106,8 @@ public class WikiTextLoader {
                 throw new IllegalStateException();
             }
             if (paths.size() == 1) {
-                SqlLinksLoader sqlLoader = new SqlLinksLoader(llDao, lpDao, metaDao, paths.get(0), linkSet);
+                SqlLinksLoader sqlLoader = new SqlLinksLoader(llDao, lpDao, metaDao, paths.get(0), linkSet,
+                        MySqlDumpParser.forTable(conf.getConf(), "pagelinks"));
                 sqlLoader.load();
             }
         }
@@ -114,6 +117,11 @@ public class WikiTextLoader {
         lcmDao.endLoad();
         metaDao.endLoad();
 
+        // memory-mapped category graphs let later processes start without rebuilding them
+        if (lcmDao instanceof LocalCategoryMemberSqlDao) {
+            ((LocalCategoryMemberSqlDao) lcmDao).buildGraphs(env.getLanguages().getLanguages());
+        }
+
         System.out.println("encountered " + metaDao.getInfo(LocalLink.class).getNumErrors() + " parse errors");
 
         // Why is this necessary???
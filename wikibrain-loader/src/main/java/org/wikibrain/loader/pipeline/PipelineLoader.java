@@ -1,15 +1,20 @@
 package org.wikibrain.loader.pipeline;
 
 import com.typesafe.config.Config;
+import org.jooq.SQLDialect;
 import org.wikibrain.conf.Configuration;
 import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.core.cmd.Env;
 import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.dao.MetaInfoDao;
+import org.wikibrain.core.dao.sql.AbstractSqlDao;
+import org.wikibrain.core.dao.sql.WpDataSource;
 import org.wikibrain.core.lang.LanguageSet;
 import org.wikibrain.core.model.MetaInfo;
 
 import java.io.*;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -34,6 +39,11 @@ public class PipelineLoader {
     private final DiagnosticDao diagnosticDao;
     private boolean forceRerun = false;
 
+    /**
+     * Maximum number of stages run at once. Zero derives the limit from available memory.
+     */
+    private int maxParallelStages = 1;
+
     public PipelineLoader(Env env) throws ConfigurationException, DaoException, ClassNotFoundException, InterruptedException {
         this(env, null);
     }
@@ -45,6 +55,13 @@ public class PipelineLoader {
         this.diagnosticDao = env.getConfigurator().get(DiagnosticDao.class);
 
         initConfig(env.getConfiguration());
+        if (env.getConfiguration().get().hasPath("loader.maxParallelStages")) {
+            maxParallelStages = env.getConfiguration().get().getInt("loader.maxParallelStages");
+        }
+        if (maxParallelStages != 1 && !supportsConcurrentProcesses(env.getConfigurator().get(WpDataSource.class))) {
+            LOG.info("database does not support access from concurrent processes; running stages one at a time");
+            maxParallelStages = 1;
+        }
         if (args == null) {
             if (langs.size() == 0) {
                 throw new IllegalArgumentException("No languages specified to pipeline loader");
@@ -98,43 +115,66 @@ public class PipelineLoader {
             stage.reset();
         }
         LOG.info("Beginning loading");
-        try {
-            for (PipelineStage stage : stages.values()) {
-                if (stage.getShouldRun() != null && stage.getShouldRun()) {
-                    LOG.info("Beginning stage " + stage.getName());
-                    stage.runWithDependenciesIfNeeded(args, forceRerun);
-                    LOG.info("Successfully completed stage " + stage.getName());
-                }
+        List<PipelineStage> targets = new ArrayList<PipelineStage>();
+        for (PipelineStage stage : stages.values()) {
+            if (stage.getShouldRun() != null && stage.getShouldRun()) {
+                targets.add(stage);
             }
-            LOG.info("Loading successfully finished");
-        } finally {
-            quietlySaveDiagnostics();
         }
+        final long runId = Math.abs(new Random().nextLong());
+        StageScheduler scheduler = new StageScheduler(langs, maxParallelStages);
+        scheduler.setListener(new StageScheduler.Listener() {
+            @Override
+            public void stageFinished(PipelineStage stage) {
+                quietlySaveDiagnostic(runId, stage);
+            }
+        });
+        scheduler.run(targets, args, forceRerun);
+        LOG.info("Loading successfully finished");
     }
 
-    private void quietlySaveDiagnostics() {
+    private void quietlySaveDiagnostic(long runId, PipelineStage stage) {
         try {
-            long runId = Math.abs(new Random().nextLong());
-            for (PipelineStage stage : stages.values()) {
-                if (stage != null && stage.hasBeenRun()) {
-                    StageDiagnostic sd = new StageDiagnostic(
-                            runId,
-                            stage.getName(),
-                            langs,
-                            stage.getElapsedSeconds(),
-                            CpuBenchmarker.getSingleCoreSpeed(),
-                            CpuBenchmarker.getMultiCoreSpeed(),
-                            -1.0
-                    );
-                    sd.setSucceeded(stage.getSucceeded());
-                    diagnosticDao.saveQuietly(sd);
-                }
-            }
+            StageDiagnostic sd = new StageDiagnostic(
+                    runId,
+                    stage.getName(),
+                    langs,
+                    stage.getElapsedSeconds(),
+                    CpuBenchmarker.getSingleCoreSpeed(),
+                    CpuBenchmarker.getMultiCoreSpeed(),
+                    -1.0
+            );
+            sd.setSucceeded(stage.getSucceeded());
+            diagnosticDao.saveQuietly(sd);
         } catch (Exception e) {
             LOG.log(Level.WARNING, "Diagnostics save failed (this should be harmless):", e);
         }
     }
 
+    /**
+     * Stages run in separate JVMs, so they can only overlap if each process can open the database.
+     * This is true for PostgreSQL and for H2 in server or auto-server mode, but not embedded H2.
+     */
+    private static boolean supportsConcurrentProcesses(WpDataSource ds) throws DaoException {
+        if (ds.getDialect() == SQLDialect.POSTGRES) {
+            return true;
+        } else if (ds.getDialect() != SQLDialect.H2) {
+            return false;
+        }
+        Connection cnx = null;
+        try {
+            cnx = ds.getConnection();
+            String url = cnx.getMetaData().getURL();
+            return url.startsWith("jdbc:h2:tcp:")
+                    || url.startsWith("jdbc:h2:ssl:")
+                    || url.toUpperCase().contains("AUTO_SERVER=TRUE");
+        } catch (SQLException e) {
+            throw new DaoException(e);
+        } finally {
+            AbstractSqlDao.quietlyCloseConn(cnx);
+        }
+    }
+
     private void initConfig(Configuration config) throws ClassNotFoundException {
         for (Config stageConfig : config.get().getConfigList("loader.stages")) {
             PipelineStage stage = new PipelineStage(stageConfig, stages.values(), state);
@@ -74,6 +74,16 @@ public class PipelineStage {
      */
     private Date startTime = null;
 
+    /**
+     * The child process running the stage, if any.
+     */
+    private volatile Process process = null;
+
+    /**
+     * Set if the stage was killed before it finished.
+     */
+    private volatile boolean killed = false;
+
     /**
      * Time the stage required.
      */
@@ -162,19 +172,41 @@ public class PipelineStage {
         if (!dryRun) {
             startTime = new Date();
             long before = System.currentTimeMillis();
-            Process p = JvmUtils.launch(klass, actualArgs);
-            int retVal = p.waitFor();
+            int retVal;
+            synchronized (this) {
+                if (killed) {
+                    throw new StageFailedException(this, -1);
+                }
+                process = JvmUtils.launch(klass, actualArgs);
+            }
+            try {
+                retVal = process.waitFor();
+            } finally {
+                process = null;
+                long after = System.currentTimeMillis();
+                elapsedSeconds = (after - before) / 1000.0;
+            }
             if (retVal != 0) {
                 succeeded = false;
+                hasBeenRun = true;
                 throw new StageFailedException(this, retVal);
             }
             succeeded = true;
-            long after = System.currentTimeMillis();
-            elapsedSeconds = (after - before) / 1000.0;
         }
         hasBeenRun = true;
     }
 
+    /**
+     * Destroys the child process running this stage (if any) and prevents it from starting.
+     */
+    public synchronized void kill() {
+        killed = true;
+        Process p = process;
+        if (p != null) {
+            p.destroy();
+        }
+    }
+
     public void setDryRun(boolean dryRun) {
         reset();
         this.dryRun = dryRun;
@@ -196,6 +228,18 @@ public class PipelineStage {
         return shouldRun;
     }
 
+    public List<PipelineStage> getDependsOn() {
+        return Collections.unmodifiableList(dependsOn);
+    }
+
+    /**
+     * @return True if the stage's runtime estimate depends on multi-core speed,
+     * i.e. it keeps more than one core busy.
+     */
+    public boolean isMultiThreaded() {
+        return timeEstimateEquation.contains("multiCoreSpeed");
+    }
+
     @Override
     public String toString() {
         String deps = new String();
@@ -221,6 +265,7 @@ public class PipelineStage {
     public void reset() {
         dryRun = false;
         hasBeenRun = false;
+        killed = false;
         argsOverride = null;
     }
 
@@ -0,0 +1,272 @@
+package org.wikibrain.loader.pipeline;
+
+import org.wikibrain.core.lang.LanguageSet;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs pipeline stages in dependency order, overlapping stages that do not depend on each other.
+ *
+ * A stage is started once all of the stages it (transitively) depends on have finished and
+ * it fits in the remaining budget:
+ * <ul>
+ *     <li>CPU: the effective number of cores measured by CpuBenchmarker. Multi-threaded stages
+ *     claim all but one core, other stages claim a single core.</li>
+ *     <li>Memory: each stage is a child JVM with the same maximum heap as this one, so the
+ *     number of concurrent stages is capped by physical memory.</li>
+ *     <li>Disk: the disk space estimates of running stages must fit in the free space.</li>
+ * </ul>
+ * A stage is always started if nothing else is running. Among ready stages, the one with the
+ * longest estimated remaining path through the pipeline goes first.
+ *
+ * If a stage fails, no new stages are started, stages running in other branches are killed,
+ * and the first failure is thrown.
+ *
+ * @author Shilad Sen
+ */
+public class StageScheduler {
+    private static final Logger LOG = Logger.getLogger(StageScheduler.class.getName());
+
+    /**
+     * Receives each stage as soon as it finishes (successfully or not).
+     */
+    public static interface Listener {
+        public void stageFinished(PipelineStage stage);
+    }
+
+    private final LanguageSet langs;
+    private final int maxParallel;
+    private final int cpuBudget;
+    private final File workingDir;
+    private Listener listener = null;
+
+    /**
+     * @param langs Languages being loaded, used for estimates.
+     * @param maxParallel Maximum number of stages run at once. Values less than one
+     *                    use the limit derived from physical memory.
+     */
+    public StageScheduler(LanguageSet langs, int maxParallel) {
+        this.langs = langs;
+        this.maxParallel = (maxParallel > 0) ? maxParallel : getMemoryLimit();
+        this.cpuBudget = (this.maxParallel == 1) ? 1 : getCpuBudget();
+        this.workingDir = new File(".").getAbsoluteFile();
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Runs the stages and all stages they depend on, skipping stages that are not needed.
+     */
+    public void run(Collection<PipelineStage> targets, final String [] args, boolean forceRerun) throws InterruptedException, StageFailedException {
+        // Every stage reachable from the targets, in configuration order
+        LinkedHashSet<PipelineStage> reachable = new LinkedHashSet<PipelineStage>();
+        for (PipelineStage stage : targets) {
+            addWithDependencies(reachable, stage);
+        }
+        List<PipelineStage> pending = new ArrayList<PipelineStage>();
+        for (PipelineStage stage : reachable) {
+            if (stage.isNeeded(forceRerun)) {
+                pending.add(stage);
+            }
+        }
+        final Map<PipelineStage, Double> priorities = getPriorities(pending);
+        Collections.sort(pending, new Comparator<PipelineStage>() {
+            @Override
+            public int compare(PipelineStage s1, PipelineStage s2) {
+                return -1 * priorities.get(s1).compareTo(priorities.get(s2));
+            }
+        });
+        LOG.info("scheduling " + pending.size() + " stages with at most " + maxParallel +
+                " at once and a budget of " + cpuBudget + " cores");
+
+        Set<PipelineStage> unfinished = new HashSet<PipelineStage>(pending);
+        Set<PipelineStage> running = new HashSet<PipelineStage>();
+        ExecutorService exec = Executors.newCachedThreadPool();
+        CompletionService<PipelineStage> completed = new ExecutorCompletionService<PipelineStage>(exec);
+        Map<Future<PipelineStage>, PipelineStage> futures = new HashMap<Future<PipelineStage>, PipelineStage>();
+        StageFailedException failure = null;
+        int coresUsed = 0;
+        double diskUsed = 0.0;
+
+        try {
+            while (!running.isEmpty() || (!pending.isEmpty() && failure == null)) {
+                if (failure == null) {
+                    Iterator<PipelineStage> iter = pending.iterator();
+                    while (iter.hasNext() && running.size() < maxParallel) {
+                        final PipelineStage stage = iter.next();
+                        if (!isReady(stage, unfinished)) {
+                            continue;
+                        }
+                        int cores = getCores(stage);
+                        double disk = estimateDisk(stage);
+                        if (!running.isEmpty() &&
+                                (coresUsed + cores > cpuBudget || diskUsed + disk > getFreeMegabytes())) {
+                            continue;
+                        }
+                        iter.remove();
+                        running.add(stage);
+                        coresUsed += cores;
+                        diskUsed += disk;
+                        LOG.info("Beginning stage " + stage.getName());
+                        futures.put(completed.submit(new Callable<PipelineStage>() {
+                            @Override
+                            public PipelineStage call() throws Exception {
+                                stage.run(args);
+                                return stage;
+                            }
+                        }), stage);
+                    }
+                }
+                if (running.isEmpty()) {
+                    throw new IllegalStateException("no stage can be scheduled: " + pending);
+                }
+
+                Future<PipelineStage> future = completed.take();
+                PipelineStage stage = futures.remove(future);
+                running.remove(stage);
+                unfinished.remove(stage);
+                coresUsed -= getCores(stage);
+                diskUsed -= estimateDisk(stage);
+                try {
+                    future.get();
+                    LOG.info("Successfully completed stage " + stage.getName() +
+                            " in " + stage.getElapsedSeconds() + " seconds");
+                } catch (ExecutionException e) {
+                    StageFailedException sfe = (e.getCause() instanceof StageFailedException)
+                            ? (StageFailedException) e.getCause()
+                            : new StageFailedException(stage, -1);
+                    if (!(e.getCause() instanceof StageFailedException)) {
+                        LOG.log(Level.SEVERE, "Stage " + stage.getName() + " failed:", e.getCause());
+                    }
+                    if (failure == null) {
+                        failure = sfe;
+                        LOG.severe("Stage " + stage.getName() + " failed; stopping " + running.size() + " running stages");
+                        for (PipelineStage s : running) {
+                            s.kill();
+                        }
+                    }
+                }
+                if (listener != null) {
+                    listener.stageFinished(stage);
+                }
+            }
+        } finally {
+            for (PipelineStage s : running) {
+                s.kill();
+            }
+            exec.shutdownNow();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static void addWithDependencies(Set<PipelineStage> stages, PipelineStage stage) {
+        if (stages.contains(stage)) {
+            return;
+        }
+        for (PipelineStage dep : stage.getDependsOn()) {
+            addWithDependencies(stages, dep);
+        }
+        stages.add(stage);
+    }
+
+    /**
+     * A stage is ready when none of its transitive dependencies are waiting to run or running.
+     */
+    private static boolean isReady(PipelineStage stage, Set<PipelineStage> unfinished) {
+        for (PipelineStage dep : stage.getDependsOn()) {
+            if (unfinished.contains(dep) || !isReady(dep, unfinished)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The priority of a stage is its estimated runtime plus the longest estimated
+     * runtime of a chain of stages that depend on it.
+     */
+    private Map<PipelineStage, Double> getPriorities(List<PipelineStage> stages) {
+        Map<PipelineStage, Double> priorities = new HashMap<PipelineStage, Double>();
+        // Stages are in dependency order, so dependents are visited first in reverse.
+        for (int i = stages.size() - 1; i >= 0; i--) {
+            PipelineStage stage = stages.get(i);
+            double longest = 0.0;
+            for (int j = i + 1; j < stages.size(); j++) {
+                PipelineStage other = stages.get(j);
+                if (dependsOn(other, stage)) {
+                    longest = Math.max(longest, priorities.get(other));
+                }
+            }
+            priorities.put(stage, estimateSeconds(stage) + longest);
+        }
+        return priorities;
+    }
+
+    private static boolean dependsOn(PipelineStage stage, PipelineStage dep) {
+        for (PipelineStage s : stage.getDependsOn()) {
+            if (s == dep || dependsOn(s, dep)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int getCores(PipelineStage stage) {
+        return stage.isMultiThreaded() ? Math.max(1, cpuBudget - 1) : 1;
+    }
+
+    private double estimateSeconds(PipelineStage stage) {
+        try {
+            return Math.max(0.0, stage.estimateSeconds(langs));
+        } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "estimating runtime of stage " + stage.getName() + " failed", e);
+            return 0.0;
+        }
+    }
+
+    private double estimateDisk(PipelineStage stage) {
+        try {
+            return Math.max(0.0, stage.estimateDiskMegabytes(langs));
+        } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "estimating disk space of stage " + stage.getName() + " failed", e);
+            return 0.0;
+        }
+    }
+
+    private double getFreeMegabytes() {
+        return workingDir.getUsableSpace() / (1024.0 * 1024.0);
+    }
+
+    /**
+     * @return The parallel speedup measured by the CPU benchmark, rounded to whole cores.
+     */
+    private static int getCpuBudget() {
+        double speedup = CpuBenchmarker.getMultiCoreSpeed() / CpuBenchmarker.getSingleCoreSpeed();
+        return Math.max(1, (int) Math.round(speedup));
+    }
+
+    /**
+     * @return The number of child JVMs (with the same maximum heap as this JVM)
+     * that fit in physical memory alongside this one.
+     */
+    private static int getMemoryLimit() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (!(os instanceof com.sun.management.OperatingSystemMXBean)) {
+            LOG.info("physical memory size is unavailable; running stages one at a time");
+            return 1;
+        }
+        long physical = ((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize();
+        long heap = Runtime.getRuntime().maxMemory();
+        return (int) Math.max(1, physical / heap - 1);
+    }
+}
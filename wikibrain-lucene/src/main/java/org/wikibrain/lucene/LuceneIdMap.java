@@ -0,0 +1,171 @@
+package org.wikibrain.lucene;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.NumericUtils;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Dense mappings between lucene document ids and Wikipedia local ids for the index
+ * of a single language.
+ *
+ * The mappings are built in a single pass over the indexed terms of the local id field,
+ * so no stored fields are read. They are persisted in the index directory and reused
+ * until the index changes.
+ *
+ * @author Shilad Sen
+ */
+public class LuceneIdMap {
+    private static final Logger LOG = Logger.getLogger(LuceneIdMap.class.getName());
+
+    public static final String FILE_NAME = "wikibrain-ids.bin";
+    public static final int FILE_HEADER = 0x1d0c1d01;
+
+    private final int[] docToLocal;
+    private final int[] localToDoc;
+
+    /**
+     * @param docToLocal The local id for each lucene id, or -1 for deleted documents.
+     */
+    public LuceneIdMap(int[] docToLocal) {
+        this.docToLocal = docToLocal;
+        int maxLocalId = -1;
+        for (int localId : docToLocal) {
+            maxLocalId = Math.max(maxLocalId, localId);
+        }
+        this.localToDoc = new int[maxLocalId + 1];
+        Arrays.fill(localToDoc, -1);
+        // if a page was indexed more than once, the first document wins
+        for (int docId = docToLocal.length - 1; docId >= 0; docId--) {
+            if (docToLocal[docId] >= 0) {
+                localToDoc[docToLocal[docId]] = docId;
+            }
+        }
+    }
+
+    /**
+     * @return The local id of a document, or -1 if it is unknown.
+     */
+    public int getLocalId(int docId) {
+        return (docId < 0 || docId >= docToLocal.length) ? -1 : docToLocal[docId];
+    }
+
+    /**
+     * @return The lucene id of a page, or -1 if it is not indexed.
+     */
+    public int getDocId(int localId) {
+        return (localId < 0 || localId >= localToDoc.length) ? -1 : localToDoc[localId];
+    }
+
+    /**
+     * Loads the mapping persisted for an index, or builds and persists it if
+     * the index has changed since the mapping was written.
+     *
+     * @param reader
+     * @param dir The directory containing the index.
+     * @return
+     * @throws IOException
+     */
+    public static LuceneIdMap open(DirectoryReader reader, File dir) throws IOException {
+        File file = new File(dir, FILE_NAME);
+        if (file.isFile()) {
+            LuceneIdMap map = read(file, reader);
+            if (map != null) {
+                return map;
+            }
+        }
+        LuceneIdMap map = build(reader);
+        try {
+            map.write(file, reader);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "could not persist lucene id mapping to " + file, e);
+        }
+        return map;
+    }
+
+    /**
+     * Builds the mapping by iterating over the local id terms in each segment.
+     * @param reader
+     * @return
+     * @throws IOException
+     */
+    public static LuceneIdMap build(IndexReader reader) throws IOException {
+        int[] docToLocal = new int[reader.maxDoc()];
+        Arrays.fill(docToLocal, -1);
+        for (AtomicReaderContext context : reader.leaves()) {
+            AtomicReader leaf = context.reader();
+            Terms terms = leaf.terms(LuceneOptions.LOCAL_ID_FIELD_NAME);
+            if (terms == null) {
+                continue;
+            }
+            // only full precision terms identify a single id
+            TermsEnum termsEnum = NumericUtils.filterPrefixCodedInts(terms.iterator(null));
+            DocsEnum docs = null;
+            BytesRef term;
+            while ((term = termsEnum.next()) != null) {
+                int localId = NumericUtils.prefixCodedToInt(term);
+                docs = termsEnum.docs(leaf.getLiveDocs(), docs, DocsEnum.FLAG_NONE);
+                int doc;
+                while ((doc = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                    docToLocal[context.docBase + doc] = localId;
+                }
+            }
+        }
+        LOG.info("built lucene id mapping for " + reader.numDocs() + " documents");
+        return new LuceneIdMap(docToLocal);
+    }
+
+    private void write(File file, DirectoryReader reader) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(FILE_HEADER);
+            out.writeLong(reader.getVersion());
+            out.writeInt(docToLocal.length);
+            for (int localId : docToLocal) {
+                out.writeInt(localId);
+            }
+        } finally {
+            out.close();
+        }
+        if (file.exists()) {
+            file.delete();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("could not rename " + tmp + " to " + file);
+        }
+    }
+
+    /**
+     * @return The persisted mapping, or null if it does not match the index.
+     */
+    private static LuceneIdMap read(File file, DirectoryReader reader) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(WpIOUtils.openInputStream(file));
+            if (in.readInt() != FILE_HEADER
+            ||  in.readLong() != reader.getVersion()
+            ||  in.readInt() != reader.maxDoc()) {
+                LOG.info("lucene id mapping in " + file + " is out of date");
+                return null;
+            }
+            int[] docToLocal = new int[reader.maxDoc()];
+            for (int i = 0; i < docToLocal.length; i++) {
+                docToLocal[i] = in.readInt();
+            }
+            return new LuceneIdMap(docToLocal);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "could not read lucene id mapping from " + file, e);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+}
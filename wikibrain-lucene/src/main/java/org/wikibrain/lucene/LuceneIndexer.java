@@ -27,14 +27,28 @@ import java.util.*;
  *
  * This class is used to index raw pages during the load process.
  *
+ * An indexer can be sharded: pages are then partitioned by local id across several
+ * IndexWriters, each with its own directory and a share of the RAM buffer, so that
+ * threads indexing different shards never contend for a writer. When the indexer is
+ * closed, the shards are merged into the language's index with addIndexes(), so
+ * searchers see a single index either way.
+ *
  * @author Ari Weiland
  *
  */
 public class LuceneIndexer implements Closeable {
 
+    /**
+     * Total size of the RAM buffers of all writers of a sharded indexer.
+     * An unsharded indexer uses Lucene's default buffer size.
+     */
+    public static final double DEFAULT_RAM_BUFFER_MB = 256.0;
+
     private final File root;
     private final Language language;
-    private final IndexWriter writer;
+    private final File langRoot;
+    private final File shardRoot;
+    private final IndexWriter[] writers;
     private final LuceneOptions[] options;
     private final LuceneOptions mainOptions;
     private final TextFieldBuilder builder;
@@ -49,7 +63,7 @@ public class LuceneIndexer implements Closeable {
      * @param root the root directory in which to save all the lucene directories
      */
     public LuceneIndexer(Language language, File root) throws ConfigurationException {
-        this(language, root, LuceneOptions.getDefaultOptions());
+        this(language, root, 1, LuceneOptions.getDefaultOptions());
     }
 
     /**
@@ -61,10 +75,24 @@ public class LuceneIndexer implements Closeable {
      * @param options an array of LuceneOptions objects. There must be at least one specified.
      */
     public LuceneIndexer(Language language, LuceneOptions... options) throws ConfigurationException {
-        this(language, options[0].luceneRoot, options);
+        this(language, options[0].luceneRoot, 1, options);
+    }
+
+    /**
+     * Constructs a LuceneIndexer with several shards that are merged when it is closed.
+     *
+     * @param language the language in which this searcher can operate
+     * @param numShards the number of index writers
+     * @param options an array of LuceneOptions objects. There must be at least one specified.
+     */
+    public LuceneIndexer(Language language, int numShards, LuceneOptions... options) throws ConfigurationException {
+        this(language, options[0].luceneRoot, numShards, options);
     }
 
-    private LuceneIndexer(Language language, File root, LuceneOptions... options) throws ConfigurationException {
+    private LuceneIndexer(Language language, File root, int numShards, LuceneOptions... options) throws ConfigurationException {
+        if (numShards < 1) {
+            throw new IllegalArgumentException("number of shards must be positive: " + numShards);
+        }
         try {
             this.root = root;
             this.language = language;
@@ -76,23 +104,46 @@ public class LuceneIndexer implements Closeable {
                     mainOptions.configurator.get(RedirectDao.class));
 
 
-                File langRoot = new File(root, language.getLangCode());
-                if (langRoot.exists()) {
-                    FileUtils.deleteQuietly(langRoot);
+                this.langRoot = new File(root, language.getLangCode());
+                this.shardRoot = new File(root, language.getLangCode() + "-shards");
+                FileUtils.deleteQuietly(langRoot);
+                FileUtils.deleteQuietly(shardRoot);
+                this.writers = new IndexWriter[numShards];
+                double ramBufferMb = (numShards == 1)
+                        ? IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB
+                        : Math.max(IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB, DEFAULT_RAM_BUFFER_MB / numShards);
+                for (int i = 0; i < numShards; i++) {
+                    File dir = (numShards == 1) ? langRoot : new File(shardRoot, "" + i);
+                    writers[i] = openWriter(dir, ramBufferMb);
                 }
-                WikiBrainAnalyzer analyzer = new WikiBrainAnalyzer(language, mainOptions);
-                Directory directory = FSDirectory.open(langRoot);
-                IndexWriterConfig iwc = new IndexWriterConfig(mainOptions.matchVersion, analyzer);
-                writer = new IndexWriter(directory, iwc);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private IndexWriter openWriter(File dir, double ramBufferMb) throws IOException {
+        WikiBrainAnalyzer analyzer = new WikiBrainAnalyzer(language, mainOptions);
+        Directory directory = FSDirectory.open(dir);
+        IndexWriterConfig iwc = new IndexWriterConfig(mainOptions.matchVersion, analyzer);
+        iwc.setRAMBufferSizeMB(ramBufferMb);
+        return new IndexWriter(directory, iwc);
+    }
+
     public File getRoot() {
         return root;
     }
 
+    public int getNumShards() {
+        return writers.length;
+    }
+
+    /**
+     * @return The shard that indexes the page with a local id.
+     */
+    public int getShard(int localId) {
+        return Math.abs(localId % writers.length);
+    }
+
     public LuceneOptions getOptions() {
         return mainOptions;
     }
@@ -113,16 +164,19 @@ public class LuceneIndexer implements Closeable {
             Document document = new Document();
             Field localIdField = new IntField(LuceneOptions.LOCAL_ID_FIELD_NAME, page.getLocalId(), Field.Store.YES);
             Field langIdField = new IntField(LuceneOptions.LANG_ID_FIELD_NAME, page.getLanguage().getId(), Field.Store.YES);
-            Field canonicalTitleField = builder.buildTextField(page, new TextFieldElements().addTitle());
             document.add(localIdField);
             document.add(langIdField);
-            document.add(canonicalTitleField);
-            if (!page.isRedirect()) {
-                for (LuceneOptions option : options) {
-                    document.add(builder.buildTextField(page, option.elements));
-                }
+
+            // the title field and the fields of all options share one text extraction
+            TextFieldElements elements[] = new TextFieldElements[page.isRedirect() ? 1 : options.length + 1];
+            elements[0] = new TextFieldElements().addTitle();
+            for (int i = 1; i < elements.length; i++) {
+                elements[i] = options[i - 1].elements;
+            }
+            for (Field field : builder.buildTextFields(page, elements)) {
+                document.add(field);
             }
-            writer.addDocument(document);
+            writers[getShard(page.getLocalId())].addDocument(document);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -132,7 +186,36 @@ public class LuceneIndexer implements Closeable {
      * Method should be called when done indexing.
      */
     public void close() {
+        if (closed) {
+            return;
+        }
         closed = true;
-        IOUtils.closeQuietly(writer);
+        for (IndexWriter writer : writers) {
+            IOUtils.closeQuietly(writer);
+        }
+        if (writers.length > 1) {
+            mergeShards();
+        }
+    }
+
+    private void mergeShards() {
+        try {
+            Directory shards[] = new Directory[writers.length];
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = FSDirectory.open(new File(shardRoot, "" + i));
+            }
+            IndexWriter writer = openWriter(langRoot, DEFAULT_RAM_BUFFER_MB);
+            try {
+                writer.addIndexes(shards);
+            } finally {
+                writer.close();
+                for (Directory d : shards) {
+                    IOUtils.closeQuietly(d);
+                }
+            }
+            FileUtils.deleteQuietly(shardRoot);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 }
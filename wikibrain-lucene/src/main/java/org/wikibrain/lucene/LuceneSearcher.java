@@ -1,7 +1,6 @@
 package org.wikibrain.lucene;
 
 import com.typesafe.config.Config;
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.search.*;
 import org.apache.lucene.store.Directory;
@@ -38,6 +37,7 @@ public class LuceneSearcher {
     private final Map<Language, IndexSearcher> searchers;
     private final Map<Language, DirectoryReader> readers;
     private final Map<Language, WikiBrainAnalyzer> analyzers;
+    private final Map<Language, LuceneIdMap> idMaps;
     private final LuceneOptions options;
 
     private int hitCount = DEFAULT_HIT_COUNT;
@@ -73,6 +73,7 @@ public class LuceneSearcher {
             this.searchers = new HashMap<Language, IndexSearcher>();
             this.readers = new HashMap<Language, DirectoryReader>();
             this.analyzers = new HashMap<Language, WikiBrainAnalyzer>();
+            this.idMaps = new HashMap<Language, LuceneIdMap>();
             for (Language language : languages) {
                 File langRoot = new File(root, language.getLangCode());
                 if (!langRoot.isDirectory()) {
@@ -82,6 +83,7 @@ public class LuceneSearcher {
                 DirectoryReader reader = DirectoryReader.open(directory);
                 readers.put(language, reader);
                 searchers.put(language, new IndexSearcher(reader));
+                idMaps.put(language, LuceneIdMap.open(reader, langRoot));
                 analyzers.put(language, new WikiBrainAnalyzer(language, options));
             }
             this.options = options;
@@ -171,31 +173,30 @@ public class LuceneSearcher {
      * @return
      */
     public int getLocalIdFromDocId(int docId, Language language) {
-        try {
-            if (docId != -1) {
-                Document document = searchers.get(language).doc(docId);
-                return (Integer) document.getField(LuceneOptions.LOCAL_ID_FIELD_NAME).numericValue();
-            } else {
-                LOG.log(Level.WARNING, "This docId does not exist: " + docId);
-                return -1;
-            }
-        }  catch (IOException e) {
-            throw new RuntimeException(e);
+        if (docId != -1) {
+            return getIdMap(language).getLocalId(docId);
+        } else {
+            LOG.log(Level.WARNING, "This docId does not exist: " + docId);
+            return -1;
         }
     }
 
+    /**
+     * Retrieves the lucene document id for a specified local ID,
+     * within a given language.
+     *
+     * @param localId
+     * @param language
+     * @return The lucene id, or -1 if the page is not indexed.
+     * @throws DaoException
+     */
     public int getDocIdFromLocalId(int localId, Language language) throws DaoException {
-        Query query = NumericRangeQuery.newIntRange(LuceneOptions.LOCAL_ID_FIELD_NAME, localId, localId, true, true);
-        try {
-            ScoreDoc[] hits = searchers.get(language).search(query, 1).scoreDocs;
-            if (hits.length == 0) {
-                return -1;
-            } else {
-                return hits[0].doc;
-            }
-        } catch (IOException e) {
-            throw new DaoException(e);
-        }
+        return getIdMap(language).getDocId(localId);
+    }
+
+    private LuceneIdMap getIdMap(Language language) {
+        if (!idMaps.containsKey(language)) throw new IllegalArgumentException("Unknown language: " + language);
+        return idMaps.get(language);
     }
 
     public DirectoryReader getReaderByLanguage(Language language) {
@@ -140,14 +140,7 @@ public class QueryBuilder {
     public QueryBuilder setMoreLikeThisQuery(String fieldName, int luceneId) throws DaoException {
         if (luceneId >= 0) {
             try {
-                MoreLikeThis mlt = new MoreLikeThis(searcher.getReaderByLanguage(language));
-                mlt.setMaxDocFreqPct(maxPercentage);
-                mlt.setMaxQueryTerms(maxQueryTerms);
-                mlt.setMinDocFreq(minDocFreq);
-                mlt.setMinTermFreq(minTermFreq);
-                mlt.setAnalyzer(searcher.getAnalyzerByLanguage(language));
-                mlt.setFieldNames(new String[]{ fieldName });
-                query = mlt.like(luceneId);
+                query = getMoreLikeThis(fieldName).like(luceneId);
             } catch (IOException e) {
                 LOG.log(Level.WARNING, "Can't more like this query for luceneId: " + luceneId);
             }
@@ -157,6 +150,24 @@ public class QueryBuilder {
         return this;
     }
 
+    /**
+     * Returns a MoreLikeThis configured with this builder's parameters for the
+     * specified text field. MoreLikeThis instances are not threadsafe.
+     *
+     * @param fieldName
+     * @return
+     */
+    public MoreLikeThis getMoreLikeThis(String fieldName) {
+        MoreLikeThis mlt = new MoreLikeThis(searcher.getReaderByLanguage(language));
+        mlt.setMaxDocFreqPct(maxPercentage);
+        mlt.setMaxQueryTerms(maxQueryTerms);
+        mlt.setMinDocFreq(minDocFreq);
+        mlt.setMinTermFreq(minTermFreq);
+        mlt.setAnalyzer(searcher.getAnalyzerByLanguage(language));
+        mlt.setFieldNames(new String[]{ fieldName });
+        return mlt;
+    }
+
     public boolean hasQuery() {
         return query != null;
     }
@@ -63,7 +63,37 @@ public class TextFieldBuilder {
                 elements);
     }
 
+    /**
+     * Builds one lucene text field per element of a page. The local page and the titles
+     * of its redirects are looked up at most once, and the plain text is extracted at
+     * most once, no matter how many fields use them.
+     *
+     * @param page
+     * @param elements
+     * @return The fields, in the order of the elements.
+     * @throws DaoException
+     */
+    public TextField[] buildTextFields(RawPage page, TextFieldElements... elements) throws DaoException {
+        String redirects = null;
+        for (TextFieldElements e : elements) {
+            if (e.usesRedirects()) {
+                redirects = getRedirectTitles(localPageDao.getById(page.getLanguage(), page.getLocalId()));
+                break;
+            }
+        }
+        TextField fields[] = new TextField[elements.length];
+        for (int i = 0; i < elements.length; i++) {
+            fields[i] = buildTextField(page, redirects, elements[i]);
+        }
+        return fields;
+    }
+
     private TextField buildTextField(LocalPage localPage, RawPage rawPage, TextFieldElements elements) throws DaoException {
+        String redirects = elements.usesRedirects() ? getRedirectTitles(localPage) : null;
+        return buildTextField(rawPage, redirects, elements);
+    }
+
+    private TextField buildTextField(RawPage rawPage, String redirects, TextFieldElements elements) {
         StringBuilder sb = new StringBuilder();
         String title = rawPage.getTitle().getCanonicalTitle();
         for (int i=0; i<elements.usesTitle(); i++) {
@@ -71,14 +101,7 @@ public class TextFieldBuilder {
             sb.append(" ");
         }
         if (elements.usesRedirects()) {
-            TIntIterator iterator = redirectDao.getRedirects(localPage).iterator();
-            while (iterator.hasNext()) {
-                sb.append(localPageDao
-                        .getById(localPage.getLanguage(), iterator.next())
-                        .getTitle()
-                        .getCanonicalTitle());
-                sb.append(" ");
-            }
+            sb.append(redirects);
         }
         if (elements.usesPlainText()) {
             String plainText = rawPage.getPlainText();
@@ -87,4 +110,20 @@ public class TextFieldBuilder {
         return new TextField(elements.getTextFieldName(), sb.toString().trim(), Field.Store.YES);
     }
 
+    /**
+     * @return The canonical titles of the redirects to a page, each followed by a space.
+     */
+    private String getRedirectTitles(LocalPage localPage) throws DaoException {
+        StringBuilder sb = new StringBuilder();
+        TIntIterator iterator = redirectDao.getRedirects(localPage).iterator();
+        while (iterator.hasNext()) {
+            sb.append(localPageDao
+                    .getById(localPage.getLanguage(), iterator.next())
+                    .getTitle()
+                    .getCanonicalTitle());
+            sb.append(" ");
+        }
+        return sb.toString();
+    }
+
 }
@@ -0,0 +1,87 @@
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.IntField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.Test;
+import org.wikibrain.lucene.LuceneIdMap;
+import org.wikibrain.lucene.LuceneOptions;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestLuceneIdMap {
+
+    @Test
+    public void testMapping() throws IOException {
+        File dir = File.createTempFile("lucene", null);
+        FileUtils.deleteQuietly(dir);
+        dir.mkdirs();
+        try {
+            Directory directory = FSDirectory.open(dir);
+            IndexWriter writer = new IndexWriter(directory,
+                    new IndexWriterConfig(Version.LUCENE_43, new WhitespaceAnalyzer(Version.LUCENE_43)));
+            for (int i = 0; i < 500; i++) {
+                addDocument(writer, i * 7 + 3);
+                if (i % 100 == 0) {
+                    writer.commit();    // creates multiple segments
+                }
+            }
+            writer.commit();
+
+            DirectoryReader reader = DirectoryReader.open(directory);
+            LuceneIdMap map = LuceneIdMap.open(reader, dir);
+            assertTrue(new File(dir, LuceneIdMap.FILE_NAME).isFile());
+            assertMapping(map, reader, 500);
+            assertMapping(LuceneIdMap.open(reader, dir), reader, 500);
+            assertEquals(-1, map.getDocId(4));
+            assertEquals(-1, map.getDocId(1000000));
+            assertEquals(-1, map.getLocalId(-1));
+            reader.close();
+
+            // deleting a document changes the index, so the mapping is rebuilt
+            writer.deleteDocuments(NumericRangeQuery.newIntRange(LuceneOptions.LOCAL_ID_FIELD_NAME, 10, 10, true, true));
+            writer.close();
+            reader = DirectoryReader.open(directory);
+            map = LuceneIdMap.open(reader, dir);
+            assertEquals(-1, map.getDocId(10));
+            assertMapping(map, reader, 499);
+            reader.close();
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    private static void addDocument(IndexWriter writer, int localId) throws IOException {
+        Document document = new Document();
+        document.add(new IntField(LuceneOptions.LOCAL_ID_FIELD_NAME, localId, Field.Store.YES));
+        writer.addDocument(document);
+    }
+
+    private static void assertMapping(LuceneIdMap map, DirectoryReader reader, int numDocs) throws IOException {
+        int n = 0;
+        for (int docId = 0; docId < reader.maxDoc(); docId++) {
+            int localId = map.getLocalId(docId);
+            if (localId < 0) {
+                continue;
+            }
+            n++;
+            Document document = reader.document(docId);
+            assertEquals(document.getField(LuceneOptions.LOCAL_ID_FIELD_NAME).numericValue(), localId);
+            assertEquals(docId, map.getDocId(localId));
+        }
+        assertEquals(numDocs, n);
+    }
+}
@@ -0,0 +1,222 @@
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.junit.Test;
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.conf.Configurator;
+import org.wikibrain.core.dao.LocalPageDao;
+import org.wikibrain.core.dao.RawPageDao;
+import org.wikibrain.core.dao.RedirectDao;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.core.model.RawPage;
+import org.wikibrain.core.model.Title;
+import org.wikibrain.lucene.*;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.File;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Indexes the same pages with one shard and with several shards, and checks that
+ * searches and id mappings cannot tell the two indexes apart.
+ *
+ * @author Shilad Sen
+ */
+public class TestLuceneIndexer {
+    private static final Language LANG = Language.getByLangCode("en");
+    private static final String[] WORDS = {
+            "apple", "banana", "cherry", "river", "mountain", "castle", "engine",
+            "violin", "planet", "forest", "harbor", "lantern", "meadow", "orchard"
+    };
+    private static final int NUM_PAGES = 200;
+    private static final int NUM_SHARDS = 4;
+
+    @Test
+    public void testShards() throws Exception {
+        File dir = WpIOUtils.createTempDirectory("lucene-indexer");
+        try {
+            Map<String, Object> params = new HashMap<String, Object>();
+            params.put("baseDir", dir.getAbsolutePath());
+            params.put("dao.localPage.default", "sql");
+            Configurator conf = new Configurator(new Configuration(params));
+            List<RawPage> pages = createPages(conf);
+            LuceneOptions options = conf.get(LuceneOptions.class, "esa");
+
+            File single = new File(dir, "single");
+            index(pages, 1, options);
+            FileUtils.moveDirectory(new File(options.luceneRoot, LANG.getLangCode()), new File(single, LANG.getLangCode()));
+
+            File sharded = new File(dir, "sharded");
+            LuceneIndexer indexer = index(pages, NUM_SHARDS, options);
+            for (RawPage page : pages) {
+                assertEquals(page.getLocalId() % NUM_SHARDS, indexer.getShard(page.getLocalId()));
+            }
+            assertFalse(new File(options.luceneRoot, LANG.getLangCode() + "-shards").exists());
+            FileUtils.moveDirectory(new File(options.luceneRoot, LANG.getLangCode()), new File(sharded, LANG.getLangCode()));
+
+            LanguageSet langs = new LanguageSet(Arrays.asList(LANG));
+            LuceneSearcher searcher1 = new LuceneSearcher(langs, single);
+            LuceneSearcher searcherN = new LuceneSearcher(langs, sharded);
+            assertEquals(pages.size(), searcher1.getReaderByLanguage(LANG).numDocs());
+            assertEquals(pages.size(), searcherN.getReaderByLanguage(LANG).numDocs());
+
+            assertSameDocuments(pages, searcher1, searcherN);
+            for (String word : WORDS) {
+                WikiBrainScoreDoc[] hits = search(searcher1, options.elements, word);
+                assertTrue(hits.length > 0);
+                assertSameHits(hits, search(searcherN, options.elements, word));
+            }
+            TextFieldElements titles = new TextFieldElements().addTitle();
+            for (String query : Arrays.asList("page", "page 17", "31")) {
+                WikiBrainScoreDoc[] hits = search(searcher1, titles, query);
+                assertTrue(hits.length > 0);
+                assertSameHits(hits, search(searcherN, titles, query));
+            }
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    @Test
+    public void testBuildTextFields() throws Exception {
+        File dir = WpIOUtils.createTempDirectory("lucene-fields");
+        try {
+            Map<String, Object> params = new HashMap<String, Object>();
+            params.put("baseDir", dir.getAbsolutePath());
+            params.put("dao.localPage.default", "sql");
+            Configurator conf = new Configurator(new Configuration(params));
+            List<RawPage> pages = createPages(conf);
+            TextFieldBuilder builder = new TextFieldBuilder(
+                    conf.get(LocalPageDao.class),
+                    conf.get(RawPageDao.class),
+                    conf.get(RedirectDao.class));
+            TextFieldElements[] elements = {
+                    new TextFieldElements().addTitle(),
+                    new TextFieldElements().addTitle(2).addRedirects().addPlainText(),
+                    new TextFieldElements().addRedirects(),
+                    new TextFieldElements().addPlainText(),
+            };
+            for (RawPage page : pages) {
+                TextField fields[] = builder.buildTextFields(page, elements);
+                assertEquals(elements.length, fields.length);
+                for (int i = 0; i < elements.length; i++) {
+                    TextField expected = builder.buildTextField(page, elements[i]);
+                    assertEquals(expected.name(), fields[i].name());
+                    assertEquals(expected.stringValue(), fields[i].stringValue());
+                }
+            }
+            // page 1 is the destination of the redirect from page 0
+            assertEquals("Page 0", builder.buildTextFields(pages.get(1), elements[2])[0].stringValue());
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    /**
+     * Saves articles with random text, and a redirect to every tenth article.
+     */
+    private static List<RawPage> createPages(Configurator conf) throws Exception {
+        LocalPageDao localPageDao = conf.get(LocalPageDao.class);
+        RawPageDao rawPageDao = conf.get(RawPageDao.class);
+        RedirectDao redirectDao = conf.get(RedirectDao.class);
+        localPageDao.beginLoad();
+        rawPageDao.beginLoad();
+        redirectDao.beginLoad();
+
+        Random random = new Random(17);
+        List<RawPage> pages = new ArrayList<RawPage>();
+        for (int id = 0; id < NUM_PAGES; id++) {
+            String title = "Page " + id;
+            RawPage page;
+            if (id % 10 == 0) {
+                page = new RawPage(id, 1, title, "#REDIRECT [[Page " + (id + 1) + "]]", new Date(),
+                        LANG, NameSpace.ARTICLE, true, false, "Page " + (id + 1));
+                redirectDao.save(LANG, id, id + 1);
+            } else {
+                StringBuilder text = new StringBuilder();
+                int n = 5 + random.nextInt(30);
+                for (int i = 0; i < n; i++) {
+                    text.append(WORDS[random.nextInt(random.nextInt(WORDS.length) + 1)]).append(" ");
+                }
+                page = new RawPage(id, 1, title, text.toString(), new Date(), LANG, NameSpace.ARTICLE);
+            }
+            localPageDao.save(new LocalPage(LANG, id, new Title(title, LANG), NameSpace.ARTICLE, page.isRedirect(), false));
+            rawPageDao.save(page);
+            pages.add(page);
+        }
+        localPageDao.endLoad();
+        rawPageDao.endLoad();
+        redirectDao.endLoad();
+        return pages;
+    }
+
+    private static LuceneIndexer index(List<RawPage> pages, int numShards, LuceneOptions options) throws Exception {
+        LuceneIndexer indexer = new LuceneIndexer(LANG, numShards, options);
+        assertEquals(numShards, indexer.getNumShards());
+        for (RawPage page : pages) {
+            indexer.indexPage(page);
+        }
+        indexer.close();
+        return indexer;
+    }
+
+    /**
+     * Checks that each page maps to a document with the same stored fields in both indexes.
+     */
+    private static void assertSameDocuments(List<RawPage> pages, LuceneSearcher searcher1, LuceneSearcher searcherN) throws Exception {
+        DirectoryReader reader1 = searcher1.getReaderByLanguage(LANG);
+        DirectoryReader readerN = searcherN.getReaderByLanguage(LANG);
+        assertEquals(reader1.maxDoc(), readerN.maxDoc());
+        for (RawPage page : pages) {
+            int localId = page.getLocalId();
+            int docId1 = searcher1.getDocIdFromLocalId(localId, LANG);
+            int docIdN = searcherN.getDocIdFromLocalId(localId, LANG);
+            assertTrue(docId1 >= 0);
+            assertTrue(docIdN >= 0);
+            assertEquals(localId, searcher1.getLocalIdFromDocId(docId1, LANG));
+            assertEquals(localId, searcherN.getLocalIdFromDocId(docIdN, LANG));
+
+            Document doc1 = reader1.document(docId1);
+            Document docN = readerN.document(docIdN);
+            assertEquals(localId, doc1.getField(LuceneOptions.LOCAL_ID_FIELD_NAME).numericValue().intValue());
+            assertEquals(localId, docN.getField(LuceneOptions.LOCAL_ID_FIELD_NAME).numericValue().intValue());
+            assertEquals(doc1.getFields().size(), docN.getFields().size());
+            for (int i = 0; i < doc1.getFields().size(); i++) {
+                assertEquals(doc1.getFields().get(i).name(), docN.getFields().get(i).name());
+                assertEquals(doc1.getFields().get(i).stringValue(), docN.getFields().get(i).stringValue());
+            }
+        }
+        assertEquals(-1, searcher1.getDocIdFromLocalId(NUM_PAGES, LANG));
+        assertEquals(-1, searcherN.getDocIdFromLocalId(NUM_PAGES, LANG));
+    }
+
+    private static WikiBrainScoreDoc[] search(LuceneSearcher searcher, TextFieldElements elements, String word) {
+        return searcher.getQueryBuilderByLanguage(LANG)
+                .setPhraseQuery(elements, word)
+                .setNumHits(NUM_PAGES)
+                .search();
+    }
+
+    /**
+     * Lucene ids differ between the indexes, so hits are compared by local id. Pages
+     * with equal scores may be ranked in either order.
+     */
+    private static void assertSameHits(WikiBrainScoreDoc[] hits1, WikiBrainScoreDoc[] hitsN) {
+        assertEquals(hits1.length, hitsN.length);
+        Map<Integer, Float> scores = new HashMap<Integer, Float>();
+        for (int i = 0; i < hits1.length; i++) {
+            scores.put(hits1[i].wpId, hits1[i].score);
+        }
+        for (int i = 0; i < hitsN.length; i++) {
+            assertTrue(scores.containsKey(hitsN[i].wpId));
+            assertEquals(scores.get(hitsN[i].wpId), hitsN[i].score, 0.0);
+            assertEquals(hits1[i].score, hitsN[i].score, 0.0);
+        }
+    }
+}
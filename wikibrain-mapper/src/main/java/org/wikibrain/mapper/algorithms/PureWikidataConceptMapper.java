@@ -34,10 +34,16 @@ public class PureWikidataConceptMapper extends ConceptMapper {
 
     private static Logger LOG = Logger.getLogger(PureWikidataConceptMapper.class.getName());
     private final File wikiDataPath;
+    private final MySqlDumpParser dumpParser;
 
     public PureWikidataConceptMapper(File wikiDataPath, int id, LocalPageDao localPageDao) {
+        this(wikiDataPath, id, localPageDao, new MySqlDumpParser());
+    }
+
+    public PureWikidataConceptMapper(File wikiDataPath, int id, LocalPageDao localPageDao, MySqlDumpParser dumpParser) {
         super(id, localPageDao);
         this.wikiDataPath = wikiDataPath;
+        this.dumpParser = dumpParser;
     }
 
     @Override
@@ -51,7 +57,6 @@ public class PureWikidataConceptMapper extends ConceptMapper {
         final Map<Integer, NameSpace> nsBackend = Maps.newHashMap();
 
         // loop through sql dump
-        MySqlDumpParser dumpParser = new MySqlDumpParser();
         Iterable<Object[]> lines = dumpParser.parse(wikiDataPath);
         int lineCounter = 0; int validLineCounter = 0;
         int[] numLangsCount = new int[ls.size()];
@@ -148,7 +153,8 @@ public class PureWikidataConceptMapper extends ConceptMapper {
                     config.getInt("algorithmId"),
                     getConfigurator().get(
                             LocalPageDao.class,
-                            config.getString("localPageDao"))
+                            config.getString("localPageDao")),
+                    MySqlDumpParser.forTable(getConfig(), "wb_items_per_site")
             );
         }
     }
@@ -1,8 +1,5 @@
 package org.wikibrain.mapper.algorithms.conceptualign3;
 
-import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
-import org.jgrapht.traverse.BreadthFirstIterator;
 import org.wikibrain.core.WikiBrainException;
 import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.dao.InterLanguageLinkDao;
@@ -10,18 +7,17 @@ import org.wikibrain.core.dao.LocalPageDao;
 import org.wikibrain.core.dao.MetaInfoDao;
 import org.wikibrain.core.lang.LanguageSet;
 import org.wikibrain.core.lang.LocalId;
-import org.wikibrain.core.model.InterLanguageLink;
-import org.wikibrain.core.model.LocalPage;
 import org.wikibrain.core.model.NameSpace;
 import org.wikibrain.core.model.UniversalPage;
 import org.wikibrain.mapper.ConceptMapper;
-import org.wikibrain.mapper.MapperIterator;
 import org.wikibrain.mapper.algorithms.PureWikidataConceptMapper;
+import org.wikibrain.utils.WpThreadUtils;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -29,7 +25,7 @@ import java.util.logging.Logger;
  * Created by bjhecht on 4/24/14.
  *
  * Only supports article namespaces for now (no disambiguation pages), but this can be changed easily by manipulating the filters
- * in ILLGraph and adapting ClusterResult to contain namespace info (i.e. MapperIterator below can't just return Namespace.Article
+ * in PackedIllGraph and adapting ClusterResult to contain namespace info (i.e. MapperIterator below can't just return Namespace.Article
  *
  * Disambiguation page support will be more difficult given that we have split articles and disambiguation pages into
  * separate namespaces.
@@ -92,39 +88,52 @@ public class ConceptualignConceptMapper extends ConceptMapper{
         double minLang = 1.0; // see Bao et al. 2012 for definition
 
         // load Wikidata mappings
+        Iterator<UniversalPage> wdPages;
         if (uPages == null) {
             LOG.log(Level.INFO, "Loading Wikidata concept mappings");
-            Iterator<UniversalPage> uPages = wdMapper.getConceptMap(ls);
+            wdPages = wdMapper.getConceptMap(ls);
         }else{
             if (!ls.equals(uPageLs)){
                 throw new WikiBrainException("LanguageSet mismatch");
             }
+            wdPages = uPages.iterator();
         }
 
         // perform Conceptualign
-        CombinedIllDao combinedDao = new CombinedIllDao(uPages.iterator(), illDao);
-        ILLGraph illGraph = new ILLGraph(combinedDao, localPageDao, miDao);
+        final PackedIllGraph illGraph = PackedIllGraph.load(ls, localPageDao, illDao, wdPages);
+        LOG.info(String.format("Loaded ILL graph with %d articles, %d links and %d items",
+                illGraph.getNumVertices(), illGraph.getNumLinks(), illGraph.getNumItems()));
 
-        BreadthFirstIterator<LocalId, ILLEdge> bfi = new BreadthFirstIterator<LocalId, ILLEdge>(illGraph);
-		List<ConnectedComponentHandler> ccHandlers = new ArrayList<ConnectedComponentHandler>();
-		ccHandlers.add(new Conceptualign3ConnectedComponentHandler(minLang, maxEdge, true, this.localPageDao));
-
-
-		ConnectedComponentTraversalListener listener =
-				new ConnectedComponentTraversalListener(illGraph, ccHandlers);
-		bfi.addTraversalListener(listener);
-		while (bfi.hasNext()){
-			LocalId localId = bfi.next();
-		}
+        PackedConceptualign conceptualign = new PackedConceptualign(illGraph, minLang, maxEdge);
+        conceptualign.setPrint(print, localPageDao);
+        final PackedConceptualign.Clusters clusters = conceptualign.cluster(WpThreadUtils.getMaxThreads());
+        LOG.info(String.format("Found %d concepts", clusters.size()));
 
+        return new Iterator<UniversalPage>() {
+            private int i = 0;
 
+            @Override
+            public boolean hasNext() {
+                return i < clusters.size();
+            }
 
-        return new MapperIterator<UniversalPage>(listener.getClusterResults()) {
             @Override
-            public UniversalPage transform(Object obj) {
-                ClusterResult curCluster = (ClusterResult)obj;
+            public UniversalPage next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                List<LocalId> vertices = new ArrayList<LocalId>();
+                for (int v : clusters.get(i)) {
+                    vertices.add(illGraph.getLocalId(v));
+                }
+                ClusterResult curCluster = new ClusterResult(++i, vertices);
                 return new UniversalPage(curCluster.univId, getId(), NameSpace.ARTICLE, curCluster.vertices);
             }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
         };
 
     }
@@ -0,0 +1,65 @@
+package org.wikibrain.mapper.algorithms.conceptualign3;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A disjoint set forest over the ints 0 ... n-1 that supports concurrent unions without locks.
+ *
+ * A root is always linked beneath the smaller of the two roots with a compare-and-set,
+ * so no cycles can form when threads race, and the root of every set is its smallest
+ * element. Finds compress paths by halving, which is safe under concurrent updates
+ * because it only ever moves a node closer to its root.
+ *
+ * @author Shilad Sen
+ */
+public class ConcurrentUnionFind {
+    private final AtomicIntegerArray parents;
+
+    public ConcurrentUnionFind(int n) {
+        parents = new AtomicIntegerArray(n);
+        for (int i = 0; i < n; i++) {
+            parents.set(i, i);
+        }
+    }
+
+    public int size() {
+        return parents.length();
+    }
+
+    /**
+     * @return The smallest element in the set containing x.
+     */
+    public int find(int x) {
+        while (true) {
+            int p = parents.get(x);
+            if (p == x) {
+                return x;
+            }
+            int gp = parents.get(p);
+            if (gp != p) {
+                parents.compareAndSet(x, p, gp);
+            }
+            x = gp;
+        }
+    }
+
+    /**
+     * Merges the sets containing a and b.
+     * @return True if the sets were distinct.
+     */
+    public boolean union(int a, int b) {
+        while (true) {
+            a = find(a);
+            b = find(b);
+            if (a == b) {
+                return false;
+            }
+            int lo = Math.min(a, b);
+            int hi = Math.max(a, b);
+            if (parents.compareAndSet(hi, hi, lo)) {
+                return true;
+            }
+            // another thread linked hi first; retry from the new roots
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package org.wikibrain.mapper.algorithms.conceptualign3;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TLongIntHashMap;
+import org.apache.commons.lang.StringUtils;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.LocalPageDao;
+import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Conceptualign over a PackedIllGraph.
+ *
+ * Connected components are found with a concurrent union-find over all links and
+ * Wikidata items. Each component is then handled as Conceptualign3ConnectedComponentHandler
+ * and ILLSplitter do: a component with at most one article per language is a single
+ * concept, and an ambiguous component is split into the weak components of the links
+ * that survive the voting rules of Bao et al. 2012. Everything is computed over
+ * primitive arrays of vertex indexes.
+ *
+ * @author Shilad Sen
+ */
+public class PackedConceptualign {
+    private static final Logger LOG = Logger.getLogger(PackedConceptualign.class.getName());
+
+    private final PackedIllGraph graph;
+    private final double minVotesRatio;
+    private final int maxVotesPerLang;
+
+    private boolean print = false;
+    private LocalPageDao lpDao = null;
+
+    /**
+     * @param graph
+     * @param minVotesRatio Fraction of a component's languages that must link to an article to keep links to it.
+     * @param maxVotesPerLang Maximum links between an article and articles in a single other language.
+     */
+    public PackedConceptualign(PackedIllGraph graph, double minVotesRatio, int maxVotesPerLang) {
+        this.graph = graph;
+        this.minVotesRatio = minVotesRatio;
+        this.maxVotesPerLang = maxVotesPerLang;
+    }
+
+    /**
+     * Logs the titles of the articles in ambiguous components.
+     */
+    public void setPrint(boolean print, LocalPageDao lpDao) {
+        this.print = print;
+        this.lpDao = lpDao;
+    }
+
+    /**
+     * Computes the concepts. Every vertex belongs to exactly one cluster.
+     *
+     * @param numThreads
+     * @return Clusters of vertex indexes, ordered by their smallest vertex.
+     */
+    public Clusters cluster(final int numThreads) {
+        Clusters components = findComponents(numThreads);
+        LOG.info("found " + components.size() + " connected components");
+
+        final Clusters comps = components;
+        final int[][][] splits = new int[comps.size()][][];
+        final AtomicInteger numAmbiguous = new AtomicInteger();
+        ParallelForEach.range(0, numThreads, numThreads, new Procedure<Integer>() {
+            @Override
+            public void call(Integer thread) throws Exception {
+                for (int c = thread; c < comps.size(); c += numThreads) {
+                    splits[c] = split(comps.get(c));
+                    if (splits[c] != null && numAmbiguous.incrementAndGet() % 10000 == 0) {
+                        LOG.info("split " + numAmbiguous.get() + " ambiguous components");
+                    }
+                }
+            }
+        });
+        LOG.info("split " + numAmbiguous.get() + " ambiguous components");
+
+        TIntArrayList starts = new TIntArrayList(comps.size() + 1);
+        TIntArrayList members = new TIntArrayList(graph.getNumVertices());
+        for (int c = 0; c < comps.size(); c++) {
+            if (splits[c] == null) {
+                starts.add(members.size());
+                members.add(comps.get(c));
+            } else {
+                for (int[] cluster : splits[c]) {
+                    starts.add(members.size());
+                    members.add(cluster);
+                }
+                splits[c] = null;
+            }
+        }
+        starts.add(members.size());
+        return new Clusters(starts.toArray(), members.toArray());
+    }
+
+    /**
+     * Finds the connected components of the graph, treating links as undirected and
+     * linking all members of a Wikidata item.
+     */
+    public Clusters findComponents(final int numThreads) {
+        final int n = graph.getNumVertices();
+        final ConcurrentUnionFind uf = new ConcurrentUnionFind(n);
+        ParallelForEach.range(0, numThreads, numThreads, new Procedure<Integer>() {
+            @Override
+            public void call(Integer thread) throws Exception {
+                for (int v = thread; v < n; v += numThreads) {
+                    for (int i = 0; i < graph.getOutDegree(v); i++) {
+                        uf.union(v, graph.getLinkDest(v, i));
+                    }
+                    int item = graph.getItem(v);
+                    if (item >= 0) {
+                        uf.union(v, graph.getItemMember(item, 0));
+                    }
+                }
+            }
+        });
+
+        // group vertices by root with a counting sort; roots are the smallest members,
+        // so components come out ordered by their smallest vertex
+        int[] roots = new int[n];
+        int[] sizes = new int[n];
+        int numComponents = 0;
+        for (int v = 0; v < n; v++) {
+            roots[v] = uf.find(v);
+            if (roots[v] == v) {
+                numComponents++;
+            }
+            sizes[roots[v]]++;
+        }
+        int[] starts = new int[numComponents + 1];
+        int[] offsets = new int[n];     // root -> offset of its component
+        int c = 0;
+        for (int v = 0; v < n; v++) {
+            if (roots[v] == v) {
+                offsets[v] = starts[c];
+                starts[c + 1] = starts[c] + sizes[v];
+                c++;
+            }
+        }
+        int[] members = new int[n];
+        for (int v = 0; v < n; v++) {
+            members[offsets[roots[v]]++] = v;
+        }
+        return new Clusters(starts, members);
+    }
+
+    /**
+     * Splits a component according to the Conceptualign rules.
+     *
+     * @param component Vertex indexes of the component in increasing order.
+     * @return The clusters of vertex indexes, or null if the component is unambiguous.
+     */
+    public int[][] split(int[] component) {
+        int k = component.length;
+        int langCount = 0;
+        for (int i = 0; i < k; i++) {
+            if (i == 0 || graph.getLanguageId(component[i]) != graph.getLanguageId(component[i - 1])) {
+                langCount++;
+            }
+        }
+        if (langCount == k) {
+            return null;    // at most one article per language
+        }
+        if (print) {
+            printComponent(component);
+        }
+        int minVotes = (int) Math.floor(minVotesRatio * langCount - 1); // -1 to account for the node itself
+
+        // outgoing edges as local indexes, and votes for each destination by source language
+        int[][] outs = new int[k][];
+        TLongIntHashMap votes = new TLongIntHashMap();
+        int[] voterLangs = new int[k];
+        for (int i = 0; i < k; i++) {
+            int[] dests = graph.outgoingEdges(component[i]);
+            for (int j = 0; j < dests.length; j++) {
+                dests[j] = Arrays.binarySearch(component, dests[j]);
+                long key = ((long) dests[j] << 32) | graph.getLanguageId(component[i]);
+                if (votes.adjustOrPutValue(key, 1, 1) == 1) {
+                    voterLangs[dests[j]]++;
+                }
+            }
+            outs[i] = dests;
+        }
+
+        int[] parents = new int[k];
+        for (int i = 0; i < k; i++) {
+            parents[i] = i;
+        }
+        for (int i = 0; i < k; i++) {
+            int[] dests = outs[i];
+            int srcLang = graph.getLanguageId(component[i]);
+            int runStart = 0;
+            while (runStart < dests.length) {
+                // destinations are grouped by language
+                int lang = graph.getLanguageId(component[dests[runStart]]);
+                int runEnd = runStart + 1;
+                while (runEnd < dests.length && graph.getLanguageId(component[dests[runEnd]]) == lang) {
+                    runEnd++;
+                }
+                if (runEnd - runStart > maxVotesPerLang) {
+                    LOG.warning("Found duplicate ILLs to same lang from same article exceeding maxVotes! " +
+                            "Enforcing policy not allowing this!:\t" + graph.getLocalId(component[i]));
+                } else {
+                    for (int j = runStart; j < runEnd; j++) {
+                        int dest = dests[j];
+                        if (voterLangs[dest] >= minVotes
+                        &&  votes.get(((long) dest << 32) | srcLang) <= maxVotesPerLang) {
+                            union(parents, i, dest);
+                        }
+                    }
+                }
+                runStart = runEnd;
+            }
+        }
+
+        // weak components of the surviving links, in the order of their first member
+        int[] clusterOf = new int[k];
+        Arrays.fill(clusterOf, -1);
+        List<TIntArrayList> clusters = new ArrayList<TIntArrayList>();
+        for (int i = 0; i < k; i++) {
+            int root = find(parents, i);
+            if (clusterOf[root] < 0) {
+                clusterOf[root] = clusters.size();
+                clusters.add(new TIntArrayList());
+            }
+            clusters.get(clusterOf[root]).add(component[i]);
+        }
+        int[][] result = new int[clusters.size()][];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = clusters.get(i).toArray();
+        }
+        return result;
+    }
+
+    private static int find(int[] parents, int x) {
+        while (parents[x] != x) {
+            parents[x] = parents[parents[x]];
+            x = parents[x];
+        }
+        return x;
+    }
+
+    private static void union(int[] parents, int a, int b) {
+        a = find(parents, a);
+        b = find(parents, b);
+        if (a != b) {
+            parents[Math.max(a, b)] = Math.min(a, b);
+        }
+    }
+
+    private void printComponent(int[] component) {
+        List<String> titles = new ArrayList<String>();
+        for (int v : component) {
+            try {
+                LocalPage page = lpDao.getById(graph.getLocalId(v));
+                titles.add(page == null ? graph.getLocalId(v).toString() : page.getTitle().toString());
+            } catch (DaoException e) {
+                titles.add(graph.getLocalId(v).toString());
+            }
+        }
+        LOG.info("Found ambiguous cluster: " + StringUtils.join(titles, ", "));
+    }
+
+    /**
+     * Groups of vertex indexes stored in compressed sparse row form.
+     */
+    public static class Clusters {
+        private final int[] starts;
+        private final int[] members;
+
+        public Clusters(int[] starts, int[] members) {
+            this.starts = starts;
+            this.members = members;
+        }
+
+        public int size() {
+            return starts.length - 1;
+        }
+
+        public int[] get(int i) {
+            return Arrays.copyOfRange(members, starts[i], starts[i + 1]);
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package org.wikibrain.mapper.algorithms.conceptualign3;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.DaoFilter;
+import org.wikibrain.core.dao.InterLanguageLinkDao;
+import org.wikibrain.core.dao.LocalPageDao;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.core.lang.LocalId;
+import org.wikibrain.core.model.InterLanguageLink;
+import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.core.model.UniversalPage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * An in-memory, read-only version of the ILLGraph stored in primitive arrays.
+ *
+ * Vertices are article pages, identified by LocalId.toLong() (the language id in the
+ * high 32 bits and the page id in the low 32 bits) and numbered by their position in
+ * the sorted array of these keys. Every language and page id can be represented, and
+ * since the language occupies the high bits, vertices are grouped by language.
+ *
+ * Interlanguage links are stored as outgoing adjacency lists in compressed sparse
+ * row form. Wikidata items are stored as a second CSR from item to member vertices
+ * rather than as the clique of links they imply; outgoingEdges() combines the two.
+ *
+ * @author Shilad Sen
+ */
+public class PackedIllGraph {
+    private static final Logger LOG = Logger.getLogger(PackedIllGraph.class.getName());
+
+    private final long[] vertices;     // sorted LocalId.toLong() keys
+
+    private final int[] edgeStarts;    // vertex index -> offset into edges
+    private final int[] edges;         // vertex indexes of link destinations
+
+    private final int[] itemOf;        // vertex index -> item index, or -1
+    private final int[] itemStarts;    // item index -> offset into itemMembers
+    private final int[] itemMembers;   // vertex indexes of item members
+
+    private PackedIllGraph(long[] vertices, int[] edgeStarts, int[] edges,
+                           int[] itemOf, int[] itemStarts, int[] itemMembers) {
+        this.vertices = vertices;
+        this.edgeStarts = edgeStarts;
+        this.edges = edges;
+        this.itemOf = itemOf;
+        this.itemStarts = itemStarts;
+        this.itemMembers = itemMembers;
+    }
+
+    /**
+     * Builds a graph from arrays of link sources, link destinations and items.
+     * Links and item members that are not among the vertices are ignored.
+     *
+     * @param keys LocalId.toLong() keys of the vertices, in any order.
+     * @param srcs Keys of link sources.
+     * @param dests Keys of link destinations.
+     * @param items Keys of each item's members.
+     */
+    public static PackedIllGraph build(long[] keys, long[] srcs, long[] dests, long[][] items) {
+        if (srcs.length != dests.length) {
+            throw new IllegalArgumentException("link sources and destinations must have the same length");
+        }
+        long[] vertices = keys.clone();
+        Arrays.sort(vertices);
+        int[] srcIndexes = new int[srcs.length];
+        int[] destIndexes = new int[dests.length];
+        for (int i = 0; i < srcs.length; i++) {
+            srcIndexes[i] = Arrays.binarySearch(vertices, srcs[i]);
+            destIndexes[i] = Arrays.binarySearch(vertices, dests[i]);
+        }
+        List<int[]> itemIndexes = new ArrayList<int[]>();
+        for (long[] item : items) {
+            int[] members = new int[item.length];
+            for (int i = 0; i < item.length; i++) {
+                members[i] = Arrays.binarySearch(vertices, item[i]);
+            }
+            itemIndexes.add(members);
+        }
+        return build(vertices, srcIndexes, destIndexes, itemIndexes);
+    }
+
+    /**
+     * Builds a graph whose links and items have already been mapped to vertex indexes.
+     * Negative indexes are ignored.
+     */
+    private static PackedIllGraph build(long[] vertices, int[] srcIndexes, int[] destIndexes, List<int[]> items) {
+        int n = vertices.length;
+
+        // links, grouped by source with a counting sort
+        int[] edgeStarts = new int[n + 1];
+        for (int i = 0; i < srcIndexes.length; i++) {
+            if (srcIndexes[i] >= 0 && destIndexes[i] >= 0 && srcIndexes[i] != destIndexes[i]) {
+                edgeStarts[srcIndexes[i] + 1]++;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            edgeStarts[i + 1] += edgeStarts[i];
+        }
+        int[] edges = new int[edgeStarts[n]];
+        int[] fill = Arrays.copyOf(edgeStarts, n);
+        for (int i = 0; i < srcIndexes.length; i++) {
+            if (srcIndexes[i] >= 0 && destIndexes[i] >= 0 && srcIndexes[i] != destIndexes[i]) {
+                edges[fill[srcIndexes[i]]++] = destIndexes[i];
+            }
+        }
+        fill = null;
+        for (int i = 0; i < n; i++) {
+            Arrays.sort(edges, edgeStarts[i], edgeStarts[i + 1]);
+        }
+
+        // items
+        int[] itemOf = new int[n];
+        Arrays.fill(itemOf, -1);
+        TIntArrayList starts = new TIntArrayList();
+        TIntArrayList members = new TIntArrayList();
+        for (int[] item : items) {
+            int begin = members.size();
+            for (int v : item) {
+                if (v >= 0 && itemOf[v] < 0) {
+                    itemOf[v] = starts.size();
+                    members.add(v);
+                }
+            }
+            if (members.size() - begin > 0) {
+                members.sort(begin, members.size());
+                starts.add(begin);
+            }
+        }
+        starts.add(members.size());
+
+        return new PackedIllGraph(vertices, edgeStarts, edges, itemOf, starts.toArray(), members.toArray());
+    }
+
+    /**
+     * Loads the article pages, interlanguage links and Wikidata items for a set of languages.
+     * Links and item members are mapped to vertex indexes as they are read.
+     *
+     * @param langs
+     * @param lpDao
+     * @param illDao
+     * @param uPages The Wikidata concepts.
+     * @return
+     * @throws DaoException
+     */
+    public static PackedIllGraph load(LanguageSet langs, LocalPageDao lpDao,
+                                      InterLanguageLinkDao illDao, Iterator<UniversalPage> uPages) throws DaoException {
+        TLongArrayList keys = new TLongArrayList();
+        for (LocalPage page : lpDao.get(new DaoFilter().setNameSpaces(NameSpace.ARTICLE).setLanguages(langs))) {
+            keys.add(page.toLocalId().toLong());
+        }
+        keys.sort();
+        long[] vertices = keys.toArray();
+        keys = null;
+        LOG.info("loaded " + vertices.length + " vertices");
+
+        TIntArrayList srcs = new TIntArrayList();
+        TIntArrayList dests = new TIntArrayList();
+        for (InterLanguageLink ill : illDao.get(new DaoFilter().setLanguages(langs))) {
+            int src = Arrays.binarySearch(vertices, ill.getSource().toLong());
+            int dest = Arrays.binarySearch(vertices, ill.getDest().toLong());
+            if (src >= 0 && dest >= 0) {
+                srcs.add(src);
+                dests.add(dest);
+            }
+        }
+        LOG.info("loaded " + srcs.size() + " interlanguage links");
+
+        List<int[]> items = new ArrayList<int[]>();
+        while (uPages != null && uPages.hasNext()) {
+            UniversalPage uPage = uPages.next();
+            TIntArrayList members = new TIntArrayList();
+            for (LocalId localId : uPage.getLocalEntities()) {
+                int v = Arrays.binarySearch(vertices, localId.toLong());
+                if (v >= 0) {
+                    members.add(v);
+                }
+            }
+            if (members.size() > 1) {
+                items.add(members.toArray());
+            }
+        }
+        LOG.info("loaded " + items.size() + " multilingual wikidata items");
+
+        return build(vertices, srcs.toArray(), dests.toArray(), items);
+    }
+
+    public int getNumVertices() {
+        return vertices.length;
+    }
+
+    public int getNumItems() {
+        return itemStarts.length - 1;
+    }
+
+    public int getNumLinks() {
+        return edges.length;
+    }
+
+    /**
+     * @return The LocalId.toLong() key of a vertex.
+     */
+    public long getKey(int vertex) {
+        return vertices[vertex];
+    }
+
+    public LocalId getLocalId(int vertex) {
+        return new LocalId(Language.getById(getLanguageId(vertex)), (int) vertices[vertex]);
+    }
+
+    public int getLanguageId(int vertex) {
+        return (int) (vertices[vertex] >>> 32);
+    }
+
+    /**
+     * @return The vertex of a local id, or a negative number if it is not a vertex.
+     */
+    public int getVertex(LocalId localId) {
+        return Arrays.binarySearch(vertices, localId.toLong());
+    }
+
+    /**
+     * @return The item containing the vertex, or -1.
+     */
+    public int getItem(int vertex) {
+        return itemOf[vertex];
+    }
+
+    public int getItemSize(int item) {
+        return itemStarts[item + 1] - itemStarts[item];
+    }
+
+    public int getItemMember(int item, int i) {
+        return itemMembers[itemStarts[item] + i];
+    }
+
+    public int getOutDegree(int vertex) {
+        return edgeStarts[vertex + 1] - edgeStarts[vertex];
+    }
+
+    public int getLinkDest(int vertex, int i) {
+        return edges[edgeStarts[vertex] + i];
+    }
+
+    /**
+     * Returns the distinct destinations of a vertex: the targets of its interlanguage
+     * links and the other members of its Wikidata item, in increasing order.
+     * Since vertices are grouped by language, so are the destinations.
+     */
+    public int[] outgoingEdges(int vertex) {
+        int item = itemOf[vertex];
+        int itemSize = (item < 0) ? 0 : getItemSize(item);
+        int[] dests = new int[getOutDegree(vertex) + itemSize];
+        int n = 0;
+        for (int i = edgeStarts[vertex]; i < edgeStarts[vertex + 1]; i++) {
+            dests[n++] = edges[i];
+        }
+        for (int i = 0; i < itemSize; i++) {
+            int member = getItemMember(item, i);
+            if (member != vertex) {
+                dests[n++] = member;
+            }
+        }
+        Arrays.sort(dests, 0, n);
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (distinct == 0 || dests[distinct - 1] != dests[i]) {
+                dests[distinct++] = dests[i];
+            }
+        }
+        return Arrays.copyOf(dests, distinct);
+    }
+}
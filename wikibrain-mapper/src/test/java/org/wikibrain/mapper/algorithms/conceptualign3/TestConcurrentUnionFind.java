@@ -0,0 +1,79 @@
+package org.wikibrain.mapper.algorithms.conceptualign3;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestConcurrentUnionFind {
+
+    @Test
+    public void testSingleThread() {
+        ConcurrentUnionFind uf = new ConcurrentUnionFind(10);
+        assertEquals(10, uf.size());
+        assertTrue(uf.union(3, 7));
+        assertTrue(uf.union(7, 9));
+        assertFalse(uf.union(9, 3));
+        assertTrue(uf.union(9, 1));
+        for (int x : new int[] { 1, 3, 7, 9 }) {
+            assertEquals(1, uf.find(x));
+        }
+        assertEquals(2, uf.find(2));
+        assertEquals(5, uf.find(5));
+    }
+
+    @Test
+    public void testThreads() throws InterruptedException {
+        final int n = 20000;
+        final int numThreads = 8;
+        final int[][] pairs = new int[30000][2];
+        Random random = new Random(1);
+        for (int[] pair : pairs) {
+            pair[0] = random.nextInt(n);
+            pair[1] = random.nextInt(n);
+        }
+
+        final ConcurrentUnionFind uf = new ConcurrentUnionFind(n);
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = thread; i < pairs.length; i += numThreads) {
+                        uf.union(pairs[i][0], pairs[i][1]);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // sequential union-find whose roots are also the smallest members
+        int[] parents = new int[n];
+        for (int i = 0; i < n; i++) {
+            parents[i] = i;
+        }
+        for (int[] pair : pairs) {
+            int a = find(parents, pair[0]);
+            int b = find(parents, pair[1]);
+            parents[Math.max(a, b)] = Math.min(a, b);
+        }
+        for (int i = 0; i < n; i++) {
+            assertEquals(find(parents, i), uf.find(i));
+        }
+    }
+
+    private static int find(int[] parents, int x) {
+        while (parents[x] != x) {
+            x = parents[x];
+        }
+        return x;
+    }
+}
@@ -0,0 +1,250 @@
+package org.wikibrain.mapper.algorithms.conceptualign3;
+
+import org.junit.Test;
+import org.wikibrain.core.WikiBrainException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LocalId;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares PackedConceptualign with the clustering of Conceptualign3ConnectedComponentHandler,
+ * which scans each connected component with ConceptualignHelper and splits ambiguous
+ * components with ILLSplitter.
+ *
+ * @author Shilad Sen
+ */
+public class TestPackedConceptualign {
+    private static final double MIN_VOTES_RATIO = 1.0;
+    private static final int MAX_VOTES_PER_LANG = 2;
+
+    // includes language ids and page ids that cannot be packed into an int
+    private static final int[] LANG_IDS = { 1, 2, 3, 70, 150 };
+    private static final int BIG_PAGE_ID = 70000000;
+
+    @Test
+    public void testSmall() throws WikiBrainException {
+        Language l1 = Language.getById(1);
+        Language l2 = Language.getById(2);
+        Language l3 = Language.getById(70);
+        LocalId a1 = new LocalId(l1, 10);
+        LocalId a2 = new LocalId(l2, 20);
+        LocalId a3 = new LocalId(l3, BIG_PAGE_ID);
+        LocalId b1 = new LocalId(l1, 11);
+        LocalId c2 = new LocalId(l2, 21);
+
+        // a1, a2 and a3 link to each other; b1 and c2 are linked and share an item
+        Map<LocalId, Set<LocalId>> links = new HashMap<LocalId, Set<LocalId>>();
+        addLink(links, a1, a2);
+        addLink(links, a2, a1);
+        addLink(links, a1, a3);
+        addLink(links, a3, a1);
+        addLink(links, a2, a3);
+        addLink(links, b1, c2);
+        List<Set<LocalId>> items = new ArrayList<Set<LocalId>>();
+        items.add(new HashSet<LocalId>(Arrays.asList(b1, c2)));
+
+        List<LocalId> pages = Arrays.asList(a1, a2, a3, b1, c2);
+        PackedIllGraph graph = toGraph(pages, links, items);
+        assertEquals(5, graph.getNumVertices());
+        assertEquals(6, graph.getNumLinks());
+        assertEquals(1, graph.getNumItems());
+        for (LocalId id : pages) {
+            assertEquals(id, graph.getLocalId(graph.getVertex(id)));
+        }
+
+        Set<Set<LocalId>> expected = new HashSet<Set<LocalId>>();
+        expected.add(new HashSet<LocalId>(Arrays.asList(a1, a2, a3)));
+        expected.add(new HashSet<LocalId>(Arrays.asList(b1, c2)));
+        assertEquals(expected, reference(pages, links, items));
+        assertEquals(expected, packed(graph, 2));
+    }
+
+    @Test
+    public void testRandom() throws WikiBrainException {
+        for (int seed = 0; seed < 30; seed++) {
+            Random random = new Random(seed);
+            List<LocalId> pages = new ArrayList<LocalId>();
+            for (int langId : LANG_IDS) {
+                int n = 5 + random.nextInt(30);
+                for (int i = 0; i < n; i++) {
+                    int id = random.nextBoolean() ? i : BIG_PAGE_ID + i;
+                    pages.add(new LocalId(Language.getById(langId), id));
+                }
+            }
+            List<LocalId> distinct = new ArrayList<LocalId>(new LinkedHashSet<LocalId>(pages));
+
+            // links are mostly among pages of the same concept, with some noise
+            Map<LocalId, Set<LocalId>> links = new HashMap<LocalId, Set<LocalId>>();
+            int numConcepts = 10 + random.nextInt(10);
+            for (LocalId src : distinct) {
+                int concept = conceptOf(src, numConcepts);
+                for (LocalId dest : distinct) {
+                    if (src.getLanguage().equals(dest.getLanguage())) {
+                        continue;
+                    }
+                    double p = (conceptOf(dest, numConcepts) == concept) ? 0.6 : 0.01;
+                    if (random.nextDouble() < p) {
+                        addLink(links, src, dest);
+                    }
+                }
+            }
+            List<Set<LocalId>> items = new ArrayList<Set<LocalId>>();
+            for (int i = 0; i < 5; i++) {
+                Set<LocalId> item = new HashSet<LocalId>();
+                for (int j = 0; j < 3; j++) {
+                    item.add(distinct.get(random.nextInt(distinct.size())));
+                }
+                if (item.size() > 1) {
+                    items.add(item);
+                }
+            }
+            // items are disjoint, as in Wikidata
+            Set<LocalId> seen = new HashSet<LocalId>();
+            for (Iterator<Set<LocalId>> iter = items.iterator(); iter.hasNext(); ) {
+                Set<LocalId> item = iter.next();
+                if (!Collections.disjoint(seen, item)) {
+                    iter.remove();
+                } else {
+                    seen.addAll(item);
+                }
+            }
+
+            PackedIllGraph graph = toGraph(pages, links, items);
+            Set<Set<LocalId>> expected = reference(distinct, links, items);
+            assertEquals(expected, packed(graph, 1));
+            assertEquals(expected, packed(graph, 4));
+        }
+    }
+
+    private static int conceptOf(LocalId id, int numConcepts) {
+        return (id.getId() % BIG_PAGE_ID) % numConcepts;
+    }
+
+    private static void addLink(Map<LocalId, Set<LocalId>> links, LocalId src, LocalId dest) {
+        if (!links.containsKey(src)) {
+            links.put(src, new HashSet<LocalId>());
+        }
+        links.get(src).add(dest);
+    }
+
+    private static PackedIllGraph toGraph(List<LocalId> pages, Map<LocalId, Set<LocalId>> links, List<Set<LocalId>> items) {
+        long[] keys = new long[pages.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = pages.get(i).toLong();
+        }
+        List<Long> srcs = new ArrayList<Long>();
+        List<Long> dests = new ArrayList<Long>();
+        for (LocalId src : links.keySet()) {
+            for (LocalId dest : links.get(src)) {
+                srcs.add(src.toLong());
+                dests.add(dest.toLong());
+            }
+        }
+        long[][] itemKeys = new long[items.size()][];
+        for (int i = 0; i < items.size(); i++) {
+            List<LocalId> item = new ArrayList<LocalId>(items.get(i));
+            itemKeys[i] = new long[item.size()];
+            for (int j = 0; j < item.size(); j++) {
+                itemKeys[i][j] = item.get(j).toLong();
+            }
+        }
+        return PackedIllGraph.build(keys, toArray(srcs), toArray(dests), itemKeys);
+    }
+
+    private static long[] toArray(List<Long> list) {
+        long[] array = new long[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    private static Set<Set<LocalId>> packed(PackedIllGraph graph, int numThreads) {
+        PackedConceptualign conceptualign = new PackedConceptualign(graph, MIN_VOTES_RATIO, MAX_VOTES_PER_LANG);
+        PackedConceptualign.Clusters clusters = conceptualign.cluster(numThreads);
+        Set<Set<LocalId>> result = new HashSet<Set<LocalId>>();
+        int numVertices = 0;
+        for (int c = 0; c < clusters.size(); c++) {
+            Set<LocalId> cluster = new HashSet<LocalId>();
+            for (int v : clusters.get(c)) {
+                cluster.add(graph.getLocalId(v));
+                numVertices++;
+            }
+            result.add(cluster);
+        }
+        assertEquals(graph.getNumVertices(), numVertices);
+        return result;
+    }
+
+    /**
+     * Clusters pages as Conceptualign3ConnectedComponentHandler does over an ILLGraph
+     * backed by a CombinedIllDao: the outgoing edges of a page are its links and the
+     * other members of its Wikidata item.
+     */
+    private static Set<Set<LocalId>> reference(List<LocalId> pages, Map<LocalId, Set<LocalId>> links,
+                                               List<Set<LocalId>> items) throws WikiBrainException {
+        Map<LocalId, Set<LocalId>> outgoing = new HashMap<LocalId, Set<LocalId>>();
+        Map<LocalId, Set<LocalId>> undirected = new HashMap<LocalId, Set<LocalId>>();
+        for (LocalId page : pages) {
+            outgoing.put(page, new HashSet<LocalId>());
+            undirected.put(page, new HashSet<LocalId>());
+        }
+        for (LocalId src : links.keySet()) {
+            for (LocalId dest : links.get(src)) {
+                outgoing.get(src).add(dest);
+            }
+        }
+        for (Set<LocalId> item : items) {
+            for (LocalId member : item) {
+                for (LocalId other : item) {
+                    if (!other.equals(member)) {
+                        outgoing.get(member).add(other);
+                    }
+                }
+            }
+        }
+        for (LocalId src : outgoing.keySet()) {
+            for (LocalId dest : outgoing.get(src)) {
+                undirected.get(src).add(dest);
+                undirected.get(dest).add(src);
+            }
+        }
+
+        Set<Set<LocalId>> result = new HashSet<Set<LocalId>>();
+        Set<LocalId> visited = new HashSet<LocalId>();
+        for (LocalId page : pages) {
+            if (visited.contains(page)) {
+                continue;
+            }
+            List<LocalId> component = new ArrayList<LocalId>();
+            LinkedList<LocalId> queue = new LinkedList<LocalId>();
+            queue.add(page);
+            visited.add(page);
+            while (!queue.isEmpty()) {
+                LocalId v = queue.removeFirst();
+                component.add(v);
+                for (LocalId w : undirected.get(v)) {
+                    if (visited.add(w)) {
+                        queue.add(w);
+                    }
+                }
+            }
+
+            ConceptualignHelper.ScanResult scan = ConceptualignHelper.scanVerticesOfComponent(component);
+            if (scan.clarity.equals(1.0)) {
+                result.add(new HashSet<LocalId>(component));
+                continue;
+            }
+            Map<LocalId, List<LocalId>> ills = new HashMap<LocalId, List<LocalId>>();
+            for (LocalId v : component) {
+                ills.put(v, new ArrayList<LocalId>(outgoing.get(v)));
+            }
+            int minLangVotes = (int) Math.floor(MIN_VOTES_RATIO * scan.langCount - 1);
+            result.addAll(ILLSplitter.split(ills, minLangVotes, MAX_VOTES_PER_LANG, false, null));
+        }
+        return result;
+    }
+}
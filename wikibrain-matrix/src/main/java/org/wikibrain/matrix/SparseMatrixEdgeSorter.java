@@ -0,0 +1,403 @@
+package org.wikibrain.matrix;
+
+import gnu.trove.list.array.TIntArrayList;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * An external sorter for the (src, dest) edges of an unweighted graph that writes
+ * the adjacency matrix and its transpose directly.
+ *
+ * Each edge is packed into a single long. Threads add edges to one of several striped
+ * buffers (chosen by thread id). When a buffer fills, it is radix sorted twice
+ * (once by src, once by dest) and written as two binary runs. Finally, the runs are
+ * memory mapped and k-way merged straight into a SparseMatrixWriter for the matrix
+ * and another for the transpose.
+ *
+ * Rows and columns appear in numeric (signed int) order. Duplicate edges are retained
+ * unless setDeduplicate() is enabled, in which case they are dropped during the merge.
+ *
+ * @author Shilad Sen
+ */
+public class SparseMatrixEdgeSorter {
+    private static final Logger LOG = Logger.getLogger(SparseMatrixEdgeSorter.class.getName());
+
+    /**
+     * Default number of edges buffered by each stripe (16MB per stripe, including scratch space).
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    private final File tmpDir;
+    private final int bufferSize;
+
+    private final List<File> runs = Collections.synchronizedList(new ArrayList<File>());
+    private final List<File> transposedRuns = Collections.synchronizedList(new ArrayList<File>());
+    private final RunBuffer[] stripes;
+    private boolean deduplicate = false;
+
+    public SparseMatrixEdgeSorter() throws IOException {
+        this(FileUtils.getTempDirectory(), DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param tmpDir Directory for run files.
+     * @param bufferSize Number of edges buffered per stripe before spilling a run.
+     */
+    public SparseMatrixEdgeSorter(File tmpDir, int bufferSize) throws IOException {
+        this.tmpDir = tmpDir;
+        this.bufferSize = bufferSize;
+        this.stripes = new RunBuffer[Runtime.getRuntime().availableProcessors()];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new RunBuffer();
+        }
+        tmpDir.mkdirs();
+    }
+
+    /**
+     * If true, each distinct edge is written once no matter how many times it was added.
+     * @param deduplicate
+     */
+    public void setDeduplicate(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    /**
+     * Adds an edge. Safe to call concurrently from many threads.
+     * @param src
+     * @param dest
+     * @throws IOException
+     */
+    public void add(int src, int dest) throws IOException {
+        RunBuffer buffer = stripes[(int) (Thread.currentThread().getId() % stripes.length)];
+        synchronized (buffer) {
+            buffer.add(pack(src, dest));
+        }
+    }
+
+    /**
+     * Adds all the entries in a row as edges from the row id to each column id.
+     * @param row
+     * @throws IOException
+     */
+    public void addRow(MatrixRow row) throws IOException {
+        int src = row.getRowIndex();
+        for (int i = 0; i < row.getNumCols(); i++) {
+            add(src, row.getColIndex(i));
+        }
+    }
+
+    /**
+     * Writes the adjacency matrix and its transpose. All calls to add() must have completed.
+     * Temporary run files are removed afterwards.
+     *
+     * @param matrixPath
+     * @param transposePath
+     * @throws IOException
+     */
+    public void write(File matrixPath, final File transposePath) throws IOException {
+        for (RunBuffer buffer : stripes) {
+            synchronized (buffer) {
+                buffer.spill();
+                buffer.release();
+            }
+        }
+        LOG.info("merging " + runs.size() + " sorted runs into " + matrixPath + " and " + transposePath);
+
+        final IOException[] transposeError = new IOException[1];
+        Thread transposer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    merge(transposedRuns, transposePath, true);
+                } catch (IOException e) {
+                    transposeError[0] = e;
+                }
+            }
+        }, "edge-sorter-transpose");
+        transposer.start();
+        try {
+            merge(runs, matrixPath, false);
+        } finally {
+            try {
+                transposer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while writing transpose", e);
+            }
+            for (File f : runs) FileUtils.deleteQuietly(f);
+            for (File f : transposedRuns) FileUtils.deleteQuietly(f);
+            runs.clear();
+            transposedRuns.clear();
+        }
+        if (transposeError[0] != null) {
+            throw transposeError[0];
+        }
+    }
+
+    /**
+     * Packs an edge so that signed long order is (signed src, signed dest) order.
+     */
+    static long pack(int src, int dest) {
+        return ((long) src << 32) | ((dest ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+    }
+
+    static int unpackSrc(long packed) {
+        return (int) (packed >>> 32);
+    }
+
+    static int unpackDest(long packed) {
+        return ((int) packed) ^ Integer.MIN_VALUE;
+    }
+
+    static long swap(long packed) {
+        return pack(unpackDest(packed), unpackSrc(packed));
+    }
+
+    /**
+     * LSD radix sort of the first n keys by signed value, one byte per pass.
+     * Passes in which every key has the same byte are skipped.
+     * @return The array holding the sorted keys (either keys or scratch).
+     */
+    static long[] radixSort(long[] keys, long[] scratch, int n) {
+        int counts[] = new int[256];
+        long[] from = keys;
+        long[] to = scratch;
+        for (int shift = 0; shift < 64; shift += 8) {
+            // flip the sign bit in the most significant byte so negatives sort first
+            int flip = (shift == 56) ? 0x80 : 0;
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < n; i++) {
+                counts[(((int) (from[i] >>> shift)) & 0xFF) ^ flip]++;
+            }
+            if (n == 0 || counts[(((int) (from[0] >>> shift)) & 0xFF) ^ flip] == n) {
+                continue;
+            }
+            int total = 0;
+            for (int i = 0; i < 256; i++) {
+                int c = counts[i];
+                counts[i] = total;
+                total += c;
+            }
+            for (int i = 0; i < n; i++) {
+                long k = from[i];
+                to[counts[(((int) (k >>> shift)) & 0xFF) ^ flip]++] = k;
+            }
+            long[] tmp = from;
+            from = to;
+            to = tmp;
+        }
+        return from;
+    }
+
+    private void merge(List<File> files, File output, boolean isTranspose) throws IOException {
+        List<RunCursor> cursors = new ArrayList<RunCursor>();
+        for (File f : files) {
+            RunCursor c = new RunCursor(f);
+            if (c.hasNext()) {
+                cursors.add(c);
+            }
+        }
+        RunHeap heap = new RunHeap(cursors);
+
+        ValueConf vconf = new ValueConf();   // unused because there are no values.
+        SparseMatrixWriter writer = new SparseMatrixWriter(output, vconf);
+        TIntArrayList cols = new TIntArrayList();
+        int rowCount = 0;
+        long cellCount = 0;
+        int lastRow = 0;
+        long lastKey = 0;
+        while (!heap.isEmpty()) {
+            long key = heap.pop();
+            if (deduplicate && cellCount > 0 && key == lastKey) {
+                continue;
+            }
+            lastKey = key;
+            int row = unpackSrc(key);
+            if (cols.size() > 0 && row != lastRow) {
+                writer.writeRow(new SparseMatrixRow(vconf, lastRow, cols.toArray(), new short[cols.size()]));
+                cols.clear();
+                if (++rowCount % 100000 == 0) {
+                    LOG.info("writing " + (isTranspose ? "transpose " : "") + "row " + rowCount
+                            + ", found " + cellCount + " cells");
+                }
+            }
+            cols.add(unpackDest(key));
+            lastRow = row;
+            cellCount++;
+        }
+        if (cols.size() > 0) {
+            writer.writeRow(new SparseMatrixRow(vconf, lastRow, cols.toArray(), new short[cols.size()]));
+        }
+        writer.finish();
+    }
+
+    private File newRunFile(String prefix) throws IOException {
+        File f = File.createTempFile(prefix, ".bin", tmpDir);
+        f.deleteOnExit();
+        return f;
+    }
+
+    private static void writeRun(File file, long[] keys, int n) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer bb = ByteBuffer.allocateDirect(64 * 1024);
+            LongBuffer lb = bb.asLongBuffer();
+            int i = 0;
+            while (i < n) {
+                int m = Math.min(n - i, lb.capacity());
+                lb.clear();
+                lb.put(keys, i, m);
+                bb.clear();
+                bb.limit(m * 8);
+                while (bb.hasRemaining()) {
+                    channel.write(bb);
+                }
+                i += m;
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Buffer of packed edges. Arrays are allocated on first use.
+     */
+    private final class RunBuffer {
+        long[] keys = null;
+        long[] scratch = null;
+        int n = 0;
+
+        void add(long key) throws IOException {
+            if (keys == null) {
+                keys = new long[bufferSize];
+                scratch = new long[bufferSize];
+            }
+            keys[n++] = key;
+            if (n == keys.length) {
+                spill();
+            }
+        }
+
+        void spill() throws IOException {
+            if (n == 0) {
+                return;
+            }
+            long[] sorted = radixSort(keys, scratch, n);
+            File f = newRunFile("edges-sorted");
+            writeRun(f, sorted, n);
+            runs.add(f);
+
+            for (int i = 0; i < n; i++) {
+                sorted[i] = swap(sorted[i]);
+            }
+            long[] other = (sorted == keys) ? scratch : keys;
+            sorted = radixSort(sorted, other, n);
+            f = newRunFile("edges-transposed");
+            writeRun(f, sorted, n);
+            transposedRuns.add(f);
+            n = 0;
+        }
+
+        void release() {
+            keys = null;
+            scratch = null;
+        }
+    }
+
+    /**
+     * A memory mapped run file.
+     */
+    private static final class RunCursor {
+        final LongBuffer buffer;
+        long head;
+        boolean exhausted = false;
+
+        RunCursor(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).asLongBuffer();
+            } finally {
+                raf.close();
+            }
+            advance();
+        }
+
+        boolean hasNext() {
+            return !exhausted;
+        }
+
+        void advance() {
+            if (buffer.hasRemaining()) {
+                head = buffer.get();
+            } else {
+                exhausted = true;
+            }
+        }
+    }
+
+    /**
+     * A binary min-heap of run cursors keyed by their current head.
+     */
+    private static final class RunHeap {
+        final RunCursor[] heap;
+        int size;
+
+        RunHeap(List<RunCursor> cursors) {
+            heap = cursors.toArray(new RunCursor[cursors.size()]);
+            size = heap.length;
+            for (int i = size / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        long pop() {
+            RunCursor top = heap[0];
+            long key = top.head;
+            top.advance();
+            if (top.exhausted) {
+                heap[0] = heap[--size];
+                heap[size] = null;
+            }
+            if (size > 0) {
+                siftDown(0);
+            }
+            return key;
+        }
+
+        private void siftDown(int i) {
+            RunCursor c = heap[i];
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && heap[child + 1].head < heap[child].head) {
+                    child++;
+                }
+                if (heap[child].head >= c.head) {
+                    break;
+                }
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = c;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package org.wikibrain.matrix;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TestSparseMatrixEdgeSorter {
+
+    @Test
+    public void testPacking() {
+        int ids[] = { 0, 1, -1, 7, Integer.MAX_VALUE, Integer.MIN_VALUE, 1 << 26, -(1 << 26) };
+        for (int src : ids) {
+            for (int dest : ids) {
+                long packed = SparseMatrixEdgeSorter.pack(src, dest);
+                assertEquals(src, SparseMatrixEdgeSorter.unpackSrc(packed));
+                assertEquals(dest, SparseMatrixEdgeSorter.unpackDest(packed));
+                assertEquals(SparseMatrixEdgeSorter.pack(dest, src), SparseMatrixEdgeSorter.swap(packed));
+            }
+        }
+    }
+
+    @Test
+    public void testRadixSort() {
+        Random random = new Random(1);
+        long keys[] = new long[10000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextLong();
+        }
+        long expected[] = Arrays.copyOf(keys, keys.length);
+        Arrays.sort(expected);
+        long sorted[] = SparseMatrixEdgeSorter.radixSort(keys, new long[keys.length], keys.length);
+        assertArrayEquals(expected, sorted);
+    }
+
+    @Test
+    public void testMatrixAndTranspose() throws IOException, InterruptedException {
+        final Random random = new Random(3);
+        final List<long[]> edges = new ArrayList<long[]>();
+        for (int i = 0; i < 50000; i++) {
+            int src = random.nextInt(2000) - 200;
+            int dest = random.nextBoolean() ? random.nextInt(3000) : (Integer.MIN_VALUE + random.nextInt(10));
+            edges.add(new long[] { src, dest });
+        }
+
+        File dir = File.createTempFile("edge-sorter", null);
+        dir.delete();
+        dir.mkdirs();
+        final SparseMatrixEdgeSorter sorter = new SparseMatrixEdgeSorter(dir, 1000);
+        Thread threads[] = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = offset; i < edges.size(); i += 4) {
+                            sorter.add((int) edges.get(i)[0], (int) edges.get(i)[1]);
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        File matrixFile = new File(dir, "matrix");
+        File transposeFile = new File(dir, "transpose");
+        sorter.write(matrixFile, transposeFile);
+
+        Map<Integer, List<Integer>> expected = new TreeMap<Integer, List<Integer>>();
+        Map<Integer, List<Integer>> expectedTranspose = new TreeMap<Integer, List<Integer>>();
+        for (long[] e : edges) {
+            add(expected, (int) e[0], (int) e[1]);
+            add(expectedTranspose, (int) e[1], (int) e[0]);
+        }
+        verify(expected, new SparseMatrix(matrixFile));
+        verify(expectedTranspose, new SparseMatrix(transposeFile));
+    }
+
+    @Test
+    public void testDeduplicate() throws IOException {
+        Random random = new Random(5);
+        File dir = File.createTempFile("edge-sorter", null);
+        dir.delete();
+        dir.mkdirs();
+        SparseMatrixEdgeSorter sorter = new SparseMatrixEdgeSorter(dir, 500);
+        sorter.setDeduplicate(true);
+
+        Map<Integer, Set<Integer>> distinct = new HashMap<Integer, Set<Integer>>();
+        for (int i = 0; i < 10000; i++) {
+            int src = random.nextInt(100) - 10;
+            int dest = random.nextInt(50);
+            sorter.add(src, dest);
+            if (!distinct.containsKey(src)) {
+                distinct.put(src, new HashSet<Integer>());
+            }
+            distinct.get(src).add(dest);
+        }
+        File matrixFile = new File(dir, "matrix");
+        File transposeFile = new File(dir, "transpose");
+        sorter.write(matrixFile, transposeFile);
+
+        Map<Integer, List<Integer>> expected = new TreeMap<Integer, List<Integer>>();
+        Map<Integer, List<Integer>> expectedTranspose = new TreeMap<Integer, List<Integer>>();
+        for (int src : distinct.keySet()) {
+            for (int dest : distinct.get(src)) {
+                add(expected, src, dest);
+                add(expectedTranspose, dest, src);
+            }
+        }
+        verify(expected, new SparseMatrix(matrixFile));
+        verify(expectedTranspose, new SparseMatrix(transposeFile));
+    }
+
+    private void add(Map<Integer, List<Integer>> rows, int row, int col) {
+        if (!rows.containsKey(row)) {
+            rows.put(row, new ArrayList<Integer>());
+        }
+        rows.get(row).add(col);
+    }
+
+    private void verify(Map<Integer, List<Integer>> expected, SparseMatrix m) throws IOException {
+        assertEquals(expected.size(), m.getNumRows());
+        int lastRow = Integer.MIN_VALUE;
+        boolean first = true;
+        for (SparseMatrixRow row : m) {
+            assertTrue(first || row.getRowIndex() > lastRow);
+            first = false;
+            lastRow = row.getRowIndex();
+            List<Integer> cols = expected.get(row.getRowIndex());
+            Collections.sort(cols);
+            assertEquals(cols.size(), row.getNumCols());
+            for (int i = 0; i < cols.size(); i++) {
+                assertEquals((int) cols.get(i), row.getColIndex(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,688 @@
+package org.wikibrain.pageview;
+
+import com.typesafe.config.Config;
+import gnu.trove.TIntCollection;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.apache.commons.io.FileUtils;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.Interval;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.Configurator;
+import org.wikibrain.core.WikiBrainException;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.DaoFilter;
+import org.wikibrain.core.dao.LocalPageDao;
+import org.wikibrain.core.dao.MetaInfoDao;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.core.lang.LocalId;
+import org.wikibrain.utils.MappedColumnFile;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores pageviews in columnar files instead of one SQL row per page and hour.
+ *
+ * Each language has a directory with a PageViewSegment for every UTC day that has been
+ * loaded and a rollup of the total views of each page for every UTC month. A range sum
+ * uses the monthly rollups for months entirely inside the range, the daily totals for
+ * other days entirely inside it, and only decodes hourly counts for the partial days at
+ * its ends. Sums for many pages take one merge pass over each of those columns.
+ *
+ * Files are memory mapped and never modified in place; loading views writes new files
+ * and atomically replaces the snapshot of a language, so queries do not lock.
+ *
+ * @author Shilad Sen
+ */
+public class PageViewColumnarDao implements PageViewDao {
+    private static final Logger LOG = Logger.getLogger(PageViewColumnarDao.class.getName());
+
+    public static final int MONTH_FILE_HEADER = 0x9a9e3001;
+
+    private static final String DAY_PREFIX = "day-";
+    private static final String MONTH_PREFIX = "month-";
+    private static final String SUFFIX = ".bin";
+    private static final DateTimeFormatter DAY_FORMAT = DateTimeFormat.forPattern("yyyy-MM-dd").withZoneUTC();
+    private static final DateTimeFormatter MONTH_FORMAT = DateTimeFormat.forPattern("yyyy-MM").withZoneUTC();
+
+    private static final long MILLIS_PER_HOUR = 60L * 60 * 1000;
+    private static final long MILLIS_PER_DAY = PageViewSegment.HOURS_PER_DAY * MILLIS_PER_HOUR;
+
+    private final File dir;
+    private final File downloadDir;
+    private final LocalPageDao pageDao;
+    private final MetaInfoDao metaDao;
+
+    private final Map<Language, Segments> segments = new ConcurrentHashMap<Language, Segments>();
+
+    // views passed to save() that have not been written: language -> day -> views per hour
+    private final Map<Language, TIntObjectMap<TIntIntMap[]>> unsaved = new HashMap<Language, TIntObjectMap<TIntIntMap[]>>();
+
+    /**
+     * @param metaDao
+     * @param pageDao Resolves the titles in pageview files.
+     * @param downloadDir Directory that pageview files are downloaded to.
+     * @param dir Directory containing the columnar files.
+     * @throws DaoException
+     */
+    public PageViewColumnarDao(MetaInfoDao metaDao, LocalPageDao pageDao, File downloadDir, File dir) throws DaoException {
+        this.metaDao = metaDao;
+        this.pageDao = pageDao;
+        this.downloadDir = downloadDir;
+        this.dir = dir;
+        dir.mkdirs();
+        open();
+    }
+
+    /**
+     * Maps the segments and rollups of all languages in the directory.
+     */
+    private void open() throws DaoException {
+        File[] langDirs = dir.listFiles();
+        try {
+            for (File langDir : (langDirs == null) ? new File[0] : langDirs) {
+                Language lang;
+                try {
+                    lang = Language.getByLangCode(langDir.getName());
+                } catch (IllegalArgumentException e) {
+                    continue;
+                }
+                TreeMap<Integer, PageViewSegment> days = new TreeMap<Integer, PageViewSegment>();
+                TreeMap<Integer, PageViewCounts> months = new TreeMap<Integer, PageViewCounts>();
+                File[] files = langDir.listFiles();
+                for (File file : (files == null) ? new File[0] : files) {
+                    String name = file.getName();
+                    if (name.startsWith(DAY_PREFIX) && name.endsWith(SUFFIX)) {
+                        PageViewSegment segment = PageViewSegment.open(file);
+                        days.put(segment.getDay(), segment);
+                    } else if (name.startsWith(MONTH_PREFIX) && name.endsWith(SUFFIX)) {
+                        String month = name.substring(MONTH_PREFIX.length(), name.length() - SUFFIX.length());
+                        months.put(monthOf(dayOf(MONTH_FORMAT.parseMillis(month))), openMonth(file));
+                    }
+                }
+                if (!days.isEmpty()) {
+                    segments.put(lang, new Segments(days, months));
+                }
+            }
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    @Override
+    public synchronized void clear() throws DaoException {
+        unsaved.clear();
+        segments.clear();
+        try {
+            FileUtils.deleteDirectory(dir);
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+        dir.mkdirs();
+    }
+
+    @Override
+    public void beginLoad() throws DaoException {
+    }
+
+    /**
+     * Buffers a view until endLoad() is called.
+     */
+    @Override
+    public synchronized void save(PageView view) throws DaoException {
+        Language lang = view.getPageId().getLanguage();
+        long hour = view.getHour().getTime() / MILLIS_PER_HOUR;
+        int day = (int) (hour / PageViewSegment.HOURS_PER_DAY);
+        if (!unsaved.containsKey(lang)) {
+            unsaved.put(lang, new TIntObjectHashMap<TIntIntMap[]>());
+        }
+        TIntIntMap[] hours = unsaved.get(lang).get(day);
+        if (hours == null) {
+            hours = new TIntIntMap[PageViewSegment.HOURS_PER_DAY];
+            unsaved.get(lang).put(day, hours);
+        }
+        int h = (int) (hour % PageViewSegment.HOURS_PER_DAY);
+        if (hours[h] == null) {
+            hours[h] = new TIntIntHashMap();
+        }
+        hours[h].adjustOrPutValue(view.getPageId().getId(), view.getViews(), view.getViews());
+    }
+
+    /**
+     * Writes the views passed to save() and updates the monthly rollups.
+     */
+    @Override
+    public synchronized void endLoad() throws DaoException {
+        for (Language lang : unsaved.keySet()) {
+            TIntObjectMap<TIntIntMap[]> days = unsaved.get(lang);
+            TIntSet months = new TIntHashSet();
+            for (int day : days.keys()) {
+                writeDay(lang, day, days.get(day));
+                months.add(monthOf(day));
+            }
+            writeMonths(lang, months);
+        }
+        unsaved.clear();
+    }
+
+    @Override
+    public TIntIntMap getAllViews(Language language, DateTime startDate, DateTime endDate) throws DaoException {
+        final TIntIntMap views = new TIntIntHashMap(
+                gnu.trove.impl.Constants.DEFAULT_CAPACITY,
+                gnu.trove.impl.Constants.DEFAULT_LOAD_FACTOR,
+                -1, -1);
+        sum(language, startDate, endDate, new RangeSum() {
+            @Override
+            public void addMonth(PageViewCounts counts) {
+                counts.addTo(views);
+            }
+
+            @Override
+            public void addDay(PageViewSegment segment, int fromHour, int toHour) {
+                segment.addTo(fromHour, toHour, views);
+            }
+        });
+        return views;
+    }
+
+    @Override
+    public int getNumViews(LocalId pageId, DateTime startDate, int numberOfHours) throws DaoException {
+        return getNumViews(pageId, startDate, startDate.plusHours(numberOfHours));
+    }
+
+    @Override
+    public int getNumViews(Language lang, int pageId, DateTime startDate, int numberOfHours) throws DaoException {
+        return getNumViews(new LocalId(lang, pageId), startDate, startDate.plusHours(numberOfHours));
+    }
+
+    @Override
+    public int getNumViews(Language lang, int pageId, DateTime startDate, DateTime endDate) throws DaoException {
+        return getNumViews(new LocalId(lang, pageId), startDate, endDate);
+    }
+
+    @Override
+    public int getNumViews(LocalId pageId, DateTime startDate, DateTime endDate) throws DaoException {
+        int[] ids = new int[] { pageId.getId() };
+        long[] sums = new long[1];
+        sum(pageId.getLanguage(), ids, startDate, endDate, sums);
+        return toInt(sums[0]);
+    }
+
+    @Override
+    public Map<Integer, Integer> getNumViews(Language lang, Iterable<Integer> ids, DateTime startTime, DateTime endTime) throws ConfigurationException, DaoException {
+        ArrayList<DateTime[]> dates = new ArrayList<DateTime[]>();
+        dates.add(new DateTime[] { startTime, endTime });
+        return getNumViews(lang, ids, dates);
+    }
+
+    @Override
+    public Map<Integer, Integer> getNumViews(Language lang, Iterable<Integer> ids, ArrayList<DateTime[]> dates) throws ConfigurationException, DaoException {
+        TIntSet idSet = new TIntHashSet();
+        for (Integer id : ids) {
+            idSet.add(id);
+        }
+        int[] sortedIds = idSet.toArray();
+        Arrays.sort(sortedIds);
+        long[] sums = new long[sortedIds.length];
+        for (DateTime[] date : dates) {
+            sum(lang, sortedIds, date[0], date[1], sums);
+        }
+        Map<Integer, Integer> result = new HashMap<Integer, Integer>();
+        for (int i = 0; i < sortedIds.length; i++) {
+            result.put(sortedIds[i], toInt(sums[i]));
+        }
+        return result;
+    }
+
+    /**
+     * Adds the views of pages between two times (inclusive) to sums.
+     *
+     * @param lang
+     * @param sortedIds Page ids in increasing order.
+     * @param startDate
+     * @param endDate
+     * @param sums The running sum for each page id.
+     */
+    public void sum(Language lang, final int[] sortedIds, DateTime startDate, DateTime endDate, final long[] sums) {
+        sum(lang, startDate, endDate, new RangeSum() {
+            @Override
+            public void addMonth(PageViewCounts counts) {
+                counts.addTo(sortedIds, sums);
+            }
+
+            @Override
+            public void addDay(PageViewSegment segment, int fromHour, int toHour) {
+                segment.addTo(sortedIds, fromHour, toHour, sums);
+            }
+        });
+    }
+
+    /**
+     * Visits the rollups and segments that cover the hours between two times (inclusive).
+     */
+    private void sum(Language lang, DateTime startDate, DateTime endDate, RangeSum sum) {
+        Segments s = segments.get(lang);
+        if (s == null) {
+            return;
+        }
+        long firstHour = (startDate.getMillis() + MILLIS_PER_HOUR - 1) / MILLIS_PER_HOUR;
+        long lastHour = endDate.getMillis() / MILLIS_PER_HOUR;
+        if (firstHour > lastHour) {
+            return;
+        }
+        int lastDay = (int) (lastHour / PageViewSegment.HOURS_PER_DAY);
+        Integer day = s.days.ceilingKey((int) (firstHour / PageViewSegment.HOURS_PER_DAY));
+        while (day != null && day <= lastDay) {
+            int month = monthOf(day);
+            int monthEnd = firstDayOfMonth(month + 1) - 1;
+            PageViewCounts rollup = s.months.get(month);
+            if (rollup != null
+            &&  firstDayOfMonth(month) * (long) PageViewSegment.HOURS_PER_DAY >= firstHour
+            &&  (monthEnd + 1) * (long) PageViewSegment.HOURS_PER_DAY - 1 <= lastHour) {
+                sum.addMonth(rollup);
+                day = s.days.higherKey(monthEnd);
+                continue;
+            }
+            long dayStart = day * (long) PageViewSegment.HOURS_PER_DAY;
+            sum.addDay(s.days.get(day),
+                    (int) Math.max(0, firstHour - dayStart),
+                    (int) Math.min(PageViewSegment.HOURS_PER_DAY - 1, lastHour - dayStart));
+            day = s.days.higherKey(day);
+        }
+    }
+
+    /**
+     * Returns the hourly pageviews that match a PageViewDaoFilter.
+     */
+    @Override
+    public Iterable<PageView> get(DaoFilter daoFilter) throws DaoException {
+        if (!(daoFilter instanceof PageViewDaoFilter)) {
+            throw new DaoException("Need to input PageViewDaoFilter for PageViewColumnarDao get method");
+        }
+        PageViewDaoFilter filter = (PageViewDaoFilter) daoFilter;
+        // like sum(), the first hour is the first one that starts at or after the start date
+        long firstHour = (filter.getStartDate() == null) ? Long.MIN_VALUE : (filter.getStartDate().getMillis() + MILLIS_PER_HOUR - 1) / MILLIS_PER_HOUR;
+        long lastHour = (filter.getEndDate() == null) ? Long.MAX_VALUE : filter.getEndDate().getMillis() / MILLIS_PER_HOUR;
+        int[] sortedIds = null;
+        if (filter.getPageIds() != null) {
+            TIntSet idSet = new TIntHashSet();
+            for (Integer id : filter.getPageIds()) {
+                idSet.add(id);
+            }
+            sortedIds = idSet.toArray();
+            Arrays.sort(sortedIds);
+        }
+
+        List<PageView> result = new ArrayList<PageView>();
+        int[] views = new int[PageViewSegment.HOURS_PER_DAY];
+        for (Language lang : segments.keySet()) {
+            if (filter.getLangIds() != null && !filter.getLangIds().contains(lang.getId())) {
+                continue;
+            }
+            for (PageViewSegment segment : segments.get(lang).days.values()) {
+                long dayStart = segment.getDay() * (long) PageViewSegment.HOURS_PER_DAY;
+                if (dayStart + PageViewSegment.HOURS_PER_DAY <= firstHour || dayStart > lastHour) {
+                    continue;
+                }
+                PageViewCounts totals = segment.getTotals();
+                int[] indexes = (sortedIds == null) ? null : totals.match(sortedIds);
+                int n = (indexes == null) ? totals.size() : indexes.length;
+                for (int i = 0; i < n; i++) {
+                    int index = (indexes == null) ? i : indexes[i];
+                    if (index < 0) {
+                        continue;
+                    }
+                    segment.getHourlyViews(index, views);
+                    for (int h = 0; h < views.length; h++) {
+                        long hour = dayStart + h;
+                        if (views[h] == 0 || hour < firstHour || hour > lastHour
+                        ||  (filter.getMinNumViews() != null && views[h] < filter.getMinNumViews())
+                        ||  (filter.getMaxNumViews() != null && views[h] > filter.getMaxNumViews())) {
+                            continue;
+                        }
+                        result.add(new PageView(
+                                new LocalId(lang, totals.getPageId(index)),
+                                new Date(hour * MILLIS_PER_HOUR),
+                                views[h]));
+                        if (result.size() >= daoFilter.getLimitOrInfinity()) {
+                            return result;
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int getCount(DaoFilter daoFilter) throws DaoException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public LanguageSet getLoadedLanguages() throws DaoException {
+        return new LanguageSet(new ArrayList<Language>(segments.keySet()));
+    }
+
+    @Override
+    public void ensureLoaded(DateTime start, DateTime end, LanguageSet langs) throws DaoException {
+        ensureLoaded(Arrays.asList(new Interval(start, end)), langs);
+    }
+
+    @Override
+    public synchronized void ensureLoaded(List<Interval> intervals, final LanguageSet langs) throws DaoException {
+        SortedSet<DateTime> needed = new TreeSet<DateTime>();
+        for (Interval i : intervals) {
+            for (DateTime tstamp : PageViewUtils.timestampsInInterval(i.getStart(), i.getEnd())) {
+                for (Language l : langs) {
+                    if (!isLoaded(l, tstamp)) {
+                        needed.add(tstamp);
+                    }
+                }
+            }
+        }
+
+        if (needed.isEmpty()) {
+            LOG.info("All requested page views are loaded.");
+            return;
+        }
+
+        LOG.info(String.format("Loading pageviews for %d timestamps between %s and %s",
+                needed.size(), needed.first().toString(), needed.last().toString()));
+
+        PageViewDownloader downloader = new PageViewDownloader(downloadDir);
+        TreeMap<DateTime, File> toLoad;
+        try {
+            toLoad = downloader.download(needed);
+        } catch (WikiBrainException e) {
+            throw new DaoException(e);
+        }
+
+        // load a day at a time so only one day of hourly views is in memory
+        TreeMap<Integer, List<DateTime>> byDay = new TreeMap<Integer, List<DateTime>>();
+        for (DateTime tstamp : needed) {
+            int day = dayOf(tstamp.getMillis());
+            if (!byDay.containsKey(day)) {
+                byDay.put(day, new ArrayList<DateTime>());
+            }
+            byDay.get(day).add(tstamp);
+        }
+
+        AtomicInteger[] counters = new AtomicInteger[] { new AtomicInteger(), new AtomicInteger() };
+        TIntSet months = new TIntHashSet();
+        List<File> failed = new ArrayList<File>();
+        for (int day : byDay.keySet()) {
+            failed.addAll(loadDay(day, byDay.get(day), toLoad, langs, counters));
+            months.add(monthOf(day));
+        }
+        for (Language lang : langs) {
+            writeMonths(lang, months);
+        }
+
+        LOG.info(String.format("Found %d pageviews for langs %s and resolved %d of them.",
+                counters[0].get(), langs, counters[1].get()));
+        if (!failed.isEmpty()) {
+            throw new DaoException("reading " + failed.size() + " pageview files failed: " + failed);
+        }
+    }
+
+    /**
+     * Reads the pageview files for the hours of a day in parallel and writes a segment for
+     * each language. Only hours whose file was read are marked as loaded, so hours whose
+     * file is missing or unreadable are loaded again by the next call to ensureLoaded().
+     *
+     * @return The files that could not be read.
+     */
+    private List<File> loadDay(int day, List<DateTime> tstamps, final Map<DateTime, File> files,
+                         final LanguageSet langs, final AtomicInteger[] counters) throws DaoException {
+        final Map<Language, TIntIntMap[]> hours = new HashMap<Language, TIntIntMap[]>();
+        for (Language lang : langs) {
+            hours.put(lang, new TIntIntMap[PageViewSegment.HOURS_PER_DAY]);
+        }
+
+        List<DateTime> found = new ArrayList<DateTime>();
+        for (DateTime tstamp : tstamps) {
+            if (files.containsKey(tstamp)) {
+                found.add(tstamp);
+            } else {
+                LOG.warning("no pageview file for " + tstamp + "; it will be retried when next requested");
+            }
+        }
+        final List<File> failed = Collections.synchronizedList(new ArrayList<File>());
+        ParallelForEach.loop(found, new Procedure<DateTime>() {
+            @Override
+            public void call(DateTime tstamp) throws Exception {
+                File file = files.get(tstamp);
+                LOG.info("loading pageview file " + file);
+                Map<Language, TIntIntMap> views;
+                try {
+                    views = readFile(file, langs, counters);
+                } catch (RuntimeException e) {
+                    LOG.log(Level.SEVERE, "reading pageview file " + file + " failed", e);
+                    failed.add(file);
+                    return;
+                }
+                synchronized (hours) {
+                    for (Language lang : views.keySet()) {
+                        hours.get(lang)[hourOf(tstamp.getMillis())] = views.get(lang);
+                    }
+                }
+                LOG.info("finished pageview file " + file);
+            }
+        });
+
+        if (failed.size() < found.size()) {
+            for (Language lang : langs) {
+                writeDay(lang, day, hours.get(lang));
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Sums the views of each resolved page in a pageview file by language.
+     * Titles are resolved by the page dao's in-memory title to id map.
+     */
+    private Map<Language, TIntIntMap> readFile(File file, LanguageSet langs, AtomicInteger[] counters) {
+        Map<Language, TIntIntMap> views = new HashMap<Language, TIntIntMap>();
+        for (Language lang : langs) {
+            views.put(lang, new TIntIntHashMap());
+        }
+        for (RawPageView view : new PageViewReader(file, langs)) {
+            try {
+                counters[0].getAndIncrement();
+                int id = pageDao.getIdByTitle(view.getTitle());
+                if (id >= 0) {
+                    counters[1].incrementAndGet();
+                    views.get(view.getLanguage()).adjustOrPutValue(id, view.getViews(), view.getViews());
+                    metaDao.incrementRecords(PageView.class, view.getLanguage());
+                }
+            } catch (DaoException e) {
+                metaDao.incrementErrorsQuietly(PageView.class);
+                LOG.log(Level.WARNING, "resolving pageview for " + view.getTitle() + " failed", e);
+            }
+        }
+        return views;
+    }
+
+    /**
+     * Writes the segment for a day, keeping hours of an existing segment that are not replaced.
+     * The rollup for the day's month is dropped until it is rebuilt by writeMonths().
+     */
+    private void writeDay(Language lang, int day, TIntIntMap[] hours) throws DaoException {
+        Segments old = segments.get(lang);
+        File file = new File(getLangDir(lang), DAY_PREFIX + DAY_FORMAT.print(day * MILLIS_PER_DAY) + SUFFIX);
+        try {
+            file.getParentFile().mkdirs();
+            PageViewSegment.write(file, lang, day, hours, (old == null) ? null : old.days.get(day));
+            TreeMap<Integer, PageViewSegment> days = (old == null)
+                    ? new TreeMap<Integer, PageViewSegment>()
+                    : new TreeMap<Integer, PageViewSegment>(old.days);
+            TreeMap<Integer, PageViewCounts> months = (old == null)
+                    ? new TreeMap<Integer, PageViewCounts>()
+                    : new TreeMap<Integer, PageViewCounts>(old.months);
+            days.put(day, PageViewSegment.open(file));
+            months.remove(monthOf(day));
+            segments.put(lang, new Segments(days, months));
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    /**
+     * Rebuilds the rollups of the total views of each page in some months.
+     */
+    private void writeMonths(Language lang, TIntCollection months) throws DaoException {
+        Segments old = segments.get(lang);
+        if (old == null) {
+            return;
+        }
+        TreeMap<Integer, PageViewCounts> rollups = new TreeMap<Integer, PageViewCounts>(old.months);
+        try {
+            for (int month : months.toArray()) {
+                SortedMap<Integer, PageViewSegment> days = old.days.subMap(firstDayOfMonth(month), firstDayOfMonth(month + 1));
+                if (days.isEmpty()) {
+                    continue;
+                }
+                TIntIntMap totals = new TIntIntHashMap();
+                for (PageViewSegment segment : days.values()) {
+                    segment.getTotals().addTo(totals);
+                }
+                File file = new File(getLangDir(lang),
+                        MONTH_PREFIX + MONTH_FORMAT.print(firstDayOfMonth(month) * MILLIS_PER_DAY) + SUFFIX);
+                writeMonth(file, lang, month, PageViewCounts.fromMap(totals));
+                rollups.put(month, openMonth(file));
+            }
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+        segments.put(lang, new Segments(old.days, rollups));
+    }
+
+    private static void writeMonth(File file, Language lang, int month, PageViewCounts counts) throws IOException {
+        MappedColumnFile.Output out = new MappedColumnFile.Output(file);
+        try {
+            out.writeInt(MONTH_FILE_HEADER);
+            out.writeInt(lang.getId());
+            out.writeInt(month);
+            out.writeInt(counts.size());
+            counts.write(out);
+            out.commit();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static PageViewCounts openMonth(File file) throws IOException {
+        ByteBuffer buffer = MappedColumnFile.map(file, MONTH_FILE_HEADER, "pageview rollup");
+        return PageViewCounts.read(buffer, 16, buffer.getInt(12));
+    }
+
+    private boolean isLoaded(Language lang, DateTime tstamp) {
+        Segments s = segments.get(lang);
+        if (s == null) {
+            return false;
+        }
+        PageViewSegment segment = s.days.get(dayOf(tstamp.getMillis()));
+        return segment != null && segment.isHourLoaded(hourOf(tstamp.getMillis()));
+    }
+
+    private File getLangDir(Language lang) {
+        return new File(dir, lang.getLangCode());
+    }
+
+    private static int toInt(long views) {
+        return (int) Math.min(Integer.MAX_VALUE, views);
+    }
+
+    private static int dayOf(long millis) {
+        return (int) (millis / MILLIS_PER_DAY);
+    }
+
+    private static int hourOf(long millis) {
+        return (int) (millis / MILLIS_PER_HOUR % PageViewSegment.HOURS_PER_DAY);
+    }
+
+    /**
+     * @return The number of months between the epoch and the month containing a day.
+     */
+    private static int monthOf(int day) {
+        DateTime date = new DateTime(day * MILLIS_PER_DAY, DateTimeZone.UTC);
+        return (date.getYear() - 1970) * 12 + date.getMonthOfYear() - 1;
+    }
+
+    private static int firstDayOfMonth(int month) {
+        DateTime date = new DateTime(1970 + month / 12, month % 12 + 1, 1, 0, 0, DateTimeZone.UTC);
+        return dayOf(date.getMillis());
+    }
+
+    /**
+     * An immutable snapshot of the files for one language.
+     */
+    private static class Segments {
+        // keyed by days since the epoch
+        final TreeMap<Integer, PageViewSegment> days;
+        // keyed by months since the epoch
+        final TreeMap<Integer, PageViewCounts> months;
+
+        Segments(TreeMap<Integer, PageViewSegment> days, TreeMap<Integer, PageViewCounts> months) {
+            this.days = days;
+            this.months = months;
+        }
+    }
+
+    private interface RangeSum {
+        void addMonth(PageViewCounts counts);
+        void addDay(PageViewSegment segment, int fromHour, int toHour);
+    }
+
+    public static class Provider extends org.wikibrain.conf.Provider<PageViewDao> {
+        public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
+            super(configurator, config);
+        }
+
+        @Override
+        public Class getType() {
+            return PageViewDao.class;
+        }
+
+        @Override
+        public String getPath() {
+            return "dao.pageView";
+        }
+
+        @Override
+        public PageViewDao get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+            if (!config.getString("type").equals("columnar")) {
+                return null;
+            }
+            try {
+                return new PageViewColumnarDao(
+                        getConfigurator().get(MetaInfoDao.class),
+                        getConfigurator().get(LocalPageDao.class),
+                        new File(config.getString("dir")),
+                        new File(config.getString("path"))
+                );
+            } catch (DaoException e) {
+                throw new ConfigurationException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.wikibrain.pageview;
+
+import gnu.trove.map.TIntIntMap;
+import org.wikibrain.utils.MappedColumnFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Total views for a set of pages, stored as two parallel int columns: page ids in
+ * increasing order and their view counts.
+ *
+ * The columns are either on the heap or slices of a memory mapped file, and they
+ * are never modified, so sums may be computed concurrently without locking.
+ *
+ * @author Shilad Sen
+ */
+public class PageViewCounts {
+    private final IntBuffer pageIds;
+    private final IntBuffer views;
+
+    public PageViewCounts(IntBuffer pageIds, IntBuffer views) {
+        if (pageIds.limit() != views.limit()) {
+            throw new IllegalArgumentException("columns must have the same length");
+        }
+        this.pageIds = pageIds;
+        this.views = views;
+    }
+
+    /**
+     * @param map Views for each page id.
+     * @return
+     */
+    public static PageViewCounts fromMap(TIntIntMap map) {
+        int[] ids = map.keys();
+        Arrays.sort(ids);
+        int[] views = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            views[i] = map.get(ids[i]);
+        }
+        return new PageViewCounts(IntBuffer.wrap(ids), IntBuffer.wrap(views));
+    }
+
+    public int size() {
+        return pageIds.limit();
+    }
+
+    public int getPageId(int index) {
+        return pageIds.get(index);
+    }
+
+    public int getViews(int index) {
+        return views.get(index);
+    }
+
+    /**
+     * @return The index of the page id, or -1 if the page has no views.
+     */
+    public int indexOf(int pageId) {
+        int lo = 0;
+        int hi = size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int id = pageIds.get(mid);
+            if (id < pageId) {
+                lo = mid + 1;
+            } else if (id > pageId) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the index of each of the requested pages. Small requests are binary searched;
+     * large requests are merged with the page id column in a single sequential pass.
+     *
+     * @param sortedIds Page ids in increasing order.
+     * @return The index of each page id, or -1 for pages with no views.
+     */
+    public int[] match(int[] sortedIds) {
+        int[] indexes = new int[sortedIds.length];
+        int n = size();
+        if (sortedIds.length * 16L < n) {
+            for (int i = 0; i < sortedIds.length; i++) {
+                indexes[i] = indexOf(sortedIds[i]);
+            }
+            return indexes;
+        }
+        int j = 0;
+        for (int i = 0; i < sortedIds.length; i++) {
+            while (j < n && pageIds.get(j) < sortedIds[i]) {
+                j++;
+            }
+            indexes[i] = (j < n && pageIds.get(j) == sortedIds[i]) ? j : -1;
+        }
+        return indexes;
+    }
+
+    /**
+     * Adds the views of the requested pages to sums.
+     *
+     * @param sortedIds Page ids in increasing order.
+     * @param sums The running sum for each page id.
+     */
+    public void addTo(int[] sortedIds, long[] sums) {
+        int[] indexes = match(sortedIds);
+        for (int i = 0; i < indexes.length; i++) {
+            if (indexes[i] >= 0) {
+                sums[i] += views.get(indexes[i]);
+            }
+        }
+    }
+
+    /**
+     * Adds the views of all pages to a map from page id to views.
+     */
+    public void addTo(TIntIntMap sums) {
+        int n = size();
+        for (int i = 0; i < n; i++) {
+            int v = views.get(i);
+            sums.adjustOrPutValue(pageIds.get(i), v, v);
+        }
+    }
+
+    /**
+     * Writes the page id column followed by the view column.
+     */
+    void write(MappedColumnFile.Output out) throws IOException {
+        out.writeColumn(pageIds);
+        out.writeColumn(views);
+    }
+
+    /**
+     * Reads counts written by write() starting at position of a (mapped) buffer.
+     */
+    static PageViewCounts read(ByteBuffer buffer, int position, int size) {
+        return new PageViewCounts(
+                MappedColumnFile.intColumn(buffer, position, size),
+                MappedColumnFile.intColumn(buffer, position + 4 * size, size));
+    }
+}
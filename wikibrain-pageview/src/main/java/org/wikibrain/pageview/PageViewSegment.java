@@ -0,0 +1,289 @@
+package org.wikibrain.pageview;
+
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.utils.MappedColumnFile;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * The views of all pages in one language during one UTC day, stored in columns.
+ *
+ * The file for a segment contains the sorted page ids, the total views of each page
+ * for the day, and each page's offset into a block of hourly counts. The hourly counts
+ * of a page are a varint bitmask of the hours with views followed by a varint for each
+ * of those hours, so the many pages that are viewed in only a few hours take a few bytes.
+ *
+ * Segments are immutable and memory mapped. Sums over whole days only read the total
+ * column; the hourly block is decoded for partial days.
+ *
+ * @author Shilad Sen
+ */
+public class PageViewSegment {
+    public static final int FILE_HEADER = 0x9a9e5e01;
+    public static final int HOURS_PER_DAY = 24;
+    private static final int HEADER_SIZE = 24;
+
+    private final Language language;
+    private final int day;
+    private final int hoursLoaded;
+    private final PageViewCounts totals;
+    private final IntBuffer offsets;
+    private final ByteBuffer hourly;
+
+    private PageViewSegment(Language language, int day, int hoursLoaded,
+                            PageViewCounts totals, IntBuffer offsets, ByteBuffer hourly) {
+        this.language = language;
+        this.day = day;
+        this.hoursLoaded = hoursLoaded;
+        this.totals = totals;
+        this.offsets = offsets;
+        this.hourly = hourly;
+    }
+
+    public Language getLanguage() {
+        return language;
+    }
+
+    /**
+     * @return The number of days between the epoch and this segment's day (in UTC).
+     */
+    public int getDay() {
+        return day;
+    }
+
+    /**
+     * @return A bitmask whose bit h is set if hour h of the day has been loaded.
+     */
+    public int getHoursLoaded() {
+        return hoursLoaded;
+    }
+
+    public boolean isHourLoaded(int hour) {
+        return (hoursLoaded & (1 << hour)) != 0;
+    }
+
+    /**
+     * @return Total views of each page for the day.
+     */
+    public PageViewCounts getTotals() {
+        return totals;
+    }
+
+    /**
+     * Returns the views of the page at an index of the totals between two hours of the day.
+     *
+     * @param index
+     * @param fromHour First hour, inclusive.
+     * @param toHour Last hour, inclusive.
+     * @return
+     */
+    public int getViews(int index, int fromHour, int toHour) {
+        if (fromHour <= 0 && toHour >= HOURS_PER_DAY - 1) {
+            return totals.getViews(index);
+        }
+        int p = offsets.get(index);
+        int mask = readVInt(hourly, p);
+        p = skipVInt(hourly, p);
+        int sum = 0;
+        for (int hour = 0; mask != 0 && hour <= toHour; hour++, mask >>>= 1) {
+            if ((mask & 1) != 0) {
+                if (hour >= fromHour) {
+                    sum += readVInt(hourly, p);
+                }
+                p = skipVInt(hourly, p);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Fills views with the hourly views of the page at an index of the totals.
+     */
+    public void getHourlyViews(int index, int[] views) {
+        Arrays.fill(views, 0);
+        int p = offsets.get(index);
+        int mask = readVInt(hourly, p);
+        p = skipVInt(hourly, p);
+        for (int hour = 0; mask != 0; hour++, mask >>>= 1) {
+            if ((mask & 1) != 0) {
+                views[hour] = readVInt(hourly, p);
+                p = skipVInt(hourly, p);
+            }
+        }
+    }
+
+    /**
+     * Adds the views of the requested pages between two hours of the day to sums.
+     *
+     * @param sortedIds Page ids in increasing order.
+     * @param fromHour First hour, inclusive.
+     * @param toHour Last hour, inclusive.
+     * @param sums The running sum for each page id.
+     */
+    public void addTo(int[] sortedIds, int fromHour, int toHour, long[] sums) {
+        if (fromHour <= 0 && toHour >= HOURS_PER_DAY - 1) {
+            totals.addTo(sortedIds, sums);
+            return;
+        }
+        int[] indexes = totals.match(sortedIds);
+        for (int i = 0; i < indexes.length; i++) {
+            if (indexes[i] >= 0) {
+                sums[i] += getViews(indexes[i], fromHour, toHour);
+            }
+        }
+    }
+
+    /**
+     * Adds the views of all pages between two hours of the day to a map from page id to views.
+     */
+    public void addTo(int fromHour, int toHour, TIntIntMap sums) {
+        if (fromHour <= 0 && toHour >= HOURS_PER_DAY - 1) {
+            totals.addTo(sums);
+            return;
+        }
+        for (int i = 0; i < totals.size(); i++) {
+            int v = getViews(i, fromHour, toHour);
+            if (v > 0) {
+                sums.adjustOrPutValue(totals.getPageId(i), v, v);
+            }
+        }
+    }
+
+    /**
+     * Memory maps a segment.
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static PageViewSegment open(File file) throws IOException {
+        ByteBuffer buffer = MappedColumnFile.map(file, FILE_HEADER, "pageview segment");
+        Language lang = Language.getById(buffer.getInt(4));
+        int day = buffer.getInt(8);
+        int hoursLoaded = buffer.getInt(12);
+        int n = buffer.getInt(16);
+        int hourlyLength = buffer.getInt(20);
+
+        int p = HEADER_SIZE;
+        PageViewCounts totals = PageViewCounts.read(buffer, p, n);
+        p += 8 * n;
+        IntBuffer offsets = MappedColumnFile.intColumn(buffer, p, n);
+        p += 4 * n;
+        ByteBuffer hourly = MappedColumnFile.slice(buffer, p, hourlyLength);
+        return new PageViewSegment(lang, day, hoursLoaded, totals, offsets, hourly);
+    }
+
+    /**
+     * Writes a segment for a day, merging in the hours of a previous segment for the
+     * same day that are not being replaced.
+     *
+     * @param file
+     * @param lang
+     * @param day Days since the epoch (in UTC).
+     * @param hours Views for each hour of the day, or null for hours that were not loaded.
+     * @param previous An existing segment for the day, or null.
+     * @throws IOException
+     */
+    public static void write(File file, Language lang, int day, TIntIntMap[] hours, PageViewSegment previous) throws IOException {
+        if (hours.length != HOURS_PER_DAY) {
+            throw new IllegalArgumentException("expected views for " + HOURS_PER_DAY + " hours");
+        }
+        int hoursLoaded = (previous == null) ? 0 : previous.getHoursLoaded();
+        TIntSet idSet = new TIntHashSet();
+        for (int h = 0; h < HOURS_PER_DAY; h++) {
+            if (hours[h] != null) {
+                hoursLoaded |= (1 << h);
+                idSet.addAll(hours[h].keySet());
+            }
+        }
+        if (previous != null) {
+            for (int i = 0; i < previous.totals.size(); i++) {
+                idSet.add(previous.totals.getPageId(i));
+            }
+        }
+        int[] ids = idSet.toArray();
+        Arrays.sort(ids);
+        idSet = null;
+
+        int[] totals = new int[ids.length];
+        int[] offsets = new int[ids.length];
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        int[] views = new int[HOURS_PER_DAY];
+        int j = 0;  // index into the previous segment
+        for (int i = 0; i < ids.length; i++) {
+            Arrays.fill(views, 0);
+            if (previous != null) {
+                while (j < previous.totals.size() && previous.totals.getPageId(j) < ids[i]) {
+                    j++;
+                }
+                if (j < previous.totals.size() && previous.totals.getPageId(j) == ids[i]) {
+                    previous.getHourlyViews(j, views);
+                }
+            }
+            int mask = 0;
+            for (int h = 0; h < HOURS_PER_DAY; h++) {
+                if (hours[h] != null) {
+                    views[h] = hours[h].get(ids[i]);
+                }
+                if (views[h] > 0) {
+                    mask |= (1 << h);
+                    totals[i] += views[h];
+                }
+            }
+            offsets[i] = block.size();
+            writeVInt(block, mask);
+            for (int h = 0; h < HOURS_PER_DAY; h++) {
+                if (views[h] > 0) {
+                    writeVInt(block, views[h]);
+                }
+            }
+        }
+
+        MappedColumnFile.Output out = new MappedColumnFile.Output(file);
+        try {
+            out.writeInt(FILE_HEADER);
+            out.writeInt(lang.getId());
+            out.writeInt(day);
+            out.writeInt(hoursLoaded);
+            out.writeInt(ids.length);
+            out.writeInt(block.size());
+            new PageViewCounts(IntBuffer.wrap(ids), IntBuffer.wrap(totals)).write(out);
+            out.writeColumn(offsets);
+            block.writeTo(out);
+            out.commit();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeVInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVInt(ByteBuffer buffer, int p) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get(p++);
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static int skipVInt(ByteBuffer buffer, int p) {
+        while (buffer.get(p++) < 0) {
+            // continuation byte
+        }
+        return p;
+    }
+}
@@ -0,0 +1,132 @@
+package org.wikibrain.pageview;
+
+import gnu.trove.map.TIntIntMap;
+import org.apache.commons.io.FileUtils;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LocalId;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestPageViewColumnarDao {
+    private static final Language LANG = Language.SIMPLE;
+    private static final DateTime START = new DateTime(2014, 1, 28, 0, 0, DateTimeZone.UTC);
+    private static final int NUM_HOURS = 24 * 10;
+    private static final int NUM_PAGES = 50;
+
+    @Test
+    public void testSums() throws IOException, DaoException, ConfigurationException {
+        File dir = File.createTempFile("pageviews", null);
+        FileUtils.deleteQuietly(dir);
+        try {
+            // ten days spanning the end of January and the start of February
+            Random random = new Random(1);
+            int[][] views = new int[NUM_HOURS][NUM_PAGES];
+            PageViewColumnarDao dao = new PageViewColumnarDao(null, null, null, dir);
+            dao.beginLoad();
+            for (int h = 0; h < NUM_HOURS; h++) {
+                for (int p = 0; p < NUM_PAGES; p++) {
+                    if (random.nextInt(3) == 0) {
+                        views[h][p] = 1 + random.nextInt(p < 5 ? 100000 : 10);
+                        dao.save(new PageView(new LocalId(LANG, pageId(p)), hour(h).toDate(), views[h][p]));
+                    }
+                }
+            }
+            dao.endLoad();
+            check(dao, views, random);
+
+            // views are persisted
+            check(new PageViewColumnarDao(null, null, null, dir), views, random);
+
+            // reloading some hours of a day keeps the others
+            dao.beginLoad();
+            for (int p = 0; p < NUM_PAGES; p++) {
+                views[30][p] = p;
+                if (p > 0) {
+                    dao.save(new PageView(new LocalId(LANG, pageId(p)), hour(30).toDate(), p));
+                }
+            }
+            dao.endLoad();
+            check(dao, views, random);
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    private void check(PageViewColumnarDao dao, int[][] views, Random random) throws DaoException, ConfigurationException {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int p = 0; p < NUM_PAGES; p += 2) {
+            ids.add(pageId(p));
+        }
+        ids.add(pageId(NUM_PAGES + 1));     // never viewed
+        for (int i = 0; i < 100; i++) {
+            int from = random.nextInt(NUM_HOURS + 10) - 5;
+            int to = from + random.nextInt(NUM_HOURS);
+            if (i == 0) {
+                from = -24 * 40;    // covers all of January and February, so rollups are used
+                to = NUM_HOURS + 24 * 40;
+            }
+            // ranges include the hours from the first at or after start to the last at or before end
+            DateTime start = hour(from).minusMinutes(random.nextInt(60));
+            DateTime end = hour(to).plusMinutes(random.nextInt(60));
+
+            TIntIntMap all = dao.getAllViews(LANG, start, end);
+            Map<Integer, Integer> some = dao.getNumViews(LANG, ids, start, end);
+            assertEquals(ids.size(), some.size());
+            for (int p = 0; p < NUM_PAGES + 2; p++) {
+                int expected = 0;
+                for (int h = Math.max(0, from); h <= Math.min(to, NUM_HOURS - 1); h++) {
+                    expected += (p < NUM_PAGES) ? views[h][p] : 0;
+                }
+                assertEquals(expected, all.containsKey(pageId(p)) ? all.get(pageId(p)) : 0);
+                assertEquals(expected, dao.getNumViews(LANG, pageId(p), start, end));
+                if (ids.contains(pageId(p))) {
+                    assertEquals(expected, (int) some.get(pageId(p)));
+                }
+            }
+        }
+
+        checkGet(dao, views, hour(20), hour(50), 20, 50);
+        // like the sums, get() starts at the first hour at or after the start date
+        checkGet(dao, views, hour(20).plusMinutes(30), hour(50).plusMinutes(30), 21, 50);
+    }
+
+    private void checkGet(PageViewColumnarDao dao, int[][] views, DateTime start, DateTime end, int from, int to) throws DaoException {
+        PageViewDaoFilter filter = new PageViewDaoFilter()
+                .setPageIds(pageId(3))
+                .setStartDate(start)
+                .setEndDate(end);
+        int n = 0;
+        for (PageView view : dao.get(filter)) {
+            int h = (int) ((view.getHour().getTime() - START.getMillis()) / (60 * 60 * 1000));
+            assertTrue(h >= from && h <= to);
+            assertEquals(pageId(3), view.getPageId().getId());
+            assertEquals(views[h][3], view.getViews());
+            n++;
+        }
+        int expected = 0;
+        for (int h = from; h <= to; h++) {
+            expected += (views[h][3] > 0) ? 1 : 0;
+        }
+        assertEquals(expected, n);
+    }
+
+    private static DateTime hour(int h) {
+        return START.plusHours(h);
+    }
+
+    private static int pageId(int p) {
+        return 3 + p * 11;
+    }
+}
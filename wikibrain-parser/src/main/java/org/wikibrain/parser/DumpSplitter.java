@@ -1,11 +1,14 @@
 package org.wikibrain.parser;
 
 import org.apache.commons.compress.archivers.ArchiveException;
+import org.wikibrain.utils.ParallelBZip2InputStream;
 import org.wikibrain.utils.WpIOUtils;
 
 import javax.xml.stream.XMLStreamException;
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,6 +16,11 @@ import java.util.logging.Logger;
  * Iterates over a file containing an XML dump of wikipedia.
  * Each string is the contents of a single article.
  * Iterators are independent, so multiple iterators can simultaneously open a dump file.
+ *
+ * Multistream dumps (*-pages-articles-multistream.xml.bz2) consist of many small bzip2
+ * streams whose offsets are listed in an accompanying index file. If the index is
+ * available, the dump is split at stream boundaries and the streams are decompressed
+ * in parallel.
  */
 public class DumpSplitter implements Iterable<String> {
     public static final String ARTICLE_BEGIN = "<page>";
@@ -22,20 +30,83 @@ public class DumpSplitter implements Iterable<String> {
 
     private static final Logger LOG = Logger.getLogger(DumpSplitter.class.getName());
     private File path;
+    private File multistreamIndex;
 
     /**
      * Creates an iterator over the given file.
      * The file can be gzipped or bzipped.
+     * If the file is a multistream dump, its index is used if it is in the same directory.
      * @param path
      */
     public DumpSplitter(File path) {
+        this(path, findMultistreamIndex(path));
+    }
+
+    /**
+     * Creates an iterator over a multistream dump.
+     * @param path
+     * @param multistreamIndex The index of the dump, or null if it is unavailable.
+     */
+    public DumpSplitter(File path, File multistreamIndex) {
         this.path = path;
+        this.multistreamIndex = multistreamIndex;
     }
 
     public File getPath() {
         return path;
     }
 
+    /**
+     * @param path
+     * @return The index file beside a multistream dump, or null if there is none.
+     */
+    public static File findMultistreamIndex(File path) {
+        String name = path.getName();
+        if (!name.endsWith("-multistream.xml.bz2")) {
+            return null;
+        }
+        File index = new File(path.getParentFile(),
+                name.substring(0, name.length() - ".xml.bz2".length()) + "-index.txt.bz2");
+        return index.isFile() ? index : null;
+    }
+
+    /**
+     * Reads the byte offsets of the streams in a multistream dump.
+     * Each line of the index is "offset:pageId:title".
+     * @param index
+     * @return The distinct offsets, in increasing order.
+     * @throws IOException
+     */
+    public static long[] readStreamOffsets(File index) throws IOException {
+        List<Long> offsets = new ArrayList<Long>();
+        BufferedReader reader = WpIOUtils.openBufferedReader(index);
+        try {
+            long last = -1;
+            while (true) {
+                String line = reader.readLine();
+                if (line == null) {
+                    break;
+                }
+                int i = line.indexOf(':');
+                if (i <= 0) {
+                    continue;
+                }
+                long offset = Long.parseLong(line.substring(0, i));
+                if (offset > last) {
+                    offsets.add(offset);
+                    last = offset;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        long[] result = new long[offsets.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = offsets.get(i);
+        }
+        return result;
+    }
+
     @Override
     public Iterator<String> iterator() {
         try {
@@ -60,7 +131,14 @@ public class DumpSplitter implements Iterable<String> {
         private boolean closed = false;
 
         public ArticleIterator(File path) throws IOException, ArchiveException, XMLStreamException {
-            reader = WpIOUtils.openBufferedReader(path);
+            if (multistreamIndex == null) {
+                reader = WpIOUtils.openBufferedReader(path);
+            } else {
+                InputStream input = new ParallelBZip2InputStream(
+                        new BufferedInputStream(new FileInputStream(path)),
+                        readStreamOffsets(multistreamIndex));
+                reader = new BufferedReader(new InputStreamReader(input, "UTF-8"));
+            }
         }
 
         private void fillBuffer() {
@@ -2,6 +2,8 @@ package org.wikibrain.parser.sql;
 
 import com.akiban.sql.StandardException;
 import com.akiban.sql.parser.*;
+import com.typesafe.config.Config;
+import org.wikibrain.conf.Configuration;
 import org.wikibrain.utils.WpIOUtils;
 
 import java.io.BufferedReader;
@@ -13,11 +15,50 @@ import java.util.logging.Logger;
 
 /**
  * Parses a MySQL dump file containing insert statements.
+ *
+ * Dumps can be parsed in two modes: AST mode hands each INSERT line to a SQL parser,
+ * while STREAMING mode tokenizes tuples directly from the file (see MySqlInsertTokenizer),
+ * which is much faster and produces far less garbage. Both return the same rows.
+ * The mode for a table is configured in parser.sql.
  */
 public class MySqlDumpParser {
     private static final Logger LOG = Logger.getLogger(MySqlDumpParser.class.getName());
 
+    public static enum Mode {
+        AST,
+        STREAMING
+    }
+
     private SQLParser sqlParser = new SQLParser();
+    private final Mode mode;
+
+    /**
+     * Creates a parser in AST mode.
+     */
+    public MySqlDumpParser() {
+        this(Mode.AST);
+    }
+
+    public MySqlDumpParser(Mode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Creates a parser using the mode configured for a table in parser.sql,
+     * or the default mode if the table is not listed.
+     * @param conf
+     * @param table The name of the table in the dump, e.g. "pagelinks".
+     * @return
+     */
+    public static MySqlDumpParser forTable(Configuration conf, String table) {
+        Config config = conf.get().getConfig("parser.sql");
+        String mode = config.hasPath(table) ? config.getString(table) : config.getString("default");
+        return new MySqlDumpParser(Mode.valueOf(mode.toUpperCase()));
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
 
     /**
      * Parses a mysql dump into rows.
@@ -29,6 +70,9 @@ public class MySqlDumpParser {
             @Override
             public Iterator<Object[]> iterator() {
                 try {
+                    if (mode == Mode.STREAMING) {
+                        return new MySqlInsertTokenizer(dump.getAbsolutePath(), WpIOUtils.openInputStream(dump));
+                    }
                     return new MyIterator(dump);
                 } catch (IOException e) {
                     throw new RuntimeException(e);
@@ -0,0 +1,459 @@
+package org.wikibrain.parser.sql;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Streams the tuples of the INSERT statements in a MySQL dump without building a
+ * syntax tree or materializing the (often multi-megabyte) statement lines.
+ *
+ * Lines that do not start with "INSERT " are skipped. Values are returned with the
+ * same types as the SQL parser used by MySqlDumpParser:
+ * <ul>
+ *     <li>Quoted strings as Strings, with MySQL escape sequences resolved
+ *     (see http://dev.mysql.com/doc/refman/5.0/en/string-literals.html).</li>
+ *     <li>NULL as null.</li>
+ *     <li>Integers as Integer or Long, or BigDecimal if they do not fit in a long.</li>
+ *     <li>Decimals as BigDecimal, and numbers with exponents as Double.</li>
+ * </ul>
+ *
+ * A malformed statement is logged and skipped from the error to the end of its line.
+ * The stream is closed once it is exhausted.
+ */
+public class MySqlInsertTokenizer implements Iterator<Object[]>, Closeable {
+    private static final Logger LOG = Logger.getLogger(MySqlInsertTokenizer.class.getName());
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] INSERT = "INSERT ".getBytes(UTF8);
+    private static final int EOF = -1;
+
+    private final String name;
+    private InputStream in;
+    private final byte[] buffer = new byte[256 * 1024];
+    private int pos = 0;
+    private int limit = 0;
+    private int lineNum = 1;
+
+    // bytes of the current token
+    private byte[] token = new byte[1024];
+    private int tokenLength = 0;
+
+    // true while reading the tuples of an insert statement
+    private boolean inValues = false;
+    private String table = null;
+
+    private final List<Object> values = new ArrayList<Object>();
+    private Object[] next = null;
+
+    /**
+     * @param name Name of the input used in log messages (e.g. the path of the dump).
+     * @param in The dump. It should be buffered by the caller only if it is not
+     *           already efficient to read in large blocks.
+     */
+    public MySqlInsertTokenizer(String name, InputStream in) {
+        this.name = name;
+        this.in = in;
+    }
+
+    /**
+     * @return The table of the most recently returned tuple.
+     */
+    public String getTable() {
+        return table;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && in != null) {
+            try {
+                next = advance();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            if (next == null) {
+                close();
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public Object[] next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Object[] result = next;
+        next = null;
+        return result;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+        IOUtils.closeQuietly(in);
+        in = null;
+    }
+
+    /**
+     * @return The next tuple, or null at the end of the input.
+     */
+    private Object[] advance() throws IOException {
+        while (true) {
+            try {
+                if (!inValues) {
+                    if (!findInsert()) {
+                        return null;
+                    }
+                    inValues = true;
+                } else {
+                    int c = readNonSpace();
+                    if (c == ';' || c == EOF) {
+                        inValues = false;
+                        continue;
+                    } else if (c != ',') {
+                        throw new MalformedDumpException("expected ',' or ';' between tuples, found " + describe(c));
+                    }
+                }
+                return readTuple();
+            } catch (MalformedDumpException e) {
+                LOG.log(Level.SEVERE, "error parsing line " + lineNum + " of " + name + ": " + e.getMessage());
+                inValues = false;
+                skipLine();
+            }
+        }
+    }
+
+    /**
+     * Skips to the next insert statement and reads up to its VALUES keyword.
+     * @return False if there are no more insert statements.
+     */
+    private boolean findInsert() throws IOException {
+        while (true) {
+            int c = peek();
+            if (c == EOF) {
+                return false;
+            }
+            if (!matches(INSERT)) {
+                skipLine();
+                continue;
+            }
+            // INSERT [INTO] `table` [(columns)] VALUES
+            readWord();     // INSERT
+            readWord();
+            if (tokenEquals("INTO")) {
+                readWord();
+            }
+            table = stripQuotes(tokenString());
+            c = readNonSpace();
+            if (c == '(') {
+                while ((c = read()) != ')') {
+                    if (c == EOF || c == '\n') {
+                        throw new MalformedDumpException("unterminated column list");
+                    }
+                }
+                c = readNonSpace();
+            }
+            unread();
+            readWord();
+            if (!tokenEquals("VALUES")) {
+                throw new MalformedDumpException("expected VALUES, found " + tokenString());
+            }
+            return true;
+        }
+    }
+
+    private Object[] readTuple() throws IOException {
+        int c = readNonSpace();
+        if (c != '(') {
+            throw new MalformedDumpException("expected '(' at start of tuple, found " + describe(c));
+        }
+        values.clear();
+        while (true) {
+            values.add(readValue());
+            c = readNonSpace();
+            if (c == ')') {
+                return values.toArray();
+            } else if (c != ',') {
+                throw new MalformedDumpException("expected ',' or ')' in tuple, found " + describe(c));
+            }
+        }
+    }
+
+    private Object readValue() throws IOException {
+        int c = readNonSpace();
+        if (c == '\'' || c == '"') {
+            return readString(c);
+        } else if (c == '-' || c == '+' || c == '.' || (c >= '0' && c <= '9')) {
+            unread();
+            return readNumber();
+        } else if (isLetter(c)) {
+            unread();
+            readWord();
+            if (tokenEquals("NULL")) {
+                return null;
+            }
+            throw new MalformedDumpException("unexpected value " + tokenString());
+        } else {
+            throw new MalformedDumpException("unexpected " + describe(c) + " in tuple");
+        }
+    }
+
+    private String readString(int quote) throws IOException {
+        tokenLength = 0;
+        while (true) {
+            int c = read();
+            if (c == EOF) {
+                throw new MalformedDumpException("unterminated string");
+            } else if (c == quote) {
+                if (peek() != quote) {
+                    return new String(token, 0, tokenLength, UTF8);
+                }
+                read();                 // a doubled quote is a literal quote
+                append(quote);
+            } else if (c == '\\') {
+                c = read();
+                switch (c) {
+                    case '0' :  append(0); break;
+                    case 'b' :  append('\b'); break;
+                    case 'n' :  append('\n'); break;
+                    case 'r' :  append('\r'); break;
+                    case 't' :  append('\t'); break;
+                    case 'Z' :  append(0x1a); break;
+                    case '%' :
+                    case '_' :  append('\\'); append(c); break;     // MySQL keeps the backslash
+                    case EOF :  throw new MalformedDumpException("unterminated string");
+                    default :   append(c); break;                   // \\, \', \" and others
+                }
+            } else {
+                append(c);
+            }
+        }
+    }
+
+    private Object readNumber() throws IOException {
+        tokenLength = 0;
+        boolean integral = true;
+        boolean exponent = false;
+        while (true) {
+            int c = read();
+            if ((c >= '0' && c <= '9') || c == '-' || c == '+') {
+                append(c);
+            } else if (c == '.') {
+                integral = false;
+                append(c);
+            } else if (c == 'e' || c == 'E') {
+                integral = false;
+                exponent = true;
+                append(c);
+            } else {
+                unread();
+                break;
+            }
+        }
+        String s = tokenString();
+        try {
+            if (exponent) {
+                return Double.valueOf(s);
+            } else if (!integral || tokenLength > 19) {
+                return new BigDecimal(s);
+            }
+            long l = Long.parseLong(s.startsWith("+") ? s.substring(1) : s);
+            if (l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE) {
+                return (int) l;
+            } else {
+                return l;
+            }
+        } catch (NumberFormatException e) {
+            try {
+                return new BigDecimal(s);
+            } catch (NumberFormatException e2) {
+                throw new MalformedDumpException("invalid number " + s);
+            }
+        }
+    }
+
+    /**
+     * Reads a bare word (keyword or unquoted identifier) into the token,
+     * including backquotes, after skipping whitespace.
+     */
+    private void readWord() throws IOException {
+        tokenLength = 0;
+        int c = readNonSpace();
+        while (c != EOF && !isSpace(c) && c != '(' && c != ')' && c != ',' && c != ';') {
+            append(c);
+            c = read();
+        }
+        unread();
+        if (tokenLength == 0) {
+            throw new MalformedDumpException("expected a word, found " + describe(c));
+        }
+    }
+
+    /**
+     * @return True if the input at the start of the current line matches the prefix.
+     * The input is not consumed.
+     */
+    private boolean matches(byte[] prefix) throws IOException {
+        if (limit - pos < prefix.length) {
+            compact();
+        }
+        if (limit - pos < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer[pos + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void skipLine() throws IOException {
+        while (true) {
+            int c = read();
+            if (c == '\n' || c == EOF) {
+                return;
+            }
+        }
+    }
+
+    private int readNonSpace() throws IOException {
+        int c = read();
+        while (isSpace(c)) {
+            c = read();
+        }
+        return c;
+    }
+
+    private int read() throws IOException {
+        if (pos >= limit && !fill()) {
+            pos = limit + 1;        // so that unread() after EOF is harmless
+            return EOF;
+        }
+        int c = buffer[pos++] & 0xff;
+        if (c == '\n') {
+            lineNum++;
+        }
+        return c;
+    }
+
+    private int peek() throws IOException {
+        int c = read();
+        unread();
+        return c;
+    }
+
+    /**
+     * Pushes back the most recently read byte.
+     */
+    private void unread() {
+        pos--;
+        if (pos < limit && buffer[pos] == '\n') {
+            lineNum--;
+        }
+    }
+
+    /**
+     * Refills the (empty) buffer, keeping the last byte so it can be unread.
+     */
+    private boolean fill() throws IOException {
+        if (in == null) {
+            return false;
+        }
+        if (limit > 0) {
+            buffer[0] = buffer[limit - 1];
+            pos = limit = 1;
+        }
+        int n = in.read(buffer, limit, buffer.length - limit);
+        if (n <= 0) {
+            return false;
+        }
+        limit += n;
+        return true;
+    }
+
+    /**
+     * Moves the unread bytes to the front of the buffer and reads more.
+     */
+    private void compact() throws IOException {
+        if (in == null) {
+            return;
+        }
+        int start = Math.max(0, pos - 1);       // keep the last read byte for unread()
+        System.arraycopy(buffer, start, buffer, 0, limit - start);
+        pos -= start;
+        limit -= start;
+        while (limit < buffer.length) {
+            int n = in.read(buffer, limit, buffer.length - limit);
+            if (n <= 0) {
+                break;
+            }
+            limit += n;
+        }
+    }
+
+    private void append(int c) {
+        if (tokenLength == token.length) {
+            byte[] bigger = new byte[token.length * 2];
+            System.arraycopy(token, 0, bigger, 0, tokenLength);
+            token = bigger;
+        }
+        token[tokenLength++] = (byte) c;
+    }
+
+    private String tokenString() {
+        return new String(token, 0, tokenLength, UTF8);
+    }
+
+    private boolean tokenEquals(String keyword) {
+        if (tokenLength != keyword.length()) {
+            return false;
+        }
+        for (int i = 0; i < tokenLength; i++) {
+            if (Character.toUpperCase((char) token[i]) != keyword.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String stripQuotes(String identifier) {
+        if (identifier.length() >= 2 && identifier.startsWith("`") && identifier.endsWith("`")) {
+            return identifier.substring(1, identifier.length() - 1);
+        }
+        return identifier;
+    }
+
+    private static boolean isSpace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    private static boolean isLetter(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static String describe(int c) {
+        return (c == EOF) ? "end of input" : "'" + (char) c + "'";
+    }
+
+    private static class MalformedDumpException extends IOException {
+        MalformedDumpException(String message) {
+            super(message);
+        }
+    }
+}
@@ -1,9 +1,15 @@
 package org.wikibrain.parser;
 
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.io.FileUtils;
 import org.junit.Test;
+import org.wikibrain.utils.WpIOUtils;
+
 import static org.junit.Assert.*;
 
-import java.io.File;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
 
 public class TestDumpSplitter {
     public static final File EN_DUMP = new File("src/test/resources/org/wikibrain/parser/en_test.xml");
@@ -70,4 +76,74 @@ public class TestDumpSplitter {
             i++;
         }
     }
+
+    @Test
+    public void testMultistream() throws IOException {
+        File dir = WpIOUtils.createTempDirectory("multistream");
+        try {
+            File dump = new File(dir, "simplewiki-20140101-pages-articles-multistream.xml.bz2");
+            File index = new File(dir, "simplewiki-20140101-pages-articles-multistream-index.txt.bz2");
+            writeMultistream(EN_DUMP, dump, index, 5);
+            assertEquals(index, DumpSplitter.findMultistreamIndex(dump));
+            assertNull(DumpSplitter.findMultistreamIndex(EN_DUMP));
+
+            List<String> expected = new ArrayList<String>();
+            for (String text : new DumpSplitter(EN_DUMP)) {
+                expected.add(text);
+            }
+            List<String> actual = new ArrayList<String>();
+            for (String text : new DumpSplitter(dump)) {
+                actual.add(text);
+            }
+            assertEquals(44, actual.size());
+            assertEquals(expected, actual);
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    /**
+     * Writes a dump the way Wikipedia's multistream dumps are written: the header,
+     * each group of pages and the footer are separate bzip2 streams.
+     */
+    private static void writeMultistream(File xml, File dump, File index, int pagesPerStream) throws IOException {
+        List<String> streams = new ArrayList<String>();
+        List<Integer> pagesInStream = new ArrayList<Integer>();
+        StringBuilder current = new StringBuilder();
+        int numPages = 0;
+        BufferedReader reader = WpIOUtils.openBufferedReader(xml);
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            if (line.trim().equals(DumpSplitter.ARTICLE_BEGIN) && (streams.isEmpty() || numPages == pagesPerStream)) {
+                streams.add(current.toString());
+                pagesInStream.add(numPages);
+                current.setLength(0);
+                numPages = 0;
+            }
+            if (line.trim().equals(DumpSplitter.ARTICLE_END)) {
+                numPages++;
+            }
+            current.append(line).append("\n");
+        }
+        reader.close();
+        streams.add(current.toString());
+        pagesInStream.add(numPages);
+
+        OutputStream out = new FileOutputStream(dump);
+        BufferedWriter indexWriter = WpIOUtils.openBZ2Writer(index);
+        long offset = 0;
+        int pageId = 0;
+        for (int i = 0; i < streams.size(); i++) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            BZip2CompressorOutputStream bz = new BZip2CompressorOutputStream(bytes);
+            bz.write(streams.get(i).getBytes("UTF-8"));
+            bz.close();
+            for (int j = 0; j < pagesInStream.get(i); j++) {
+                indexWriter.write(offset + ":" + (pageId++) + ":Page " + pageId + "\n");
+            }
+            out.write(bytes.toByteArray());
+            offset += bytes.size();
+        }
+        out.close();
+        indexWriter.close();
+    }
 }
@@ -4,17 +4,21 @@ import com.akiban.sql.StandardException;
 import org.apache.commons.io.FileUtils;
 import org.junit.Test;
 import org.wikibrain.parser.sql.MySqlDumpParser;
+import org.wikibrain.parser.sql.MySqlInsertTokenizer;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 /**
  */
 public class TestMysqlDumpParser {
     public static final File LINK_DUMP = new File("src/test/resources/org/wikibrain/parser/pagelinks.sql");
+    public static final File LANGLINK_DUMP = new File("src/test/resources/org/wikibrain/parser/langlinks.sql");
 
     @Test
     public void test() {
@@ -38,4 +42,60 @@ public class TestMysqlDumpParser {
         List<Object[]> rows = parser.parse(lastLine);
         assertEquals(rows.size(), 437);
     }
+
+    @Test
+    public void testStreamingMatchesAst() throws IOException {
+        for (File dump : Arrays.asList(LINK_DUMP, LANGLINK_DUMP)) {
+            List<Object[]> expected = parseAll(new MySqlDumpParser(MySqlDumpParser.Mode.AST), dump);
+            List<Object[]> actual = parseAll(new MySqlDumpParser(MySqlDumpParser.Mode.STREAMING), dump);
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertArrayEquals(expected.get(i), actual.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testStreamingValues() throws IOException {
+        File gz = File.createTempFile("langlinks", ".sql.gz");
+        try {
+            OutputStream out = new GZIPOutputStream(new FileOutputStream(gz));
+            FileUtils.copyFile(LANGLINK_DUMP, out);
+            out.close();
+
+            List<Object[]> rows = parseAll(new MySqlDumpParser(MySqlDumpParser.Mode.STREAMING), gz);
+            assertEquals(14, rows.size());
+            assertArrayEquals(new Object[] { 1, "fr", "Pomme (fruit)" }, rows.get(1));
+            assertArrayEquals(new Object[] { 2, "en", "Rock 'n' roll" }, rows.get(2));
+            assertArrayEquals(new Object[] { 3, "ja", "東京都" }, rows.get(3));
+            assertArrayEquals(new Object[] { 5, "it", "C:\\Programmi" }, rows.get(5));
+            assertArrayEquals(new Object[] { 8, "pl", "Line\nbreak\ttab" }, rows.get(8));
+            assertArrayEquals(new Object[] { 9, "xx", null }, rows.get(9));
+            assertArrayEquals(new Object[] { 10, "en", "Semi;colon, (paren)" }, rows.get(10));
+            assertArrayEquals(new Object[] { 3000000000L, "ru", "Москва" }, rows.get(11));
+            assertArrayEquals(new Object[] { -12, "fi", "1.5" }, rows.get(12));
+            assertArrayEquals(new Object[] { 13, "sv", "It's" }, rows.get(13));
+        } finally {
+            FileUtils.deleteQuietly(gz);
+        }
+    }
+
+    @Test
+    public void testStreamingSkipsMalformedStatements() {
+        String dump = "INSERT INTO `t` VALUES (1,'a'),(2,oops),(3,'c');\n" +
+                      "INSERT INTO `t` VALUES (4,'d');\n";
+        MySqlInsertTokenizer tokenizer = new MySqlInsertTokenizer("test", new ByteArrayInputStream(dump.getBytes()));
+        assertArrayEquals(new Object[] { 1, "a" }, tokenizer.next());
+        assertArrayEquals(new Object[] { 4, "d" }, tokenizer.next());
+        assertEquals("t", tokenizer.getTable());
+        assertFalse(tokenizer.hasNext());
+    }
+
+    private static List<Object[]> parseAll(MySqlDumpParser parser, File dump) {
+        List<Object[]> rows = new ArrayList<Object[]>();
+        for (Object[] row : parser.parse(dump)) {
+            rows.add(row);
+        }
+        return rows;
+    }
 }
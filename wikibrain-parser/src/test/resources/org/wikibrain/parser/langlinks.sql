@@ -0,0 +1,29 @@
+-- MySQL dump 10.13  Distrib 5.1.66, for debian-linux-gnu (x86_64)
+--
+-- Host: 10.0.6.49    Database: simplewiki
+-- ------------------------------------------------------
+
+/*!40101 SET NAMES utf8 */;
+
+--
+-- Table structure for table `langlinks`
+--
+
+DROP TABLE IF EXISTS `langlinks`;
+CREATE TABLE `langlinks` (
+  `ll_from` int(8) unsigned NOT NULL DEFAULT '0',
+  `ll_lang` varbinary(20) NOT NULL DEFAULT '',
+  `ll_title` varbinary(255) NOT NULL DEFAULT '',
+  UNIQUE KEY `ll_from` (`ll_from`,`ll_lang`)
+) ENGINE=InnoDB DEFAULT CHARSET=binary;
+
+--
+-- Dumping data for table `langlinks`
+--
+
+LOCK TABLES `langlinks` WRITE;
+/*!40000 ALTER TABLE `langlinks` DISABLE KEYS */;
+INSERT INTO `langlinks` VALUES (1,'de','Apfel'),(1,'fr','Pomme (fruit)'),(2,'en','Rock \'n\' roll'),(3,'ja','東京都'),(4,'es','Señor'),(5,'it','C:\\Programmi'),(6,'de','Anführungszeichen \"x\"'),(7,'nl',''),(8,'pl','Line\nbreak\ttab'),(9,'xx',NULL),(10,'en','Semi;colon, (paren)');
+INSERT INTO `langlinks` VALUES (3000000000,'ru','Москва'),(-12,'fi','1.5'),(13,'sv','It''s');
+/*!40000 ALTER TABLE `langlinks` ENABLE KEYS */;
+UNLOCK TABLES;
@@ -174,7 +174,7 @@ public class LinkProbabilityDao {
     private void build(Language lang) throws DaoException {
         subGrams = new TLongHashSet();
 
-        final TLongIntMap counts = new TLongIntHashMap();
+        final TLongSet anchors = new TLongHashSet();
         Iterator<String> iter = phraseDao.getAllPhrases(lang);
         StringTokenizer tokenizer = new StringTokenizer();
 
@@ -189,9 +189,9 @@ public class LinkProbabilityDao {
                 hash = hashCode(lang, buffer.toString());
                 subGrams.add(hash);
             }
-            counts.put(hash, 0);
+            anchors.add(hash);
         }
-        LOG.info("found " + counts.size() + " unique anchortexts and " + subGrams.size() + " subgrams");
+        LOG.info("found " + anchors.size() + " unique anchortexts and " + subGrams.size() + " subgrams");
 
         DaoFilter filter = new DaoFilter()
                 .setRedirect(false)
@@ -199,6 +199,7 @@ public class LinkProbabilityDao {
                 .setNameSpaces(NameSpace.ARTICLE);
 
         LOG.info("building link probabilities for language " + lang);
+        final ConcurrentLongCounter counts = new ConcurrentLongCounter();
         ParallelForEach.iterate(
                 pageDao.get(filter).iterator(),
                 WpThreadUtils.getMaxThreads(),
@@ -206,7 +207,7 @@ public class LinkProbabilityDao {
                 new Procedure<RawPage>() {
                     @Override
                     public void call(RawPage page) throws Exception {
-                        processPage(counts, page);
+                        processPage(anchors, counts, page);
                     }
                 },
                 10000);
@@ -261,6 +262,7 @@ public class LinkProbabilityDao {
                     "Inserted link probabilities for %d anchors with mean probability %.4f and %d mises",
                     count, sum/count, misses));
         }
+        counts.close();
     }
 
     private TLongIntMap getPhraseLinkCounts(Language lang) {
@@ -276,7 +278,7 @@ public class LinkProbabilityDao {
         return counts;
     }
 
-    private void processPage(TLongIntMap counts, RawPage page) {
+    private void processPage(TLongSet anchors, ConcurrentLongCounter counts, RawPage page) {
         Language lang = page.getLanguage();
         StringTokenizer tokenizer = new StringTokenizer();
         for (Token sentence : tokenizer.getSentenceTokens(lang, page.getPlainText())) {
@@ -291,13 +293,11 @@ public class LinkProbabilityDao {
                     String phrase = cleanString(lang, buffer.toString(), true);
                     long hash = hashCode(lang, phrase);
                     if (subGrams.contains(hash)) {
-                        synchronized (counts) {
-                            if (counts.containsKey(hash)) {
-//                                System.out.println("here 1: " + phrase);
-                                counts.adjustValue(hash, 1);
-                            } else {
-//                                System.out.println("here 2: " + phrase);
-                            }
+                        if (anchors.contains(hash)) {
+//                            System.out.println("here 1: " + phrase);
+                            counts.increment(hash);
+                        } else {
+//                            System.out.println("here 2: " + phrase);
                         }
                     } else {
 //                        System.out.println("here 3: " + phrase);
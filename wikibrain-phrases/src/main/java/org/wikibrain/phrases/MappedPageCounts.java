@@ -0,0 +1,182 @@
+package org.wikibrain.phrases;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.TLongList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import org.apache.commons.io.FileUtils;
+import org.wikibrain.utils.LargeMappedBuffer;
+import org.wikibrain.utils.MappedColumnFile;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * An immutable, memory-mapped map from the page ids of a single language to the
+ * phrases that describe them.
+ *
+ * The file holds the page ids in increasing order, the (long) byte offset of each page's
+ * record, and the records: the total count, the number of phrases, and then (count, UTF-8
+ * length, UTF-8 bytes) triples in decreasing order by count. The file is mapped in chunks,
+ * so it is not limited to 2GB.
+ *
+ * @author Shilad Sen
+ */
+public class MappedPageCounts implements Closeable {
+    private static final Logger LOG = Logger.getLogger(MappedPageCounts.class.getName());
+
+    public static final int FILE_HEADER = 0x0f4a5e04;
+
+    private final File path;
+    private final int numPages;
+    private final long idsStart;
+    private final long offsetsStart;
+    private final long recordsStart;
+
+    private final LargeMappedBuffer buffer;
+
+    public MappedPageCounts(File path) throws IOException {
+        this.path = path;
+        buffer = new LargeMappedBuffer(path);
+        if (buffer.size() < 8 || buffer.getInt(0) != FILE_HEADER) {
+            buffer.close();
+            throw new IOException("invalid header in page file " + path);
+        }
+        numPages = buffer.getInt(4);
+        idsStart = 8;
+        offsetsStart = idsStart + 4L * numPages;
+        recordsStart = offsetsStart + 8L * numPages;
+        LOG.info("opened " + numPages + " pages from " + path);
+    }
+
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /**
+     * @param wpId A local page id.
+     * @param maxPhrases The maximum number of phrases to return.
+     * @return The phrases for the page, or null if it does not appear.
+     */
+    public PrunedCounts<String> getCounts(int wpId, int maxPhrases) {
+        int lo = 0;
+        int hi = numPages - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int id = buffer.getInt(idsStart + 4L * mid);
+            if (id < wpId) {
+                lo = mid + 1;
+            } else if (id > wpId) {
+                hi = mid - 1;
+            } else {
+                return getCountsAt(mid, maxPhrases);
+            }
+        }
+        return null;
+    }
+
+    private PrunedCounts<String> getCountsAt(int index, int maxPhrases) {
+        long p = recordsStart + buffer.getLong(offsetsStart + 8L * index);
+        PrunedCounts<String> counts = new PrunedCounts<String>(buffer.getInt(p));
+        int n = Math.min(maxPhrases, buffer.getInt(p + 4));
+        p += 8;
+        byte[] bytes = new byte[64];
+        for (int i = 0; i < n; i++) {
+            int count = buffer.getInt(p);
+            int length = buffer.getInt(p + 4);
+            p += 8;
+            if (length > bytes.length) {
+                bytes = new byte[2 * length];
+            }
+            buffer.get(p, bytes, 0, length);
+            p += length;
+            try {
+                counts.put(new String(bytes, 0, length, "UTF-8"), count);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer.close();
+    }
+
+    /**
+     * Writes a page file. Pages may be added in any order; if a page is added
+     * more than once, the last counts win. Not thread safe.
+     */
+    public static class Writer {
+        private final File path;
+        private final File recordsFile;
+        private final DataOutputStream records;
+        private final TIntList ids = new TIntArrayList();
+        private final TLongList offsets = new TLongArrayList();
+        private long recordsLength = 0;
+
+        public Writer(File path) throws IOException {
+            this.path = path;
+            this.recordsFile = new File(path + ".records.tmp");
+            this.records = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(recordsFile)));
+        }
+
+        public void add(int wpId, PrunedCounts<String> pageCounts) throws IOException {
+            ids.add(wpId);
+            offsets.add(recordsLength);
+            records.writeInt(pageCounts.getTotal());
+            records.writeInt(pageCounts.size());
+            recordsLength += 8;
+            for (String phrase : pageCounts.keySet()) {
+                byte[] bytes = phrase.getBytes("UTF-8");
+                records.writeInt(pageCounts.get(phrase));
+                records.writeInt(bytes.length);
+                records.write(bytes);
+                recordsLength += 8 + bytes.length;
+            }
+        }
+
+        /**
+         * Writes the page file and removes temporary files.
+         */
+        public void finish() throws IOException {
+            records.close();
+
+            // sort by id, then by the order in which pages were added
+            long[] order = new long[ids.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = ((long) ids.get(i) << 32) | i;
+            }
+            Arrays.sort(order);
+            TIntList sortedIds = new TIntArrayList();
+            TLongList sortedOffsets = new TLongArrayList();
+            for (int i = 0; i < order.length; i++) {
+                int id = (int) (order[i] >> 32);
+                int j = (int) order[i];
+                if (i + 1 < order.length && (int) (order[i + 1] >> 32) == id) {
+                    continue;   // a later record for the same page replaces this one
+                }
+                sortedIds.add(id);
+                sortedOffsets.add(offsets.get(j));
+            }
+
+            MappedColumnFile.Output out = new MappedColumnFile.Output(path);
+            try {
+                out.writeInt(FILE_HEADER);
+                out.writeInt(sortedIds.size());
+                out.writeColumn(sortedIds.toArray());
+                for (int i = 0; i < sortedOffsets.size(); i++) {
+                    out.writeLong(sortedOffsets.get(i));
+                }
+                FileUtils.copyFile(recordsFile, out);
+                out.commit();
+            } finally {
+                out.close();
+                FileUtils.deleteQuietly(recordsFile);
+            }
+            LOG.info("wrote " + sortedIds.size() + " pages to " + path);
+        }
+    }
+}
@@ -0,0 +1,450 @@
+package org.wikibrain.phrases;
+
+import gnu.trove.list.TLongList;
+import gnu.trove.list.array.TLongArrayList;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.wikibrain.utils.LargeMappedBuffer;
+import org.wikibrain.utils.MappedColumnFile;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * An immutable, memory-mapped dictionary from the normalized phrases of a single
+ * language to the pages they refer to.
+ *
+ * The phrases are stored in sorted order as front-coded UTF-8 strings: every
+ * BUCKET_SIZE-th phrase is stored in full, and the others as the length of the prefix
+ * they share with the previous phrase followed by the remaining bytes. Lookups binary
+ * search the full phrases at the start of each bucket and then scan a single bucket
+ * without decoding any strings. The page counts are packed ints: the total count, the
+ * number of pages, and then (page id, count) pairs in decreasing order by count.
+ * Bucket offsets are byte offsets into the phrases and count offsets are int offsets
+ * into the counts, so neither section is limited to 2GB.
+ *
+ * The file is mapped in chunks and read with absolute gets only, so lookups need no locks.
+ *
+ * @author Shilad Sen
+ */
+public class MappedPhraseCounts implements Closeable {
+    private static final Logger LOG = Logger.getLogger(MappedPhraseCounts.class.getName());
+
+    public static final int FILE_HEADER = 0x0f4a5e03;
+    public static final int BUCKET_SIZE = 16;
+    private static final int HEADER_SIZE = 20;
+
+    private final File path;
+    private final int numPhrases;
+    private final int numBuckets;
+    private final long bucketOffsetsStart;
+    private final long countOffsetsStart;
+    private final long keysStart;
+    private final long countsStart;
+
+    private final LargeMappedBuffer buffer;
+
+    public MappedPhraseCounts(File path) throws IOException {
+        this.path = path;
+        buffer = new LargeMappedBuffer(path);
+        if (buffer.size() < HEADER_SIZE || buffer.getInt(0) != FILE_HEADER) {
+            buffer.close();
+            throw new IOException("invalid header in phrase file " + path);
+        }
+        numPhrases = buffer.getInt(4);
+        numBuckets = buffer.getInt(8);
+        long keysLength = buffer.getLong(12);
+        bucketOffsetsStart = HEADER_SIZE;
+        countOffsetsStart = bucketOffsetsStart + 8L * numBuckets;
+        keysStart = countOffsetsStart + 8L * numPhrases;
+        countsStart = keysStart + pad(keysLength);
+        LOG.info("opened " + numPhrases + " phrases from " + path);
+    }
+
+    public int getNumPhrases() {
+        return numPhrases;
+    }
+
+    /**
+     * @param phrase A normalized phrase.
+     * @return The index of the phrase in sorted order, or -1 if it does not appear.
+     */
+    public int getIndex(String phrase) {
+        // find the last bucket whose first phrase is <= the phrase
+        int lo = 0;
+        int hi = numBuckets - 1;
+        int bucket = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long p = keysStart + buffer.getLong(bucketOffsetsStart + 8L * mid);
+            p = skipVInt(p);                    // shared prefix length, always 0
+            int len = readVInt(p);
+            int c = compare(phrase, buffer, skipVInt(p), len);
+            if (c == 0) {
+                return mid * BUCKET_SIZE;
+            } else if (c < 0) {
+                hi = mid - 1;
+            } else {
+                bucket = mid;
+                lo = mid + 1;
+            }
+        }
+        if (bucket < 0) {
+            return -1;
+        }
+
+        // Scan the bucket, tracking how many bytes of the phrase the current entry matches.
+        byte[] key = encode(phrase);
+        long p = keysStart + buffer.getLong(bucketOffsetsStart + 8L * bucket);
+        int matched = 0;
+        int end = Math.min(numPhrases, (bucket + 1) * BUCKET_SIZE);
+        for (int i = bucket * BUCKET_SIZE; i < end; i++) {
+            int shared = readVInt(p);
+            p = skipVInt(p);
+            int suffixLength = readVInt(p);
+            p = skipVInt(p);
+            if (shared == matched) {
+                int j = 0;
+                while (j < suffixLength && matched < key.length && buffer.get(p + j) == key[matched]) {
+                    j++;
+                    matched++;
+                }
+                if (j == suffixLength && matched == key.length) {
+                    return i;
+                }
+            } else if (shared < matched) {
+                matched = shared;
+            }
+            p += suffixLength;
+        }
+        return -1;
+    }
+
+    /**
+     * @param phrase A normalized phrase.
+     * @param maxPages The maximum number of pages to return.
+     * @return The pages for the phrase, or null if it does not appear.
+     */
+    public PrunedCounts<Integer> getCounts(String phrase, int maxPages) {
+        int i = getIndex(phrase);
+        return (i < 0) ? null : getCountsAt(i, maxPages);
+    }
+
+    private PrunedCounts<Integer> getCountsAt(int index, int maxPages) {
+        long p = countsStart + 4 * buffer.getLong(countOffsetsStart + 8L * index);
+        PrunedCounts<Integer> counts = new PrunedCounts<Integer>(buffer.getInt(p));
+        int n = Math.min(maxPages, buffer.getInt(p + 4));
+        p += 8;
+        for (int i = 0; i < n; i++) {
+            counts.put(buffer.getInt(p), buffer.getInt(p + 4));
+            p += 8;
+        }
+        return counts;
+    }
+
+    /**
+     * @return The phrases and their counts, in sorted order.
+     */
+    public Iterator<Pair<String, PrunedCounts<Integer>>> iterator() {
+        return new Iterator<Pair<String, PrunedCounts<Integer>>>() {
+            private int index = 0;
+            private long p = keysStart;
+            private byte[] key = new byte[256];
+
+            @Override
+            public boolean hasNext() {
+                return index < numPhrases;
+            }
+
+            @Override
+            public Pair<String, PrunedCounts<Integer>> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int shared = readVInt(p);
+                p = skipVInt(p);
+                int suffixLength = readVInt(p);
+                p = skipVInt(p);
+                if (shared + suffixLength > key.length) {
+                    byte[] bigger = new byte[2 * (shared + suffixLength)];
+                    System.arraycopy(key, 0, bigger, 0, shared);
+                    key = bigger;
+                }
+                for (int j = 0; j < suffixLength; j++) {
+                    key[shared + j] = buffer.get(p + j);
+                }
+                p += suffixLength;
+                String phrase = decode(key, shared + suffixLength);
+                return Pair.of(phrase, getCountsAt(index++, Integer.MAX_VALUE));
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer.close();
+    }
+
+    private int readVInt(long p) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = buffer.get(p++);
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private long skipVInt(long p) {
+        while ((buffer.get(p++) & 0x80) != 0) {
+            // continue
+        }
+        return p;
+    }
+
+    /**
+     * Compares a string with UTF-8 bytes in a buffer using the ordering of
+     * String.compareTo(), without decoding the bytes into a string.
+     */
+    static int compare(String s, LargeMappedBuffer buffer, long start, int length) {
+        int i = 0;
+        long p = start;
+        long end = start + length;
+        while (p < end) {
+            int b = buffer.get(p) & 0xff;
+            int cp;
+            if (b < 0x80) {
+                cp = b;
+                p += 1;
+            } else if (b < 0xe0) {
+                cp = ((b & 0x1f) << 6) | (buffer.get(p + 1) & 0x3f);
+                p += 2;
+            } else if (b < 0xf0) {
+                cp = ((b & 0x0f) << 12) | ((buffer.get(p + 1) & 0x3f) << 6) | (buffer.get(p + 2) & 0x3f);
+                p += 3;
+            } else {
+                cp = ((b & 0x07) << 18) | ((buffer.get(p + 1) & 0x3f) << 12)
+                        | ((buffer.get(p + 2) & 0x3f) << 6) | (buffer.get(p + 3) & 0x3f);
+                p += 4;
+            }
+            if (cp < 0x10000) {
+                if (i >= s.length()) {
+                    return -1;
+                }
+                int c = s.charAt(i++) - cp;
+                if (c != 0) {
+                    return c;
+                }
+            } else {
+                // compare the two UTF-16 surrogates of the code point
+                char high = (char) (((cp - 0x10000) >>> 10) + 0xd800);
+                char low = (char) (((cp - 0x10000) & 0x3ff) + 0xdc00);
+                if (i >= s.length()) {
+                    return -1;
+                }
+                int c = s.charAt(i++) - high;
+                if (c != 0) {
+                    return c;
+                }
+                if (i >= s.length()) {
+                    return -1;
+                }
+                c = s.charAt(i++) - low;
+                if (c != 0) {
+                    return c;
+                }
+            }
+        }
+        return (i < s.length()) ? 1 : 0;
+    }
+
+    private static long pad(long length) {
+        return (length + 3) / 4 * 4;
+    }
+
+    private static byte[] encode(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(byte[] bytes, int length) {
+        try {
+            return new String(bytes, 0, length, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Writes a phrase file in a single pass over phrases in sorted order
+     * (as defined by String.compareTo()).
+     *
+     * If a phrase is added more than once, the last counts win. The occasional phrase
+     * that arrives out of order is held in memory and merged in by a second pass when
+     * the writer finishes. Not thread safe.
+     */
+    public static class Writer {
+        private final File path;
+        private final File keysFile;
+        private final File countsFile;
+        private final DataOutputStream keys;
+        private final DataOutputStream counts;
+        private final TLongList bucketOffsets = new TLongArrayList();
+        private final TLongList countOffsets = new TLongArrayList();
+        private long keysLength = 0;
+        private long countsLength = 0;
+
+        // the most recently added phrase, which is written once a different phrase arrives
+        private String pendingPhrase = null;
+        private PrunedCounts<Integer> pendingCounts = null;
+        private byte[] lastKey = new byte[0];
+        private final SortedMap<String, PrunedCounts<Integer>> outOfOrder = new TreeMap<String, PrunedCounts<Integer>>();
+
+        public Writer(File path) throws IOException {
+            this.path = path;
+            this.keysFile = new File(path + ".keys.tmp");
+            this.countsFile = new File(path + ".counts.tmp");
+            this.keys = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(keysFile)));
+            this.counts = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(countsFile)));
+        }
+
+        public void add(String phrase, PrunedCounts<Integer> phraseCounts) throws IOException {
+            if (pendingPhrase != null) {
+                int c = phrase.compareTo(pendingPhrase);
+                if (c < 0) {
+                    outOfOrder.put(phrase, phraseCounts);
+                    return;
+                } else if (c > 0) {
+                    write(pendingPhrase, pendingCounts);
+                }
+            }
+            pendingPhrase = phrase;
+            pendingCounts = phraseCounts;
+        }
+
+        private void write(String phrase, PrunedCounts<Integer> phraseCounts) throws IOException {
+            byte[] key = encode(phrase);
+            int i = countOffsets.size();
+            int shared = 0;
+            if (i % BUCKET_SIZE == 0) {
+                bucketOffsets.add(keysLength);
+            } else {
+                int n = Math.min(key.length, lastKey.length);
+                while (shared < n && key[shared] == lastKey[shared]) {
+                    shared++;
+                }
+            }
+            keysLength += writeVInt(keys, shared);
+            keysLength += writeVInt(keys, key.length - shared);
+            keys.write(key, shared, key.length - shared);
+            keysLength += key.length - shared;
+            lastKey = key;
+
+            countOffsets.add(countsLength);
+            counts.writeInt(phraseCounts.getTotal());
+            counts.writeInt(phraseCounts.size());
+            for (Integer id : phraseCounts.keySet()) {
+                counts.writeInt(id);
+                counts.writeInt(phraseCounts.get(id));
+            }
+            countsLength += 2 + 2 * phraseCounts.size();
+        }
+
+        /**
+         * Writes the phrase file and removes temporary files.
+         */
+        public void finish() throws IOException {
+            if (pendingPhrase != null) {
+                write(pendingPhrase, pendingCounts);
+            }
+            keys.close();
+            counts.close();
+            writeFile();
+            if (!outOfOrder.isEmpty()) {
+                mergeOutOfOrder();
+            }
+            LOG.info("wrote " + countOffsets.size() + " phrases to " + path);
+        }
+
+        private void writeFile() throws IOException {
+            MappedColumnFile.Output out = new MappedColumnFile.Output(path);
+            try {
+                int numPhrases = countOffsets.size();
+                out.writeInt(FILE_HEADER);
+                out.writeInt(numPhrases);
+                out.writeInt(bucketOffsets.size());
+                out.writeLong(keysLength);
+                for (int i = 0; i < bucketOffsets.size(); i++) {
+                    out.writeLong(bucketOffsets.get(i));
+                }
+                for (int i = 0; i < numPhrases; i++) {
+                    out.writeLong(countOffsets.get(i));
+                }
+                FileUtils.copyFile(keysFile, out);
+                for (long i = keysLength; i < pad(keysLength); i++) {
+                    out.write(0);
+                }
+                FileUtils.copyFile(countsFile, out);
+                out.commit();
+            } finally {
+                out.close();
+                FileUtils.deleteQuietly(keysFile);
+                FileUtils.deleteQuietly(countsFile);
+            }
+        }
+
+        /**
+         * Rewrites the phrase file, merging in the phrases that arrived out of order.
+         */
+        private void mergeOutOfOrder() throws IOException {
+            LOG.info("merging " + outOfOrder.size() + " out of order phrases into " + path);
+            File tmp = new File(path + ".merged.tmp");
+            MappedPhraseCounts written = new MappedPhraseCounts(path);
+            Writer merged = new Writer(tmp);
+            try {
+                Iterator<Pair<String, PrunedCounts<Integer>>> iter = written.iterator();
+                Pair<String, PrunedCounts<Integer>> next = iter.hasNext() ? iter.next() : null;
+                for (Map.Entry<String, PrunedCounts<Integer>> entry : outOfOrder.entrySet()) {
+                    while (next != null && next.getLeft().compareTo(entry.getKey()) < 0) {
+                        merged.add(next.getLeft(), next.getRight());
+                        next = iter.hasNext() ? iter.next() : null;
+                    }
+                    if (next != null && next.getLeft().equals(entry.getKey())) {
+                        next = iter.hasNext() ? iter.next() : null;     // replaced by the later counts
+                    }
+                    merged.add(entry.getKey(), entry.getValue());
+                }
+                while (next != null) {
+                    merged.add(next.getLeft(), next.getRight());
+                    next = iter.hasNext() ? iter.next() : null;
+                }
+                merged.finish();
+            } finally {
+                written.close();
+            }
+            FileUtils.deleteQuietly(path);
+            FileUtils.moveFile(tmp, path);
+        }
+
+        private static int writeVInt(DataOutputStream out, int value) throws IOException {
+            int n = 1;
+            while ((value & ~0x7f) != 0) {
+                out.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+                n++;
+            }
+            out.write(value);
+            return n;
+        }
+    }
+}
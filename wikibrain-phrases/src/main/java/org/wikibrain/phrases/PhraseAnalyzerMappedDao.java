@@ -0,0 +1,252 @@
+package org.wikibrain.phrases;
+
+import com.typesafe.config.Config;
+import org.apache.commons.collections.Transformer;
+import org.apache.commons.collections.iterators.TransformIterator;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.Configurator;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.StringNormalizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Persists information about phrases to page relationships in memory-mapped files,
+ * one pair of files per language (see MappedPhraseCounts and MappedPageCounts).
+ *
+ * Unlike PhraseAnalyzerObjectDbDao, the files are immutable: phrases must be saved in
+ * sorted order (as BasePhraseAnalyzer.loadCorpus does) and saved counts become visible
+ * once the dao is closed. Lookups do not lock or deserialize objects, and iterating over
+ * the phrases in a language is a sequential scan of that language's file.
+ */
+public class PhraseAnalyzerMappedDao implements PhraseAnalyzerDao {
+    private static final String PHRASE_PREFIX = "phrases_";
+    private static final String PAGE_PREFIX = "pages_";
+    private static final String SUFFIX = ".bin";
+
+    private final StringNormalizer normalizer;
+    private final File dir;
+
+    private final Map<Language, MappedPhraseCounts.Writer> phraseWriters = new HashMap<Language, MappedPhraseCounts.Writer>();
+    private final Map<Language, MappedPageCounts.Writer> pageWriters = new HashMap<Language, MappedPageCounts.Writer>();
+
+    // immutable snapshots that are replaced when the dao is closed
+    private volatile Map<Language, MappedPhraseCounts> phrases = Collections.emptyMap();
+    private volatile Map<Language, MappedPageCounts> pages = Collections.emptyMap();
+
+    /**
+     * Creates a new dao using the given directory.
+     * @param path
+     * @param isNew If true, delete any information contained in the directory.
+     * @throws DaoException
+     */
+    public PhraseAnalyzerMappedDao(StringNormalizer normalizer, File path, boolean isNew) throws DaoException {
+        this.dir = path;
+        this.normalizer = normalizer;
+        if (isNew) {
+            if (path.exists()) FileUtils.deleteQuietly(path);
+        }
+        path.mkdirs();
+        open();
+    }
+
+    /**
+     * Maps the files for all languages in the directory.
+     */
+    private void open() throws DaoException {
+        Map<Language, MappedPhraseCounts> newPhrases = new HashMap<Language, MappedPhraseCounts>();
+        Map<Language, MappedPageCounts> newPages = new HashMap<Language, MappedPageCounts>();
+        File[] files = dir.listFiles();
+        try {
+            for (File file : (files == null) ? new File[0] : files) {
+                String name = file.getName();
+                if (!name.endsWith(SUFFIX)) {
+                    continue;
+                }
+                if (name.startsWith(PHRASE_PREFIX)) {
+                    newPhrases.put(getLanguage(name, PHRASE_PREFIX), new MappedPhraseCounts(file));
+                } else if (name.startsWith(PAGE_PREFIX)) {
+                    newPages.put(getLanguage(name, PAGE_PREFIX), new MappedPageCounts(file));
+                }
+            }
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+        phrases = newPhrases;
+        pages = newPages;
+    }
+
+    private static Language getLanguage(String fileName, String prefix) {
+        return Language.getByLangCode(fileName.substring(prefix.length(), fileName.length() - SUFFIX.length()));
+    }
+
+    private File getFile(String prefix, Language lang) {
+        return new File(dir, prefix + lang.getLangCode() + SUFFIX);
+    }
+
+    @Override
+    public synchronized void savePageCounts(Language lang, int wpId, PrunedCounts<String> counts) throws DaoException {
+        try {
+            MappedPageCounts.Writer writer = pageWriters.get(lang);
+            if (writer == null) {
+                writer = new MappedPageCounts.Writer(getFile(PAGE_PREFIX, lang));
+                pageWriters.put(lang, writer);
+            }
+            writer.add(wpId, counts);
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    @Override
+    public synchronized void savePhraseCounts(Language lang, String phrase, PrunedCounts<Integer> counts) throws DaoException {
+        phrase = normalizer.normalize(lang, phrase);
+        try {
+            MappedPhraseCounts.Writer writer = phraseWriters.get(lang);
+            if (writer == null) {
+                writer = new MappedPhraseCounts.Writer(getFile(PHRASE_PREFIX, lang));
+                phraseWriters.put(lang, writer);
+            }
+            writer.add(phrase, counts);
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    @Override
+    public Iterator<String> getAllPhrases(Language lang) {
+        Transformer getPhrase = new Transformer() {
+            @Override
+            public Object transform(Object o) {
+                return ((Pair<String, PrunedCounts<Integer>>) o).getLeft();
+            }
+        };
+        return new TransformIterator(getAllPhraseCounts(lang), getPhrase);
+    }
+
+    @Override
+    public Iterator<Pair<String, PrunedCounts<Integer>>> getAllPhraseCounts(Language lang) {
+        MappedPhraseCounts counts = phrases.get(lang);
+        if (counts == null) {
+            return Collections.<Pair<String, PrunedCounts<Integer>>>emptyList().iterator();
+        }
+        return counts.iterator();
+    }
+
+    @Override
+    public StringNormalizer getStringNormalizer() {
+        return normalizer;
+    }
+
+    /**
+     * Gets pages related to a phrase.
+     *
+     * @param lang
+     * @param phrase
+     * @param maxPages
+     * @return Map from page ids (in the local language) to the number of occurrences
+     * ordered by decreasing count.
+     * @throws DaoException
+     */
+    @Override
+    public PrunedCounts<Integer> getPhraseCounts(Language lang, String phrase, int maxPages) throws DaoException {
+        MappedPhraseCounts counts = phrases.get(lang);
+        if (counts == null) {
+            return null;
+        }
+        return counts.getCounts(normalizer.normalize(lang, phrase), maxPages);
+    }
+
+    /**
+     * Gets phrases related to a page.
+     * @param lang
+     * @param wpId Local page id
+     * @param maxPhrases
+     * @return Map from phrasese (in the local language) to the number of occurrences
+     * ordered by decreasing count.
+     * @throws DaoException
+     */
+    @Override
+    public PrunedCounts<String> getPageCounts(Language lang, int wpId, int maxPhrases) throws DaoException {
+        MappedPageCounts counts = pages.get(lang);
+        if (counts == null) {
+            return null;
+        }
+        return counts.getCounts(wpId, maxPhrases);
+    }
+
+    @Override
+    public void flush() {
+        // Files are only written when the dao is closed.
+    }
+
+    /**
+     * Writes the files for any saved counts and maps them so they can be read.
+     * @throws DaoException
+     */
+    @Override
+    public synchronized void close() throws DaoException {
+        try {
+            for (MappedPhraseCounts.Writer writer : phraseWriters.values()) {
+                writer.finish();
+            }
+            for (MappedPageCounts.Writer writer : pageWriters.values()) {
+                writer.finish();
+            }
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+        if (phraseWriters.isEmpty() && pageWriters.isEmpty()) {
+            return;
+        }
+        phraseWriters.clear();
+        pageWriters.clear();
+        for (MappedPhraseCounts counts : phrases.values()) {
+            IOUtils.closeQuietly(counts);
+        }
+        for (MappedPageCounts counts : pages.values()) {
+            IOUtils.closeQuietly(counts);
+        }
+        open();
+    }
+
+    public static class Provider extends org.wikibrain.conf.Provider<PhraseAnalyzerDao> {
+        public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
+            super(configurator, config);
+        }
+
+        @Override
+        public Class<PhraseAnalyzerDao> getType() {
+            return PhraseAnalyzerDao.class;
+        }
+
+        @Override
+        public String getPath() {
+            return "phrases.dao";
+        }
+
+        @Override
+        public PhraseAnalyzerDao get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+            if (!config.getString("type").equals("mapped")) {
+                return null;
+            }
+            boolean isNew = config.getBoolean("isNew");
+
+            File path = new File(getConfig().get().getString("phrases.path"), name);
+            StringNormalizer normalizer = getConfigurator().get(StringNormalizer.class, config.getString("normalizer"));
+
+            try {
+                return new PhraseAnalyzerMappedDao(normalizer, path, isNew);
+            } catch (DaoException e) {
+                throw new ConfigurationException(e);
+            }
+        }
+    }
+}
@@ -17,6 +17,7 @@ import java.io.IOException;
 import java.util.*;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 
@@ -137,4 +138,124 @@ public class TestPhraseAnalyzerDao {
         assertEquals(2, phraseCounts.get(0).getValue().size());
         assertEquals((Integer)7, (Integer)phraseCounts.get(0).getValue().get(349));
     }
+
+    @Test
+    public void testMappedDao() throws IOException, DaoException {
+        File tmp = File.createTempFile("testdb", ".db", null);
+        tmp.delete();
+        FileUtils.forceDeleteOnExit(tmp);
+
+        StringNormalizer normalizer = new LuceneStringNormalizer(new TokenizerOptions(true, false, false), Version.LUCENE_43);
+        PhraseAnalyzerDao dao = new PhraseAnalyzerMappedDao(normalizer, tmp, true);
+        Language en = Language.getByLangCode("en");
+
+        PrunedCounts<Integer> c1 = new PrunedCounts<Integer>(12);
+        c1.put(349, 7);
+        c1.put(3121, 3);
+        dao.savePhraseCounts(en, "FOo!", c1);
+
+        PrunedCounts<String> c2 = new PrunedCounts<String>(13);
+        c2.put("Bar", 9);
+        c2.put("baz", 3);
+        c2.put("boof", 1);
+        dao.savePageCounts(en, 3214, c2);
+        dao.close();
+
+        // reopen the dao from disk
+        dao = new PhraseAnalyzerMappedDao(normalizer, tmp, false);
+        assertNull(dao.getPageCounts(en, 34321, 19));
+        assertNull(dao.getPhraseCounts(en, "sadfas", 19));
+        assertNull(dao.getPhraseCounts(Language.getByLangCode("de"), "foo", 19));
+
+        PrunedCounts<Integer> c3 = dao.getPhraseCounts(en, "fOO-", 5);
+        assertNotNull(c3);
+        assertEquals(12, c3.getTotal());
+        assertEquals(Arrays.asList(349, 3121), new ArrayList<Integer>(c3.keySet()));
+        assertEquals(Arrays.asList(7, 3), new ArrayList<Integer>(c3.values()));
+
+        PrunedCounts<Integer> c4 = dao.getPhraseCounts(en, "fOO-", 1);
+        assertEquals(Arrays.asList(349), new ArrayList<Integer>(c4.keySet()));
+
+        PrunedCounts<String> c5 = dao.getPageCounts(en, 3214, 5);
+        assertNotNull(c5);
+        assertEquals(13, c5.getTotal());
+        assertEquals(Arrays.asList("Bar", "baz", "boof"), new ArrayList<String>(c5.keySet()));
+        assertEquals(Arrays.asList(9, 3, 1), new ArrayList<Integer>(c5.values()));
+
+        PrunedCounts<String> c6 = dao.getPageCounts(en, 3214, 2);
+        assertEquals(Arrays.asList("Bar", "baz"), new ArrayList<String>(c6.keySet()));
+
+        List<String> phrases = IteratorUtils.toList(dao.getAllPhrases(en));
+        assertEquals(Arrays.asList("foo"), phrases);
+        dao.close();
+    }
+
+    @Test
+    public void testMappedPhraseCounts() throws IOException {
+        File tmp = File.createTempFile("phrases", ".bin", null);
+        tmp.delete();
+        FileUtils.forceDeleteOnExit(tmp);
+
+        // phrases with shared prefixes and multi-byte and supplementary characters
+        Random random = new Random(17);
+        String alphabet = "aab\u00e9\u4e2d\ud83d\ude00 ";
+        TreeMap<String, Integer> expected = new TreeMap<String, Integer>();
+        while (expected.size() < 2000) {
+            StringBuilder phrase = new StringBuilder();
+            int n = 1 + random.nextInt(8);
+            for (int i = 0; i < n; i++) {
+                int j = random.nextInt(alphabet.length());
+                if (Character.isHighSurrogate(alphabet.charAt(j))) {
+                    phrase.append(alphabet, j, j + 2);
+                } else if (Character.isLowSurrogate(alphabet.charAt(j))) {
+                    phrase.append(alphabet, j - 1, j + 1);
+                } else {
+                    phrase.append(alphabet.charAt(j));
+                }
+            }
+            expected.put(phrase.toString(), expected.size());
+        }
+
+        // add every tenth phrase out of order
+        MappedPhraseCounts.Writer writer = new MappedPhraseCounts.Writer(tmp);
+        List<String> late = new ArrayList<String>();
+        for (String phrase : expected.keySet()) {
+            if (expected.get(phrase) % 10 == 0) {
+                late.add(phrase);
+            } else {
+                writer.add(phrase, makeCounts(expected.get(phrase)));
+            }
+        }
+        for (String phrase : late) {
+            writer.add(phrase, makeCounts(expected.get(phrase)));
+        }
+        writer.finish();
+
+        MappedPhraseCounts counts = new MappedPhraseCounts(tmp);
+        assertEquals(expected.size(), counts.getNumPhrases());
+        int i = 0;
+        for (String phrase : expected.keySet()) {
+            assertEquals(i++, counts.getIndex(phrase));
+            PrunedCounts<Integer> c = counts.getCounts(phrase, 10);
+            assertEquals(expected.get(phrase) + 1, c.getTotal());
+            assertEquals(Arrays.asList(expected.get(phrase)), new ArrayList<Integer>(c.keySet()));
+            assertEquals(-1, counts.getIndex(phrase + "z"));
+            assertNull(counts.getCounts(phrase.substring(0, phrase.length() - 1) + "q", 10));
+        }
+        assertEquals(-1, counts.getIndex(""));
+        Iterator<Pair<String, PrunedCounts<Integer>>> iter = counts.iterator();
+        for (String phrase : expected.keySet()) {
+            Pair<String, PrunedCounts<Integer>> pair = iter.next();
+            assertEquals(phrase, pair.getLeft());
+            assertEquals(expected.get(phrase) + 1, pair.getRight().getTotal());
+        }
+        assertFalse(iter.hasNext());
+        counts.close();
+    }
+
+    private static PrunedCounts<Integer> makeCounts(int id) {
+        PrunedCounts<Integer> counts = new PrunedCounts<Integer>(id + 1);
+        counts.put(id, 1);
+        return counts;
+    }
 }
@@ -2,16 +2,15 @@ package org.wikibrain.spatial.distance;
 
 import com.vividsolutions.jts.geom.*;
 import com.vividsolutions.jts.operation.distance.DistanceOp;
+import gnu.trove.list.TDoubleList;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.set.TIntSet;
-import net.sf.jsi.Rectangle;
-import net.sf.jsi.rtree.RTree;
 import org.geotools.referencing.GeodeticCalculator;
 import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.spatial.constants.Precision;
 import org.wikibrain.spatial.dao.SpatialDataDao;
-import org.wikibrain.utils.ParallelForEach;
-import org.wikibrain.utils.Procedure;
-import org.wikibrain.utils.WpThreadUtils;
 
 import java.util.List;
 import java.util.Map;
@@ -26,7 +25,7 @@ import java.util.logging.Logger;
  */
 public class GeodeticDistanceMetric implements SpatialDistanceMetric {
     private static final Logger LOG = Logger.getLogger(SpatialDistanceMetric.class.getName());
-    private RTree index;
+    private volatile GeodeticRTree index;
     private final SpatialDataDao spatialDao;
     private TIntSet concepts;
 
@@ -50,31 +49,34 @@ public class GeodeticDistanceMetric implements SpatialDistanceMetric {
             index = null;
             return;
         }
-        index = new RTree();
-        index.init(null);
-        final Map<Integer, Geometry> points = this.spatialDao.getAllGeometriesInLayer("wikidata", Precision.LatLonPrecision.HIGH);
-        ParallelForEach.loop(points.keySet(), WpThreadUtils.getMaxThreads(),
-                new Procedure<Integer>() {
-            @Override
-            public void call(Integer conceptId) throws Exception {
-                if (concepts != null && !concepts.contains(conceptId)) {
-                    return;
-                }
-                Envelope e = points.get(conceptId)
-                        .getEnvelope()
-                        .buffer(1 / 10000.0)    // roughly 10m
-                        .getEnvelopeInternal();
-                Rectangle r = new Rectangle(
-                        (float)e.getMinX(), (float)e.getMinY(),
-                        (float)e.getMaxX(), (float)e.getMaxY());
-                synchronized (index) {
-                    index.add(r, conceptId);
-                }
+        Map<Integer, Geometry> points = this.spatialDao.getAllGeometriesInLayer("wikidata", Precision.LatLonPrecision.HIGH);
+        TIntList ids = new TIntArrayList(points.size());
+        TDoubleList boxes = new TDoubleArrayList(points.size() * 4);
+        for (Map.Entry<Integer, Geometry> entry : points.entrySet()) {
+            if (concepts != null && !concepts.contains(entry.getKey())) {
+                continue;
             }
-        }, 100000);
+            Envelope e = entry.getValue().getEnvelopeInternal();
+            ids.add(entry.getKey());
+            boxes.add(new double[] { e.getMinX(), e.getMinY(), e.getMaxX(), e.getMaxY() });
+        }
+        index = GeodeticRTree.build(ids.toArray(), boxes.toArray());
         LOG.info("loaded " + index.size() + " points");
     }
 
+    /**
+     * Uses a spatial index that was previously built and written to disk.
+     * @see GeodeticRTree#write(java.io.File)
+     * @param index
+     */
+    public void setIndex(GeodeticRTree index) {
+        this.index = index;
+    }
+
+    public GeodeticRTree getIndex() {
+        return index;
+    }
+
     @Override
     public String getName() {
         return "geodetic distance metric";
@@ -110,15 +112,19 @@ public class GeodeticDistanceMetric implements SpatialDistanceMetric {
         return getNeighbors(g, maxNeighbors, Double.MAX_VALUE);
     }
 
+    /**
+     * Returns the concepts closest to the centroid of a geometry.
+     * Distances are great-circle distances in meters.
+     */
     @Override
     public List<Neighbor> getNeighbors(Geometry g, int maxNeighbors, double maxDistance) {
+        GeodeticRTree index = this.index;
         if (index == null) {
             // TODO: get from Toby's code
             throw new UnsupportedOperationException();
         }
         Point c = g.getCentroid();
-        net.sf.jsi.Point p = new net.sf.jsi.Point((float)c.getX(), (float)c.getY());
-        return index.nearestN(p, maxNeighbors, (float)maxDistance);
+        return index.nearest(c.getX(), c.getY(), maxNeighbors, maxDistance);
     }
 
     public Geometry cleanupGeometry(Geometry g) {
@@ -0,0 +1,469 @@
+package org.wikibrain.spatial.distance;
+
+import gnu.trove.list.TDoubleList;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import org.wikibrain.utils.MappedColumnFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A static R-tree over lat / lon bounding boxes that answers k-nearest-neighbor
+ * queries using great-circle distances.
+ *
+ * The tree is bulk loaded with Sort-Tile-Recursive packing, so every node except the
+ * last at each level is full. All boxes and pointers are stored in packed buffers that
+ * are never modified after the tree is built, so any number of threads may query the
+ * tree without locking. The buffers can be written to a file and memory mapped.
+ *
+ * Boxes are stored as (minLon, minLat, maxLon, maxLat) in degrees. Nearest neighbor
+ * search is best first, using the exact great-circle distance between the query point
+ * and the closest point of a node's box as a lower bound. Longitudes wrap around the
+ * antimeridian, so a query at 179.9 finds neighbors at -179.9.
+ *
+ * @author Shilad Sen
+ */
+public class GeodeticRTree {
+    public static final int FILE_HEADER = 0x5eed1e55;
+
+    public static final int DEFAULT_NODE_CAPACITY = 16;
+
+    /**
+     * Mean radius of the earth in meters.
+     */
+    public static final double EARTH_RADIUS = 6371008.8;
+
+    private final int nodeCapacity;
+    private final int numEntries;
+    private final int numNodes;
+    private final int numLeaves;
+
+    // four doubles per entry and node
+    private final DoubleBuffer entryBoxes;
+    private final DoubleBuffer nodeBoxes;
+
+    private final IntBuffer entryIds;
+
+    // children of a node are the contiguous range [start, start + count) of entries for
+    // leaves and of nodes otherwise. Leaves come first; the root is the last node.
+    private final IntBuffer childStarts;
+    private final IntBuffer childCounts;
+
+    private GeodeticRTree(int nodeCapacity, int numEntries, int numNodes, int numLeaves,
+                          DoubleBuffer entryBoxes, DoubleBuffer nodeBoxes,
+                          IntBuffer entryIds, IntBuffer childStarts, IntBuffer childCounts) {
+        this.nodeCapacity = nodeCapacity;
+        this.numEntries = numEntries;
+        this.numNodes = numNodes;
+        this.numLeaves = numLeaves;
+        this.entryBoxes = entryBoxes;
+        this.nodeBoxes = nodeBoxes;
+        this.entryIds = entryIds;
+        this.childStarts = childStarts;
+        this.childCounts = childCounts;
+    }
+
+    /**
+     * @return The number of entries in the tree.
+     */
+    public int size() {
+        return numEntries;
+    }
+
+    public int getNodeCapacity() {
+        return nodeCapacity;
+    }
+
+    /**
+     * Builds a tree using the default node capacity.
+     * @see #build(int[], double[], int)
+     */
+    public static GeodeticRTree build(int[] ids, double[] boxes) {
+        return build(ids, boxes, DEFAULT_NODE_CAPACITY);
+    }
+
+    /**
+     * Bulk loads a tree.
+     *
+     * @param ids The id of each entry.
+     * @param boxes Four values per entry: minLon, minLat, maxLon, maxLat in degrees.
+     *              Points have equal min and max values.
+     * @param nodeCapacity The maximum number of children per node.
+     * @return
+     */
+    public static GeodeticRTree build(int[] ids, double[] boxes, int nodeCapacity) {
+        if (boxes.length != 4 * ids.length) {
+            throw new IllegalArgumentException("expected four coordinates per id");
+        }
+        if (nodeCapacity < 2) {
+            throw new IllegalArgumentException("node capacity must be at least 2");
+        }
+        int n = ids.length;
+
+        // entries are ordered by tiles, and each run of nodeCapacity entries becomes a leaf.
+        int[] order = tileOrder(boxes, 0, n, nodeCapacity);
+        int[] sortedIds = new int[n];
+        double[] sortedBoxes = new double[4 * n];
+        for (int i = 0; i < n; i++) {
+            sortedIds[i] = ids[order[i]];
+            System.arraycopy(boxes, 4 * order[i], sortedBoxes, 4 * i, 4);
+        }
+
+        TDoubleList nodeBoxes = new TDoubleArrayList();
+        TIntList starts = new TIntArrayList();
+        TIntList counts = new TIntArrayList();
+        pack(sortedBoxes, 0, n, nodeCapacity, nodeBoxes, starts, counts);
+        int numLeaves = starts.size();
+
+        // each level is ordered by tiles in place, then packed into its parent level.
+        int levelStart = 0;
+        int levelEnd = numLeaves;
+        while (levelEnd - levelStart > 1) {
+            double[] levelBoxes = nodeBoxes.toArray(4 * levelStart, 4 * (levelEnd - levelStart));
+            int[] levelStarts = starts.toArray(levelStart, levelEnd - levelStart);
+            int[] levelCounts = counts.toArray(levelStart, levelEnd - levelStart);
+            int[] levelOrder = tileOrder(levelBoxes, 0, levelEnd - levelStart, nodeCapacity);
+            for (int i = 0; i < levelOrder.length; i++) {
+                int j = levelOrder[i];
+                for (int k = 0; k < 4; k++) {
+                    nodeBoxes.set(4 * (levelStart + i) + k, levelBoxes[4 * j + k]);
+                }
+                starts.set(levelStart + i, levelStarts[j]);
+                counts.set(levelStart + i, levelCounts[j]);
+            }
+            double[] packedBoxes = nodeBoxes.toArray(4 * levelStart, 4 * (levelEnd - levelStart));
+            int before = starts.size();
+            pack(packedBoxes, 0, levelEnd - levelStart, nodeCapacity, nodeBoxes, starts, counts);
+            for (int i = before; i < starts.size(); i++) {
+                starts.set(i, starts.get(i) + levelStart);
+            }
+            levelStart = levelEnd;
+            levelEnd = starts.size();
+        }
+
+        return new GeodeticRTree(nodeCapacity, n, starts.size(), numLeaves,
+                DoubleBuffer.wrap(sortedBoxes),
+                DoubleBuffer.wrap(nodeBoxes.toArray()),
+                IntBuffer.wrap(sortedIds),
+                IntBuffer.wrap(starts.toArray()),
+                IntBuffer.wrap(counts.toArray()));
+    }
+
+    /**
+     * Groups runs of nodeCapacity consecutive boxes into nodes.
+     */
+    private static void pack(double[] boxes, int from, int to, int nodeCapacity,
+                             TDoubleList nodeBoxes, TIntList starts, TIntList counts) {
+        for (int i = from; i < to; i += nodeCapacity) {
+            int end = Math.min(to, i + nodeCapacity);
+            double minLon = Double.POSITIVE_INFINITY, minLat = Double.POSITIVE_INFINITY;
+            double maxLon = Double.NEGATIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+            for (int j = i; j < end; j++) {
+                minLon = Math.min(minLon, boxes[4 * j]);
+                minLat = Math.min(minLat, boxes[4 * j + 1]);
+                maxLon = Math.max(maxLon, boxes[4 * j + 2]);
+                maxLat = Math.max(maxLat, boxes[4 * j + 3]);
+            }
+            nodeBoxes.add(new double[]{minLon, minLat, maxLon, maxLat});
+            starts.add(i);
+            counts.add(end - i);
+        }
+    }
+
+    /**
+     * Returns the Sort-Tile-Recursive order of a range of boxes: boxes are sorted by the
+     * longitude of their centers and cut into vertical slices of roughly sqrt(numNodes)
+     * nodes, and each slice is sorted by the latitude of its centers.
+     */
+    private static int[] tileOrder(double[] boxes, int from, int to, int nodeCapacity) {
+        int n = to - from;
+        int numNodes = (n + nodeCapacity - 1) / nodeCapacity;
+        int numSlices = (int) Math.ceil(Math.sqrt(numNodes));
+        int sliceSize = (int) Math.ceil(1.0 * numNodes / Math.max(numSlices, 1)) * nodeCapacity;
+
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            int j = from + i;
+            keys[i] = sortKey((boxes[4 * j] + boxes[4 * j + 2]) / 2, i);
+        }
+        Arrays.sort(keys);
+
+        for (int s = 0; s < n; s += sliceSize) {
+            int end = Math.min(n, s + sliceSize);
+            for (int i = s; i < end; i++) {
+                int j = from + (int) keys[i];
+                keys[i] = sortKey((boxes[4 * j + 1] + boxes[4 * j + 3]) / 2, (int) keys[i]);
+            }
+            Arrays.sort(keys, s, end);
+        }
+
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = from + (int) keys[i];
+        }
+        return order;
+    }
+
+    /**
+     * Packs a coordinate (at float precision) and an index into a long whose natural
+     * ordering is by coordinate and then index.
+     */
+    private static long sortKey(double coordinate, int index) {
+        int bits = Float.floatToIntBits((float) coordinate);
+        if (bits < 0) {
+            bits ^= 0x7fffffff;
+        }
+        return ((long) bits << 32) | index;
+    }
+
+    /**
+     * @see #nearest(double, double, int, double)
+     */
+    public List<SpatialDistanceMetric.Neighbor> nearest(double lon, double lat, int maxNeighbors) {
+        return nearest(lon, lat, maxNeighbors, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Finds the entries closest to a point.
+     *
+     * @param lon Longitude of the query point in degrees.
+     * @param lat Latitude of the query point in degrees.
+     * @param maxNeighbors
+     * @param maxDistance Maximum great-circle distance in meters.
+     * @return Neighbors ordered by increasing distance in meters. The distance to a
+     * box is the distance to its closest point, or zero if it contains the query.
+     */
+    public List<SpatialDistanceMetric.Neighbor> nearest(double lon, double lat, int maxNeighbors, double maxDistance) {
+        List<SpatialDistanceMetric.Neighbor> result = new ArrayList<SpatialDistanceMetric.Neighbor>();
+        if (numNodes == 0 || maxNeighbors <= 0) {
+            return result;
+        }
+        double lon0 = Math.toRadians(lon);
+        double lat0 = Math.toRadians(lat);
+        double sinLat0 = Math.sin(lat0);
+        double cosLat0 = Math.cos(lat0);
+
+        // nodes are pushed as their index, entries as -(index + 1)
+        Heap heap = new Heap();
+        heap.push(boxDistance(nodeBoxes, numNodes - 1, lon0, lat0, sinLat0, cosLat0), numNodes - 1);
+        while (heap.size() > 0 && result.size() < maxNeighbors) {
+            double d = heap.peekKey();
+            int item = heap.pop();
+            if (d > maxDistance) {
+                break;
+            }
+            if (item < 0) {
+                int entry = -item - 1;
+                result.add(new SpatialDistanceMetric.Neighbor(entryIds.get(entry), d));
+                continue;
+            }
+            int start = childStarts.get(item);
+            int end = start + childCounts.get(item);
+            if (item < numLeaves) {
+                for (int i = start; i < end; i++) {
+                    double d2 = boxDistance(entryBoxes, i, lon0, lat0, sinLat0, cosLat0);
+                    if (d2 <= maxDistance) {
+                        heap.push(d2, -i - 1);
+                    }
+                }
+            } else {
+                for (int i = start; i < end; i++) {
+                    double d2 = boxDistance(nodeBoxes, i, lon0, lat0, sinLat0, cosLat0);
+                    if (d2 <= maxDistance) {
+                        heap.push(d2, i);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the great-circle distance in meters from a point to the closest point of a box.
+     *
+     * If the query longitude falls within the box the closest point lies on the same
+     * meridian. Otherwise it lies on the box edge whose meridian is nearest (going around
+     * the antimeridian if that is shorter), at the latitude closest to the great circle
+     * through the query point.
+     */
+    private static double boxDistance(DoubleBuffer boxes, int i, double lon0, double lat0, double sinLat0, double cosLat0) {
+        double minLon = Math.toRadians(boxes.get(4 * i));
+        double minLat = Math.toRadians(boxes.get(4 * i + 1));
+        double maxLon = Math.toRadians(boxes.get(4 * i + 2));
+        double maxLat = Math.toRadians(boxes.get(4 * i + 3));
+
+        double fromMin = wrap(lon0 - minLon);
+        if (fromMin < 0) {
+            fromMin += 2 * Math.PI;
+        }
+        if (fromMin <= maxLon - minLon) {
+            if (lat0 < minLat) {
+                return (minLat - lat0) * EARTH_RADIUS;
+            } else if (lat0 > maxLat) {
+                return (lat0 - maxLat) * EARTH_RADIUS;
+            } else {
+                return 0.0;
+            }
+        }
+
+        double dLon = Math.min(Math.abs(wrap(lon0 - minLon)), Math.abs(wrap(lon0 - maxLon)));
+        double lat = Math.atan2(sinLat0, cosLat0 * Math.cos(dLon));
+        lat = Math.max(minLat, Math.min(maxLat, lat));
+        double d = haversineRadians(lat0, cosLat0, lat, dLon);
+        // past 90 degrees of longitude the closest latitude may be an endpoint instead
+        if (dLon > Math.PI / 2) {
+            d = Math.min(d, haversineRadians(lat0, cosLat0, minLat, dLon));
+            d = Math.min(d, haversineRadians(lat0, cosLat0, maxLat, dLon));
+        }
+        return d;
+    }
+
+    /**
+     * Wraps an angle in radians into [-pi, pi].
+     */
+    private static double wrap(double angle) {
+        if (angle > Math.PI) {
+            return angle - 2 * Math.PI;
+        } else if (angle < -Math.PI) {
+            return angle + 2 * Math.PI;
+        } else {
+            return angle;
+        }
+    }
+
+    private static double haversineRadians(double lat1, double cosLat1, double lat2, double dLon) {
+        double sinLat = Math.sin((lat2 - lat1) / 2);
+        double sinLon = Math.sin(dLon / 2);
+        double h = sinLat * sinLat + cosLat1 * Math.cos(lat2) * sinLon * sinLon;
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1.0, Math.sqrt(h)));
+    }
+
+    /**
+     * Returns the great-circle distance in meters between two points in degrees.
+     */
+    public static double haversine(double lon1, double lat1, double lon2, double lat2) {
+        double phi1 = Math.toRadians(lat1);
+        return haversineRadians(phi1, Math.cos(phi1), Math.toRadians(lat2), Math.toRadians(lon2 - lon1));
+    }
+
+    /**
+     * Writes the tree to a file that can be memory mapped by {@link #open(java.io.File)}.
+     * @param file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        MappedColumnFile.Output out = new MappedColumnFile.Output(file);
+        try {
+            out.writeInt(FILE_HEADER);
+            out.writeInt(nodeCapacity);
+            out.writeInt(numEntries);
+            out.writeInt(numNodes);
+            out.writeInt(numLeaves);
+            out.writeColumn(entryBoxes);
+            out.writeColumn(nodeBoxes);
+            out.writeColumn(entryIds);
+            out.writeColumn(childStarts);
+            out.writeColumn(childCounts);
+            out.commit();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Memory maps a tree written by {@link #write(java.io.File)}.
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static GeodeticRTree open(File file) throws IOException {
+        ByteBuffer buffer = MappedColumnFile.map(file, FILE_HEADER, "spatial index file");
+        int nodeCapacity = buffer.getInt(4);
+        int numEntries = buffer.getInt(8);
+        int numNodes = buffer.getInt(12);
+        int numLeaves = buffer.getInt(16);
+
+        int offset = 20;
+        DoubleBuffer entryBoxes = MappedColumnFile.doubleColumn(buffer, offset, 4 * numEntries);
+        offset += 32 * numEntries;
+        DoubleBuffer nodeBoxes = MappedColumnFile.doubleColumn(buffer, offset, 4 * numNodes);
+        offset += 32 * numNodes;
+        IntBuffer entryIds = MappedColumnFile.intColumn(buffer, offset, numEntries);
+        offset += 4 * numEntries;
+        IntBuffer childStarts = MappedColumnFile.intColumn(buffer, offset, numNodes);
+        offset += 4 * numNodes;
+        IntBuffer childCounts = MappedColumnFile.intColumn(buffer, offset, numNodes);
+        return new GeodeticRTree(nodeCapacity, numEntries, numNodes, numLeaves,
+                entryBoxes, nodeBoxes, entryIds, childStarts, childCounts);
+    }
+
+    /**
+     * A binary min heap of items keyed by distance.
+     */
+    private static class Heap {
+        private double[] keys = new double[64];
+        private int[] items = new int[64];
+        private int size = 0;
+
+        int size() {
+            return size;
+        }
+
+        double peekKey() {
+            return keys[0];
+        }
+
+        void push(double key, int item) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                items = Arrays.copyOf(items, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (keys[parent] <= key) {
+                    break;
+                }
+                keys[i] = keys[parent];
+                items[i] = items[parent];
+                i = parent;
+            }
+            keys[i] = key;
+            items[i] = item;
+        }
+
+        int pop() {
+            int top = items[0];
+            size--;
+            double key = keys[size];
+            int item = items[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && keys[child + 1] < keys[child]) {
+                    child++;
+                }
+                if (keys[child] >= key) {
+                    break;
+                }
+                keys[i] = keys[child];
+                items[i] = items[child];
+                i = child;
+            }
+            keys[i] = key;
+            items[i] = item;
+            return top;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.wikibrain.spatial.distance;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestGeodeticRTree {
+    private Random random = new Random(1);
+
+    @Test
+    public void testKnn() throws IOException {
+        int n = 20000;
+        int[] ids = new int[n];
+        double[] boxes = new double[4 * n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = i * 3;
+            double lon = 180 - random.nextDouble() * 360;
+            double lat = 90 - random.nextDouble() * 180;
+            if (i % 10 == 0) {
+                // cluster some points near the antimeridian and the poles
+                lon = (i % 20 == 0) ? 179.9 + random.nextDouble() * 0.1 : -180 + random.nextDouble() * 0.1;
+                lat = (i % 30 == 0) ? 89.9 : lat;
+            }
+            boxes[4 * i] = boxes[4 * i + 2] = lon;
+            boxes[4 * i + 1] = boxes[4 * i + 3] = lat;
+        }
+        GeodeticRTree tree = GeodeticRTree.build(ids, boxes);
+        assertEquals(n, tree.size());
+
+        File file = File.createTempFile("rtree", ".bin");
+        file.deleteOnExit();
+        tree.write(file);
+        GeodeticRTree mapped = GeodeticRTree.open(file);
+        assertEquals(n, mapped.size());
+
+        double[][] queries = { {179.95, 10.0}, {-179.99, -45.0}, {0.0, 90.0}, {12.0, -89.5}, {-179.99, 89.95} };
+        for (int q = 0; q < 200; q++) {
+            double lon, lat;
+            if (q < queries.length) {
+                lon = queries[q][0];
+                lat = queries[q][1];
+            } else {
+                lon = 180 - random.nextDouble() * 360;
+                lat = 90 - random.nextDouble() * 180;
+            }
+            double[] expected = bruteForce(boxes, lon, lat);
+            for (GeodeticRTree t : Arrays.asList(tree, mapped)) {
+                List<SpatialDistanceMetric.Neighbor> neighbors = t.nearest(lon, lat, 10);
+                assertEquals(10, neighbors.size());
+                for (int i = 0; i < neighbors.size(); i++) {
+                    SpatialDistanceMetric.Neighbor neighbor = neighbors.get(i);
+                    assertEquals(expected[i], neighbor.distance, 0.001);
+                    int index = neighbor.conceptId / 3;
+                    assertEquals(neighbor.distance, GeodeticRTree.haversine(lon, lat, boxes[4 * index], boxes[4 * index + 1]), 0.001);
+                }
+            }
+
+            // all neighbors within a radius
+            double radius = expected[25] + 0.001;
+            List<SpatialDistanceMetric.Neighbor> neighbors = tree.nearest(lon, lat, Integer.MAX_VALUE, radius);
+            assertTrue(neighbors.size() >= 26);
+            for (SpatialDistanceMetric.Neighbor neighbor : neighbors) {
+                assertTrue(neighbor.distance <= radius);
+            }
+        }
+    }
+
+    @Test
+    public void testBoxes() {
+        // a box containing the query point is at distance zero
+        int[] ids = { 1, 2, 3 };
+        double[] boxes = {
+                -10, -10, 10, 10,
+                170, 0, 179.5, 5,
+                -179.5, 50, -170, 60,
+        };
+        GeodeticRTree tree = GeodeticRTree.build(ids, boxes, 2);
+        List<SpatialDistanceMetric.Neighbor> neighbors = tree.nearest(1.0, 2.0, 3);
+        assertEquals(1, neighbors.get(0).conceptId);
+        assertEquals(0.0, neighbors.get(0).distance, 0.0);
+
+        // across the antimeridian, the closest point of box 3 is on its western edge
+        neighbors = tree.nearest(179.9, 55.0, 3);
+        assertEquals(3, neighbors.get(0).conceptId);
+        assertTrue(neighbors.get(0).distance < GeodeticRTree.haversine(179.9, 55.0, -179.5, 55.0) + 0.001);
+        assertEquals(2, neighbors.get(1).conceptId);
+
+        assertTrue(GeodeticRTree.build(new int[0], new double[0]).nearest(0, 0, 10).isEmpty());
+    }
+
+    private static double[] bruteForce(double[] boxes, double lon, double lat) {
+        List<Double> distances = new ArrayList<Double>();
+        for (int i = 0; i < boxes.length; i += 4) {
+            distances.add(GeodeticRTree.haversine(lon, lat, boxes[i], boxes[i + 1]));
+        }
+        double[] result = new double[distances.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = distances.get(i);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+}
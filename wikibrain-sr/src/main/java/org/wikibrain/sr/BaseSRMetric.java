@@ -27,6 +27,7 @@ import org.wikibrain.sr.disambig.SimilarityDisambiguator;
 import org.wikibrain.sr.normalize.IdentityNormalizer;
 import org.wikibrain.sr.normalize.Normalizer;
 import org.wikibrain.sr.utils.Leaderboard;
+import org.wikibrain.sr.utils.SRResultCache;
 import org.wikibrain.sr.utils.SrNormalizers;
 import org.wikibrain.utils.ParallelForEach;
 import org.wikibrain.utils.Procedure;
@@ -60,6 +61,8 @@ public abstract class BaseSRMetric implements SRMetric {
     private SparseMatrix mostSimilarCache = null;
     private TIntSet mostSimilarCacheRowIds = null;
 
+    // In-memory cache of online results, or null if results are not cached
+    private volatile SRResultCache resultCache = null;
 
     // the number of senses to consider for each phrase
     private int numSenses = 5;
@@ -101,11 +104,13 @@ public abstract class BaseSRMetric implements SRMetric {
     @Override
     public void setMostSimilarNormalizer(Normalizer n){
         normalizers.setMostSimilarNormalizer(n);
+        clearResultCache();
     }
 
     @Override
     public void setSimilarityNormalizer(Normalizer n){
         normalizers.setSimilarityNormalizer(n);
+        clearResultCache();
     }
 
     @Override
@@ -173,8 +178,24 @@ public abstract class BaseSRMetric implements SRMetric {
         this.shouldReadNormalizers = shouldRead;
     }
 
+    /**
+     * Reads the metric's state with readState() and then invalidates the result cache,
+     * so that results computed against the old state while reading are never served.
+     */
     @Override
-    public void read() throws IOException {
+    public final void read() throws IOException {
+        try {
+            readState();
+        } finally {
+            clearResultCache();
+        }
+    }
+
+    /**
+     * Reads the normalizers and most similar cache. Subclasses that store more state
+     * should override this and call super.readState().
+     */
+    protected void readState() throws IOException {
         if (!dataDir.isDirectory()) {
             LOG.warning("directory " + dataDir + " does not exist; cannot read files");
             return;
@@ -193,7 +214,9 @@ public abstract class BaseSRMetric implements SRMetric {
         if (!dataset.getLanguage().equals(getLanguage())) {
             throw new IllegalArgumentException("SR metric has language " + getLanguage() + " but dataset has language " + dataset.getLanguage());
         }
+        clearResultCache();
         normalizers.trainSimilarity(this, dataset);
+        clearResultCache();
     }
 
     @Override
@@ -201,6 +224,7 @@ public abstract class BaseSRMetric implements SRMetric {
         if (!dataset.getLanguage().equals(getLanguage())) {
             throw new IllegalArgumentException("SR metric has language " + getLanguage() + " but dataset has language " + dataset.getLanguage());
         }
+        clearResultCache();
         normalizers.trainMostSimilar(this, disambiguator, dataset, validIds, numResults);
         try {
             if (buildMostSimilarCache) {
@@ -209,13 +233,63 @@ public abstract class BaseSRMetric implements SRMetric {
         } catch (Exception e) {
             LOG.log(Level.SEVERE, "writing most similar cache failed:", e);
         }
+        clearResultCache();
     }
 
+    /**
+     * Returns the similarity between two pages, consulting the result cache if it exists.
+     * Results with explanations and partial results are not cached.
+     */
     @Override
-    public abstract SRResult similarity(int pageId1, int pageId2, boolean explanations) throws DaoException;
+    public SRResult similarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
+        SRResultCache cache = resultCache;
+        if (cache == null || explanations) {
+            return computeSimilarity(pageId1, pageId2, explanations);
+        }
+        SRResultCache.Lookup<SRResult> cached = cache.getSimilarity(pageId1, pageId2);
+        if (cached.isHit()) {
+            return cached.getValue();
+        }
+        long generation = cache.getGeneration();
+        SRResult result = computeSimilarity(pageId1, pageId2, false);
+        if (result == null || !result.isPartial()) {
+            cache.putSimilarity(pageId1, pageId2, generation, result);
+        }
+        return result;
+    }
 
+    /**
+     * Computes the similarity between two pages. Called by similarity() on cache misses.
+     */
+    protected abstract SRResult computeSimilarity(int pageId1, int pageId2, boolean explanations) throws DaoException;
+
+    /**
+     * Returns the similarity between two phrases, consulting the result cache if it exists.
+     * Results with explanations and partial results are not cached.
+     */
     @Override
     public SRResult similarity(String phrase1, String phrase2, boolean explanations) throws DaoException {
+        SRResultCache cache = resultCache;
+        if (cache == null || explanations) {
+            return computeSimilarity(phrase1, phrase2, explanations);
+        }
+        SRResultCache.Lookup<SRResult> cached = cache.getSimilarity(phrase1, phrase2);
+        if (cached.isHit()) {
+            return cached.getValue();
+        }
+        long generation = cache.getGeneration();
+        SRResult result = computeSimilarity(phrase1, phrase2, false);
+        if (result == null || !result.isPartial()) {
+            cache.putSimilarity(phrase1, phrase2, generation, result);
+        }
+        return result;
+    }
+
+    /**
+     * Computes the similarity between two phrases by disambiguating them to pages.
+     * Called by similarity() on cache misses.
+     */
+    protected SRResult computeSimilarity(String phrase1, String phrase2, boolean explanations) throws DaoException {
         Language language = getLanguage();
         List<LocalString> phrases = Arrays.asList(
                 new LocalString(language, phrase1),
@@ -264,8 +338,32 @@ public abstract class BaseSRMetric implements SRMetric {
         return mostSimilar(pageId, maxResults, null);
     }
 
+    /**
+     * Returns the pages most similar to a page, consulting the result cache if it exists.
+     * Partial results are not cached.
+     */
     @Override
-    public abstract SRResultList mostSimilar(int pageId, int maxResults, TIntSet validIds) throws DaoException;
+    public SRResultList mostSimilar(int pageId, int maxResults, TIntSet validIds) throws DaoException {
+        SRResultCache cache = resultCache;
+        if (cache == null) {
+            return computeMostSimilar(pageId, maxResults, validIds);
+        }
+        SRResultCache.Lookup<SRResultList> cached = cache.getMostSimilar(pageId, maxResults, validIds);
+        if (cached.isHit()) {
+            return cached.getValue();
+        }
+        long generation = cache.getGeneration();
+        SRResultList results = computeMostSimilar(pageId, maxResults, validIds);
+        if (results == null || !results.isPartial()) {
+            cache.putMostSimilar(pageId, maxResults, validIds, generation, results);
+        }
+        return results;
+    }
+
+    /**
+     * Computes the pages most similar to a page. Called by mostSimilar() on cache misses.
+     */
+    protected abstract SRResultList computeMostSimilar(int pageId, int maxResults, TIntSet validIds) throws DaoException;
 
     @Override
     public SRResultList mostSimilar(String phrase, int maxResults) throws DaoException {
@@ -278,8 +376,33 @@ public abstract class BaseSRMetric implements SRMetric {
         return mostSimilar(similar.getId(), maxResults);
     }
 
+    /**
+     * Returns the pages most similar to a phrase, consulting the result cache if it exists.
+     * Partial results are not cached.
+     */
     @Override
-    public SRResultList mostSimilar(String phrase, int maxResults, TIntSet validIds) throws DaoException{
+    public SRResultList mostSimilar(String phrase, int maxResults, TIntSet validIds) throws DaoException {
+        SRResultCache cache = resultCache;
+        if (cache == null) {
+            return computeMostSimilar(phrase, maxResults, validIds);
+        }
+        SRResultCache.Lookup<SRResultList> cached = cache.getMostSimilar(phrase, maxResults, validIds);
+        if (cached.isHit()) {
+            return cached.getValue();
+        }
+        long generation = cache.getGeneration();
+        SRResultList results = computeMostSimilar(phrase, maxResults, validIds);
+        if (results == null || !results.isPartial()) {
+            cache.putMostSimilar(phrase, maxResults, validIds, generation, results);
+        }
+        return results;
+    }
+
+    /**
+     * Computes the pages most similar to a phrase by disambiguating it to a page.
+     * Called by mostSimilar() on cache misses.
+     */
+    protected SRResultList computeMostSimilar(String phrase, int maxResults, TIntSet validIds) throws DaoException{
         LocalId similar = disambiguator.disambiguateTop(new LocalString(getLanguage(), phrase), null);
         if (similar==null){
             SRResultList resultList = new SRResultList(1);
@@ -514,6 +637,28 @@ public abstract class BaseSRMetric implements SRMetric {
         this.mostSimilarCacheRowIds = rowIds;
     }
 
+    public SRResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Sets the cache for online results. A null cache disables caching.
+     */
+    public void setResultCache(SRResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * Invalidates all cached online results (but not the precomputed most similar matrix).
+     */
+    public void clearResultCache() {
+        SRResultCache cache = resultCache;
+        if (cache != null) {
+            LOG.fine("invalidating result cache: " + cache);
+            cache.clear();
+        }
+    }
+
     protected static void configureBase(Configurator configurator, BaseSRMetric sr, Config config) throws ConfigurationException {
         Config rootConfig = configurator.getConf().get();
 
@@ -531,6 +676,17 @@ public abstract class BaseSRMetric implements SRMetric {
         if (config.hasPath("buildMostSimilarCache")) {
             sr.setBuildMostSimilarCache(config.getBoolean("buildMostSimilarCache"));
         }
+        Config cacheConfig = rootConfig.getConfig("sr.metric.resultCache");
+        if (config.hasPath("resultCache")) {
+            cacheConfig = config.getConfig("resultCache").withFallback(cacheConfig);
+        }
+        if (cacheConfig.getBoolean("enabled") && !isTraining) {
+            sr.setResultCache(new SRResultCache(
+                    sr.getName(),
+                    cacheConfig.getInt("similarity"),
+                    cacheConfig.getInt("mostSimilar"),
+                    cacheConfig.getInt("ttl")));
+        }
 
         try {
             sr.read();
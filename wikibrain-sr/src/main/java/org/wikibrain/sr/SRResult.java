@@ -20,6 +20,7 @@ public class SRResult implements Comparable<SRResult>{
     protected int id;
     protected double score;
     protected List<Explanation> explanations;
+    protected boolean partial;
 
     /**
      * Constructs a default SRResult that has no useful information.
@@ -95,6 +96,18 @@ public class SRResult implements Comparable<SRResult>{
         this.explanations = explanations;
     }
 
+    /**
+     * @return True if this result was computed without some submetrics that timed out.
+     * Partial results are not cached.
+     */
+    public boolean isPartial() {
+        return partial;
+    }
+
+    public void setPartial(boolean partial) {
+        this.partial = partial;
+    }
+
     /**
      * Zeros the score about the specified value.
      * Uncenterd values are centered around 0.
@@ -105,6 +118,16 @@ public class SRResult implements Comparable<SRResult>{
         if (this.score < 0) this.score = 0.0;
     }
 
+    /**
+     * @return A copy of this result that can be modified independently.
+     */
+    public SRResult copy() {
+        List<Explanation> explanationsCopy = (explanations == null) ? null : new ArrayList<Explanation>(explanations);
+        SRResult copy = new SRResult(id, score, explanationsCopy);
+        copy.partial = partial;
+        return copy;
+    }
+
     @Override
     public int compareTo(SRResult result) {
         return ((Double)this.score).compareTo(result.getScore());
@@ -16,6 +16,7 @@ public class SRResultList implements  Iterable<SRResult>{
     private double missingScore;    // score for missing documents.
     private int missingRank;
     private float[] scores;         // performance optimization
+    private boolean partial;        // some submetrics timed out
 
     public SRResultList(int maxNumDocs) {
         this.results = new SRResult[maxNumDocs];
@@ -228,6 +229,20 @@ public class SRResultList implements  Iterable<SRResult>{
         });
     }
 
+    /**
+     * @return A copy of this list (and its results) that can be modified independently.
+     */
+    public SRResultList copy() {
+        SRResultList copy = new SRResultList(numDocs);
+        for (int i = 0; i < numDocs; i++) {
+            copy.results[i] = (results[i] == null) ? null : results[i].copy();
+        }
+        copy.missingScore = missingScore;
+        copy.missingRank = missingRank;
+        copy.partial = partial;
+        return copy;
+    }
+
     /**
      * Returns the SRResult at the specified index.
      * @param i
@@ -257,6 +272,18 @@ public class SRResultList implements  Iterable<SRResult>{
         this.missingRank = missingRank;
     }
 
+    /**
+     * @return True if this list was built without some submetrics that timed out.
+     * Partial lists are not cached.
+     */
+    public boolean isPartial() {
+        return partial;
+    }
+
+    public void setPartial(boolean partial) {
+        this.partial = partial;
+    }
+
     @Override
     public Iterator<SRResult> iterator() {
         return new ArrayIterator(results, 0, numDocs);
@@ -37,12 +37,12 @@ public class CategoryGraphSimilarity extends BaseSRMetric {
     }
 
     public static double distanceToScore(CategoryGraph graph, double distance) {
-        distance = Math.max(distance, graph.minCost);
-        assert(graph.minCost < 1.0);    // if this isn't true, direction is flipped.
+        distance = Math.max(distance, graph.getMinCost());
+        assert(graph.getMinCost() < 1.0);    // if this isn't true, direction is flipped.
         if (Double.isInfinite(distance)){
             return 0.0;
         }
-        return  (Math.log(distance) / Math.log(graph.minCost));
+        return  (Math.log(distance) / Math.log(graph.getMinCost()));
     }
 
     @Override
@@ -54,7 +54,7 @@ public class CategoryGraphSimilarity extends BaseSRMetric {
     }
 
     @Override
-    public SRResult similarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
+    protected SRResult computeSimilarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
         CategoryBfs bfs1 = new CategoryBfs(graph,pageId1,getLanguage(), Integer.MAX_VALUE, null, catHelper);
         CategoryBfs bfs2 = new CategoryBfs(graph,pageId2,getLanguage(), Integer.MAX_VALUE, null, catHelper);
         bfs1.setAddPages(false);
@@ -77,7 +77,7 @@ public class CategoryGraphSimilarity extends BaseSRMetric {
                     if (bfs2.hasCategoryDistanceForIndex(catId)) {
                         double d = bfs1.getCategoryDistanceForIndex(catId)
                                 + bfs2.getCategoryDistanceForIndex(catId)
-                                - graph.catCosts[catId];    // counted twice
+                                - graph.getCost(catId);    // counted twice
                         shortestDistance = Math.min(d, shortestDistance);
                     }
                 }
@@ -91,7 +91,7 @@ public class CategoryGraphSimilarity extends BaseSRMetric {
                     if (bfs1.hasCategoryDistanceForIndex(catId)) {
                         double d = bfs1.getCategoryDistanceForIndex(catId) +
                                 bfs2.getCategoryDistanceForIndex(catId) + 0
-                                - graph.catCosts[catId];    // counted twice;
+                                - graph.getCost(catId);    // counted twice;
                         shortestDistance = Math.min(d, shortestDistance);
                     }
                 }
@@ -103,7 +103,7 @@ public class CategoryGraphSimilarity extends BaseSRMetric {
     }
 
     @Override
-    public SRResultList mostSimilar(int pageId, int maxResults, TIntSet validIds) throws DaoException {
+    protected SRResultList computeMostSimilar(int pageId, int maxResults, TIntSet validIds) throws DaoException {
 
         SRResultList results = getCachedMostSimilar(pageId, maxResults, validIds);
         if (results != null) {
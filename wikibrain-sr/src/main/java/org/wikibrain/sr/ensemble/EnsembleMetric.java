@@ -14,6 +14,7 @@ import org.wikibrain.sr.*;
 import org.wikibrain.sr.dataset.Dataset;
 import org.wikibrain.sr.disambig.Disambiguator;
 import org.wikibrain.sr.utils.KnownSim;
+import org.wikibrain.sr.utils.SubmetricFanOut;
 import org.wikibrain.utils.*;
 
 import java.io.*;
@@ -33,7 +34,7 @@ public class EnsembleMetric extends BaseSRMetric {
     private Ensemble ensemble;
     private boolean resolvePhrases = true;
     private boolean trainSubmetrics = true;
-
+    private SubmetricFanOut fanOut = new SubmetricFanOut();
 
     public EnsembleMetric(String name, Language language, List<SRMetric> metrics, Ensemble ensemble, Disambiguator disambiguator, LocalPageDao pageHelper){
         super(name, language, pageHelper, disambiguator);
@@ -49,55 +50,133 @@ public class EnsembleMetric extends BaseSRMetric {
         this.resolvePhrases = resolvePhrases;
     }
 
+    /**
+     * Controls how online queries call the submetrics. Missing (timed out)
+     * submetric results are interpolated by the ensemble, and the partial result
+     * is not cached. Training always calls
+     * submetrics sequentially.
+     */
+    public void setFanOut(SubmetricFanOut fanOut) {
+        this.fanOut = fanOut;
+    }
+
+    public SubmetricFanOut getFanOut() {
+        return fanOut;
+    }
+
     @Override
     public SRConfig getConfig() {
         return new SRConfig();
     }
 
     @Override
-    public SRResult similarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
-        List<SRResult> scores = new ArrayList<SRResult>();
-        for (SRMetric metric : metrics){
-            scores.add(metric.similarity(pageId1,pageId2,explanations));
-        }
-        return ensemble.predictSimilarity(scores);
+    protected SRResult computeSimilarity(final int pageId1, final int pageId2, final boolean explanations) throws DaoException {
+        List<SRResult> scores = fanOut.call(metrics, new Function<SRMetric, SRResult>() {
+            @Override
+            public SRResult call(SRMetric metric) throws DaoException {
+                return metric.similarity(pageId1, pageId2, explanations);
+            }
+        });
+        SRResult result = ensemble.predictSimilarity(scores);
+        result.setPartial(SubmetricFanOut.isPartial(scores));
+        return result;
     }
 
     @Override
-    public SRResult similarity(String phrase1, String phrase2, boolean explanations) throws DaoException {
+    protected SRResult computeSimilarity(final String phrase1, final String phrase2, final boolean explanations) throws DaoException {
         if (resolvePhrases) {
-            return super.similarity(phrase1, phrase2, explanations);
-        }
-        List<SRResult> scores = new ArrayList<SRResult>();
-        for (SRMetric metric : metrics){
-            scores.add(metric.similarity(phrase1,phrase2,explanations));
+            return super.computeSimilarity(phrase1, phrase2, explanations);
         }
-        return ensemble.predictSimilarity(scores);
+        List<SRResult> scores = fanOut.call(metrics, new Function<SRMetric, SRResult>() {
+            @Override
+            public SRResult call(SRMetric metric) throws DaoException {
+                return metric.similarity(phrase1, phrase2, explanations);
+            }
+        });
+        SRResult result = ensemble.predictSimilarity(scores);
+        result.setPartial(SubmetricFanOut.isPartial(scores));
+        return result;
     }
 
     @Override
-    public SRResultList mostSimilar(int pageId, int maxResults, TIntSet validIds) throws DaoException {
+    protected SRResultList computeMostSimilar(final int pageId, final int maxResults, final TIntSet validIds) throws DaoException {
         SRResultList mostSimilar= getCachedMostSimilar(pageId, maxResults, validIds);
         if (mostSimilar != null) {
             return mostSimilar;
         }
-        List<SRResultList> scores = new ArrayList<SRResultList>();
-        for (SRMetric metric : metrics){
-            scores.add(metric.mostSimilar(pageId,maxResults*EXTRA_SEARCH_DEPTH,validIds));
-        }
-        return ensemble.predictMostSimilar(scores, maxResults);
+        List<SRResultList> scores = fanOut.call(metrics, new Function<SRMetric, SRResultList>() {
+            @Override
+            public SRResultList call(SRMetric metric) throws DaoException {
+                return metric.mostSimilar(pageId, maxResults * EXTRA_SEARCH_DEPTH, validIds);
+            }
+        });
+        SRResultList results = ensemble.predictMostSimilar(scores, maxResults);
+        results.setPartial(SubmetricFanOut.isPartial(scores));
+        return results;
     }
 
     @Override
-    public SRResultList mostSimilar(String phrase, int maxResults, TIntSet validIds) throws DaoException {
+    protected SRResultList computeMostSimilar(final String phrase, final int maxResults, final TIntSet validIds) throws DaoException {
         if (resolvePhrases) {
-            return super.mostSimilar(phrase, maxResults, validIds);
+            return super.computeMostSimilar(phrase, maxResults, validIds);
+        }
+        List<SRResultList> scores = fanOut.call(metrics, new Function<SRMetric, SRResultList>() {
+            @Override
+            public SRResultList call(SRMetric metric) throws DaoException {
+                return metric.mostSimilar(phrase, maxResults * EXTRA_SEARCH_DEPTH, validIds);
+            }
+        });
+        SRResultList results = ensemble.predictMostSimilar(scores, maxResults);
+        results.setPartial(SubmetricFanOut.isPartial(scores));
+        return results;
+    }
+
+    @Override
+    public double[][] cosimilarity(final int[] rowIds, final int[] colIds) throws DaoException {
+        List<double[][]> matrices = fanOut.call(metrics, new Function<SRMetric, double[][]>() {
+            @Override
+            public double[][] call(SRMetric metric) throws DaoException {
+                return metric.cosimilarity(rowIds, colIds);
+            }
+        });
+        double[][] cos = new double[rowIds.length][colIds.length];
+        for (int i = 0; i < rowIds.length; i++) {
+            for (int j = 0; j < colIds.length; j++) {
+                cos[i][j] = (rowIds[i] == colIds[j]) ? normalize(1.0) : predictCell(matrices, i, j);
+            }
+        }
+        return cos;
+    }
+
+    @Override
+    public double[][] cosimilarity(final int[] ids) throws DaoException {
+        List<double[][]> matrices = fanOut.call(metrics, new Function<SRMetric, double[][]>() {
+            @Override
+            public double[][] call(SRMetric metric) throws DaoException {
+                return metric.cosimilarity(ids);
+            }
+        });
+        double[][] cos = new double[ids.length][ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            cos[i][i] = normalize(1.0);
+            for (int j = i + 1; j < ids.length; j++) {
+                cos[i][j] = predictCell(matrices, i, j);
+                cos[j][i] = cos[i][j];
+            }
         }
-        List<SRResultList> scores = new ArrayList<SRResultList>();
-        for (SRMetric metric : metrics){
-            scores.add(metric.mostSimilar(phrase,maxResults*EXTRA_SEARCH_DEPTH,validIds));
+        return cos;
+    }
+
+    /**
+     * Combines one cell of the submetric cosimilarity matrices. Missing matrices are missing scores.
+     */
+    private double predictCell(List<double[][]> matrices, int i, int j) {
+        List<SRResult> scores = new ArrayList<SRResult>();
+        for (double[][] m : matrices) {
+            scores.add(m == null ? null : new SRResult(m[i][j]));
         }
-        return ensemble.predictMostSimilar(scores,maxResults);
+        SRResult result = ensemble.predictSimilarity(scores);
+        return (result == null) ? Double.NaN : result.getScore();
     }
 
     /**
@@ -201,8 +280,8 @@ public class EnsembleMetric extends BaseSRMetric {
     }
 
     @Override
-    public void read() throws IOException{
-        super.read();
+    protected void readState() throws IOException{
+        super.readState();
         ensemble.read(new File(getDataDir(), "ensemble").getAbsolutePath());
     }
 
@@ -251,6 +330,18 @@ public class EnsembleMetric extends BaseSRMetric {
             if (config.hasPath("resolvephrases")) {
                 sr.setResolvePhrases(config.getBoolean("resolvephrases"));
             }
+            if (config.hasPath("concurrent")) {
+                SubmetricFanOut fanOut = new SubmetricFanOut(
+                        config.getBoolean("concurrent"),
+                        config.hasPath("submetricTimeout") ? config.getLong("submetricTimeout") : 0);
+                if (config.hasPath("submetricTimeouts")) {
+                    Config timeouts = config.getConfig("submetricTimeouts");
+                    for (String metric : timeouts.root().keySet()) {
+                        fanOut.setTimeoutMillis(metric, timeouts.getLong(metric));
+                    }
+                }
+                sr.setFanOut(fanOut);
+            }
 
             BaseSRMetric.configureBase(getConfigurator(), sr, config);
             return sr;
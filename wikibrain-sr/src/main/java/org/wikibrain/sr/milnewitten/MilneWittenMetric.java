@@ -17,9 +17,12 @@ import org.wikibrain.sr.*;
 import org.wikibrain.sr.dataset.Dataset;
 import org.wikibrain.sr.disambig.Disambiguator;
 import org.wikibrain.sr.utils.Leaderboard;
+import org.wikibrain.sr.utils.SubmetricFanOut;
+import org.wikibrain.utils.Function;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
@@ -36,6 +39,7 @@ public class MilneWittenMetric extends BaseSRMetric {
     private final SRMetric inlink;
     private final SRMetric outlink;
     private boolean trainSubmetrics =true;
+    private SubmetricFanOut fanOut = new SubmetricFanOut();
 
     public MilneWittenMetric(String name, Language language, LocalPageDao dao, SRMetric inlink, SRMetric outlink, Disambiguator dab) {
         super(name, language, dao,dab);
@@ -52,13 +56,22 @@ public class MilneWittenMetric extends BaseSRMetric {
     }
 
     @Override
-    public SRResult similarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
-        SRResult r1 = inlink.similarity(pageId1, pageId2, explanations);
-        SRResult r2 = outlink.similarity(pageId1, pageId2, explanations);
+    protected SRResult computeSimilarity(final int pageId1, final int pageId2, final boolean explanations) throws DaoException {
+        List<SRResult> results = fanOut.call(getSubmetrics(), new Function<SRMetric, SRResult>() {
+            @Override
+            public SRResult call(SRMetric metric) throws DaoException {
+                return metric.similarity(pageId1, pageId2, explanations);
+            }
+        });
+        SRResult r1 = results.get(0);
+        SRResult r2 = results.get(1);
         if (r1 == null || r2 == null || !r1.isValid() || !r2.isValid()) {
-            return new SRResult(Double.NaN);
+            SRResult missing = new SRResult(Double.NaN);
+            missing.setPartial(SubmetricFanOut.isPartial(results));
+            return missing;
         } else {
             SRResult finalResult=new SRResult(0.5 * r1.getScore() + 0.5 * r2.getScore());
+            finalResult.setPartial(SubmetricFanOut.isPartial(results));
             if (explanations) {
                 List<Explanation> explanationList = new ArrayList<Explanation>();
                 explanationList.addAll(r1.getExplanations());
@@ -70,27 +83,46 @@ public class MilneWittenMetric extends BaseSRMetric {
     }
 
     @Override
-    public double[][] cosimilarity(int rowIds[], int columnIds[]) throws DaoException {
-        double [][] cm1 = inlink.cosimilarity(rowIds, columnIds);
-        double [][] cm2 = outlink.cosimilarity(rowIds, columnIds);
+    public double[][] cosimilarity(final int rowIds[], final int columnIds[]) throws DaoException {
+        List<double[][]> results = fanOut.call(getSubmetrics(), new Function<SRMetric, double[][]>() {
+            @Override
+            public double[][] call(SRMetric metric) throws DaoException {
+                return metric.cosimilarity(rowIds, columnIds);
+            }
+        });
+        // a submetric that timed out has no matrix
+        double [][] cm1 = results.get(0);
+        double [][] cm2 = results.get(1);
+        double [][] cos = new double[rowIds.length][columnIds.length];
         for (int i = 0; i < rowIds.length; i++) {
             for (int j = 0; j < columnIds.length; j++) {
-                double s1 = cm1[i][j];
-                double s2 = cm2[i][j];
+                double s1 = (cm1 == null) ? Double.NaN : cm1[i][j];
+                double s2 = (cm2 == null) ? Double.NaN : cm2[i][j];
                 if (Double.isNaN(s1) || Double.isNaN(s2) || Double.isInfinite(s1) || Double.isInfinite(s2)) {
-                    cm1[i][j] = Double.NaN;
+                    cos[i][j] = Double.NaN;
                 } else {
-                    cm1[i][j] = s1 * 0.5 + s2 * 0.5;
+                    cos[i][j] = s1 * 0.5 + s2 * 0.5;
                 }
             }
         }
-        return cm1;
+        return cos;
     }
 
     public void setTrainSubmetrics(boolean train){
         trainSubmetrics = train;
     }
 
+    /**
+     * Controls how online queries call the inlink and outlink metrics.
+     */
+    public void setFanOut(SubmetricFanOut fanOut) {
+        this.fanOut = fanOut;
+    }
+
+    private List<SRMetric> getSubmetrics() {
+        return Arrays.asList(inlink, outlink);
+    }
+
     @Override
     public synchronized void trainSimilarity(Dataset dataset) throws DaoException {
         if(trainSubmetrics) {
@@ -118,17 +150,23 @@ public class MilneWittenMetric extends BaseSRMetric {
     }
 
     @Override
-    public void read() throws IOException {
+    protected void readState() throws IOException {
         inlink.read();
         outlink.read();
-        super.read();
+        super.readState();
     }
 
 
 
     @Override
-    public SRResultList mostSimilar(int pageId, int maxResults, TIntSet validIds) throws DaoException {
-        SRResultList l1 = inlink.mostSimilar(pageId, maxResults * 2, validIds);
+    protected SRResultList computeMostSimilar(final int pageId, final int maxResults, final TIntSet validIds) throws DaoException {
+        List<SRResultList> results = fanOut.call(getSubmetrics(), new Function<SRMetric, SRResultList>() {
+            @Override
+            public SRResultList call(SRMetric metric) throws DaoException {
+                return metric.mostSimilar(pageId, maxResults * 2, validIds);
+            }
+        });
+        SRResultList l1 = results.get(0);
         TIntDoubleMap scores = new TIntDoubleHashMap(maxResults * 4);
 
         TIntSet inList1 = new TIntHashSet();
@@ -141,7 +179,7 @@ public class MilneWittenMetric extends BaseSRMetric {
                 }
             }
         }
-        SRResultList l2 = outlink.mostSimilar(pageId, maxResults * 2, validIds);
+        SRResultList l2 = results.get(1);
         TIntSet inList2 = new TIntHashSet();
         if (l2 != null) {
             for (int i = 0; i < l2.numDocs(); i++) {
@@ -172,7 +210,9 @@ public class MilneWittenMetric extends BaseSRMetric {
             leaderboard.tallyScore(id, scores.get(id));
         }
 
-        return normalize(leaderboard.getTop());
+        SRResultList top = normalize(leaderboard.getTop());
+        top.setPartial(SubmetricFanOut.isPartial(results));
+        return top;
     }
 
 
@@ -215,6 +255,11 @@ public class MilneWittenMetric extends BaseSRMetric {
                     outlink,
                     dab
             );
+            if (config.hasPath("concurrent")) {
+                mw.setFanOut(new SubmetricFanOut(
+                        config.getBoolean("concurrent"),
+                        config.hasPath("submetricTimeout") ? config.getLong("submetricTimeout") : 0));
+            }
             configureBase(getConfigurator(), mw, config);
             return mw;
         }
@@ -25,6 +25,36 @@ public class Leaderboard {
         }
     }
 
+    /**
+     * Adds all the entries in another leaderboard to this one.
+     * Used to combine leaderboards computed over disjoint partitions of ids.
+     * @param other
+     */
+    public void merge(Leaderboard other) {
+        for (int i = 1; i <= other.size; i++) {
+            tallyScore(other.keys[i], other.values[i]);
+        }
+    }
+
+    /**
+     * @return The number of entries currently in the leaderboard.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The smallest score a new entry must beat to enter the leaderboard,
+     * negative infinity if the leaderboard is not yet full, or positive infinity
+     * if its capacity is zero (no entry can ever enter it).
+     */
+    public double getThreshold() {
+        if (values.length == 1) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return (size < values.length - 1) ? Double.NEGATIVE_INFINITY : values[1];
+    }
+
     public SRResultList getTop() {
         SRResultList scores = new SRResultList(size);
         for (int i = 1; i <= size; i++) {
@@ -0,0 +1,294 @@
+package org.wikibrain.sr.utils;
+
+import gnu.trove.iterator.TIntIterator;
+import gnu.trove.set.TIntSet;
+import org.wikibrain.sr.SRResult;
+import org.wikibrain.sr.SRResultList;
+import org.wikibrain.utils.LongSlruCache;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * An in-memory cache of the results of an SR metric.
+ *
+ * Three kinds of results are cached:
+ * <ul>
+ *     <li>Page similarities, keyed by the (unordered) pair of page ids packed into a long.</li>
+ *     <li>Phrase similarities, keyed by the pair of phrases.</li>
+ *     <li>Most similar lists for pages and phrases, keyed by the query, the number of results
+ *     and a fingerprint of the valid ids.</li>
+ * </ul>
+ *
+ * Each cache is bounded in size (segmented LRU) and entries expire after a time to live.
+ * Results are copied on the way in and out, so callers may modify them.
+ * Null results (e.g. pages that are not known to the metric) are also cached.
+ *
+ * clear() invalidates all entries, including results still being computed when it is called.
+ *
+ * @author Shilad Sen
+ */
+public class SRResultCache {
+    private static final Logger LOG = Logger.getLogger(SRResultCache.class.getName());
+
+    /**
+     * Hit rates are logged after this many lookups.
+     */
+    public static final long LOG_INTERVAL = 1000000;
+
+    private final String name;
+    private final long ttlMillis;
+
+    private final LongSlruCache<Entry> similarities;
+    private final LongSlruCache<Entry> phraseSimilarities;
+    private final LongSlruCache<Entry> mostSimilar;
+
+    // Entries created before the most recent clear() are ignored.
+    private final AtomicLong generation = new AtomicLong();
+
+    private final AtomicLong similarityHits = new AtomicLong();
+    private final AtomicLong similarityMisses = new AtomicLong();
+    private final AtomicLong mostSimilarHits = new AtomicLong();
+    private final AtomicLong mostSimilarMisses = new AtomicLong();
+
+    /**
+     * @param name Name used in log messages (typically the metric's name).
+     * @param similaritySize Maximum number of cached page similarities. Phrase similarities
+     *                       are bounded to the same number.
+     * @param mostSimilarSize Maximum number of cached most similar lists.
+     * @param ttlSeconds Time to live of entries in seconds, or a non-positive value for no expiry.
+     */
+    public SRResultCache(String name, int similaritySize, int mostSimilarSize, int ttlSeconds) {
+        this.name = name;
+        this.ttlMillis = ttlSeconds > 0 ? ttlSeconds * 1000L : Long.MAX_VALUE;
+        this.similarities = new LongSlruCache<Entry>(similaritySize);
+        this.phraseSimilarities = new LongSlruCache<Entry>(similaritySize);
+        this.mostSimilar = new LongSlruCache<Entry>(mostSimilarSize);
+    }
+
+    /**
+     * @return The lookup; its value is only meaningful if isHit() is true.
+     */
+    public Lookup<SRResult> getSimilarity(int pageId1, int pageId2) {
+        Entry e = similarities.get(pairKey(pageId1, pageId2));
+        return lookupSimilarity(e, null);
+    }
+
+    public void putSimilarity(int pageId1, int pageId2, long generation, SRResult result) {
+        similarities.put(pairKey(pageId1, pageId2), new Entry(null, copy(result), generation, ttlMillis));
+    }
+
+    public Lookup<SRResult> getSimilarity(String phrase1, String phrase2) {
+        List<?> key = Arrays.asList(phrase1, phrase2);
+        Entry e = phraseSimilarities.get(longHash(key));
+        return lookupSimilarity(e, key);
+    }
+
+    public void putSimilarity(String phrase1, String phrase2, long generation, SRResult result) {
+        List<?> key = Arrays.asList(phrase1, phrase2);
+        phraseSimilarities.put(longHash(key), new Entry(key, copy(result), generation, ttlMillis));
+    }
+
+    public Lookup<SRResultList> getMostSimilar(int pageId, int maxResults, TIntSet validIds) {
+        return getMostSimilar(Arrays.asList("id", pageId, maxResults, fingerprint(validIds)));
+    }
+
+    public void putMostSimilar(int pageId, int maxResults, TIntSet validIds, long generation, SRResultList results) {
+        putMostSimilar(Arrays.asList("id", pageId, maxResults, fingerprint(validIds)), generation, results);
+    }
+
+    public Lookup<SRResultList> getMostSimilar(String phrase, int maxResults, TIntSet validIds) {
+        return getMostSimilar(Arrays.asList("phrase", phrase, maxResults, fingerprint(validIds)));
+    }
+
+    public void putMostSimilar(String phrase, int maxResults, TIntSet validIds, long generation, SRResultList results) {
+        putMostSimilar(Arrays.asList("phrase", phrase, maxResults, fingerprint(validIds)), generation, results);
+    }
+
+    /**
+     * @return The current generation. Pass it to a put() call after computing a result
+     * so that results computed across a clear() are not cached.
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Invalidates all cached results.
+     */
+    public void clear() {
+        generation.incrementAndGet();
+        similarities.clear();
+        phraseSimilarities.clear();
+        mostSimilar.clear();
+    }
+
+    public long getSimilarityHits() {
+        return similarityHits.get();
+    }
+
+    public long getSimilarityMisses() {
+        return similarityMisses.get();
+    }
+
+    public long getMostSimilarHits() {
+        return mostSimilarHits.get();
+    }
+
+    public long getMostSimilarMisses() {
+        return mostSimilarMisses.get();
+    }
+
+    public double getSimilarityHitRate() {
+        return hitRate(similarityHits.get(), similarityMisses.get());
+    }
+
+    public double getMostSimilarHitRate() {
+        return hitRate(mostSimilarHits.get(), mostSimilarMisses.get());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SRResultCache{%s: similarity hit rate %.3f (%d lookups), mostSimilar hit rate %.3f (%d lookups)}",
+                name,
+                getSimilarityHitRate(), similarityHits.get() + similarityMisses.get(),
+                getMostSimilarHitRate(), mostSimilarHits.get() + mostSimilarMisses.get());
+    }
+
+    private Lookup<SRResult> lookupSimilarity(Entry e, Object key) {
+        if (isValid(e, key)) {
+            count(similarityHits);
+            return new Lookup<SRResult>(true, copy((SRResult) e.value));
+        } else {
+            count(similarityMisses);
+            return new Lookup<SRResult>(false, null);
+        }
+    }
+
+    private Lookup<SRResultList> getMostSimilar(List<?> key) {
+        Entry e = mostSimilar.get(longHash(key));
+        if (isValid(e, key)) {
+            count(mostSimilarHits);
+            return new Lookup<SRResultList>(true, copy((SRResultList) e.value));
+        } else {
+            count(mostSimilarMisses);
+            return new Lookup<SRResultList>(false, null);
+        }
+    }
+
+    private void putMostSimilar(List<?> key, long generation, SRResultList results) {
+        mostSimilar.put(longHash(key), new Entry(key, copy(results), generation, ttlMillis));
+    }
+
+    private boolean isValid(Entry e, Object key) {
+        return e != null
+                && e.generation == generation.get()
+                && e.expires > System.currentTimeMillis()
+                && (key == null || key.equals(e.key));
+    }
+
+    private void count(AtomicLong counter) {
+        counter.incrementAndGet();
+        long n = similarityHits.get() + similarityMisses.get() + mostSimilarHits.get() + mostSimilarMisses.get();
+        if (n % LOG_INTERVAL == 0) {
+            LOG.info(toString());
+        }
+    }
+
+    /**
+     * Returns a fingerprint of a set of ids that is the same for sets with the same contents.
+     * It is recomputed for every query, since callers may reuse and modify a set; this is
+     * linear in the size of the set, as is the query itself.
+     */
+    private long fingerprint(TIntSet validIds) {
+        if (validIds == null) {
+            return 0;
+        }
+        long sum = 0;
+        long xor = 0;
+        TIntIterator iter = validIds.iterator();
+        while (iter.hasNext()) {
+            long h = mix(iter.next());
+            sum += h;
+            xor ^= h * 0x9E3779B97F4A7C15L;
+        }
+        return mix(sum ^ xor ^ validIds.size()) | 1;  // never zero
+    }
+
+    static long pairKey(int pageId1, int pageId2) {
+        int lo = Math.min(pageId1, pageId2);
+        int hi = Math.max(pageId1, pageId2);
+        return ((long) lo << 32) | (hi & 0xFFFFFFFFL);
+    }
+
+    private static long longHash(List<?> key) {
+        long h = 1125899906842597L;
+        for (Object o : key) {
+            String s = String.valueOf(o);
+            for (int i = 0; i < s.length(); i++) {
+                h = 31 * h + s.charAt(i);
+            }
+            h = 31 * h + 0x1F;     // separator
+        }
+        return mix(h);
+    }
+
+    private static long mix(long x) {
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= x >>> 33;
+        return x;
+    }
+
+    private static double hitRate(long hits, long misses) {
+        return (hits + misses == 0) ? 0.0 : 1.0 * hits / (hits + misses);
+    }
+
+    private static SRResult copy(SRResult result) {
+        return (result == null) ? null : result.copy();
+    }
+
+    private static SRResultList copy(SRResultList results) {
+        return (results == null) ? null : results.copy();
+    }
+
+    /**
+     * The result of a cache lookup. The value of a hit may be null.
+     */
+    public static class Lookup<T> {
+        private final boolean hit;
+        private final T value;
+
+        Lookup(boolean hit, T value) {
+            this.hit = hit;
+            this.value = value;
+        }
+
+        public boolean isHit() {
+            return hit;
+        }
+
+        public T getValue() {
+            return value;
+        }
+    }
+
+    private static final class Entry {
+        final Object key;
+        final Object value;
+        final long generation;
+        final long expires;
+
+        Entry(Object key, Object value, long generation, long ttlMillis) {
+            this.key = key;
+            this.value = value;
+            this.generation = generation;
+            long now = System.currentTimeMillis();
+            this.expires = (ttlMillis == Long.MAX_VALUE) ? Long.MAX_VALUE : now + ttlMillis;
+        }
+    }
+}
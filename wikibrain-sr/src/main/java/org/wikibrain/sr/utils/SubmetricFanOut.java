@@ -0,0 +1,225 @@
+package org.wikibrain.sr.utils;
+
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.sr.SRMetric;
+import org.wikibrain.sr.SRResult;
+import org.wikibrain.sr.SRResultList;
+import org.wikibrain.utils.Function;
+import org.wikibrain.utils.WpThreadUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Calls a function on each submetric of a composite metric (e.g. an ensemble)
+ * and collects the results in submetric order.
+ *
+ * In concurrent mode the calls are dispatched to the shared executor, so the latency
+ * of the composite metric is that of its slowest submetric rather than the sum.
+ * If a timeout is set, the results of submetrics that have not finished within it are
+ * null; callers treat them as missing, which yields a partial ensemble that they flag
+ * with isPartial() so it is not cached. Each submetric's timeout runs from its own dispatch,
+ * and can be overridden per submetric name.
+ * Calls that time out are abandoned rather than interrupted, because interrupting a
+ * thread blocked in NIO closes the channel under a metric's shared index or matrix.
+ * At most MAX_QUEUED_PER_THREAD calls per shared thread, including abandoned ones,
+ * are queued or running at once; further calls run on the calling thread.
+ * Calls made from a shared executor thread (e.g. a composite metric nested
+ * in another) also run on the calling thread.
+ *
+ * In sequential mode (the default) the submetrics are called one at a time.
+ * In both modes, exceptions thrown by a submetric propagate to the caller.
+ *
+ * @author Shilad Sen
+ */
+public class SubmetricFanOut {
+    private static final Logger LOG = Logger.getLogger(SubmetricFanOut.class.getName());
+
+    public static final int MAX_QUEUED_PER_THREAD = 4;
+
+    /**
+     * Permits for calls queued or running on the shared executor.
+     */
+    private static final Semaphore QUEUED = new Semaphore(MAX_QUEUED_PER_THREAD * WpThreadUtils.getMaxThreads());
+
+    private final boolean concurrent;
+    private final long timeoutMillis;
+    private final Map<String, Long> metricTimeouts = new ConcurrentHashMap<String, Long>();
+    private final AtomicLong numTimeouts = new AtomicLong();
+
+    /**
+     * Creates a sequential fan out.
+     */
+    public SubmetricFanOut() {
+        this(false, 0);
+    }
+
+    /**
+     * @param concurrent If true, call submetrics concurrently.
+     * @param timeoutMillis Time allowed for each submetric to finish in concurrent mode.
+     *                      Non-positive values wait indefinitely.
+     */
+    public SubmetricFanOut(boolean concurrent, long timeoutMillis) {
+        this.concurrent = concurrent;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Overrides the timeout for the submetric with the given name.
+     * Non-positive values wait indefinitely.
+     */
+    public SubmetricFanOut setTimeoutMillis(String metricName, long timeoutMillis) {
+        metricTimeouts.put(metricName, timeoutMillis);
+        return this;
+    }
+
+    public <R> List<R> call(List<? extends SRMetric> metrics, final Function<SRMetric, R> fn) throws DaoException {
+        List<R> results = new ArrayList<R>();
+        if (!concurrent || metrics.size() <= 1 || WpThreadUtils.isSharedThread()) {
+            for (SRMetric metric : metrics) {
+                results.add(callOne(metric, fn));
+            }
+            return results;
+        }
+
+        ExecutorService exec = WpThreadUtils.getSharedExecutor();
+        List<Future<R>> futures = new ArrayList<Future<R>>();
+        long deadlines[] = new long[metrics.size()];
+        for (final SRMetric metric : metrics) {
+            FutureTask<R> task = new FutureTask<R>(new Callable<R>() {
+                @Override
+                public R call() throws Exception {
+                    return fn.call(metric);
+                }
+            });
+            long timeout = getTimeoutMillis(metric);
+            deadlines[futures.size()] = (timeout <= 0) ? Long.MAX_VALUE : System.currentTimeMillis() + timeout;
+            futures.add(task);
+            dispatch(exec, task);
+        }
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                Future<R> f = futures.get(i);
+                if (deadlines[i] == Long.MAX_VALUE) {
+                    results.add(f.get());
+                    continue;
+                }
+                try {
+                    results.add(f.get(Math.max(0, deadlines[i] - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+                } catch (TimeoutException e) {
+                    f.cancel(false);
+                    numTimeouts.incrementAndGet();
+                    LOG.fine("submetric " + metrics.get(i).getName() + " timed out after " + getTimeoutMillis(metrics.get(i)) + "ms");
+                    results.add(null);
+                }
+            }
+        } catch (InterruptedException e) {
+            cancelAll(futures);
+            Thread.currentThread().interrupt();
+            throw new DaoException(e);
+        } catch (ExecutionException e) {
+            cancelAll(futures);
+            throw unwrap(e.getCause());
+        }
+        return results;
+    }
+
+    /**
+     * @return The number of submetric calls that timed out.
+     */
+    public long getNumTimeouts() {
+        return numTimeouts.get();
+    }
+
+    public boolean isConcurrent() {
+        return concurrent;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * @return The timeout for a submetric: its override if one is set, and otherwise the default.
+     */
+    public long getTimeoutMillis(SRMetric metric) {
+        Long timeout = metricTimeouts.get(metric.getName());
+        return (timeout == null) ? timeoutMillis : timeout;
+    }
+
+    /**
+     * Returns true if a composite result built from these submetric results is incomplete
+     * and must not be cached: a submetric timed out (its result is null), or a nested
+     * composite submetric returned a partial result itself.
+     */
+    public static boolean isPartial(List<?> results) {
+        for (Object r : results) {
+            if (r == null
+                    || (r instanceof SRResult && ((SRResult) r).isPartial())
+                    || (r instanceof SRResultList && ((SRResultList) r).isPartial())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static <R> R callOne(SRMetric metric, Function<SRMetric, R> fn) throws DaoException {
+        try {
+            return fn.call(metric);
+        } catch (Exception e) {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * Runs a task on the executor if a permit is available, and otherwise on the calling thread.
+     */
+    private static void dispatch(ExecutorService exec, final FutureTask<?> task) {
+        if (!QUEUED.tryAcquire()) {
+            task.run();
+            return;
+        }
+        try {
+            exec.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        QUEUED.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            QUEUED.release();
+            task.run();
+        }
+    }
+
+    /**
+     * Cancels calls that have not started; running calls are abandoned.
+     */
+    private static void cancelAll(List<? extends Future<?>> futures) {
+        for (Future<?> f : futures) {
+            f.cancel(false);
+        }
+    }
+
+    private static DaoException unwrap(Throwable t) {
+        if (t instanceof DaoException) {
+            return (DaoException) t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t instanceof Exception) {
+            return new DaoException((Exception) t);
+        } else {
+            return new DaoException(String.valueOf(t));
+        }
+    }
+}
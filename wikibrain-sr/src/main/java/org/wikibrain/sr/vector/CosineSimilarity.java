@@ -3,7 +3,6 @@ package org.wikibrain.sr.vector;
 import com.typesafe.config.Config;
 import gnu.trove.map.TIntFloatMap;
 import gnu.trove.map.TIntIntMap;
-import gnu.trove.map.hash.TIntDoubleHashMap;
 import gnu.trove.map.hash.TIntFloatHashMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
@@ -17,9 +16,11 @@ import org.wikibrain.sr.SRResultList;
 import org.wikibrain.sr.utils.Leaderboard;
 import org.wikibrain.sr.utils.SimUtils;
 import org.wikibrain.utils.WpIOUtils;
+import org.wikibrain.utils.WpThreadUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.logging.Logger;
 
@@ -36,6 +37,25 @@ public class CosineSimilarity implements VectorSimilarity {
     private SparseMatrix features;
     private SparseMatrix transpose;
 
+    /**
+     * Number of shards used by the inverted index.
+     */
+    private final int numShards;
+
+    private ShardedInvertedIndex index;
+
+    public CosineSimilarity() {
+        this(WpThreadUtils.getMaxThreads());
+    }
+
+    /**
+     * @param numShards The number of partitions of candidate ids that are scored
+     *                  in parallel by mostSimilar.
+     */
+    public CosineSimilarity(int numShards) {
+        this.numShards = numShards;
+    }
+
     @Override
     public synchronized  void setMatrices(SparseMatrix features, SparseMatrix transpose, File dataDir) throws IOException {
         this.features = features;
@@ -44,13 +64,17 @@ public class CosineSimilarity implements VectorSimilarity {
         File idCacheFile = new File(dataDir, "cosineSimilarity-ids.bin");
         File lengthCacheFile = new File(dataDir, "cosineSimilarity-lengths.bin");
         File maxCacheFile = new File(dataDir, "cosineSimilarity-maxResults.bin");
+        File maximaCacheFile = new File(dataDir, "cosineSimilarity-columnMaxima.bin");
+        TIntFloatHashMap maxima;
 
         if (lengthCacheFile.exists() && lengthCacheFile.lastModified() >= features.lastModified()
-                &&  idCacheFile.exists() && idCacheFile.lastModified() >= transpose.lastModified()) {
+                &&  idCacheFile.exists() && idCacheFile.lastModified() >= transpose.lastModified()
+                &&  maximaCacheFile.exists() && maximaCacheFile.lastModified() >= transpose.lastModified()) {
             LOG.info("reading matrix information from cache");
             lengths = (TIntFloatHashMap) WpIOUtils.readObjectFromFile(lengthCacheFile);
             idsInResults = (TIntSet) WpIOUtils.readObjectFromFile(idCacheFile);
             maxResults = (Integer) WpIOUtils.readObjectFromFile(maxCacheFile);
+            maxima = (TIntFloatHashMap) WpIOUtils.readObjectFromFile(maximaCacheFile);
         } else {
             LOG.info("building cached matrix information");
             lengths.clear();
@@ -61,10 +85,46 @@ public class CosineSimilarity implements VectorSimilarity {
                 maxResults = Math.max(maxResults, row.getNumCols());
             }
             idsInResults.addAll(transpose.getRowIds());
+            maxima = buildColumnMaxima(transpose, lengths);
             WpIOUtils.writeObjectToFile(lengthCacheFile, lengths);
             WpIOUtils.writeObjectToFile(idCacheFile, idsInResults);
             WpIOUtils.writeObjectToFile(maxCacheFile, maxResults);
+            WpIOUtils.writeObjectToFile(maximaCacheFile, maxima);
+        }
+
+        int ids[] = lengths.keys();
+        Arrays.sort(ids);
+        float rowLengths[] = new float[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            rowLengths[i] = lengths.get(ids[i]);
         }
+        index = new ShardedInvertedIndex(transpose, ids, rowLengths, maxima.isEmpty() ? null : maxima, numShards);
+    }
+
+    /**
+     * Computes the largest normalized value (value / row length) in each row
+     * of the transpose. These bound the contribution of a feature to a cosine.
+     * If the matrix contains negative values, no bounds apply and the map is empty.
+     */
+    private static TIntFloatHashMap buildColumnMaxima(SparseMatrix transpose, TIntFloatHashMap lengths) {
+        TIntFloatHashMap maxima = new TIntFloatHashMap();
+        for (SparseMatrixRow row : transpose) {
+            float max = 0.0f;
+            for (int i = 0; i < row.getNumCols(); i++) {
+                float v = row.getColValue(i);
+                if (v < 0) {
+                    LOG.info("negative values in matrix; disabling mostSimilar pruning");
+                    maxima.clear();
+                    return maxima;
+                }
+                float len = lengths.get(row.getColIndex(i));
+                if (len > 0) {
+                    max = Math.max(max, v / len);
+                }
+            }
+            maxima.put(row.getRowIndex(), max);
+        }
+        return maxima;
     }
 
     @Override
@@ -134,7 +194,7 @@ public class CosineSimilarity implements VectorSimilarity {
         if (validIds != null && validIds.size() < 10000) {
             return mostSimilarWithRegularIndex(query, maxResults, validIds);
         } else {
-            return mostSimilarWithInvertedIndex(query, maxResults, validIds);
+            return index.mostSimilar(query, maxResults, validIds);
         }
     }
 
@@ -150,7 +210,7 @@ public class CosineSimilarity implements VectorSimilarity {
                     int id2 = row2.getColIndex(i);
                     float val2 = query.get(id2);
                     if (val2 > 0) {
-                        dot += val2 + row2.getColValue(i);
+                        dot += val2 * row2.getColValue(i);
                     }
                 }
                 double l1 = lengths.get(id);
@@ -165,44 +225,6 @@ public class CosineSimilarity implements VectorSimilarity {
         return result;
     }
 
-    private SRResultList mostSimilarWithInvertedIndex(TIntFloatMap query, int maxResults, TIntSet validIds) throws IOException {
-        TIntDoubleHashMap dots = new TIntDoubleHashMap(maxResults * 5);
-
-        // Eschew a for-each loop here for performance reasons.
-        int keys[] = query.keys();
-        for (int i = 0; i < keys.length; i++) {
-            int id = keys[i];
-            float val1 = query.get(id);
-            MatrixRow row2 = transpose.getRow(id);
-            if (row2 != null) {
-                int n = row2.getNumCols();
-                for (int j = 0; j < n; j++) {
-                    int id2 = row2.getColIndex(j);
-                    if (validIds == null || validIds.contains(id2)) {
-                        float val2 = row2.getColValue(j);
-                        dots.adjustOrPutValue(id2, val1 * val2, val1 * val2);
-                    }
-                }
-            }
-        }
-
-        final Leaderboard leaderboard = new Leaderboard(maxResults);
-        double rowNorm = norm(query);
-        keys = dots.keys();
-        for (int i = 0; i < keys.length; i++) {
-            int id = keys[i];
-            double l1 = lengths.get(id);
-            double l2 = rowNorm;
-            double dot = dots.get(id);
-            double sim = dot / (l1 * l2);
-            leaderboard.tallyScore(id, sim);
-        }
-
-        SRResultList result = leaderboard.getTop();
-        result.sortDescending();
-        return result;
-    }
-
     @Override
     public double getMinValue() {
         return -1.0;
@@ -241,7 +263,8 @@ public class CosineSimilarity implements VectorSimilarity {
             if (!config.getString("type").equals("cosine")) {
                 return null;
             }
-            return new CosineSimilarity();
+            int shards = config.hasPath("shards") ? config.getInt("shards") : 0;
+            return new CosineSimilarity(shards > 0 ? shards : WpThreadUtils.getMaxThreads());
         }
 }
 }
@@ -0,0 +1,203 @@
+package org.wikibrain.sr.vector;
+
+import com.typesafe.config.Config;
+import gnu.trove.iterator.TIntIterator;
+import gnu.trove.map.TIntFloatMap;
+import gnu.trove.set.TIntSet;
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.Configurator;
+import org.wikibrain.matrix.MatrixRow;
+import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.sr.SRResultList;
+import org.wikibrain.sr.utils.Leaderboard;
+import org.wikibrain.utils.WpThreadUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Cosine similarity computed directly on the rows of a DenseVectorStore.
+ *
+ * mostSimilar() scans the page vectors in the store, splitting them into shards
+ * that are scored in parallel. Sparse vectors are handled by a CosineSimilarity.
+ *
+ * @author Shilad Sen
+ */
+public class DenseCosineSimilarity implements DenseVectorSimilarity {
+
+    /**
+     * Scans of fewer rows than this are not split into shards.
+     */
+    public static final int MIN_PARALLEL_ROWS = 50000;
+
+    private final int numShards;
+    private final CosineSimilarity sparse;
+    private DenseVectorStore vectors;
+
+    public DenseCosineSimilarity() {
+        this(WpThreadUtils.getMaxThreads());
+    }
+
+    /**
+     * @param numShards The number of partitions of page vectors that are scored
+     *                  in parallel by mostSimilar.
+     */
+    public DenseCosineSimilarity(int numShards) {
+        this.numShards = numShards;
+        this.sparse = new CosineSimilarity(numShards);
+    }
+
+    @Override
+    public void setVectors(DenseVectorStore vectors) {
+        this.vectors = vectors;
+    }
+
+    @Override
+    public double similarity(int row1, int row2) {
+        return vectors.cosine(row1, row2);
+    }
+
+    @Override
+    public SRResultList mostSimilar(int row, final int maxResults, final TIntSet validIds) {
+        final float[] query = vectors.getVector(row);
+        final double queryNorm = vectors.getNorm(row);
+        Leaderboard leaderboard = new Leaderboard(maxResults);
+        if (queryNorm == 0.0) {
+            return leaderboard.getTop();
+        }
+
+        if (validIds != null && validIds.size() < vectors.getNumIds()) {
+            TIntIterator iter = validIds.iterator();
+            while (iter.hasNext()) {
+                int id = iter.next();
+                int r = vectors.getRow(id);
+                if (r >= 0) {
+                    tally(leaderboard, id, query, queryNorm, r);
+                }
+            }
+        } else {
+            int n = vectors.getNumIds();
+            int shards = Math.max(1, Math.min(numShards, n / MIN_PARALLEL_ROWS));
+            // Shared threads may not wait on other shared tasks, so scan inline there.
+            if (shards == 1 || WpThreadUtils.isSharedThread()) {
+                leaderboard = scan(query, queryNorm, maxResults, validIds, 0, n);
+            } else {
+                ExecutorService exec = WpThreadUtils.getSharedExecutor();
+                List<Future<Leaderboard>> futures = new ArrayList<Future<Leaderboard>>();
+                for (int s = 1; s < shards; s++) {
+                    final int start = (int) ((long) n * s / shards);
+                    final int end = (int) ((long) n * (s + 1) / shards);
+                    futures.add(exec.submit(new Callable<Leaderboard>() {
+                        @Override
+                        public Leaderboard call() throws Exception {
+                            return scan(query, queryNorm, maxResults, validIds, start, end);
+                        }
+                    }));
+                }
+                // The calling thread scans the first shard itself.
+                leaderboard = scan(query, queryNorm, maxResults, validIds, 0, n / shards);
+                try {
+                    for (Future<Leaderboard> f : futures) {
+                        leaderboard.merge(f.get());
+                    }
+                } catch (InterruptedException e) {
+                    for (Future<Leaderboard> f : futures) {
+                        f.cancel(true);
+                    }
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("interrupted while scoring shards", e);
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("scoring shard failed", e.getCause());
+                }
+            }
+        }
+        SRResultList result = leaderboard.getTop();
+        result.sortDescending();
+        return result;
+    }
+
+    /**
+     * Scores the page vectors with indexes in [start, end) in the store's id order.
+     */
+    private Leaderboard scan(float[] query, double queryNorm, int maxResults, TIntSet validIds, int start, int end) {
+        Leaderboard leaderboard = new Leaderboard(maxResults);
+        int[] ids = vectors.getIds();
+        int[] rows = vectors.getIdRows();
+        for (int i = start; i < end; i++) {
+            if (validIds == null || validIds.contains(ids[i])) {
+                tally(leaderboard, ids[i], query, queryNorm, rows[i]);
+            }
+        }
+        return leaderboard;
+    }
+
+    private void tally(Leaderboard leaderboard, int id, float[] query, double queryNorm, int row) {
+        double norm = vectors.getNorm(row);
+        if (norm > 0) {
+            leaderboard.tallyScore(id, vectors.dot(query, row) / (queryNorm * norm));
+        }
+    }
+
+    @Override
+    public void setMatrices(SparseMatrix features, SparseMatrix transpose, File dataDir) throws IOException {
+        sparse.setMatrices(features, transpose, dataDir);
+    }
+
+    @Override
+    public double similarity(MatrixRow vector1, MatrixRow vector2) {
+        return sparse.similarity(vector1, vector2);
+    }
+
+    @Override
+    public double similarity(TIntFloatMap vector1, TIntFloatMap vector2) {
+        return sparse.similarity(vector1, vector2);
+    }
+
+    @Override
+    public SRResultList mostSimilar(TIntFloatMap query, int maxResults, TIntSet validIds) throws IOException {
+        return sparse.mostSimilar(query, maxResults, validIds);
+    }
+
+    @Override
+    public double getMinValue() {
+        return -1.0;
+    }
+
+    @Override
+    public double getMaxValue() {
+        return 1.0;
+    }
+
+    public static class Provider extends org.wikibrain.conf.Provider<VectorSimilarity> {
+        public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
+            super(configurator, config);
+        }
+
+        @Override
+        public Class getType() {
+            return VectorSimilarity.class;
+        }
+
+        @Override
+        public String getPath() {
+            return "sr.metric.similarity";
+        }
+
+        @Override
+        public VectorSimilarity get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+            if (!config.getString("type").equals("densecosine")) {
+                return null;
+            }
+            int shards = config.hasPath("shards") ? config.getInt("shards") : 0;
+            return new DenseCosineSimilarity(shards > 0 ? shards : WpThreadUtils.getMaxThreads());
+        }
+    }
+}
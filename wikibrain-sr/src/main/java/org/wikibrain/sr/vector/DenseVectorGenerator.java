@@ -0,0 +1,26 @@
+package org.wikibrain.sr.vector;
+
+/**
+ * A vector generator whose vectors are dense and precomputed in a DenseVectorStore
+ * (e.g. word2vec embeddings). Metrics can compare the stored vectors directly rather
+ * than building sparse vectors with getVector().
+ *
+ * @author Shilad Sen
+ */
+public interface DenseVectorGenerator extends VectorGenerator {
+
+    /**
+     * @return The store holding the vectors for pages and phrases.
+     */
+    public DenseVectorStore getVectors();
+
+    /**
+     * @return The row of the page's vector in getVectors(), or -1 if it has none.
+     */
+    public int getRow(int pageId);
+
+    /**
+     * @return The row of the phrase's vector in getVectors(), or -1 if it has none.
+     */
+    public int getRow(String phrase);
+}
@@ -0,0 +1,35 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.set.TIntSet;
+import org.wikibrain.sr.SRResultList;
+
+/**
+ * A vector similarity that can also compare the rows of a DenseVectorStore in place.
+ *
+ * @author Shilad Sen
+ */
+public interface DenseVectorSimilarity extends VectorSimilarity {
+
+    /**
+     * Sets the store whose rows are compared by the row-based methods.
+     * @param vectors
+     */
+    public void setVectors(DenseVectorStore vectors);
+
+    /**
+     * Returns the similarity of two rows in the store.
+     * @param row1
+     * @param row2
+     * @return
+     */
+    public double similarity(int row1, int row2);
+
+    /**
+     * Returns the page ids whose vectors are most similar to a row in the store.
+     * @param row
+     * @param maxResults
+     * @param validIds If not null, only these ids are returned.
+     * @return
+     */
+    public SRResultList mostSimilar(int row, int maxResults, TIntSet validIds);
+}
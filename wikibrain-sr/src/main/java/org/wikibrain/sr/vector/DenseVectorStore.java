@@ -0,0 +1,366 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import org.apache.commons.io.IOUtils;
+import org.wikibrain.utils.MappedColumnFile;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * A memory-mapped store of dense, fixed-length float vectors (e.g. word2vec embeddings)
+ * for pages and phrases.
+ *
+ * The vectors are a single contiguous block of floats in the ".vectors" file, one row per
+ * vector. The ".index" file maps page ids and phrases to rows and holds the norm of each row.
+ * Page ids are kept in sorted arrays. Phrases are sorted by their UTF-8 bytes and stay
+ * memory-mapped; lookups binary search them without decoding.
+ *
+ * Vectors can be compared in place (dot products and cosines over rows), so callers need not
+ * copy them out of the mapped file.
+ *
+ * @author Shilad Sen
+ */
+public class DenseVectorStore implements Closeable {
+    private static final Logger LOG = Logger.getLogger(DenseVectorStore.class.getName());
+
+    public static final int FILE_HEADER = 0x0dec7012;
+
+    private final File vectorPath;
+    private final File indexPath;
+
+    private final int dimensions;
+    private final int numRows;
+
+    // page ids in increasing order, and their rows
+    private final int[] ids;
+    private final int[] idRows;
+
+    private final float[] norms;
+
+    // phrases: rows and offsets into the mapped phrase bytes, in phrase order
+    private final int[] phraseRows;
+    private final int[] phraseOffsets;
+    private final ByteBuffer phraseBytes;
+
+    // vectors, split into chunks of whole rows that each fit in a mapped buffer
+    private final int rowsPerChunk;
+    private final FloatBuffer[] chunks;
+
+    private FileChannel vectorChannel;
+
+    /**
+     * Opens a store written by a Writer with the same base path.
+     */
+    public DenseVectorStore(File path) throws IOException {
+        this.vectorPath = getVectorPath(path);
+        this.indexPath = getIndexPath(path);
+
+        ByteBuffer index = MappedColumnFile.map(indexPath, FILE_HEADER, "vector index");
+        dimensions = index.getInt(4);
+        numRows = index.getInt(8);
+
+        int numIds = index.getInt(12);
+        int p = 16;
+        ids = new int[numIds];
+        idRows = new int[numIds];
+        MappedColumnFile.intColumn(index, p, numIds).get(ids);
+        p += 4 * numIds;
+        MappedColumnFile.intColumn(index, p, numIds).get(idRows);
+        p += 4 * numIds;
+
+        norms = new float[numRows];
+        MappedColumnFile.floatColumn(index, p, numRows).get(norms);
+        p += 4 * numRows;
+
+        int numPhrases = index.getInt(p);
+        p += 4;
+        phraseRows = new int[numPhrases];
+        phraseOffsets = new int[numPhrases + 1];
+        MappedColumnFile.intColumn(index, p, numPhrases).get(phraseRows);
+        p += 4 * numPhrases;
+        MappedColumnFile.intColumn(index, p, numPhrases + 1).get(phraseOffsets);
+        p += 4 * (numPhrases + 1);
+        phraseBytes = MappedColumnFile.slice(index, p, index.limit() - p);
+
+        vectorChannel = new FileInputStream(vectorPath).getChannel();
+        long rowBytes = 4L * Math.max(1, dimensions);
+        rowsPerChunk = (int) Math.max(1, Integer.MAX_VALUE / rowBytes);
+        int numChunks = (numRows + rowsPerChunk - 1) / rowsPerChunk;
+        chunks = new FloatBuffer[numChunks];
+        for (int i = 0; i < numChunks; i++) {
+            long start = (long) i * rowsPerChunk * rowBytes;
+            long end = Math.min((long) numRows * rowBytes, start + rowsPerChunk * rowBytes);
+            chunks[i] = vectorChannel.map(FileChannel.MapMode.READ_ONLY, start, end - start).asFloatBuffer();
+        }
+        LOG.info("opened " + numRows + " vectors of length " + dimensions + " for " +
+                numIds + " ids and " + numPhrases + " phrases from " + vectorPath);
+    }
+
+    /**
+     * @return The row of a page id, or -1 if it has no vector.
+     */
+    public int getRow(int id) {
+        int i = Arrays.binarySearch(ids, id);
+        return (i < 0) ? -1 : idRows[i];
+    }
+
+    /**
+     * @return The row of a phrase, or -1 if it has no vector.
+     */
+    public int getRow(String phrase) {
+        byte[] key = encode(phrase);
+        int lo = 0;
+        int hi = phraseRows.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compareToPhrase(key, mid);
+            if (c == 0) {
+                return phraseRows[mid];
+            } else if (c < 0) {
+                hi = mid - 1;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The page ids with vectors, in increasing order. Do not modify the array.
+     */
+    public int[] getIds() {
+        return ids;
+    }
+
+    /**
+     * @return The rows of the ids returned by getIds(), in the same order. Do not modify the array.
+     */
+    public int[] getIdRows() {
+        return idRows;
+    }
+
+    public int getNumIds() {
+        return ids.length;
+    }
+
+    public int getNumPhrases() {
+        return phraseRows.length;
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    public float getNorm(int row) {
+        return norms[row];
+    }
+
+    /**
+     * @return A copy of the vector in a row.
+     */
+    public float[] getVector(int row) {
+        float[] v = new float[dimensions];
+        FloatBuffer chunk = chunks[row / rowsPerChunk];
+        int base = (row % rowsPerChunk) * dimensions;
+        for (int i = 0; i < dimensions; i++) {
+            v[i] = chunk.get(base + i);
+        }
+        return v;
+    }
+
+    /**
+     * @return The dot product of a vector and a row.
+     */
+    public double dot(float[] vector, int row) {
+        FloatBuffer chunk = chunks[row / rowsPerChunk];
+        int base = (row % rowsPerChunk) * dimensions;
+        double dot = 0.0;
+        for (int i = 0; i < dimensions; i++) {
+            dot += vector[i] * chunk.get(base + i);
+        }
+        return dot;
+    }
+
+    /**
+     * @return The dot product of two rows.
+     */
+    public double dot(int row1, int row2) {
+        FloatBuffer chunk1 = chunks[row1 / rowsPerChunk];
+        FloatBuffer chunk2 = chunks[row2 / rowsPerChunk];
+        int base1 = (row1 % rowsPerChunk) * dimensions;
+        int base2 = (row2 % rowsPerChunk) * dimensions;
+        double dot = 0.0;
+        for (int i = 0; i < dimensions; i++) {
+            dot += chunk1.get(base1 + i) * chunk2.get(base2 + i);
+        }
+        return dot;
+    }
+
+    /**
+     * @return The cosine similarity of two rows, or 0 if either has length zero.
+     */
+    public double cosine(int row1, int row2) {
+        double denom = norms[row1] * norms[row2];
+        return (denom == 0.0) ? 0.0 : dot(row1, row2) / denom;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOUtils.closeQuietly(vectorChannel);
+        vectorChannel = null;
+    }
+
+    /**
+     * Compares a key with the phrase at an index, comparing unsigned UTF-8 bytes.
+     */
+    private int compareToPhrase(byte[] key, int i) {
+        int start = phraseOffsets[i];
+        int len = phraseOffsets[i + 1] - start;
+        int n = Math.min(key.length, len);
+        for (int j = 0; j < n; j++) {
+            int c = (key[j] & 0xff) - (phraseBytes.get(start + j) & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return key.length - len;
+    }
+
+    private static byte[] encode(String phrase) {
+        try {
+            return phrase.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int compareBytes(byte[] b1, byte[] b2) {
+        int n = Math.min(b1.length, b2.length);
+        for (int i = 0; i < n; i++) {
+            int c = (b1[i] & 0xff) - (b2[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return b1.length - b2.length;
+    }
+
+    public static File getVectorPath(File path) {
+        return new File(path.getAbsolutePath() + ".vectors");
+    }
+
+    public static File getIndexPath(File path) {
+        return new File(path.getAbsolutePath() + ".index");
+    }
+
+    /**
+     * Streams vectors to a new store. Vectors must all have the same length.
+     * If an id or phrase is added more than once, the last vector wins.
+     * Not thread safe.
+     */
+    public static class Writer {
+        private final File path;
+        private final int dimensions;
+        private final MappedColumnFile.Output out;
+        private final TIntIntMap idRows = new TIntIntHashMap();
+        private final TObjectIntMap<String> phraseRows = new TObjectIntHashMap<String>();
+        private float[] norms = new float[1024];
+        private int numRows = 0;
+
+        public Writer(File path, int dimensions) throws IOException {
+            this.path = path;
+            this.dimensions = dimensions;
+            this.out = new MappedColumnFile.Output(getVectorPath(path));
+        }
+
+        public void addVector(int id, float[] vector) throws IOException {
+            idRows.put(id, writeRow(vector));
+        }
+
+        public void addVector(String phrase, float[] vector) throws IOException {
+            phraseRows.put(phrase, writeRow(vector));
+        }
+
+        private int writeRow(float[] vector) throws IOException {
+            if (vector.length != dimensions) {
+                throw new IllegalArgumentException("expected vector of length " + dimensions + ", found " + vector.length);
+            }
+            double norm2 = 0.0;
+            for (float x : vector) {
+                out.writeFloat(x);
+                norm2 += x * x;
+            }
+            if (numRows == norms.length) {
+                norms = Arrays.copyOf(norms, norms.length * 2);
+            }
+            norms[numRows] = (float) Math.sqrt(norm2);
+            return numRows++;
+        }
+
+        /**
+         * Writes the index and closes the store.
+         */
+        public void finish() throws IOException {
+            out.commit();
+
+            int[] ids = idRows.keys();
+            Arrays.sort(ids);
+
+            final Map<String, byte[]> encoded = new HashMap<String, byte[]>();
+            for (String phrase : phraseRows.keySet()) {
+                encoded.put(phrase, encode(phrase));
+            }
+            List<String> phrases = new ArrayList<String>(encoded.keySet());
+            Collections.sort(phrases, new Comparator<String>() {
+                @Override
+                public int compare(String p1, String p2) {
+                    return compareBytes(encoded.get(p1), encoded.get(p2));
+                }
+            });
+
+            MappedColumnFile.Output index = new MappedColumnFile.Output(getIndexPath(path));
+            try {
+                index.writeInt(FILE_HEADER);
+                index.writeInt(dimensions);
+                index.writeInt(numRows);
+                index.writeInt(ids.length);
+                index.writeColumn(ids);
+                for (int id : ids) {
+                    index.writeInt(idRows.get(id));
+                }
+                for (int i = 0; i < numRows; i++) {
+                    index.writeFloat(norms[i]);
+                }
+                index.writeInt(phrases.size());
+                for (String phrase : phrases) {
+                    index.writeInt(phraseRows.get(phrase));
+                }
+                int offset = 0;
+                for (String phrase : phrases) {
+                    index.writeInt(offset);
+                    offset += encoded.get(phrase).length;
+                }
+                index.writeInt(offset);
+                for (String phrase : phrases) {
+                    index.write(encoded.get(phrase));
+                }
+                index.commit();
+            } finally {
+                index.close();
+            }
+            LOG.info("wrote " + numRows + " vectors for " + ids.length + " ids and " + phrases.size() + " phrases to " + path);
+        }
+    }
+}
@@ -20,6 +20,7 @@ import org.wikibrain.lucene.QueryBuilder;
 import org.wikibrain.lucene.WikiBrainScoreDoc;
 import org.wikibrain.lucene.WpIdFilter;
 import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.matrix.SparseMatrixWriter;
 import org.wikibrain.sr.Explanation;
 import org.wikibrain.sr.SRResult;
 import org.wikibrain.sr.SRResultList;
@@ -47,6 +48,7 @@ public class ESAGenerator implements VectorGenerator {
     private WpIdFilter conceptFilter = null;
     private TIntSet blackListSet;
     private final String blackListFilePath;
+    private long maxCachedPostings = 0;
 
     public ESAGenerator(Language language, LocalPageDao pageDao, LuceneSearcher searcher, String blackListFilePath) {
         this.language = language;
@@ -87,9 +89,41 @@ public class ESAGenerator implements VectorGenerator {
         WikiBrainScoreDoc[] wikibrainScoreDocs =  getQueryBuilder()
                 .setMoreLikeThisQuery(luceneId)
                 .search();
+        return makeVector(wikibrainScoreDocs);
+    }
+
+    /**
+     * Writes the vectors for many pages to a feature matrix. The vectors are the same
+     * as those returned by getVector(pageId), but they are computed in a single batch
+     * by an ESAMatrixBuilder.
+     *
+     * @param pageIds
+     * @param writer
+     * @throws IOException
+     */
+    public void writeFeatureMatrix(TIntSet pageIds, SparseMatrixWriter writer) throws IOException {
+        ESAMatrixBuilder builder = new ESAMatrixBuilder(this);
+        if (maxCachedPostings > 0) {
+            builder.setMaxCachedPostings(maxCachedPostings);
+        }
+        builder.write(pageIds, writer);
+    }
+
+    /**
+     * @param maxCachedPostings The maximum number of postings cached while writing a
+     *                          feature matrix, or 0 to derive it from the heap size.
+     * @see ESAMatrixBuilder#setMaxCachedPostings(long)
+     */
+    public void setMaxCachedPostings(long maxCachedPostings) {
+        this.maxCachedPostings = maxCachedPostings;
+    }
+
+    /**
+     * Converts the results of a MoreLikeThis search for a page to a vector.
+     */
+    TIntFloatMap makeVector(WikiBrainScoreDoc[] wikibrainScoreDocs) {
         wikibrainScoreDocs = pruneSimilar(wikibrainScoreDocs);
         return SimUtils.normalizeVector(expandScores(wikibrainScoreDocs));
-
     }
 
     @Override
@@ -128,8 +162,6 @@ public class ESAGenerator implements VectorGenerator {
 
     @Override
     public List<Explanation> getExplanations(int pageID1, int pageID2, TIntFloatMap vector1, TIntFloatMap vector2, SRResult result) throws DaoException {
-        LocalPage page1=pageDao.getById(language,pageID1);
-        LocalPage page2=pageDao.getById(language,pageID2);
         Leaderboard lb = new Leaderboard(5);    // TODO: make 5 configurable
         for (int id : vector1.keys()) {
             if (vector2.containsKey(id)) {
@@ -137,14 +169,25 @@ public class ESAGenerator implements VectorGenerator {
             }
         }
         SRResultList top = lb.getTop();
+        top.sortDescending();
+
+        // Fetch both pages and all explanation pages in a single batch.
+        List<Integer> ids = new ArrayList<Integer>();
+        ids.add(pageID1);
+        ids.add(pageID2);
+        for (int i = 0; i < top.numDocs(); i++) {
+            ids.add(top.getId(i));
+        }
+        Map<Integer, LocalPage> pages = pageDao.getByIds(language, ids);
+        LocalPage page1 = pages.get(pageID1);
+        LocalPage page2 = pages.get(pageID2);
         if (top.numDocs() == 0) {
             return Arrays.asList(new Explanation("? and ? share no links", page1, page2));
         }
-        top.sortDescending();
 
         List<Explanation> explanations = new ArrayList<Explanation>();
         for (int i = 0; i < top.numDocs(); i++) {
-            LocalPage p = pageDao.getById(language, top.getId(i));
+            LocalPage p = pages.get(top.getId(i));
             if (p != null) {
                 explanations.add(new Explanation("Both ? and ? have similar text to ?", page1, page2, p));
             }
@@ -166,9 +209,15 @@ public class ESAGenerator implements VectorGenerator {
         }
         top.sortDescending();
 
-        List<Explanation> explanations = new ArrayList<Explanation>();
+        List<Integer> ids = new ArrayList<Integer>();
         for (int i = 0; i < top.numDocs(); i++) {
-            LocalPage p = pageDao.getById(language, searcher.getLocalIdFromDocId(top.getId(i), language));
+            ids.add(searcher.getLocalIdFromDocId(top.getId(i), language));
+        }
+        Map<Integer, LocalPage> pages = pageDao.getByIds(language, ids);
+
+        List<Explanation> explanations = new ArrayList<Explanation>();
+        for (int id : ids) {
+            LocalPage p = pages.get(id);
             if (p != null) {
                 explanations.add(new Explanation("Both ? and ? have similar text to ?", phrase1, phrase2, p));
             }
@@ -176,7 +225,19 @@ public class ESAGenerator implements VectorGenerator {
         return explanations;
     }
 
-    private QueryBuilder getQueryBuilder() {
+    LuceneSearcher getSearcher() {
+        return searcher;
+    }
+
+    Language getLanguage() {
+        return language;
+    }
+
+    WpIdFilter getConceptFilter() {
+        return conceptFilter;
+    }
+
+    QueryBuilder getQueryBuilder() {
         QueryBuilder builder = searcher.getQueryBuilderByLanguage(language);
         builder.setResolveWikipediaIds(false);
         if (conceptFilter != null) {
@@ -252,6 +313,9 @@ public class ESAGenerator implements VectorGenerator {
                     getConfigurator().get(LuceneSearcher.class, config.getString("luceneSearcher")),
                     getConfig().get().getString("sr.blacklist.path")
             );
+            if (config.hasPath("maxCachedPostings")) {
+                generator.setMaxCachedPostings(config.getLong("maxCachedPostings"));
+            }
             if (config.hasPath("concepts")) {
                 try {
                     generator.setConcepts(FileUtils.getFile(
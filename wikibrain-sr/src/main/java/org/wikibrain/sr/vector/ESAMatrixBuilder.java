@@ -0,0 +1,420 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntFloatMap;
+import gnu.trove.set.TIntSet;
+import org.apache.lucene.index.*;
+import org.apache.lucene.queries.mlt.MoreLikeThis;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.search.similarities.TFIDFSimilarity;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.PriorityQueue;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.lucene.LuceneSearcher;
+import org.wikibrain.lucene.QueryBuilder;
+import org.wikibrain.lucene.WikiBrainScoreDoc;
+import org.wikibrain.matrix.SparseMatrixRow;
+import org.wikibrain.matrix.SparseMatrixWriter;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+import org.wikibrain.utils.WpThreadUtils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Builds the ESA feature matrix for many pages at once.
+ *
+ * ESAGenerator.getVector runs a MoreLikeThis search for each page. This class selects
+ * the same query terms for each page, but scores concepts itself from postings lists
+ * that are decoded once and shared by all pages (up to maxCachedPostings postings).
+ * Each cached posting takes 8 bytes of heap; by default the cache may use a quarter of
+ * the maximum heap size (see defaultMaxCachedPostings()).
+ * Pages are processed in parallel in partitions of consecutive lucene ids, so stored
+ * fields are read sequentially.
+ *
+ * Scores replicate those of a BooleanQuery of TermQueries under the searcher's
+ * TFIDFSimilarity, so the resulting vectors match those of ESAGenerator.getVector up
+ * to floating point error.
+ *
+ * @author Shilad Sen
+ */
+public class ESAMatrixBuilder {
+    private static final Logger LOG = Logger.getLogger(ESAMatrixBuilder.class.getName());
+
+    public static final int DEFAULT_PARTITION_SIZE = 1000;
+
+    /**
+     * Heap used by a cached posting: a lucene id and a term frequency.
+     */
+    public static final int BYTES_PER_POSTING = 8;
+
+    /**
+     * Fraction of the maximum heap size that cached postings may use by default.
+     */
+    public static final double DEFAULT_CACHE_FRACTION = 0.25;
+
+    private final ESAGenerator generator;
+    private final LuceneSearcher searcher;
+    private final QueryBuilder queryBuilder;
+    private final String field;
+
+    private int partitionSize = DEFAULT_PARTITION_SIZE;
+    private long maxCachedPostings = defaultMaxCachedPostings();
+
+    // State for a single build
+    private DirectoryReader reader;
+    private TFIDFSimilarity similarity;
+    private Bits allowed;
+    private float[] norms;
+    private final ConcurrentHashMap<String, Postings> cache = new ConcurrentHashMap<String, Postings>();
+    private final AtomicLong numCachedPostings = new AtomicLong();
+
+    public ESAMatrixBuilder(ESAGenerator generator) {
+        this.generator = generator;
+        this.searcher = generator.getSearcher();
+        this.queryBuilder = generator.getQueryBuilder();
+        this.field = searcher.getOptions().elements.getTextFieldName();
+    }
+
+    /**
+     * @param partitionSize The number of pages processed by a thread at a time.
+     */
+    public void setPartitionSize(int partitionSize) {
+        this.partitionSize = partitionSize;
+    }
+
+    /**
+     * @return The number of postings that fit in DEFAULT_CACHE_FRACTION of the maximum heap size.
+     */
+    public static long defaultMaxCachedPostings() {
+        return (long) (Runtime.getRuntime().maxMemory() * DEFAULT_CACHE_FRACTION / BYTES_PER_POSTING);
+    }
+
+    /**
+     * @param maxCachedPostings The maximum number of postings kept in memory.
+     *                          Postings of other terms are re-read for each page.
+     */
+    public void setMaxCachedPostings(long maxCachedPostings) {
+        this.maxCachedPostings = maxCachedPostings;
+    }
+
+    /**
+     * Writes the vectors for the specified pages to a matrix.
+     * Pages that are not indexed or have empty vectors are skipped.
+     *
+     * @param pageIds Local ids of pages.
+     * @param writer
+     * @throws IOException
+     */
+    public synchronized void write(TIntSet pageIds, final SparseMatrixWriter writer) throws IOException {
+        IndexSearcher indexSearcher = searcher.getSearcherByLanguage(generator.getLanguage());
+        Similarity sim = indexSearcher.getSimilarity();
+        if (!(sim instanceof TFIDFSimilarity)) {
+            throw new IllegalStateException("ESA requires a TFIDFSimilarity, found " + sim.getClass());
+        }
+        similarity = (TFIDFSimilarity) sim;
+        reader = searcher.getReaderByLanguage(generator.getLanguage());
+        allowed = getAllowedConcepts();
+        norms = getNorms();
+        cache.clear();
+        numCachedPostings.set(0);
+
+        // sort pages by lucene id
+        final TIntList luceneIds = new TIntArrayList();
+        int numUnindexed = 0;
+        for (int pageId : pageIds.toArray()) {
+            int luceneId;
+            try {
+                luceneId = searcher.getDocIdFromLocalId(pageId, generator.getLanguage());
+            } catch (DaoException e) {
+                throw new IOException(e);
+            }
+            if (luceneId < 0) {
+                numUnindexed++;
+            } else {
+                luceneIds.add(luceneId);
+            }
+        }
+        luceneIds.sort();
+        if (numUnindexed > 0) {
+            LOG.warning("skipping " + numUnindexed + " unindexed pages in " + generator.getLanguage());
+        }
+
+        final ThreadLocal<Accumulator> accumulators = new ThreadLocal<Accumulator>() {
+            @Override
+            protected Accumulator initialValue() {
+                return new Accumulator(reader.maxDoc());
+            }
+        };
+        final int numPartitions = (luceneIds.size() + partitionSize - 1) / partitionSize;
+        final AtomicInteger numRows = new AtomicInteger();
+        ParallelForEach.range(0, numPartitions, WpThreadUtils.getMaxThreads(), new Procedure<Integer>() {
+            @Override
+            public void call(Integer partition) throws Exception {
+                MoreLikeThis mlt = queryBuilder.getMoreLikeThis(field);
+                Accumulator accumulator = accumulators.get();
+                int end = Math.min(luceneIds.size(), (partition + 1) * partitionSize);
+                for (int i = partition * partitionSize; i < end; i++) {
+                    int luceneId = luceneIds.get(i);
+                    WikiBrainScoreDoc[] scores = accumulator.score(mlt, luceneId);
+                    TIntFloatMap vector = generator.makeVector(scores);
+                    if (!vector.isEmpty()) {
+                        int pageId = searcher.getLocalIdFromDocId(luceneId, generator.getLanguage());
+                        writer.writeRow(new SparseMatrixRow(writer.getValueConf(), pageId, vector));
+                        numRows.incrementAndGet();
+                    }
+                }
+                LOG.info("finished ESA partition " + partition + " of " + numPartitions
+                        + " with " + cache.size() + " cached terms");
+            }
+        });
+        LOG.info("wrote " + numRows.get() + " ESA vectors for " + luceneIds.size() + " pages");
+        cache.clear();
+    }
+
+    /**
+     * @return The documents that may appear in vectors: live documents that pass the
+     * generator's concept filter.
+     */
+    private Bits getAllowedConcepts() throws IOException {
+        FixedBitSet bits = new FixedBitSet(reader.maxDoc());
+        Filter filter = generator.getConceptFilter();
+        for (AtomicReaderContext context : reader.leaves()) {
+            AtomicReader leaf = context.reader();
+            Bits live = leaf.getLiveDocs();
+            if (filter == null) {
+                for (int i = 0; i < leaf.maxDoc(); i++) {
+                    if (live == null || live.get(i)) {
+                        bits.set(context.docBase + i);
+                    }
+                }
+            } else {
+                DocIdSet docs = filter.getDocIdSet(context, live);
+                DocIdSetIterator iter = (docs == null) ? null : docs.iterator();
+                if (iter == null) {
+                    continue;
+                }
+                int doc;
+                while ((doc = iter.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                    bits.set(context.docBase + doc);
+                }
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * @return Decoded length norms for all documents, or null if norms are omitted.
+     */
+    private float[] getNorms() throws IOException {
+        float[] result = null;
+        for (AtomicReaderContext context : reader.leaves()) {
+            NumericDocValues values = context.reader().getNormValues(field);
+            if (values == null) {
+                continue;
+            }
+            if (result == null) {
+                result = new float[reader.maxDoc()];
+                Arrays.fill(result, 1.0f);
+            }
+            for (int i = 0; i < context.reader().maxDoc(); i++) {
+                result[context.docBase + i] = similarity.decodeNormValue((byte) values.get(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The postings for a term, read from the cache if possible.
+     */
+    private Postings getPostings(String word) throws IOException {
+        Postings postings = cache.get(word);
+        if (postings != null) {
+            return postings;
+        }
+        postings = readPostings(word);
+        if (numCachedPostings.get() + postings.docs.length <= maxCachedPostings) {
+            if (cache.putIfAbsent(word, postings) == null) {
+                numCachedPostings.addAndGet(postings.docs.length);
+            }
+        }
+        return postings;
+    }
+
+    /**
+     * Reads the postings for a term, keeping only allowed documents.
+     */
+    private Postings readPostings(String word) throws IOException {
+        BytesRef bytes = new BytesRef(word);
+        TIntArrayList docs = new TIntArrayList();
+        TIntArrayList freqs = new TIntArrayList();
+        long docFreq = 0;
+        DocsEnum docsEnum = null;
+        for (AtomicReaderContext context : reader.leaves()) {
+            AtomicReader leaf = context.reader();
+            Terms terms = leaf.terms(field);
+            if (terms == null) {
+                continue;
+            }
+            TermsEnum termsEnum = terms.iterator(null);
+            if (!termsEnum.seekExact(bytes, false)) {
+                continue;
+            }
+            docFreq += termsEnum.docFreq();
+            docsEnum = termsEnum.docs(leaf.getLiveDocs(), docsEnum, DocsEnum.FLAG_FREQS);
+            int doc;
+            while ((doc = docsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                if (allowed.get(context.docBase + doc)) {
+                    docs.add(context.docBase + doc);
+                    freqs.add(docsEnum.freq());
+                }
+            }
+        }
+        float[] tfs = new float[freqs.size()];
+        for (int i = 0; i < tfs.length; i++) {
+            tfs[i] = similarity.tf(freqs.get(i));
+        }
+        return new Postings(docFreq, docs.toArray(), tfs);
+    }
+
+    private static class Postings {
+        final long docFreq;
+        final int[] docs;
+        final float[] tfs;
+
+        Postings(long docFreq, int[] docs, float[] tfs) {
+            this.docFreq = docFreq;
+            this.docs = docs;
+            this.tfs = tfs;
+        }
+    }
+
+    /**
+     * Per-thread buffers for the scores of concepts for one page at a time.
+     */
+    private class Accumulator {
+        private final float[] scores;
+        private final int[] overlaps;
+        private final TIntArrayList touched = new TIntArrayList();
+
+        Accumulator(int maxDoc) {
+            scores = new float[maxDoc];
+            overlaps = new int[maxDoc];
+        }
+
+        /**
+         * Scores concepts as an IndexSearcher would for the MoreLikeThis query of a page.
+         * @return The top concepts by decreasing score, ties broken by lucene id.
+         */
+        WikiBrainScoreDoc[] score(MoreLikeThis mlt, int luceneId) throws IOException {
+            PriorityQueue<Object[]> queue = mlt.retrieveTerms(luceneId);
+
+            // the same terms that MoreLikeThis.like() would place in its query
+            Postings[] query = new Postings[mlt.getMaxQueryTerms()];
+            int numTerms = 0;
+            Object[] term;
+            while (numTerms < query.length && (term = queue.pop()) != null) {
+                query[numTerms++] = getPostings((String) term[0]);
+            }
+            if (numTerms == 0) {
+                return new WikiBrainScoreDoc[0];
+            }
+
+            // query normalization as in BooleanWeight and TFIDFSimilarity.IDFStats
+            long maxDoc = reader.maxDoc();
+            float[] idfs = new float[numTerms];
+            float sumOfSquaredWeights = 0.0f;
+            for (int i = 0; i < numTerms; i++) {
+                idfs[i] = similarity.idf(query[i].docFreq, maxDoc);
+                sumOfSquaredWeights += idfs[i] * idfs[i];
+            }
+            float queryNorm = similarity.queryNorm(sumOfSquaredWeights);
+            if (Float.isInfinite(queryNorm) || Float.isNaN(queryNorm)) {
+                queryNorm = 1.0f;
+            }
+
+            for (int i = 0; i < numTerms; i++) {
+                float queryWeight = idfs[i];
+                queryWeight *= queryNorm;
+                float value = queryWeight * idfs[i];
+                Postings postings = query[i];
+                for (int j = 0; j < postings.docs.length; j++) {
+                    int doc = postings.docs[j];
+                    float s = postings.tfs[j] * value;
+                    if (norms != null) {
+                        s *= norms[doc];
+                    }
+                    if (overlaps[doc] == 0) {
+                        touched.add(doc);
+                    }
+                    scores[doc] += s;
+                    overlaps[doc]++;
+                }
+            }
+
+            float[] coords = new float[numTerms + 1];
+            for (int i = 0; i <= numTerms; i++) {
+                coords[i] = similarity.coord(i, numTerms);
+            }
+            TopDocs top = new TopDocs(Math.min(queryBuilder.getNumHits(), touched.size()));
+            for (int i = 0; i < touched.size(); i++) {
+                int doc = touched.get(i);
+                top.offer(doc, scores[doc] * coords[overlaps[doc]]);
+                scores[doc] = 0.0f;
+                overlaps[doc] = 0;
+            }
+            touched.resetQuick();
+            return top.getSorted();
+        }
+    }
+
+    /**
+     * Keeps the top documents by score, ties broken by increasing lucene id.
+     */
+    private static class TopDocs extends PriorityQueue<WikiBrainScoreDoc> {
+        private final int size;
+
+        TopDocs(int size) {
+            super(size);
+            this.size = size;
+        }
+
+        @Override
+        protected boolean lessThan(WikiBrainScoreDoc a, WikiBrainScoreDoc b) {
+            return (a.score == b.score) ? a.luceneId > b.luceneId : a.score < b.score;
+        }
+
+        void offer(int doc, float score) {
+            if (size == 0) {
+                return;
+            }
+            if (size() == size) {
+                WikiBrainScoreDoc least = top();
+                if (score < least.score || (score == least.score && doc > least.luceneId)) {
+                    return;
+                }
+            }
+            insertWithOverflow(new WikiBrainScoreDoc(doc, -1, score));
+        }
+
+        WikiBrainScoreDoc[] getSorted() {
+            WikiBrainScoreDoc[] sorted = new WikiBrainScoreDoc[size()];
+            for (int i = sorted.length - 1; i >= 0; i--) {
+                sorted[i] = pop();
+            }
+            return sorted;
+        }
+    }
+}
@@ -44,9 +44,9 @@ public class FancyPhraseVectorBasedSRMetric extends VectorBasedSRMetric {
 
 
     @Override
-    public SRResult similarity(String phrase1, String phrase2, boolean explanations) throws DaoException {
+    protected SRResult computeSimilarity(String phrase1, String phrase2, boolean explanations) throws DaoException {
         if (phraseMode == PhraseMode.NONE) {
-            return super.similarity(phrase1, phrase2, explanations);
+            return super.computeSimilarity(phrase1, phrase2, explanations);
         }
         TIntFloatMap vector1 = null;
         TIntFloatMap vector2 = null;
@@ -72,7 +72,7 @@ public class FancyPhraseVectorBasedSRMetric extends VectorBasedSRMetric {
         }
         if (vector1 == null || vector2 == null) {
             // fallback on parent's phrase resolution algorithm
-            return super.similarity(phrase1, phrase2, explanations);
+            return super.computeSimilarity(phrase1, phrase2, explanations);
         } else {
             SRResult result= new SRResult(similarity.similarity(vector1, vector2));
             if(explanations) {
@@ -83,9 +83,9 @@ public class FancyPhraseVectorBasedSRMetric extends VectorBasedSRMetric {
     }
 
     @Override
-    public SRResultList mostSimilar(String phrase, int maxResults, TIntSet validIds) throws DaoException {
+    protected SRResultList computeMostSimilar(String phrase, int maxResults, TIntSet validIds) throws DaoException {
         if (phraseMode == PhraseMode.NONE) {
-            return super.mostSimilar(phrase, maxResults, validIds);
+            return super.computeMostSimilar(phrase, maxResults, validIds);
         }
         TIntFloatMap vector = null;
         // try using phrases directly
@@ -104,7 +104,7 @@ public class FancyPhraseVectorBasedSRMetric extends VectorBasedSRMetric {
         }
         if (vector == null) {
             // fall back on parent's phrase resolution algorithm
-            return super.mostSimilar(phrase, maxResults, validIds);
+            return super.computeMostSimilar(phrase, maxResults, validIds);
         } else {
             try {
                 return similarity.mostSimilar(vector, maxResults, validIds);
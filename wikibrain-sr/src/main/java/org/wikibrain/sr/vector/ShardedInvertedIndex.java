@@ -0,0 +1,469 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.map.TIntFloatMap;
+import gnu.trove.set.TIntSet;
+import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.matrix.SparseMatrixRow;
+import org.wikibrain.sr.SRResultList;
+import org.wikibrain.sr.utils.Leaderboard;
+import org.wikibrain.utils.WpThreadUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * A top-k cosine similarity engine over the transpose of a feature matrix.
+ *
+ * The candidate ids (rows of the feature matrix) are sorted and partitioned into
+ * contiguous shards. A query is answered by scoring each shard independently
+ * (in parallel on the shared executor for large queries) into dense primitive
+ * accumulators, and merging the per-shard leaderboards.
+ *
+ * When all values are non-negative, each shard prunes with MaxScore style bounds:
+ * query columns are visited in decreasing order of their maximum possible
+ * contribution, and once the shard's k-th best partial score exceeds the sum of
+ * the bounds of the unvisited columns, no unseen candidate can enter the top k.
+ * From then on only the surviving candidates are looked up in the remaining
+ * columns. Results are the same as exhaustive scoring.
+ *
+ * Instances are immutable and safe to query from multiple threads.
+ *
+ * @author Shilad Sen
+ */
+public class ShardedInvertedIndex {
+
+    /**
+     * Queries touching fewer matrix entries than this are scored on the calling thread.
+     */
+    public static final int MIN_PARALLEL_ENTRIES = 50000;
+
+    /**
+     * Slack for floating point error when comparing scores against bounds.
+     */
+    private static final double EPSILON = 1E-6;
+
+    private final SparseMatrix transpose;
+
+    /**
+     * Candidate ids in sorted order. Dense indexes refer to positions in this array.
+     */
+    private final int[] ids;
+
+    /**
+     * Inverse of the norm of each candidate row, indexed by dense index.
+     */
+    private final float[] invLengths;
+
+    /**
+     * Maximum of value / norm(row) for each column of the feature matrix,
+     * or null if bounds are not available (e.g. the matrix has negative values).
+     */
+    private final TIntFloatMap maxima;
+
+    /**
+     * Dense index of the first candidate in each shard, followed by ids.length.
+     */
+    private final int[] shardStarts;
+
+    /**
+     * Recycled accumulators for each shard.
+     */
+    private final List<ConcurrentLinkedQueue<Accumulator>> pools;
+
+    /**
+     * @param transpose The transpose of the feature matrix.
+     * @param ids The ids of the rows in the feature matrix, sorted.
+     * @param lengths The norm of each row in the feature matrix, parallel to ids.
+     * @param maxima Maximum normalized value for each feature column, or null to disable pruning.
+     * @param numShards Number of partitions of the candidate ids.
+     */
+    public ShardedInvertedIndex(SparseMatrix transpose, int[] ids, float[] lengths, TIntFloatMap maxima, int numShards) {
+        if (ids.length != lengths.length) {
+            throw new IllegalArgumentException();
+        }
+        for (int i = 1; i < ids.length; i++) {
+            if (ids[i-1] >= ids[i]) {
+                throw new IllegalArgumentException("ids must be sorted and unique");
+            }
+        }
+        this.transpose = transpose;
+        this.ids = ids;
+        this.maxima = maxima;
+        this.invLengths = new float[lengths.length];
+        for (int i = 0; i < lengths.length; i++) {
+            invLengths[i] = (lengths[i] == 0) ? 0.0f : 1.0f / lengths[i];
+        }
+
+        numShards = Math.max(1, Math.min(numShards, ids.length));
+        this.shardStarts = new int[numShards + 1];
+        for (int i = 0; i <= numShards; i++) {
+            shardStarts[i] = (int) ((long) ids.length * i / numShards);
+        }
+        this.pools = new ArrayList<ConcurrentLinkedQueue<Accumulator>>();
+        for (int i = 0; i < numShards; i++) {
+            pools.add(new ConcurrentLinkedQueue<Accumulator>());
+        }
+    }
+
+    public int getNumShards() {
+        return shardStarts.length - 1;
+    }
+
+    /**
+     * Returns the candidates with the highest cosine similarity to the query.
+     * @param query
+     * @param maxResults
+     * @param validIds If not null, only these ids are returned.
+     * @return
+     * @throws IOException
+     */
+    public SRResultList mostSimilar(TIntFloatMap query, int maxResults, final TIntSet validIds) throws IOException {
+        final Leaderboard leaderboard = new Leaderboard(maxResults);
+        final Query q = prepare(query, maxResults, validIds);
+        if (q == null || ids.length == 0) {
+            return leaderboard.getTop();
+        }
+
+        int numShards = getNumShards();
+        // Shared threads may not wait on other shared tasks, so score shards inline there.
+        if (numShards == 1 || q.numEntries < MIN_PARALLEL_ENTRIES || WpThreadUtils.isSharedThread()) {
+            for (int s = 0; s < numShards; s++) {
+                leaderboard.merge(scoreShard(s, q));
+            }
+        } else {
+            ExecutorService exec = WpThreadUtils.getSharedExecutor();
+            List<Future<Leaderboard>> futures = new ArrayList<Future<Leaderboard>>();
+            for (int s = 1; s < numShards; s++) {
+                final int shard = s;
+                futures.add(exec.submit(new Callable<Leaderboard>() {
+                    @Override
+                    public Leaderboard call() throws Exception {
+                        return scoreShard(shard, q);
+                    }
+                }));
+            }
+            // The calling thread scores the first shard itself.
+            leaderboard.merge(scoreShard(0, q));
+            try {
+                for (Future<Leaderboard> f : futures) {
+                    leaderboard.merge(f.get());
+                }
+            } catch (InterruptedException e) {
+                for (Future<Leaderboard> f : futures) {
+                    f.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while scoring shards", e);
+            } catch (ExecutionException e) {
+                throw new IOException("scoring shard failed", e.getCause());
+            }
+        }
+
+        SRResultList result = leaderboard.getTop();
+        result.sortDescending();
+        return result;
+    }
+
+    /**
+     * Loads the transpose rows for the query and orders them by decreasing bound.
+     */
+    private Query prepare(TIntFloatMap query, int maxResults, TIntSet validIds) throws IOException {
+        int keys[] = query.keys();
+        List<Term> terms = new ArrayList<Term>(keys.length);
+        double norm = 0.0;
+        boolean prune = (maxima != null);
+        long numEntries = 0;
+        for (int i = 0; i < keys.length; i++) {
+            float weight = query.get(keys[i]);
+            norm += weight * weight;
+            if (weight == 0) {
+                continue;
+            }
+            SparseMatrixRow row = transpose.getRow(keys[i]);
+            if (row == null || row.getNumCols() == 0) {
+                continue;
+            }
+            double bound = Double.POSITIVE_INFINITY;
+            if (prune && weight > 0 && maxima.containsKey(keys[i])) {
+                bound = weight * maxima.get(keys[i]);
+            } else {
+                prune = false;
+            }
+            terms.add(new Term(row, weight, bound));
+            numEntries += row.getNumCols();
+        }
+        if (terms.isEmpty() || norm == 0.0) {
+            return null;
+        }
+        Collections.sort(terms, new Comparator<Term>() {
+            @Override
+            public int compare(Term t1, Term t2) {
+                return Double.compare(t2.bound, t1.bound);
+            }
+        });
+
+        // remaining[i] is the most that columns i...n can add to any score.
+        double remaining[] = new double[terms.size() + 1];
+        for (int i = terms.size() - 1; i >= 0; i--) {
+            remaining[i] = prune ? remaining[i+1] + terms.get(i).bound : Double.POSITIVE_INFINITY;
+        }
+        return new Query(
+                terms.toArray(new Term[terms.size()]), remaining,
+                Math.sqrt(norm), maxResults, validIds, numEntries);
+    }
+
+    private Leaderboard scoreShard(int shard, Query q) {
+        Accumulator acc = pools.get(shard).poll();
+        if (acc == null) {
+            acc = new Accumulator(shardStarts[shard+1] - shardStarts[shard]);
+        }
+        try {
+            return scoreShard(shard, q, acc);
+        } finally {
+            acc.reset();
+            pools.get(shard).add(acc);
+        }
+    }
+
+    private Leaderboard scoreShard(int shard, Query q, Accumulator acc) {
+        int lo = shardStarts[shard];
+        int hi = shardStarts[shard + 1];
+        if (lo >= hi) {
+            return new Leaderboard(q.maxResults);
+        }
+        int minId = ids[lo];
+        int maxId = ids[hi - 1];
+
+        boolean discovering = true;     // can new candidates still enter the top k?
+        double lastChecked = Double.POSITIVE_INFINITY;
+        double threshold = Double.NEGATIVE_INFINITY;
+
+        for (int t = 0; t < q.terms.length; t++) {
+            SparseMatrixRow row = q.terms[t].row;
+            float weight = q.terms[t].weight;
+            int n = row.getNumCols();
+            int begin = searchRow(row, 0, n, minId);
+            if (begin >= n || row.getColIndex(begin) > maxId) {
+                continue;
+            }
+
+            if (discovering) {
+                int d = lo;
+                for (int j = begin; j < n; j++) {
+                    int id = row.getColIndex(j);
+                    if (id > maxId) {
+                        break;
+                    }
+                    d = searchIds(d, hi, id);
+                    if (d >= hi) {
+                        break;
+                    }
+                    if (ids[d] == id) {
+                        acc.add(d - lo, weight * row.getColValue(j) * invLengths[d]);
+                    }
+                }
+            } else {
+                // Only surviving candidates are looked up, in sorted order.
+                int j = begin;
+                for (int i = 0; i < acc.numTouched && j < n; i++) {
+                    int k = acc.touched[i];
+                    int id = ids[lo + k];
+                    j = searchRow(row, j, n, id);
+                    if (j < n && row.getColIndex(j) == id) {
+                        acc.scores[k] += weight * row.getColValue(j) * invLengths[lo + k];
+                    }
+                }
+            }
+
+            double remaining = q.remaining[t + 1];
+            if (discovering && remaining < acc.max && remaining < 0.9 * lastChecked) {
+                lastChecked = remaining;
+                threshold = acc.threshold(lo, q);
+                if (threshold > remaining + EPSILON) {
+                    discovering = false;
+                    acc.sortTouched();
+                }
+            }
+            if (!discovering) {
+                acc.retain(threshold - remaining - EPSILON);
+            }
+        }
+
+        Leaderboard leaderboard = new Leaderboard(q.maxResults);
+        for (int i = 0; i < acc.numTouched; i++) {
+            int k = acc.touched[i];
+            int id = ids[lo + k];
+            if (q.validIds == null || q.validIds.contains(id)) {
+                leaderboard.tallyScore(id, acc.scores[k] / q.norm);
+            }
+        }
+        return leaderboard;
+    }
+
+    /**
+     * Returns the first index in [from, to) whose id is at least id, or to if none.
+     * Gallops forward from "from" because successive lookups are increasing.
+     */
+    private int searchIds(int from, int to, int id) {
+        if (from >= to || ids[from] >= id) {
+            return from;
+        }
+        int step = 1;
+        int prev = from;
+        int next = from + 1;
+        while (next < to && ids[next] < id) {
+            prev = next;
+            step <<= 1;
+            next = from + step;
+        }
+        int low = prev + 1;
+        int high = Math.min(next, to);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ids[mid] < id) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Same as searchIds, but over the columns of a matrix row.
+     */
+    private static int searchRow(SparseMatrixRow row, int from, int to, int id) {
+        if (from >= to || row.getColIndex(from) >= id) {
+            return from;
+        }
+        int step = 1;
+        int prev = from;
+        int next = from + 1;
+        while (next < to && row.getColIndex(next) < id) {
+            prev = next;
+            step <<= 1;
+            next = from + step;
+        }
+        int low = prev + 1;
+        int high = Math.min(next, to);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (row.getColIndex(mid) < id) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static final class Term {
+        final SparseMatrixRow row;
+        final float weight;
+        final double bound;
+
+        Term(SparseMatrixRow row, float weight, double bound) {
+            this.row = row;
+            this.weight = weight;
+            this.bound = bound;
+        }
+    }
+
+    private static final class Query {
+        final Term[] terms;
+        final double[] remaining;
+        final double norm;
+        final int maxResults;
+        final TIntSet validIds;
+        final long numEntries;
+
+        Query(Term[] terms, double[] remaining, double norm, int maxResults, TIntSet validIds, long numEntries) {
+            this.terms = terms;
+            this.remaining = remaining;
+            this.norm = norm;
+            this.maxResults = maxResults;
+            this.validIds = validIds;
+            this.numEntries = numEntries;
+        }
+    }
+
+    /**
+     * Dense scores for a single shard. Only touched entries are reset between queries.
+     */
+    private final class Accumulator {
+        final float[] scores;
+        final boolean[] seen;
+        int[] touched = new int[1024];
+        int numTouched = 0;
+        float max = 0.0f;
+
+        Accumulator(int size) {
+            scores = new float[size];
+            seen = new boolean[size];
+        }
+
+        void add(int k, float value) {
+            if (!seen[k]) {
+                seen[k] = true;
+                if (numTouched == touched.length) {
+                    touched = Arrays.copyOf(touched, touched.length * 2);
+                }
+                touched[numTouched++] = k;
+            }
+            float s = scores[k] + value;
+            scores[k] = s;
+            if (s > max) {
+                max = s;
+            }
+        }
+
+        /**
+         * The k-th best partial score among valid candidates.
+         */
+        double threshold(int lo, Query q) {
+            Leaderboard top = new Leaderboard(q.maxResults);
+            for (int i = 0; i < numTouched; i++) {
+                int k = touched[i];
+                if (q.validIds == null || q.validIds.contains(ids[lo + k])) {
+                    top.tallyScore(k, scores[k]);
+                }
+            }
+            return top.getThreshold();
+        }
+
+        void sortTouched() {
+            Arrays.sort(touched, 0, numTouched);
+        }
+
+        /**
+         * Drops candidates whose partial score is below the minimum, preserving order.
+         */
+        void retain(double minimum) {
+            int j = 0;
+            for (int i = 0; i < numTouched; i++) {
+                int k = touched[i];
+                if (scores[k] >= minimum) {
+                    touched[j++] = k;
+                } else {
+                    scores[k] = 0.0f;
+                    seen[k] = false;
+                }
+            }
+            numTouched = j;
+        }
+
+        void reset() {
+            for (int i = 0; i < numTouched; i++) {
+                scores[touched[i]] = 0.0f;
+                seen[touched[i]] = false;
+            }
+            numTouched = 0;
+            max = 0.0f;
+        }
+    }
+}
@@ -52,6 +52,12 @@ import java.util.logging.Logger;
  * is called, but can also be explicitly built by calling
  * buildFeatureAndTransposeMatrices().
  *
+ * <p>
+ *
+ * If the generator is a DenseVectorGenerator and the similarity is a DenseVectorSimilarity,
+ * vectors are compared in place in the generator's DenseVectorStore and no feature matrix
+ * is built.
+ *
  * @author Shilad Sen
  * @see org.wikibrain.sr.vector.VectorGenerator
  * @see org.wikibrain.sr.vector.VectorSimilarity
@@ -67,6 +73,10 @@ public class VectorBasedSRMetric extends BaseSRMetric {
     private SparseMatrix featureMatrix;
     private SparseMatrix transposeMatrix;
 
+    // Set if vectors can be compared in a dense vector store.
+    private final DenseVectorGenerator denseGenerator;
+    private final DenseVectorSimilarity denseSimilarity;
+    private volatile DenseVectorStore boundVectors;     // the store denseSimilarity compares
 
     public VectorBasedSRMetric(String name, Language language, LocalPageDao dao, Disambiguator disambig, VectorGenerator generator, VectorSimilarity similarity) {
         super(name, language, dao, disambig);
@@ -77,13 +87,28 @@ public class VectorBasedSRMetric extends BaseSRMetric {
         this.config.minScore = (float) similarity.getMinValue();
         this.config.maxScore = (float) similarity.getMaxValue();
 
+        if (generator instanceof DenseVectorGenerator && similarity instanceof DenseVectorSimilarity) {
+            this.denseGenerator = (DenseVectorGenerator) generator;
+            this.denseSimilarity = (DenseVectorSimilarity) similarity;
+        } else {
+            this.denseGenerator = null;
+            this.denseSimilarity = null;
+        }
     }
 
     @Override
-    public SRResult similarity(String phrase1, String phrase2, boolean explanations) throws DaoException {
+    protected SRResult computeSimilarity(String phrase1, String phrase2, boolean explanations) throws DaoException {
         if (featureFilter != null) {
             throw new UnsupportedOperationException();
         }
+        if (isDense() && !explanations) {
+            int row1 = denseGenerator.getRow(phrase1);
+            int row2 = denseGenerator.getRow(phrase2);
+            if (row1 < 0 || row2 < 0) {
+                return super.computeSimilarity(phrase1, phrase2, explanations);
+            }
+            return normalize(new SRResult(getDenseSimilarity().similarity(row1, row2)));
+        }
         TIntFloatMap vector1 = null;
         TIntFloatMap vector2 = null;
         // try using phrases directly
@@ -94,7 +119,7 @@ public class VectorBasedSRMetric extends BaseSRMetric {
             // try using other methods
         }
         if (vector1 == null || vector2 == null) {
-            return super.similarity(phrase1, phrase2, explanations);
+            return super.computeSimilarity(phrase1, phrase2, explanations);
         } else {
             SRResult result= new SRResult(similarity.similarity(vector1, vector2));
             if(explanations) {
@@ -106,7 +131,15 @@ public class VectorBasedSRMetric extends BaseSRMetric {
 
 
     @Override
-    public SRResult similarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
+    protected SRResult computeSimilarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
+        if (isDense() && !explanations) {
+            int row1 = denseGenerator.getRow(pageId1);
+            int row2 = denseGenerator.getRow(pageId2);
+            if (row1 < 0 || row2 < 0) {
+                return null;
+            }
+            return normalize(new SRResult(getDenseSimilarity().similarity(row1, row2)));
+        }
         try {
             if (hasFeatureMatrix()) {
                 // Optimization that matters: Avoid building page vectors if possible.
@@ -142,10 +175,17 @@ public class VectorBasedSRMetric extends BaseSRMetric {
     }
 
     @Override
-    public SRResultList mostSimilar(String phrase, int maxResults, TIntSet validIds) throws DaoException {
+    protected SRResultList computeMostSimilar(String phrase, int maxResults, TIntSet validIds) throws DaoException {
         if (featureFilter != null) {
             throw new UnsupportedOperationException();
         }
+        if (isDense()) {
+            int row = denseGenerator.getRow(phrase);
+            if (row < 0) {
+                return super.computeMostSimilar(phrase, maxResults, validIds);
+            }
+            return getDenseSimilarity().mostSimilar(row, maxResults, validIds);
+        }
         TIntFloatMap vector = null;
         // try using phrases directly
         try {
@@ -155,7 +195,7 @@ public class VectorBasedSRMetric extends BaseSRMetric {
         }
         if (vector == null) {
             // fall back on parent's phrase resolution algorithm
-            return super.mostSimilar(phrase, maxResults, validIds);
+            return super.computeMostSimilar(phrase, maxResults, validIds);
         } else {
             try {
                 return similarity.mostSimilar(vector, maxResults, validIds);
@@ -166,10 +206,14 @@ public class VectorBasedSRMetric extends BaseSRMetric {
     }
 
     @Override
-    public SRResultList mostSimilar(int pageId, int maxResults, TIntSet validIds) throws DaoException {
+    protected SRResultList computeMostSimilar(int pageId, int maxResults, TIntSet validIds) throws DaoException {
         if (featureFilter != null) {
             throw new UnsupportedOperationException();
         }
+        if (isDense()) {
+            int row = denseGenerator.getRow(pageId);
+            return (row < 0) ? null : getDenseSimilarity().mostSimilar(row, maxResults, validIds);
+        }
         try {
             TIntFloatMap vector = getPageVector(pageId);
             if (vector == null) return null;
@@ -195,7 +239,9 @@ public class VectorBasedSRMetric extends BaseSRMetric {
     @Override
     public void trainMostSimilar(Dataset dataset, int numResults, TIntSet validIds) {
         try {
-            buildFeatureAndTransposeMatrices(validIds);
+            if (!isDense()) {
+                buildFeatureAndTransposeMatrices(validIds);
+            }
             super.trainMostSimilar(dataset, numResults, validIds);
         } catch (IOException e) {
             LOG.log(Level.SEVERE, "training failed", e);
@@ -231,6 +277,22 @@ public class VectorBasedSRMetric extends BaseSRMetric {
         if (rowPhrases.length == 0 || colPhrases.length == 0) {
             return new double[rowPhrases.length][colPhrases.length];
         }
+        if (isDense()) {
+            int rows[] = new int[rowPhrases.length];
+            int cols[] = new int[colPhrases.length];
+            boolean found = true;
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = denseGenerator.getRow(rowPhrases[i]);
+                found &= rows[i] >= 0;
+            }
+            for (int i = 0; i < cols.length; i++) {
+                cols[i] = denseGenerator.getRow(colPhrases[i]);
+                found &= cols[i] >= 0;
+            }
+            if (found) {
+                return denseCosimilarity(rows, cols);
+            }
+        }
         List<TIntFloatMap> rowVectors = new ArrayList<TIntFloatMap>();
         List<TIntFloatMap> colVectors = new ArrayList<TIntFloatMap>();
         try {
@@ -265,7 +327,17 @@ public class VectorBasedSRMetric extends BaseSRMetric {
      */
     @Override
     public double[][] cosimilarity(int rowIds[], int colIds[]) throws DaoException {
-        if (hasFeatureMatrix()) {
+        if (isDense()) {
+            int rows[] = new int[rowIds.length];
+            int cols[] = new int[colIds.length];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = denseGenerator.getRow(rowIds[i]);
+            }
+            for (int i = 0; i < cols.length; i++) {
+                cols[i] = denseGenerator.getRow(colIds[i]);
+            }
+            return denseCosimilarity(rows, cols);
+        } else if (hasFeatureMatrix()) {
             // special optimized case
             TIntObjectMap<SparseMatrixRow> vectors = new TIntObjectHashMap<SparseMatrixRow>(rowIds.length + colIds.length);
             for (int id : ArrayUtils.addAll(rowIds, colIds)) {
@@ -322,6 +394,44 @@ public class VectorBasedSRMetric extends BaseSRMetric {
         }
     }
 
+    /**
+     * Returns the dense similarity, bound to the generator's current vector store.
+     * The generator replaces its store when it is read or trained, so the store is
+     * looked up on each use rather than bound once.
+     */
+    private DenseVectorSimilarity getDenseSimilarity() {
+        DenseVectorStore vectors = denseGenerator.getVectors();
+        if (vectors != boundVectors) {
+            synchronized (denseSimilarity) {
+                if (vectors != boundVectors) {
+                    denseSimilarity.setVectors(vectors);
+                    boundVectors = vectors;
+                }
+            }
+        }
+        return denseSimilarity;
+    }
+
+    /**
+     * Computes the cosimilarity between rows of the dense vector store.
+     * Cells for missing (negative) rows are zero.
+     */
+    private double[][] denseCosimilarity(int rows[], int cols[]) {
+        DenseVectorSimilarity denseSimilarity = getDenseSimilarity();
+        double results[][] = new double[rows.length][cols.length];
+        for (int i = 0; i < rows.length; i++) {
+            if (rows[i] < 0) {
+                continue;
+            }
+            for (int j = 0; j < cols.length; j++) {
+                if (cols[j] >= 0) {
+                    results[i][j] = normalize(denseSimilarity.similarity(rows[i], cols[j]));
+                }
+            }
+        }
+        return results;
+    }
+
     /**
      * Computes the cosimilarity between a set of vectors.
      * @param rowVectors
@@ -365,17 +475,22 @@ public class VectorBasedSRMetric extends BaseSRMetric {
         ValueConf vconf = new ValueConf((float)similarity.getMinValue(),
                                         (float)similarity.getMaxValue());
         final SparseMatrixWriter writer = new SparseMatrixWriter(getFeatureMatrixPath(), vconf);
-        ParallelForEach.loop(
-                WbArrayUtils.toList(validIds.toArray()),
-                WpThreadUtils.getMaxThreads(),
-                new Procedure<Integer>() {
-                    public void call(Integer pageId) throws IOException {
-                        TIntFloatMap scores = getPageVector(pageId);
-                        if (scores != null && !scores.isEmpty()) {
-                            writer.writeRow(new SparseMatrixRow(writer.getValueConf(), pageId, scores));
+        if (generator instanceof ESAGenerator && featureFilter == null) {
+            // computes all vectors in one batch instead of one search per page
+            ((ESAGenerator) generator).writeFeatureMatrix(validIds, writer);
+        } else {
+            ParallelForEach.loop(
+                    WbArrayUtils.toList(validIds.toArray()),
+                    WpThreadUtils.getMaxThreads(),
+                    new Procedure<Integer>() {
+                        public void call(Integer pageId) throws IOException {
+                            TIntFloatMap scores = getPageVector(pageId);
+                            if (scores != null && !scores.isEmpty()) {
+                                writer.writeRow(new SparseMatrixRow(writer.getValueConf(), pageId, scores));
+                            }
                         }
-                    }
-                }, 10000);
+                    }, 10000);
+        }
         writer.finish();
 
         // Reload the feature matrix
@@ -415,8 +530,8 @@ public class VectorBasedSRMetric extends BaseSRMetric {
     }
 
     @Override
-    public void read() throws IOException {
-        super.read();
+    protected void readState() throws IOException {
+        super.readState();
         if (getFeatureMatrixPath().isFile() && getTransposeMatrixPath().isFile()) {
             IOUtils.closeQuietly(featureMatrix);
             IOUtils.closeQuietly(transposeMatrix);
@@ -454,6 +569,13 @@ public class VectorBasedSRMetric extends BaseSRMetric {
         }
     }
 
+    /**
+     * @return True if vectors are compared in the generator's dense vector store.
+     */
+    protected boolean isDense() {
+        return denseSimilarity != null && featureFilter == null;
+    }
+
     protected boolean hasFeatureMatrix() {
         return featureMatrix != null && featureMatrix.getNumRows() > 0;
     }
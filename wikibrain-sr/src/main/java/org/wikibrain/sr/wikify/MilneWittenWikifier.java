@@ -14,6 +14,7 @@ import org.wikibrain.core.cmd.EnvBuilder;
 import org.wikibrain.core.dao.*;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.model.LocalLink;
+import org.wikibrain.core.model.LocalPage;
 import org.wikibrain.core.model.NameSpace;
 import org.wikibrain.core.model.RawPage;
 import org.wikibrain.core.nlp.NGramCreator;
@@ -64,13 +65,28 @@ public class MilneWittenWikifier implements Wikifier {
         for (int i = 0; i < 1; i++) {
             List<LocalLink> detected = wikify(rp.getLocalId());
             System.out.println("Links detected for " + rp.getTitle() + " (" + i + ")");
+            Map<Integer, LocalPage> pages = getDestPages(detected);
             for (LocalLink ll : detected) {
-                System.out.println("\t" + ll + " page " + lpd.getById(language, ll.getDestId()).getTitle());
+                System.out.println("\t" + ll + " page " + pages.get(ll.getDestId()).getTitle());
             }
         }
 
     }
 
+    /**
+     * Fetches the destination pages of the given links in a single batch.
+     */
+    private Map<Integer, LocalPage> getDestPages(List<LocalLink> links) throws DaoException {
+        Set<Integer> ids = new HashSet<Integer>();
+        for (LocalLink ll : links) {
+            ids.add(ll.getDestId());
+        }
+        if (ids.isEmpty()) {
+            return new HashMap<Integer, LocalPage>();
+        }
+        return lpd.getByIds(language, ids);
+    }
+
     private List<Token> getNGramTokens(String text) {
         List<Token> ngrams = new ArrayList<Token>();
         for (Token sentence : tokenizer.getSentenceTokens(language, text)) {
@@ -4,9 +4,7 @@ import com.typesafe.config.Config;
 import gnu.trove.list.TCharList;
 import gnu.trove.list.array.TCharArrayList;
 import gnu.trove.map.TIntFloatMap;
-import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntFloatHashMap;
-import gnu.trove.map.hash.TIntObjectHashMap;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.wikibrain.conf.Configuration;
@@ -18,8 +16,9 @@ import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.model.LocalPage;
 import org.wikibrain.sr.Explanation;
 import org.wikibrain.sr.SRResult;
+import org.wikibrain.sr.vector.DenseVectorGenerator;
+import org.wikibrain.sr.vector.DenseVectorStore;
 import org.wikibrain.sr.vector.VectorGenerator;
-import org.wikibrain.utils.ObjectDb;
 import org.wikibrain.utils.WpIOUtils;
 
 import java.io.*;
@@ -31,20 +30,20 @@ import java.util.logging.Logger;
 /**
  * Reads in a word2vec model in the "standard" file format.
  *
- * Builds a disk
+ * The vectors are converted to a memory-mapped DenseVectorStore next to the model,
+ * which is rebuilt when the model changes.
  *
  * This code is adapted from https://github.com/ansjsun/Word2VEC_java
  *
  * @author Shilad Sen
  */
-public class Word2VecGenerator implements VectorGenerator {
+public class Word2VecGenerator implements DenseVectorGenerator {
     private static final Logger LOG = Logger.getLogger(Word2VecGenerator.class.getName());
 
     private final Language language;
     private final LocalPageDao localPageDao;
 
-    private ObjectDb<float[]> phraseDb;
-    private TIntObjectMap<float[]> articles;
+    private DenseVectorStore vectors;
 
     public Word2VecGenerator(Language language, LocalPageDao localPageDao, File path) throws IOException {
         this.language = language;
@@ -53,27 +52,25 @@ public class Word2VecGenerator implements VectorGenerator {
     }
 
     public void read(File path) throws IOException {
-        File phraseFile = new File(path.getAbsolutePath() + ".phrases");
-        File articleFile = new File(path.getAbsolutePath() + ".articles");
-        if (phraseFile.exists()
-        &&  articleFile.exists()
-        &&  phraseFile.lastModified() >= path.lastModified()
-        &&  articleFile.lastModified() >= path.lastModified()) {
-            LOG.info("phrase and article caches are up to date, loading them...");
-            phraseDb = new ObjectDb<float[]>(phraseFile);
-            articles = (TIntObjectMap<float[]>) WpIOUtils.readObjectFromFile(articleFile);
+        File vectorFile = DenseVectorStore.getVectorPath(path);
+        File indexFile = DenseVectorStore.getIndexPath(path);
+        if (!vectorFile.exists()
+        ||  !indexFile.exists()
+        ||  vectorFile.lastModified() < path.lastModified()
+        ||  indexFile.lastModified() < path.lastModified()) {
+            createWikiBrainModel(path);
         } else {
-            createWikiBrainModel(path, phraseFile, articleFile);
+            LOG.info("vector store is up to date, loading it...");
         }
+        IOUtils.closeQuietly(vectors);
+        vectors = new DenseVectorStore(path);
     }
 
-    private void createWikiBrainModel(File path, File phraseFile, File articleFile) throws IOException {
-        FileUtils.deleteQuietly(phraseFile);
-        FileUtils.deleteQuietly(articleFile);
-
-        phraseDb = new ObjectDb<float[]>(phraseFile, true);
-        articles = new TIntObjectHashMap<float[]>();
+    private void createWikiBrainModel(File path) throws IOException {
+        FileUtils.deleteQuietly(DenseVectorStore.getVectorPath(path));
+        FileUtils.deleteQuietly(DenseVectorStore.getIndexPath(path));
 
+        DenseVectorStore.Writer writer = null;
         DataInputStream dis = null;
         InputStream bis = null;
         try {
@@ -92,6 +89,7 @@ public class Word2VecGenerator implements VectorGenerator {
             int numWords = Integer.parseInt(tokens[0]);
             int vlength = Integer.parseInt(tokens[1]);
             LOG.info("preparing to read " + numWords + " with length " + vlength + " vectors");
+            writer = new DenseVectorStore.Writer(path, vlength);
 
             for (int i = 0; i < numWords; i++) {
                 String word = readString(dis);
@@ -114,18 +112,16 @@ public class Word2VecGenerator implements VectorGenerator {
                 if (word.startsWith("/w/")) {
                     String[] pieces = word.split("/", 5);
                     int wpId = Integer.valueOf(pieces[3]);
-                    articles.put(wpId, vector);
+                    writer.addVector(wpId, vector);
                 } else {
-                    phraseDb.put(normalize(word), vector);
+                    writer.addVector(normalize(word), vector);
                 }
             }
+            writer.finish();
         } finally {
             IOUtils.closeQuietly(bis);
             IOUtils.closeQuietly(dis);
         }
-
-        phraseDb.flush();
-        WpIOUtils.writeObjectToFile(articleFile, articles);
     }
 
 
@@ -163,32 +159,36 @@ public class Word2VecGenerator implements VectorGenerator {
     }
 
 
+    @Override
+    public DenseVectorStore getVectors() {
+        return vectors;
+    }
+
+    @Override
+    public int getRow(int pageId) {
+        return vectors.getRow(pageId);
+    }
+
+    @Override
+    public int getRow(String phrase) {
+        return vectors.getRow(normalize(phrase));
+    }
+
     @Override
     public TIntFloatMap getVector(int pageId) throws DaoException {
-        float[] vector = articles.get(pageId);
-        if (vector == null) {
-            return null;
-        }
-        TIntFloatMap result = new TIntFloatHashMap(vector.length);
-        for (int i = 0; i < vector.length; i++) {
-            result.put(i, vector[i]);
-        }
-        return result;
+        return toSparse(getRow(pageId));
     }
 
     @Override
     public TIntFloatMap getVector(String phrase) {
-        float[] vector;
-        try {
-            vector = phraseDb.get(normalize(phrase));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        } catch (ClassNotFoundException e) {
-            throw new RuntimeException(e);
-        }
-        if (vector == null) {
+        return toSparse(getRow(phrase));
+    }
+
+    private TIntFloatMap toSparse(int row) {
+        if (row < 0) {
             return null;
         }
+        float[] vector = vectors.getVector(row);
         TIntFloatMap result = new TIntFloatHashMap(vector.length);
         for (int i = 0; i < vector.length; i++) {
             result.put(i, vector[i]);
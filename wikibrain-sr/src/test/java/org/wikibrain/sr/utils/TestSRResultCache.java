@@ -0,0 +1,102 @@
+package org.wikibrain.sr.utils;
+
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.junit.Test;
+import org.wikibrain.sr.SRResult;
+import org.wikibrain.sr.SRResultList;
+
+import static org.junit.Assert.*;
+
+public class TestSRResultCache {
+
+    @Test
+    public void testSimilarity() {
+        SRResultCache cache = new SRResultCache("test", 100, 100, 0);
+        assertFalse(cache.getSimilarity(3, 7).isHit());
+        cache.putSimilarity(3, 7, cache.getGeneration(), new SRResult(0.5));
+        cache.putSimilarity(4, 8, cache.getGeneration(), null);
+
+        // keys are symmetric
+        SRResultCache.Lookup<SRResult> lookup = cache.getSimilarity(7, 3);
+        assertTrue(lookup.isHit());
+        assertEquals(0.5, lookup.getValue().getScore(), 0.0001);
+
+        // callers can modify results without affecting the cache
+        lookup.getValue().setScore(0.9);
+        assertEquals(0.5, cache.getSimilarity(3, 7).getValue().getScore(), 0.0001);
+
+        // nulls are cached
+        lookup = cache.getSimilarity(4, 8);
+        assertTrue(lookup.isHit());
+        assertNull(lookup.getValue());
+
+        assertFalse(cache.getSimilarity(3, 8).isHit());
+        assertEquals(3, cache.getSimilarityHits());
+        assertEquals(2, cache.getSimilarityMisses());
+    }
+
+    @Test
+    public void testPhrases() {
+        SRResultCache cache = new SRResultCache("test", 100, 100, 0);
+        cache.putSimilarity("apple", "orange", cache.getGeneration(), new SRResult(0.25));
+        assertTrue(cache.getSimilarity("apple", "orange").isHit());
+        assertFalse(cache.getSimilarity("orange", "apple").isHit());
+        assertFalse(cache.getSimilarity("apple", "pear").isHit());
+    }
+
+    @Test
+    public void testMostSimilar() {
+        SRResultCache cache = new SRResultCache("test", 100, 100, 0);
+        SRResultList list = new SRResultList(2);
+        list.set(0, 10, 0.9);
+        list.set(1, 11, 0.8);
+
+        TIntSet valid1 = new TIntHashSet(new int[] { 10, 11, 12 });
+        TIntSet valid2 = new TIntHashSet(new int[] { 10, 11 });
+        cache.putMostSimilar(5, 2, valid1, cache.getGeneration(), list);
+        cache.putMostSimilar("pear", 2, null, cache.getGeneration(), list);
+
+        SRResultCache.Lookup<SRResultList> lookup = cache.getMostSimilar(5, 2, new TIntHashSet(valid1));
+        assertTrue(lookup.isHit());
+        assertEquals(2, lookup.getValue().numDocs());
+        assertEquals(11, lookup.getValue().getId(1));
+        lookup.getValue().set(1, 99, 0.1);
+        assertEquals(11, cache.getMostSimilar(5, 2, valid1).getValue().getId(1));
+
+        assertFalse(cache.getMostSimilar(5, 2, valid2).isHit());
+        assertFalse(cache.getMostSimilar(5, 2, null).isHit());
+        assertFalse(cache.getMostSimilar(5, 3, valid1).isHit());
+        assertTrue(cache.getMostSimilar("pear", 2, null).isHit());
+        assertFalse(cache.getMostSimilar("pear", 2, valid1).isHit());
+
+        // a reused set with new contents of the same size is a different set
+        valid1.remove(12);
+        valid1.add(13);
+        assertFalse(cache.getMostSimilar(5, 2, valid1).isHit());
+    }
+
+    @Test
+    public void testInvalidation() {
+        SRResultCache cache = new SRResultCache("test", 100, 100, 0);
+        long generation = cache.getGeneration();
+        cache.putSimilarity(1, 2, generation, new SRResult(0.5));
+        cache.clear();
+        assertFalse(cache.getSimilarity(1, 2).isHit());
+
+        // results computed before a clear are not cached
+        cache.putSimilarity(1, 2, generation, new SRResult(0.5));
+        assertFalse(cache.getSimilarity(1, 2).isHit());
+        cache.putSimilarity(1, 2, cache.getGeneration(), new SRResult(0.5));
+        assertTrue(cache.getSimilarity(1, 2).isHit());
+    }
+
+    @Test
+    public void testExpiration() throws InterruptedException {
+        SRResultCache cache = new SRResultCache("test", 100, 100, 1);
+        cache.putSimilarity(1, 2, cache.getGeneration(), new SRResult(0.5));
+        assertTrue(cache.getSimilarity(1, 2).isHit());
+        Thread.sleep(1100);
+        assertFalse(cache.getSimilarity(1, 2).isHit());
+    }
+}
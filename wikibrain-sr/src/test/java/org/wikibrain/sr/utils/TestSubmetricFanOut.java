@@ -0,0 +1,200 @@
+package org.wikibrain.sr.utils;
+
+import gnu.trove.set.TIntSet;
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.sr.*;
+import org.wikibrain.utils.Function;
+import org.wikibrain.utils.WpThreadUtils;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestSubmetricFanOut {
+
+    @Test
+    public void testSequential() throws DaoException {
+        List<SRResult> results = new SubmetricFanOut().call(
+                Arrays.asList(new SlowMetric(0.1, 0), new SlowMetric(0.2, 0)),
+                new SimilarityFn());
+        assertEquals(2, results.size());
+        assertEquals(0.1, results.get(0).getScore(), 0.0001);
+        assertEquals(0.2, results.get(1).getScore(), 0.0001);
+    }
+
+    @Test
+    public void testConcurrent() throws DaoException {
+        SubmetricFanOut fanOut = new SubmetricFanOut(true, 0);
+        long start = System.currentTimeMillis();
+        List<SRResult> results = fanOut.call(
+                Arrays.asList(new SlowMetric(0.1, 300), new SlowMetric(0.2, 300), new SlowMetric(0.3, 300)),
+                new SimilarityFn());
+        long elapsed = System.currentTimeMillis() - start;
+        assertEquals(0.1, results.get(0).getScore(), 0.0001);
+        assertEquals(0.2, results.get(1).getScore(), 0.0001);
+        assertEquals(0.3, results.get(2).getScore(), 0.0001);
+        if (WpThreadUtils.getMaxThreads() >= 3) {
+            assertTrue(elapsed < 850);
+        }
+        assertEquals(0, fanOut.getNumTimeouts());
+    }
+
+    @Test
+    public void testTimeout() throws DaoException {
+        SubmetricFanOut fanOut = new SubmetricFanOut(true, 200);
+        List<SRResult> results = fanOut.call(
+                Arrays.asList(new SlowMetric(0.1, 0), new SlowMetric(0.2, 1000)),
+                new SimilarityFn());
+        assertEquals(0.1, results.get(0).getScore(), 0.0001);
+        assertNull(results.get(1));
+        assertEquals(1, fanOut.getNumTimeouts());
+    }
+
+    @Test
+    public void testTimeoutDoesNotInterrupt() throws Exception {
+        SlowMetric slow = new SlowMetric(0.2, 500);
+        SubmetricFanOut fanOut = new SubmetricFanOut(true, 100);
+        List<SRResult> results = fanOut.call(
+                Arrays.asList(new SlowMetric(0.1, 0), slow),
+                new SimilarityFn());
+        assertNull(results.get(1));
+        Thread.sleep(800);
+        // the call is abandoned, or cancelled if it was still queued
+        assertEquals(slow.started, slow.finished);
+        assertFalse(slow.interrupted);
+    }
+
+    @Test
+    public void testPerMetricTimeout() throws DaoException {
+        SubmetricFanOut fanOut = new SubmetricFanOut(true, 100)
+                .setTimeoutMillis("patient", 2000);
+        List<SRResult> results = fanOut.call(
+                Arrays.asList(new SlowMetric("patient", 0.1, 400), new SlowMetric(0.2, 1000)),
+                new SimilarityFn());
+        assertEquals(0.1, results.get(0).getScore(), 0.0001);
+        assertNull(results.get(1));
+        assertEquals(1, fanOut.getNumTimeouts());
+    }
+
+    @Test
+    public void testPartialResultsAreNotCached() throws DaoException {
+        CompositeMetric partial = new CompositeMetric(new SubmetricFanOut(true, 100));
+        partial.setResultCache(new SRResultCache("test", 100, 100, 0));
+        assertTrue(partial.similarity(1, 2, false).isPartial());
+        assertTrue(partial.similarity(1, 2, false).isPartial());
+        assertEquals(0, partial.getResultCache().getSimilarityHits());
+
+        CompositeMetric complete = new CompositeMetric(new SubmetricFanOut(true, 0));
+        complete.setResultCache(new SRResultCache("test", 100, 100, 0));
+        assertFalse(complete.similarity(1, 2, false).isPartial());
+        assertFalse(complete.similarity(1, 2, false).isPartial());
+        assertEquals(1, complete.getResultCache().getSimilarityHits());
+
+        // a composite built on a partial submetric result is partial too
+        SRResult nested = partial.similarity(1, 2, false);
+        assertTrue(SubmetricFanOut.isPartial(Arrays.asList(new SRResult(0.1), nested)));
+        assertFalse(SubmetricFanOut.isPartial(Arrays.asList(new SRResult(0.1), new SRResult(0.2))));
+    }
+
+    @Test(expected = DaoException.class)
+    public void testException() throws DaoException {
+        new SubmetricFanOut(true, 0).call(
+                Arrays.asList(new SlowMetric(0.1, 0), new SlowMetric(0.2, 0)),
+                new Function<SRMetric, SRResult>() {
+                    @Override
+                    public SRResult call(SRMetric metric) throws DaoException {
+                        throw new DaoException("failed");
+                    }
+                });
+    }
+
+    static class SimilarityFn implements Function<SRMetric, SRResult> {
+        @Override
+        public SRResult call(SRMetric metric) throws DaoException {
+            return metric.similarity(1, 2, false);
+        }
+    }
+
+    /**
+     * Averages a fast and a slow submetric, flagging the result if the slow one times out.
+     */
+    static class CompositeMetric extends BaseSRMetric {
+        private final SubmetricFanOut fanOut;
+        private final List<SlowMetric> metrics = Arrays.asList(new SlowMetric(0.1, 0), new SlowMetric(0.3, 300));
+
+        CompositeMetric(SubmetricFanOut fanOut) {
+            super("composite", Language.SIMPLE, null, null);
+            this.fanOut = fanOut;
+        }
+
+        @Override
+        public SRConfig getConfig() {
+            return new SRConfig();
+        }
+
+        @Override
+        protected SRResult computeSimilarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
+            List<SRResult> results = fanOut.call(metrics, new SimilarityFn());
+            double sum = 0.0;
+            int n = 0;
+            for (SRResult r : results) {
+                if (r != null) {
+                    sum += r.getScore();
+                    n++;
+                }
+            }
+            SRResult result = new SRResult(sum / n);
+            result.setPartial(SubmetricFanOut.isPartial(results));
+            return result;
+        }
+
+        @Override
+        protected SRResultList computeMostSimilar(int pageId, int maxResults, TIntSet validIds) throws DaoException {
+            return null;
+        }
+    }
+
+    static class SlowMetric extends BaseSRMetric {
+        private final double score;
+        private final long delay;
+        volatile boolean started = false;
+        volatile boolean finished = false;
+        volatile boolean interrupted = false;
+
+        SlowMetric(double score, long delay) {
+            this("slow", score, delay);
+        }
+
+        SlowMetric(String name, double score, long delay) {
+            super(name, Language.SIMPLE, null, null);
+            this.score = score;
+            this.delay = delay;
+        }
+
+        @Override
+        public SRConfig getConfig() {
+            return new SRConfig();
+        }
+
+        @Override
+        protected SRResult computeSimilarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
+            started = true;
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                interrupted = true;
+                throw new DaoException(e);
+            }
+            finished = true;
+            return new SRResult(score);
+        }
+
+        @Override
+        protected SRResultList computeMostSimilar(int pageId, int maxResults, TIntSet validIds) throws DaoException {
+            return null;
+        }
+    }
+}
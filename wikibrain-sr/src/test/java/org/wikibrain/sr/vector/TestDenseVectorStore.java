@@ -0,0 +1,126 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.wikibrain.sr.SRResultList;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestDenseVectorStore {
+    private static final int DIMENSIONS = 20;
+    private static final int NUM_IDS = 500;
+
+    @Test
+    public void testLookups() throws IOException {
+        File dir = makeTempDir();
+        try {
+            File path = new File(dir, "vectors");
+            DenseVectorStore.Writer writer = new DenseVectorStore.Writer(path, 3);
+            writer.addVector(7, new float[] { 1, 0, 0 });
+            writer.addVector("apple", new float[] { 0, 1, 0 });
+            writer.addVector("éclair", new float[] { 0, 0, 2 });
+            writer.addVector(3, new float[] { 1, 1, 0 });
+            writer.addVector(7, new float[] { 0, 3, 4 });    // replaces the first vector for 7
+            writer.finish();
+
+            DenseVectorStore store = new DenseVectorStore(path);
+            assertEquals(3, store.getDimensions());
+            assertEquals(5, store.getNumRows());
+            assertArrayEquals(new int[] { 3, 7 }, store.getIds());
+            assertEquals(2, store.getNumPhrases());
+
+            assertEquals(-1, store.getRow(8));
+            assertEquals(-1, store.getRow("pear"));
+            assertEquals(-1, store.getRow("appl"));
+
+            int r7 = store.getRow(7);
+            int apple = store.getRow("apple");
+            int eclair = store.getRow("éclair");
+            assertArrayEquals(new float[] { 0, 3, 4 }, store.getVector(r7), 0.0001f);
+            assertEquals(5.0, store.getNorm(r7), 0.0001);
+            assertEquals(2.0, store.getNorm(eclair), 0.0001);
+            assertEquals(3.0, store.dot(r7, apple), 0.0001);
+            assertEquals(0.6, store.cosine(r7, apple), 0.0001);
+            assertEquals(0.8, store.cosine(r7, eclair), 0.0001);
+            assertEquals(0.0, store.cosine(store.getRow(3), eclair), 0.0001);
+            store.close();
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    @Test
+    public void testMostSimilar() throws IOException {
+        File dir = makeTempDir();
+        try {
+            File path = new File(dir, "vectors");
+            Random random = new Random(42);
+            float[][] vectors = new float[NUM_IDS][DIMENSIONS];
+            DenseVectorStore.Writer writer = new DenseVectorStore.Writer(path, DIMENSIONS);
+            for (int id = 0; id < NUM_IDS; id++) {
+                for (int j = 0; j < DIMENSIONS; j++) {
+                    vectors[id][j] = (float) random.nextGaussian();
+                }
+                writer.addVector(id, vectors[id]);
+            }
+            writer.finish();
+
+            DenseVectorStore store = new DenseVectorStore(path);
+            DenseCosineSimilarity sim = new DenseCosineSimilarity(3);
+            sim.setVectors(store);
+
+            TIntSet validIds = new TIntHashSet();
+            for (int id = 0; id < NUM_IDS; id += 3) {
+                validIds.add(id);
+            }
+            for (int query = 0; query < 10; query++) {
+                int row = store.getRow(query);
+                SRResultList all = sim.mostSimilar(row, 10, null);
+                SRResultList valid = sim.mostSimilar(row, 10, validIds);
+                assertEquals(10, all.numDocs());
+                assertEquals(query, all.getId(0));
+                assertEquals(1.0, all.getScore(0), 0.0001);
+                for (int i = 0; i < 10; i++) {
+                    assertTrue(validIds.contains(valid.getId(i)));
+                    assertEquals(cosine(vectors[query], vectors[all.getId(i)]), all.getScore(i), 0.0001);
+                    assertEquals(cosine(vectors[query], vectors[valid.getId(i)]), valid.getScore(i), 0.0001);
+                }
+                // the 10th best score must be at least as high as every other candidate
+                int numBetter = 0;
+                for (int id = 0; id < NUM_IDS; id++) {
+                    if (cosine(vectors[query], vectors[id]) > all.getScore(9) + 0.0001) {
+                        numBetter++;
+                    }
+                }
+                assertTrue(numBetter < 10);
+                assertEquals(cosine(vectors[query], vectors[5]), sim.similarity(row, store.getRow(5)), 0.0001);
+            }
+            store.close();
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    private static double cosine(float[] v1, float[] v2) {
+        double dot = 0, l1 = 0, l2 = 0;
+        for (int i = 0; i < v1.length; i++) {
+            dot += v1[i] * v2[i];
+            l1 += v1[i] * v1[i];
+            l2 += v2[i] * v2[i];
+        }
+        return dot / Math.sqrt(l1 * l2);
+    }
+
+    private static File makeTempDir() throws IOException {
+        File dir = File.createTempFile("dense-vectors", null);
+        FileUtils.deleteQuietly(dir);
+        dir.mkdirs();
+        return dir;
+    }
+}
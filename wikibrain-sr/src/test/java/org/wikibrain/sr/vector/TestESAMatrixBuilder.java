@@ -0,0 +1,132 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.map.TIntFloatMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.lucene.LuceneOptions;
+import org.wikibrain.lucene.LuceneSearcher;
+import org.wikibrain.lucene.WikiBrainAnalyzer;
+import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.matrix.SparseMatrixRow;
+import org.wikibrain.matrix.SparseMatrixWriter;
+import org.wikibrain.matrix.ValueConf;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestESAMatrixBuilder {
+    private static final Language LANG = Language.SIMPLE;
+    private static final int NUM_PAGES = 300;
+
+    @Test
+    public void testMatchesSearches() throws IOException, DaoException {
+        File dir = File.createTempFile("esa", null);
+        FileUtils.deleteQuietly(dir);
+        dir.mkdirs();
+        try {
+            LuceneOptions options = LuceneOptions.getDefaultOptions();
+            buildIndex(new File(dir, LANG.getLangCode()), options);
+            LuceneSearcher searcher = new LuceneSearcher(new LanguageSet(Arrays.asList(LANG)), dir);
+            ESAGenerator generator = new ESAGenerator(LANG, null, searcher, null);
+
+            TIntSet pageIds = new TIntHashSet();
+            for (int i = 0; i < NUM_PAGES; i++) {
+                pageIds.add(pageId(i));
+            }
+            pageIds.add(999999);    // not indexed
+            compare(generator, pageIds, new File(dir, "all.matrix"));
+
+            // restrict concepts to a subset of pages
+            File concepts = new File(dir, "concepts.txt");
+            StringBuilder ids = new StringBuilder();
+            for (int i = 0; i < NUM_PAGES; i += 3) {
+                ids.append(pageId(i)).append('\n');
+            }
+            FileUtils.write(concepts, ids.toString());
+            generator.setConcepts(concepts);
+            compare(generator, pageIds, new File(dir, "concepts.matrix"));
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    private void compare(ESAGenerator generator, TIntSet pageIds, File path) throws IOException, DaoException {
+        SparseMatrixWriter writer = new SparseMatrixWriter(path, new ValueConf());
+        ESAMatrixBuilder builder = new ESAMatrixBuilder(generator);
+        builder.setPartitionSize(17);
+        builder.setMaxCachedPostings(2000);     // forces some postings to be re-read
+        builder.write(pageIds, writer);
+        writer.finish();
+
+        SparseMatrix matrix = new SparseMatrix(path);
+        int numNonEmpty = 0;
+        for (int i = 0; i < NUM_PAGES; i++) {
+            TIntFloatMap expected = generator.getVector(pageId(i));
+            SparseMatrixRow row = matrix.getRow(pageId(i));
+            if (expected.isEmpty()) {
+                assertNull(row);
+                continue;
+            }
+            numNonEmpty++;
+            TIntFloatMap actual = row.asTroveMap();
+            assertEquals(expected.size(), actual.size());
+            for (int id : expected.keys()) {
+                assertTrue(actual.containsKey(id));
+                assertEquals(expected.get(id), actual.get(id), 0.001);
+            }
+        }
+        assertTrue(numNonEmpty > NUM_PAGES / 2);
+        assertNull(matrix.getRow(999999));
+        matrix.close();
+    }
+
+    private static int pageId(int i) {
+        return 10 + 7 * i;
+    }
+
+    /**
+     * Builds an index of pages with random text from a small Zipfian vocabulary.
+     */
+    private static void buildIndex(File langRoot, LuceneOptions options) throws IOException {
+        Random random = new Random(1);
+        IndexWriter writer = new IndexWriter(
+                FSDirectory.open(langRoot),
+                new IndexWriterConfig(options.matchVersion, new WikiBrainAnalyzer(LANG, options)));
+        for (int i = 0; i < NUM_PAGES; i++) {
+            StringBuilder text = new StringBuilder();
+            int length = 50 + random.nextInt(300);
+            for (int j = 0; j < length; j++) {
+                int word = (int) Math.floor(Math.exp(random.nextDouble() * Math.log(2000)));
+                text.append("w")
+                    .append((char) ('a' + word % 26))
+                    .append((char) ('a' + word / 26 % 26))
+                    .append((char) ('a' + word / 676))
+                    .append(' ');
+            }
+            Document document = new Document();
+            document.add(new IntField(LuceneOptions.LOCAL_ID_FIELD_NAME, pageId(i), Field.Store.YES));
+            document.add(new TextField(options.elements.getTextFieldName(), text.toString(), Field.Store.YES));
+            writer.addDocument(document);
+            if (i % 100 == 99) {
+                writer.commit();
+            }
+        }
+        writer.close();
+    }
+}
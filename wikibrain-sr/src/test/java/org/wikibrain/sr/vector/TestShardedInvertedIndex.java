@@ -0,0 +1,163 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.map.TIntFloatMap;
+import gnu.trove.map.hash.TIntFloatHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.junit.Test;
+import org.wikibrain.matrix.*;
+import org.wikibrain.sr.SRResultList;
+import org.wikibrain.sr.utils.Leaderboard;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the sharded engine against exhaustive cosine scoring.
+ *
+ * @author Shilad Sen
+ */
+public class TestShardedInvertedIndex {
+    private static final int NUM_ROWS = 2000;
+    private static final int NUM_FEATURES = 300;
+
+    @Test
+    public void testMatchesExhaustive() throws IOException {
+        Random random = new Random(42);
+        File dir = makeTempDir();
+        SparseMatrix features = makeFeatures(random, dir, false);
+        SparseMatrix transpose = transpose(features, dir);
+
+        for (int numShards : new int[] { 1, 3, 8 }) {
+            CosineSimilarity sim = new CosineSimilarity(numShards);
+            sim.setMatrices(features, transpose, dir);
+            for (int i = 0; i < 20; i++) {
+                TIntFloatMap query = makeQuery(random);
+                SRResultList expected = exhaustive(features, query, 10, null);
+                SRResultList actual = sim.mostSimilar(query, 10, null);
+                assertSameResults(expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void testValidIds() throws IOException {
+        Random random = new Random(7);
+        File dir = makeTempDir();
+        SparseMatrix features = makeFeatures(random, dir, false);
+        SparseMatrix transpose = transpose(features, dir);
+        CosineSimilarity sim = new CosineSimilarity(4);
+        sim.setMatrices(features, transpose, dir);
+
+        TIntSet validIds = new TIntHashSet();
+        for (int i = 0; i < NUM_ROWS * 10; i += 3) {
+            validIds.add(i);
+        }
+        for (int i = 0; i < 20; i++) {
+            TIntFloatMap query = makeQuery(random);
+            SRResultList expected = exhaustive(features, query, 25, validIds);
+            SRResultList actual = sim.mostSimilar(query, 25, validIds);
+            assertSameResults(expected, actual);
+        }
+    }
+
+    @Test
+    public void testNegativeValues() throws IOException {
+        Random random = new Random(11);
+        File dir = makeTempDir();
+        SparseMatrix features = makeFeatures(random, dir, true);
+        SparseMatrix transpose = transpose(features, dir);
+        CosineSimilarity sim = new CosineSimilarity(5);
+        sim.setMatrices(features, transpose, dir);
+        for (int i = 0; i < 20; i++) {
+            TIntFloatMap query = makeQuery(random);
+            SRResultList expected = exhaustive(features, query, 10, null);
+            SRResultList actual = sim.mostSimilar(query, 10, null);
+            assertSameResults(expected, actual);
+        }
+    }
+
+    private void assertSameResults(SRResultList expected, SRResultList actual) {
+        assertEquals(expected.numDocs(), actual.numDocs());
+        for (int i = 0; i < expected.numDocs(); i++) {
+            assertEquals(expected.getScore(i), actual.getScore(i), 0.0001);
+        }
+    }
+
+    private SRResultList exhaustive(SparseMatrix features, TIntFloatMap query, int n, TIntSet validIds) {
+        Leaderboard top = new Leaderboard(n);
+        for (SparseMatrixRow row : features) {
+            if (validIds != null && !validIds.contains(row.getRowIndex())) {
+                continue;
+            }
+            double dot = 0.0;
+            for (int i = 0; i < row.getNumCols(); i++) {
+                if (query.containsKey(row.getColIndex(i))) {
+                    dot += row.getColValue(i) * query.get(row.getColIndex(i));
+                }
+            }
+            if (dot != 0.0) {
+                double qnorm = 0.0;
+                for (float v : query.values()) {
+                    qnorm += v * v;
+                }
+                top.tallyScore(row.getRowIndex(), dot / (row.getNorm() * Math.sqrt(qnorm)));
+            }
+        }
+        SRResultList result = top.getTop();
+        result.sortDescending();
+        return result;
+    }
+
+    private TIntFloatMap makeQuery(Random random) {
+        TIntFloatMap query = new TIntFloatHashMap();
+        int n = 1 + random.nextInt(40);
+        for (int i = 0; i < n; i++) {
+            query.put(random.nextInt(NUM_FEATURES), 0.05f + random.nextFloat());
+        }
+        return query;
+    }
+
+    private SparseMatrix makeFeatures(Random random, File dir, boolean allowNegative) throws IOException {
+        List<SparseMatrixRow> rows = new ArrayList<SparseMatrixRow>();
+        ValueConf vconf = new ValueConf();
+        for (int i = 0; i < NUM_ROWS; i++) {
+            int rowId = i * 10 + random.nextInt(10);
+            TIntFloatMap row = new TIntFloatHashMap();
+            int n = 1 + random.nextInt(30);
+            for (int j = 0; j < n; j++) {
+                // Skew the features so that some are much more common than others.
+                int feature = (int) (NUM_FEATURES * Math.pow(random.nextDouble(), 2));
+                float value = random.nextFloat();
+                if (allowNegative && random.nextInt(4) == 0) {
+                    value = -value;
+                }
+                row.put(feature, value);
+            }
+            rows.add(new SparseMatrixRow(vconf, rowId, row));
+        }
+        File path = new File(dir, "features");
+        SparseMatrixWriter.write(path, rows.iterator(), vconf);
+        return new SparseMatrix(path);
+    }
+
+    private SparseMatrix transpose(SparseMatrix features, File dir) throws IOException {
+        File path = new File(dir, "transpose");
+        new SparseMatrixTransposer(features, path, 1).transpose();
+        return new SparseMatrix(path);
+    }
+
+    private File makeTempDir() throws IOException {
+        File dir = File.createTempFile("sharded-index", null);
+        dir.delete();
+        dir.mkdirs();
+        dir.deleteOnExit();
+        return dir;
+    }
+}
@@ -0,0 +1,599 @@
+package org.wikibrain.utils;
+
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.procedure.TLongIntProcedure;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.lang.ref.WeakReference;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Counts occurrences of long keys (typically hashes of strings) from many threads.
+ *
+ * Each thread accumulates counts in its own open-addressed primitive table, and merges
+ * them into a set of shared tables once it holds localCapacity keys. The shared tables
+ * are striped by a hash of the key and each merge locks every stripe at most once, so
+ * counting threads rarely wait on each other.
+ *
+ * The first read after any thread has counted merges the counts still held by all
+ * threads, so reads see every increment that completed before them. Later reads do
+ * not lock anything, so counts should only be read once counting threads are done.
+ *
+ * If a spill directory is set, the shared tables are written to disk as a sorted run
+ * whenever they hold more than maxEntries keys. The runs are merged into a single
+ * memory-mapped file the next time counts are read.
+ *
+ * @author Shilad Sen
+ */
+public class ConcurrentLongCounter implements Closeable {
+    private static final Logger LOG = Logger.getLogger(ConcurrentLongCounter.class.getName());
+
+    public static final int DEFAULT_LOCAL_CAPACITY = 8192;
+
+    private static final long MIX1 = 0xff51afd7ed558ccdL;
+    private static final long MIX2 = 0xc4ceb9fe1a85ec53L;
+    private static final long UNMIX1 = inverse(MIX1);
+    private static final long UNMIX2 = inverse(MIX2);
+
+    private static final int RECORD_BYTES = 12;
+
+    private final TLongIntHashMap[] stripes;
+    private final int stripeBits;
+    private final int localCapacity;
+
+    private final List<LocalCounts> locals = new CopyOnWriteArrayList<LocalCounts>();
+    private final ThreadLocal<LocalCounts> local = new ThreadLocal<LocalCounts>() {
+        @Override
+        protected LocalCounts initialValue() {
+            LocalCounts counts = new LocalCounts();
+            locals.add(counts);
+            return counts;
+        }
+    };
+
+    // number of keys in the shared tables
+    private final AtomicLong sharedSize = new AtomicLong();
+
+    // incremented whenever a thread starts holding counts or a table is spilled;
+    // reads flush only if this has changed since the last flush
+    private final AtomicLong modifications = new AtomicLong();
+    private volatile long flushedModifications = 0;
+    private final Object flushLock = new Object();
+
+    // spilling to disk; guarded by runs
+    private File spillDir = null;
+    private long maxEntries = Long.MAX_VALUE;
+    private final List<File> runs = new ArrayList<File>();
+    private volatile SortedRun merged = null;
+
+    public ConcurrentLongCounter() {
+        this(4 * WpThreadUtils.getMaxThreads(), DEFAULT_LOCAL_CAPACITY);
+    }
+
+    /**
+     * @param numStripes The number of shared tables. Rounded up to a power of two.
+     * @param localCapacity The number of keys a thread counts before merging them.
+     */
+    public ConcurrentLongCounter(int numStripes, int localCapacity) {
+        int bits = 0;
+        while ((1 << bits) < numStripes) {
+            bits++;
+        }
+        this.stripeBits = bits;
+        this.stripes = new TLongIntHashMap[1 << bits];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new TLongIntHashMap();
+        }
+        this.localCapacity = Math.max(1, localCapacity);
+    }
+
+    /**
+     * Spills the shared tables to disk when they contain more than maxEntries keys.
+     * @param dir A directory for temporary files.
+     * @param maxEntries
+     */
+    public void setSpillDirectory(File dir, long maxEntries) {
+        synchronized (runs) {
+            this.spillDir = dir;
+            this.maxEntries = maxEntries;
+        }
+    }
+
+    public void increment(long key) {
+        adjust(key, 1);
+    }
+
+    /**
+     * Adds an amount to the count of a key.
+     * @return The count of the key accumulated by the calling thread since it last
+     * merged its counts. In particular, the amount if the thread had not counted the
+     * key since it last merged.
+     */
+    public int adjust(long key, int amount) {
+        return local.get().adjust(key, amount);
+    }
+
+    /**
+     * Sets the count for a key. Should not be called while other threads are counting.
+     */
+    public void put(long key, int value) {
+        int current = get(key);
+        if (current != value) {
+            TLongIntHashMap stripe = stripes[getStripe(key)];
+            synchronized (stripe) {
+                int before = stripe.size();
+                stripe.adjustOrPutValue(key, value - current, value - current);
+                sharedSize.addAndGet(stripe.size() - before);
+            }
+        }
+    }
+
+    /**
+     * Returns the count of a key. Should not be called while other threads are counting.
+     */
+    public int get(long key) {
+        if (modifications.get() != flushedModifications) {
+            flush();
+        }
+        int n = stripes[getStripe(key)].get(key);
+        SortedRun run = merged;
+        return (run == null) ? n : n + run.get(key);
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != 0;
+    }
+
+    /**
+     * @return The number of keys with counts.
+     */
+    public int size() {
+        final int[] n = { 0 };
+        forEachEntry(new TLongIntProcedure() {
+            @Override
+            public boolean execute(long key, int count) {
+                n[0]++;
+                return true;
+            }
+        });
+        return n[0];
+    }
+
+    /**
+     * @return An upper bound on the number of keys, without merging the counts held
+     * by threads. Cheap enough to call while counting.
+     */
+    public long getApproximateSize() {
+        long n = sharedSize.get();
+        for (LocalCounts counts : locals) {
+            n += counts.size;
+        }
+        return n;
+    }
+
+    /**
+     * Merges the counts held by all threads into the shared tables and, if any tables
+     * were spilled, merges the runs on disk. Does nothing if no thread has counted
+     * since the last flush.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            long m = modifications.get();
+            if (m == flushedModifications) {
+                return;
+            }
+            for (LocalCounts counts : locals) {
+                counts.drain();
+                if (counts.isOrphaned()) {
+                    locals.remove(counts);
+                }
+            }
+            synchronized (runs) {
+                if (!runs.isEmpty()) {
+                    mergeRuns();
+                }
+            }
+            flushedModifications = m;
+        }
+    }
+
+    /**
+     * Removes the keys for which the procedure returns false.
+     * Not supported once the counts have been spilled to disk.
+     */
+    public void retainEntries(TLongIntProcedure procedure) {
+        flush();
+        if (merged != null) {
+            throw new UnsupportedOperationException("cannot remove counts that were spilled to disk");
+        }
+        for (TLongIntHashMap stripe : stripes) {
+            synchronized (stripe) {
+                int before = stripe.size();
+                stripe.retainEntries(procedure);
+                sharedSize.addAndGet(stripe.size() - before);
+            }
+        }
+    }
+
+    /**
+     * Calls the procedure for each key and its count until the procedure returns false.
+     * Should not be called while other threads are counting.
+     */
+    public void forEachEntry(final TLongIntProcedure procedure) {
+        flush();
+        SortedRun run = merged;
+        if (run == null) {
+            for (TLongIntHashMap stripe : stripes) {
+                if (!stripe.forEachEntry(procedure)) {
+                    return;
+                }
+            }
+        } else {
+            // counts that were not spilled are added to those on disk
+            final TLongIntHashMap memory = new TLongIntHashMap();
+            for (TLongIntHashMap stripe : stripes) {
+                memory.putAll(stripe);
+            }
+            for (long i = 0; i < run.size(); i++) {
+                long key = run.getKey(i);
+                int count = run.getCount(i) + memory.remove(key);
+                if (!procedure.execute(key, count)) {
+                    return;
+                }
+            }
+            memory.forEachEntry(procedure);
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (runs) {
+            if (merged != null) {
+                merged.close();
+                FileUtils.deleteQuietly(merged.file);
+                merged = null;
+            }
+            for (File run : runs) {
+                FileUtils.deleteQuietly(run);
+            }
+            runs.clear();
+        }
+    }
+
+    /**
+     * Adds counts to the shared tables, locking each stripe once.
+     */
+    private void mergeIntoShared(TLongIntHashMap counts) {
+        long[] keys = counts.keys();
+        int[] values = counts.values();
+
+        // group the entries by stripe
+        int[] stripeOf = new int[keys.length];
+        int[] starts = new int[stripes.length + 1];
+        for (int i = 0; i < keys.length; i++) {
+            stripeOf[i] = getStripe(keys[i]);
+            starts[stripeOf[i] + 1]++;
+        }
+        for (int s = 0; s < stripes.length; s++) {
+            starts[s + 1] += starts[s];
+        }
+        int[] order = new int[keys.length];
+        int[] next = Arrays.copyOf(starts, stripes.length);
+        for (int i = 0; i < keys.length; i++) {
+            order[next[stripeOf[i]]++] = i;
+        }
+
+        for (int s = 0; s < stripes.length; s++) {
+            if (starts[s] == starts[s + 1]) {
+                continue;
+            }
+            TLongIntHashMap stripe = stripes[s];
+            synchronized (stripe) {
+                int before = stripe.size();
+                for (int j = starts[s]; j < starts[s + 1]; j++) {
+                    int i = order[j];
+                    stripe.adjustOrPutValue(keys[i], values[i], values[i]);
+                }
+                sharedSize.addAndGet(stripe.size() - before);
+            }
+        }
+        if (spillDir != null && sharedSize.get() > maxEntries) {
+            spill();
+        }
+    }
+
+    /**
+     * Writes the shared tables to a sorted run on disk and clears them.
+     * Stripes hold consecutive ranges of sort keys, so sorting each stripe suffices.
+     */
+    private void spill() {
+        synchronized (runs) {
+            if (sharedSize.get() <= maxEntries) {
+                return;
+            }
+            try {
+                File file = File.createTempFile("counts", ".run", spillDir);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+                long n = 0;
+                try {
+                    for (TLongIntHashMap stripe : stripes) {
+                        long[] sortKeys;
+                        int[] counts;
+                        synchronized (stripe) {
+                            sortKeys = stripe.keys();
+                            for (int i = 0; i < sortKeys.length; i++) {
+                                sortKeys[i] = toSortKey(sortKeys[i]);
+                            }
+                            Arrays.sort(sortKeys);
+                            counts = new int[sortKeys.length];
+                            for (int i = 0; i < sortKeys.length; i++) {
+                                counts[i] = stripe.get(fromSortKey(sortKeys[i]));
+                            }
+                            sharedSize.addAndGet(-stripe.size());
+                            stripe.clear();
+                            stripe.compact();
+                        }
+                        for (int i = 0; i < sortKeys.length; i++) {
+                            out.writeLong(sortKeys[i]);
+                            out.writeInt(counts[i]);
+                        }
+                        n += sortKeys.length;
+                    }
+                } finally {
+                    out.close();
+                }
+                runs.add(file);
+                modifications.incrementAndGet();
+                LOG.info("spilled " + n + " counts to " + file);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Merges all runs (including a previously merged run) into a single run, summing
+     * the counts of equal keys. Must be called while holding the lock on runs.
+     */
+    private void mergeRuns() {
+        List<File> inputs = new ArrayList<File>(runs);
+        if (merged != null) {
+            merged.close();
+            inputs.add(merged.file);
+        }
+        PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>();
+        try {
+            File file = File.createTempFile("counts", ".merged", spillDir);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                for (File input : inputs) {
+                    RunReader reader = new RunReader(input);
+                    if (reader.advance()) {
+                        queue.add(reader);
+                    }
+                }
+                while (!queue.isEmpty()) {
+                    RunReader reader = queue.poll();
+                    long sortKey = reader.sortKey;
+                    long count = reader.count;
+                    if (reader.advance()) {
+                        queue.add(reader);
+                    }
+                    while (!queue.isEmpty() && queue.peek().sortKey == sortKey) {
+                        reader = queue.poll();
+                        count += reader.count;
+                        if (reader.advance()) {
+                            queue.add(reader);
+                        }
+                    }
+                    out.writeLong(sortKey);
+                    out.writeInt((int) Math.min(Integer.MAX_VALUE, count));
+                }
+            } finally {
+                out.close();
+                for (RunReader reader : queue) {
+                    reader.close();
+                }
+            }
+            for (File input : inputs) {
+                FileUtils.deleteQuietly(input);
+            }
+            runs.clear();
+            merged = new SortedRun(file);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private int getStripe(long key) {
+        return (stripeBits == 0) ? 0 : (int) (mix(key) >>> (64 - stripeBits));
+    }
+
+    /**
+     * A bijective mix of the bits of a key (the finalizer of MurmurHash3).
+     */
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= MIX1;
+        k ^= k >>> 33;
+        k *= MIX2;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static long unmix(long k) {
+        k ^= k >>> 33;
+        k *= UNMIX2;
+        k ^= k >>> 33;
+        k *= UNMIX1;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    /**
+     * Keys are sorted on disk by their mixed bits as unsigned longs, which is also
+     * the order of the stripes.
+     */
+    private static long toSortKey(long key) {
+        return mix(key) ^ Long.MIN_VALUE;
+    }
+
+    private static long fromSortKey(long sortKey) {
+        return unmix(sortKey ^ Long.MIN_VALUE);
+    }
+
+    /**
+     * @return The multiplicative inverse of an odd number modulo 2^64.
+     */
+    private static long inverse(long x) {
+        long inv = x;
+        for (int i = 0; i < 5; i++) {
+            inv *= 2 - x * inv;
+        }
+        return inv;
+    }
+
+    /**
+     * The counts of a single thread.
+     * Locked by its thread while counting, and by any thread that flushes the counter.
+     */
+    private final class LocalCounts {
+        private final TLongIntHashMap counts = new TLongIntHashMap();
+        private final WeakReference<Thread> owner = new WeakReference<Thread>(Thread.currentThread());
+        private volatile int size = 0;
+
+        synchronized int adjust(long key, int amount) {
+            if (counts.isEmpty()) {
+                modifications.incrementAndGet();
+            }
+            int n = counts.adjustOrPutValue(key, amount, amount);
+            size = counts.size();
+            if (size >= localCapacity) {
+                drain();
+            }
+            return n;
+        }
+
+        synchronized void drain() {
+            if (!counts.isEmpty()) {
+                mergeIntoShared(counts);
+                counts.clear();
+                size = 0;
+            }
+        }
+
+        /**
+         * @return True if the thread that owned these counts has finished and they were drained.
+         */
+        synchronized boolean isOrphaned() {
+            Thread thread = owner.get();
+            return counts.isEmpty() && (thread == null || !thread.isAlive());
+        }
+    }
+
+    /**
+     * Reads a run sequentially while merging.
+     */
+    private static class RunReader implements Comparable<RunReader> {
+        private final DataInputStream in;
+        private long sortKey;
+        private int count;
+
+        RunReader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        }
+
+        boolean advance() throws IOException {
+            try {
+                sortKey = in.readLong();
+                count = in.readInt();
+                return true;
+            } catch (EOFException e) {
+                close();
+                return false;
+            }
+        }
+
+        void close() {
+            IOUtils.closeQuietly(in);
+        }
+
+        @Override
+        public int compareTo(RunReader that) {
+            return (sortKey < that.sortKey) ? -1 : (sortKey > that.sortKey ? 1 : 0);
+        }
+    }
+
+    /**
+     * A memory-mapped run of (sort key, count) records in increasing order.
+     */
+    private static class SortedRun {
+        private static final int RECORDS_PER_CHUNK = Integer.MAX_VALUE / RECORD_BYTES;
+
+        final File file;
+        private final long size;
+        private final MappedByteBuffer[] chunks;
+        private FileChannel channel;
+
+        SortedRun(File file) throws IOException {
+            this.file = file;
+            channel = new FileInputStream(file).getChannel();
+            size = channel.size() / RECORD_BYTES;
+            chunks = new MappedByteBuffer[(int) ((size + RECORDS_PER_CHUNK - 1) / RECORDS_PER_CHUNK)];
+            for (int i = 0; i < chunks.length; i++) {
+                long start = (long) i * RECORDS_PER_CHUNK;
+                long n = Math.min(RECORDS_PER_CHUNK, size - start);
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start * RECORD_BYTES, n * RECORD_BYTES);
+            }
+        }
+
+        long size() {
+            return size;
+        }
+
+        long getKey(long i) {
+            return fromSortKey(getSortKey(i));
+        }
+
+        private long getSortKey(long i) {
+            return chunks[(int) (i / RECORDS_PER_CHUNK)].getLong((int) (i % RECORDS_PER_CHUNK) * RECORD_BYTES);
+        }
+
+        int getCount(long i) {
+            return chunks[(int) (i / RECORDS_PER_CHUNK)].getInt((int) (i % RECORDS_PER_CHUNK) * RECORD_BYTES + 8);
+        }
+
+        int get(long key) {
+            long sortKey = toSortKey(key);
+            long lo = 0;
+            long hi = size - 1;
+            while (lo <= hi) {
+                long mid = (lo + hi) >>> 1;
+                long k = getSortKey(mid);
+                if (k < sortKey) {
+                    lo = mid + 1;
+                } else if (k > sortKey) {
+                    hi = mid - 1;
+                } else {
+                    return getCount(mid);
+                }
+            }
+            return 0;
+        }
+
+        void close() {
+            IOUtils.closeQuietly(channel);
+            channel = null;
+        }
+    }
+}
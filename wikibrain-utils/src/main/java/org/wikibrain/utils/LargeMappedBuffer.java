@@ -0,0 +1,98 @@
+package org.wikibrain.utils;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only memory mapping of a file that may be larger than the 2GB limit
+ * of a single MappedByteBuffer.
+ *
+ * The file is mapped in fixed size chunks. Each chunk also maps the first few bytes
+ * of the next one, so a primitive value that straddles a chunk boundary can still be
+ * read from the chunk in which it starts.
+ *
+ * All reads are absolute, so a buffer can be shared by threads without locks.
+ *
+ * @author Shilad Sen
+ */
+public class LargeMappedBuffer implements Closeable {
+    public static final int DEFAULT_CHUNK_BITS = 30;     // 1GB chunks
+
+    private static final int OVERLAP = 8;               // size of the largest primitive
+
+    private final long size;
+    private final int chunkBits;
+    private final long chunkMask;
+    private final MappedByteBuffer[] chunks;
+    private FileChannel channel;
+
+    public LargeMappedBuffer(File file) throws IOException {
+        this(file, DEFAULT_CHUNK_BITS);
+    }
+
+    /**
+     * @param file
+     * @param chunkBits The log base 2 of the chunk size, at most 30.
+     */
+    public LargeMappedBuffer(File file, int chunkBits) throws IOException {
+        if (chunkBits < 4 || chunkBits > 30) {
+            throw new IllegalArgumentException("invalid chunk bits: " + chunkBits);
+        }
+        this.chunkBits = chunkBits;
+        this.chunkMask = (1L << chunkBits) - 1;
+        channel = new FileInputStream(file).getChannel();
+        try {
+            size = channel.size();
+            int numChunks = (int) ((size + chunkMask) >>> chunkBits);
+            chunks = new MappedByteBuffer[numChunks];
+            for (int i = 0; i < numChunks; i++) {
+                long start = (long) i << chunkBits;
+                long end = Math.min(size, start + (1L << chunkBits) + OVERLAP);
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            }
+        } catch (IOException e) {
+            IOUtils.closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    /**
+     * @return The size of the file in bytes.
+     */
+    public long size() {
+        return size;
+    }
+
+    public byte get(long position) {
+        return chunks[(int) (position >>> chunkBits)].get((int) (position & chunkMask));
+    }
+
+    public int getInt(long position) {
+        return chunks[(int) (position >>> chunkBits)].getInt((int) (position & chunkMask));
+    }
+
+    public long getLong(long position) {
+        return chunks[(int) (position >>> chunkBits)].getLong((int) (position & chunkMask));
+    }
+
+    /**
+     * Copies bytes starting at a position into an array.
+     */
+    public void get(long position, byte[] dest, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            dest[offset + i] = get(position + i);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOUtils.closeQuietly(channel);
+        channel = null;
+    }
+}
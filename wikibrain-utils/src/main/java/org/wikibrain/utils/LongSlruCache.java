@@ -0,0 +1,239 @@
+package org.wikibrain.utils;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.map.hash.TLongIntHashMap;
+
+import java.util.Arrays;
+
+/**
+ * A size-bounded cache with primitive long keys and segmented LRU eviction.
+ *
+ * New entries enter a probationary segment. Entries that are hit again are promoted
+ * to a protected segment (80% of the capacity), so a scan over many one-off keys
+ * only evicts other one-off keys. When the protected segment overflows, its least
+ * recently used entry is demoted back to probation.
+ *
+ * The cache is split into independently locked stripes so that many threads can use
+ * it at once. Null values are not cached.
+ *
+ * @author Shilad Sen
+ */
+public class LongSlruCache<V> {
+    public static final int DEFAULT_NUM_STRIPES = 16;
+
+    private final Stripe[] stripes;
+
+    /**
+     * @param capacity Maximum number of entries in the cache.
+     */
+    public LongSlruCache(int capacity) {
+        this(capacity, DEFAULT_NUM_STRIPES);
+    }
+
+    /**
+     * @param capacity Maximum number of entries in the cache.
+     * @param numStripes Number of independently locked stripes.
+     */
+    public LongSlruCache(int capacity, int numStripes) {
+        if (capacity < 1 || numStripes < 1) {
+            throw new IllegalArgumentException("capacity and numStripes must be positive");
+        }
+        numStripes = Math.min(numStripes, capacity);
+        stripes = new Stripe[numStripes];
+        for (int i = 0; i < numStripes; i++) {
+            int n = capacity / numStripes + (i < capacity % numStripes ? 1 : 0);
+            stripes[i] = new Stripe(n);
+        }
+    }
+
+    /**
+     * @return The cached value, or null if the key is not cached.
+     */
+    @SuppressWarnings("unchecked")  // stripes only hold values passed to put()
+    public V get(long key) {
+        Stripe s = stripe(key);
+        synchronized (s) {
+            return (V) s.get(key);
+        }
+    }
+
+    /**
+     * Adds or replaces an entry. Null values are ignored.
+     */
+    public void put(long key, V value) {
+        if (value == null) {
+            return;
+        }
+        Stripe s = stripe(key);
+        synchronized (s) {
+            s.put(key, value);
+        }
+    }
+
+    /**
+     * Removes all entries. Hit and miss counts are retained.
+     */
+    public void clear() {
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                s.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int n = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                n += s.size;
+            }
+        }
+        return n;
+    }
+
+    public long getHits() {
+        long n = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                n += s.hits;
+            }
+        }
+        return n;
+    }
+
+    public long getMisses() {
+        long n = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                n += s.misses;
+            }
+        }
+        return n;
+    }
+
+    public double getHitRate() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return (total == 0) ? 0.0 : 1.0 * hits / total;
+    }
+
+    private Stripe stripe(long key) {
+        int h = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+        return stripes[(h >>> 1) % stripes.length];
+    }
+
+    private static final int PROBATION = 0;
+    private static final int PROTECTED = 1;
+
+    /**
+     * One stripe of the cache. Entries live in fixed slots linked into two
+     * doubly-linked lists (probation and protected), most recently used first.
+     */
+    private static final class Stripe {
+        final TLongIntHashMap index;
+        final long[] keys;
+        final Object[] values;
+        final int[] prev;
+        final int[] next;
+        final byte[] segment;
+        final int[] heads = new int[2];
+        final int[] tails = new int[2];
+        final int[] sizes = new int[2];
+        final int maxProtected;
+        int size = 0;
+        long hits = 0;
+        long misses = 0;
+
+        Stripe(int capacity) {
+            index = new TLongIntHashMap(capacity * 2, Constants.DEFAULT_LOAD_FACTOR, -1, -1);
+            keys = new long[capacity];
+            values = new Object[capacity];
+            prev = new int[capacity];
+            next = new int[capacity];
+            segment = new byte[capacity];
+            maxProtected = Math.max(1, capacity * 4 / 5);
+            clear();
+        }
+
+        Object get(long key) {
+            int slot = index.get(key);
+            if (slot < 0) {
+                misses++;
+                return null;
+            }
+            hits++;
+            touch(slot);
+            return values[slot];
+        }
+
+        void put(long key, Object value) {
+            int slot = index.get(key);
+            if (slot >= 0) {
+                values[slot] = value;
+                touch(slot);
+                return;
+            }
+            if (size < keys.length) {
+                slot = size++;
+            } else {
+                slot = (tails[PROBATION] >= 0) ? tails[PROBATION] : tails[PROTECTED];
+                unlink(slot);
+                index.remove(keys[slot]);
+            }
+            keys[slot] = key;
+            values[slot] = value;
+            index.put(key, slot);
+            linkHead(slot, PROBATION);
+        }
+
+        /**
+         * Promotes a probationary entry or refreshes a protected one.
+         */
+        void touch(int slot) {
+            unlink(slot);
+            linkHead(slot, PROTECTED);
+            if (sizes[PROTECTED] > maxProtected) {
+                int demoted = tails[PROTECTED];
+                unlink(demoted);
+                linkHead(demoted, PROBATION);
+            }
+        }
+
+        void linkHead(int slot, int seg) {
+            segment[slot] = (byte) seg;
+            prev[slot] = -1;
+            next[slot] = heads[seg];
+            if (heads[seg] >= 0) {
+                prev[heads[seg]] = slot;
+            } else {
+                tails[seg] = slot;
+            }
+            heads[seg] = slot;
+            sizes[seg]++;
+        }
+
+        void unlink(int slot) {
+            int seg = segment[slot];
+            if (prev[slot] >= 0) {
+                next[prev[slot]] = next[slot];
+            } else {
+                heads[seg] = next[slot];
+            }
+            if (next[slot] >= 0) {
+                prev[next[slot]] = prev[slot];
+            } else {
+                tails[seg] = prev[slot];
+            }
+            sizes[seg]--;
+        }
+
+        void clear() {
+            index.clear();
+            Arrays.fill(values, null);
+            Arrays.fill(heads, -1);
+            Arrays.fill(tails, -1);
+            Arrays.fill(sizes, 0);
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package org.wikibrain.utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads and writes binary files made of a magic header followed by packed columns
+ * of primitives.
+ *
+ * Files are written to a temporary file that is renamed to the real file once it is
+ * complete, so a reader never maps a partially written file. They are read back as
+ * slices of a single read-only mapping, so many processes can share one copy of a
+ * file through the page cache.
+ *
+ * @author Shilad Sen
+ */
+public class MappedColumnFile {
+
+    /**
+     * A stream that writes to a temporary file next to a file. The temporary file
+     * replaces the file when commit() is called, and is deleted if the stream is
+     * closed without being committed.
+     */
+    public static class Output extends DataOutputStream {
+        private final File file;
+        private final File tmp;
+        private boolean committed = false;
+
+        public Output(File file) throws IOException {
+            this(file, new File(file.getPath() + ".tmp"));
+        }
+
+        private Output(File file, File tmp) throws IOException {
+            super(new BufferedOutputStream(new FileOutputStream(tmp)));
+            this.file = file;
+            this.tmp = tmp;
+        }
+
+        public void writeColumn(IntBuffer column) throws IOException {
+            for (int i = 0; i < column.limit(); i++) {
+                writeInt(column.get(i));
+            }
+        }
+
+        public void writeColumn(int[] column) throws IOException {
+            for (int x : column) {
+                writeInt(x);
+            }
+        }
+
+        public void writeColumn(LongBuffer column) throws IOException {
+            for (int i = 0; i < column.limit(); i++) {
+                writeLong(column.get(i));
+            }
+        }
+
+        public void writeColumn(DoubleBuffer column) throws IOException {
+            for (int i = 0; i < column.limit(); i++) {
+                writeDouble(column.get(i));
+            }
+        }
+
+        public void writeColumn(ByteBuffer column) throws IOException {
+            for (int i = 0; i < column.limit(); i++) {
+                writeByte(column.get(i));
+            }
+        }
+
+        /**
+         * Closes the stream and renames the temporary file to the file.
+         */
+        public void commit() throws IOException {
+            super.close();
+            if (file.exists()) {
+                file.delete();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("could not rename " + tmp + " to " + file);
+            }
+            committed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            if (!committed) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Memory maps an entire file.
+     *
+     * @param file
+     * @return A read-only mapping of the file. It remains valid after the file is closed.
+     * @throws IOException If the file is too large to map.
+     */
+    public static MappedByteBuffer map(File file) throws IOException {
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            FileChannel channel = stream.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large to map (" + size + " bytes)");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Memory maps an entire file and checks that it starts with a header.
+     *
+     * @param file
+     * @param header The expected magic number at the start of the file.
+     * @param description The kind of file, used in error messages.
+     * @return A read-only mapping of the file. It remains valid after the file is closed.
+     * @throws IOException If the file is too large to map, or has the wrong header.
+     */
+    public static ByteBuffer map(File file, int header, String description) throws IOException {
+        ByteBuffer buffer = map(file);
+        if (buffer.limit() < 4 || buffer.getInt(0) != header) {
+            throw new IOException("invalid " + description + " " + file);
+        }
+        return buffer;
+    }
+
+    /**
+     * @return A view of length bytes of a buffer starting at position.
+     */
+    public static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(position);
+        slice.limit(position + length);
+        return slice.slice();
+    }
+
+    public static IntBuffer intColumn(ByteBuffer buffer, int position, int size) {
+        return slice(buffer, position, 4 * size).asIntBuffer();
+    }
+
+    public static FloatBuffer floatColumn(ByteBuffer buffer, int position, int size) {
+        return slice(buffer, position, 4 * size).asFloatBuffer();
+    }
+
+    public static LongBuffer longColumn(ByteBuffer buffer, int position, int size) {
+        return slice(buffer, position, 8 * size).asLongBuffer();
+    }
+
+    public static DoubleBuffer doubleColumn(ByteBuffer buffer, int position, int size) {
+        return slice(buffer, position, 8 * size).asDoubleBuffer();
+    }
+}
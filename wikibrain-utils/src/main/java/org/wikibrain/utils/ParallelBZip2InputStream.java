@@ -0,0 +1,581 @@
+package org.wikibrain.utils;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * A bzip2 decompressor that decompresses blocks in parallel.
+ *
+ * Bzip2 compresses each block (at most 900KB of input) independently, and each block
+ * begins with a 48-bit magic number that is not byte aligned. This stream scans the
+ * compressed input for the magic numbers, wraps each block in a standalone bzip2 stream,
+ * and decompresses up to maxPending blocks ahead of the reader on the shared executor.
+ * Blocks are returned in their original order. Concatenated streams are supported, so
+ * the output is identical to that of BZip2CompressorInputStream(in, true).
+ *
+ * The magic number may also appear by chance inside compressed data. A block that
+ * fails to decompress is retried together with the block that follows it.
+ *
+ * If the byte offsets of the streams in a concatenated file are known in advance
+ * (e.g. from the index of a Wikipedia multistream dump), the input is instead split
+ * at those offsets and no scanning is necessary.
+ *
+ * @author Shilad Sen
+ */
+public class ParallelBZip2InputStream extends InputStream {
+    private static final Logger LOG = Logger.getLogger(ParallelBZip2InputStream.class.getName());
+
+    private static final long BLOCK_MAGIC = 0x314159265359L;
+    private static final long EOS_MAGIC = 0x177245385090L;
+    private static final long MAGIC_MASK = 0xffffffffffffL;
+    private static final byte[] STREAM_HEADER = { 'B', 'Z', 'h', '9' };
+
+    /**
+     * Streams are grouped into chunks of at least this many compressed bytes.
+     */
+    private static final int MIN_CHUNK_BYTES = 1024 * 1024;
+
+    /**
+     * The maximum number of consecutive chunks that are merged to recover from
+     * spurious block magic numbers.
+     */
+    private static final int MAX_MERGED_CHUNKS = 4;
+
+    private InputStream in;
+    private final ExecutorService exec;
+    private final int maxPending;
+    private final LinkedList<Pending> pending = new LinkedList<Pending>();
+
+    // decompressed bytes being returned to the reader
+    private byte[] current = new byte[0];
+    private int currentPos = 0;
+
+    // the input has been completely split into chunks
+    private boolean inputDone = false;
+
+    // scanner state when splitting at block boundaries
+    private final byte[] readBuffer = new byte[64 * 1024];
+    private int bufPos = 0;
+    private int bufLimit = 0;
+    private GrowableBytes raw = new GrowableBytes();
+    private long rawStartBit = 0;       // absolute bit position of raw[0]
+    private long numBits = 0;           // number of bits read from the input
+    private long window = 0;            // the last 64 bits read
+    private long blockStart = -1;       // start of the current block, or -1 if none
+    private long blockEnd = -1;         // end of the current block if it was ended by an end of stream magic
+
+    // stream offsets when splitting at known stream boundaries
+    private final long[] streamOffsets;
+    private int nextOffset = 0;
+    private long bytesRead = 0;
+
+    /**
+     * Creates a stream that decompresses getMaxThreads() blocks in parallel.
+     * @param in The compressed input, which should be buffered.
+     */
+    public ParallelBZip2InputStream(InputStream in) throws IOException {
+        this(in, null, 2 * WpThreadUtils.getMaxThreads());
+    }
+
+    /**
+     * Creates a stream for a file of concatenated bzip2 streams.
+     * @param in The compressed input, which should be buffered.
+     * @param streamOffsets The byte offsets at which streams begin, in increasing order.
+     */
+    public ParallelBZip2InputStream(InputStream in, long[] streamOffsets) throws IOException {
+        this(in, streamOffsets, 2 * WpThreadUtils.getMaxThreads());
+    }
+
+    /**
+     * @param in The compressed input, which should be buffered.
+     * @param streamOffsets The byte offsets at which streams begin, in increasing order,
+     *                      or null to split the input at block boundaries.
+     * @param maxPending The maximum number of chunks decompressed ahead of the reader.
+     */
+    public ParallelBZip2InputStream(InputStream in, long[] streamOffsets, int maxPending) throws IOException {
+        this.in = in;
+        this.streamOffsets = streamOffsets;
+        this.maxPending = Math.max(1, maxPending);
+        // Shared threads may not wait on other shared tasks, so decompress inline there.
+        this.exec = WpThreadUtils.isSharedThread() ? null : WpThreadUtils.getSharedExecutor();
+        if (streamOffsets == null) {
+            byte[] header = new byte[3];
+            if (IOUtils.read(in, header) != 3 || header[0] != 'B' || header[1] != 'Z' || header[2] != 'h') {
+                throw new IOException("input is not a bzip2 stream");
+            }
+            for (byte b : header) {
+                pushByte(b);
+            }
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureCurrent()) {
+            return -1;
+        }
+        return current[currentPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureCurrent()) {
+            return -1;
+        }
+        int n = Math.min(len, current.length - currentPos);
+        System.arraycopy(current, currentPos, b, off, n);
+        currentPos += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return current.length - currentPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Pending p : pending) {
+            if (p.future != null) {
+                p.future.cancel(true);
+            }
+        }
+        pending.clear();
+        inputDone = true;
+        if (in != null) {
+            in.close();
+            in = null;
+        }
+    }
+
+    /**
+     * Makes sure there are unread decompressed bytes in current.
+     * @return False at the end of the input.
+     */
+    private boolean ensureCurrent() throws IOException {
+        while (currentPos >= current.length) {
+            fillPending();
+            if (pending.isEmpty()) {
+                return false;
+            }
+            current = takeNext();
+            currentPos = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Splits the input into chunks until maxPending chunks are pending.
+     */
+    private void fillPending() throws IOException {
+        while (pending.size() < maxPending && !inputDone) {
+            Chunk chunk = (streamOffsets == null) ? nextBlockChunk() : nextStreamChunk();
+            if (chunk == null) {
+                inputDone = true;
+            } else {
+                pending.add(new Pending(chunk, submit(chunk)));
+            }
+        }
+    }
+
+    private Future<byte[]> submit(final Chunk chunk) {
+        if (exec == null) {
+            return null;
+        }
+        return exec.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return chunk.decompress();
+            }
+        });
+    }
+
+    /**
+     * Returns the decompressed bytes of the first pending chunk. If it cannot be
+     * decompressed, it is retried together with the chunks that follow it, in case
+     * it was split at a spurious block magic number.
+     */
+    private byte[] takeNext() throws IOException {
+        Pending head = pending.removeFirst();
+        IOException error;
+        try {
+            return head.get();
+        } catch (IOException e) {
+            error = e;
+        }
+        if (streamOffsets != null) {
+            throw error;
+        }
+        List<BlockChunk> merged = new ArrayList<BlockChunk>();
+        merged.add((BlockChunk) head.chunk);
+        while (merged.size() < MAX_MERGED_CHUNKS) {
+            fillPending();
+            if (pending.isEmpty()) {
+                break;
+            }
+            Pending next = pending.removeFirst();
+            if (next.future != null) {
+                next.future.cancel(true);
+            }
+            merged.add((BlockChunk) next.chunk);
+            // Any of the merged chunks after the first may or may not begin a real block,
+            // which changes the combined CRC of the stream, so try each possibility.
+            for (int mask = 0; mask < (1 << (merged.size() - 1)); mask++) {
+                try {
+                    byte[] result = decompressAll(BlockChunk.toStream(merged, mask));
+                    LOG.fine("recovered from a spurious bzip2 block magic number by merging " + merged.size() + " blocks");
+                    return result;
+                } catch (IOException e) {
+                    // try the next possibility
+                }
+            }
+        }
+        throw error;
+    }
+
+    /**
+     * @return The next chunk containing one or more whole streams, or null at the end of the input.
+     */
+    private Chunk nextStreamChunk() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (true) {
+            while (nextOffset < streamOffsets.length && streamOffsets[nextOffset] <= bytesRead) {
+                nextOffset++;
+            }
+            long end = (nextOffset < streamOffsets.length) ? streamOffsets[nextOffset] : Long.MAX_VALUE;
+            int n = in.read(readBuffer, 0, (int) Math.min(readBuffer.length, end - bytesRead));
+            if (n <= 0) {
+                break;
+            }
+            out.write(readBuffer, 0, n);
+            bytesRead += n;
+            if (bytesRead == end && out.size() >= MIN_CHUNK_BYTES) {
+                break;
+            }
+        }
+        return (out.size() == 0) ? null : new StreamChunk(out.toByteArray());
+    }
+
+    /**
+     * Scans the input until the end of the current block.
+     * @return The next block, or null at the end of the input.
+     */
+    private Chunk nextBlockChunk() throws IOException {
+        while (true) {
+            if (bufPos >= bufLimit) {
+                if (blockStart < 0 && raw.length() > readBuffer.length) {
+                    discardRaw();
+                }
+                bufPos = 0;
+                bufLimit = Math.max(0, in.read(readBuffer));
+                if (bufLimit == 0) {
+                    if (blockStart < 0) {
+                        return null;
+                    }
+                    // A truncated final block; it will fail when it is decompressed.
+                    Chunk chunk = endBlock(numBits);
+                    blockStart = -1;
+                    return chunk;
+                }
+            }
+            Chunk chunk = pushByte(readBuffer[bufPos++]);
+            if (chunk != null) {
+                return chunk;
+            }
+        }
+    }
+
+    /**
+     * Adds a byte to the scanner.
+     * @return A completed block, or null.
+     */
+    private Chunk pushByte(byte b) {
+        raw.add(b);
+        window = (window << 8) | (b & 0xff);
+        numBits += 8;
+        // Check all alignments, earliest first, of a magic number ending in this byte.
+        for (int shift = 7; shift >= 0; shift--) {
+            long start = numBits - shift - 48;
+            if (start < 0) {
+                continue;
+            }
+            long candidate = (window >>> shift) & MAGIC_MASK;
+            if (candidate == BLOCK_MAGIC) {
+                Chunk chunk = null;
+                if (blockStart >= 0) {
+                    chunk = endBlock(start);
+                }
+                blockStart = start;
+                blockEnd = -1;
+                return chunk;
+            } else if (candidate == EOS_MAGIC && blockStart >= 0 && blockEnd < 0) {
+                blockEnd = start;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Ends the current block at the start of the next one, and keeps the raw bytes
+     * needed by the next block.
+     * @param next Bit position of the next block magic, or the end of the input.
+     */
+    private Chunk endBlock(long next) {
+        long end = (blockEnd >= 0) ? blockEnd : next;
+        long keepFrom = (next / 8) * 8;
+        int keepByte = (int) ((keepFrom - rawStartBit) / 8);
+        byte[] bytes = raw.copy(0, Math.min(raw.length(), keepByte + 1));
+        BlockChunk chunk = new BlockChunk(bytes, rawStartBit, blockStart, end, next);
+
+        GrowableBytes rest = new GrowableBytes();
+        rest.add(raw.array(), keepByte, raw.length() - keepByte);
+        raw = rest;
+        rawStartBit = keepFrom;
+        return chunk;
+    }
+
+    /**
+     * Drops raw bytes outside of any block, keeping enough for a magic number that
+     * ends in a later byte.
+     */
+    private void discardRaw() {
+        int keep = 8;
+        int from = raw.length() - keep;
+        GrowableBytes rest = new GrowableBytes();
+        rest.add(raw.array(), from, keep);
+        raw = rest;
+        rawStartBit += 8L * from;
+    }
+
+    private static byte[] decompressAll(byte[] compressed) throws IOException {
+        BZip2CompressorInputStream bz = new BZip2CompressorInputStream(new ByteArrayInputStream(compressed), true);
+        try {
+            return IOUtils.toByteArray(bz);
+        } finally {
+            bz.close();
+        }
+    }
+
+    private static class Pending {
+        final Chunk chunk;
+        final Future<byte[]> future;
+
+        Pending(Chunk chunk, Future<byte[]> future) {
+            this.chunk = chunk;
+            this.future = future;
+        }
+
+        byte[] get() throws IOException {
+            if (future == null) {
+                return chunk.decompress();
+            }
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while decompressing", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("decompression failed", e.getCause());
+            }
+        }
+    }
+
+    private interface Chunk {
+        byte[] decompress() throws IOException;
+    }
+
+    /**
+     * One or more complete bzip2 streams.
+     */
+    private static class StreamChunk implements Chunk {
+        private final byte[] bytes;
+
+        StreamChunk(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public byte[] decompress() throws IOException {
+            return decompressAll(bytes);
+        }
+    }
+
+    /**
+     * The bits of a single block, followed by the bits up to the next block.
+     */
+    private static class BlockChunk implements Chunk {
+        final byte[] bytes;
+        final long baseBit;     // absolute bit position of bytes[0]
+        final long start;       // absolute bit positions of the block magic,
+        final long end;         // the end of the block's data,
+        final long next;        // and the following block magic
+
+        BlockChunk(byte[] bytes, long baseBit, long start, long end, long next) {
+            this.bytes = bytes;
+            this.baseBit = baseBit;
+            this.start = start;
+            this.end = end;
+            this.next = next;
+        }
+
+        /**
+         * @return The 32-bit CRC that follows the block magic.
+         */
+        int getBlockCrc() {
+            long pos = start + 48 - baseBit;
+            int crc = 0;
+            for (int i = 0; i < 32; i++) {
+                crc = (crc << 1) | getBit(bytes, pos + i);
+            }
+            return crc;
+        }
+
+        @Override
+        public byte[] decompress() throws IOException {
+            return decompressAll(toStream(Arrays.asList(this), 0));
+        }
+
+        /**
+         * Builds a standalone stream from consecutive chunks.
+         * @param chunks Chunks that are contiguous in the original input.
+         * @param realBlocks A bit mask of the chunks after the first that begin
+         *                   real blocks, used to compute the combined CRC.
+         */
+        static byte[] toStream(List<BlockChunk> chunks, int realBlocks) {
+            BitWriter w = new BitWriter();
+            w.writeBytes(STREAM_HEADER);
+            int combinedCrc = 0;
+            for (int i = 0; i < chunks.size(); i++) {
+                BlockChunk c = chunks.get(i);
+                boolean last = (i == chunks.size() - 1);
+                w.copyBits(c.bytes, c.start - c.baseBit, (last ? c.end : c.next) - c.baseBit);
+                if (i == 0 || (realBlocks & (1 << (i - 1))) != 0) {
+                    combinedCrc = ((combinedCrc << 1) | (combinedCrc >>> 31)) ^ c.getBlockCrc();
+                }
+            }
+            w.writeBits(EOS_MAGIC, 48);
+            w.writeBits(combinedCrc & 0xffffffffL, 32);
+            return w.finish();
+        }
+    }
+
+    private static int getBit(byte[] bytes, long pos) {
+        return (bytes[(int) (pos >>> 3)] >>> (7 - (int) (pos & 7))) & 1;
+    }
+
+    /**
+     * Writes bits, most significant first, to a growable array.
+     */
+    private static class BitWriter {
+        private final GrowableBytes out = new GrowableBytes();
+        private int acc = 0;
+        private int numAcc = 0;
+
+        void writeBit(int bit) {
+            acc = (acc << 1) | bit;
+            if (++numAcc == 8) {
+                out.add((byte) acc);
+                acc = numAcc = 0;
+            }
+        }
+
+        void writeBits(long value, int n) {
+            for (int i = n - 1; i >= 0; i--) {
+                writeBit((int) (value >>> i) & 1);
+            }
+        }
+
+        void writeBytes(byte[] bytes) {
+            for (byte b : bytes) {
+                writeBits(b & 0xff, 8);
+            }
+        }
+
+        /**
+         * Copies the bits in [from, to) of an array.
+         */
+        void copyBits(byte[] bytes, long from, long to) {
+            long pos = from;
+            // bit-by-bit until the source is byte aligned, then a byte at a time
+            while (pos < to && (pos & 7) != 0) {
+                writeBit(getBit(bytes, pos++));
+            }
+            while (pos + 8 <= to) {
+                int b = bytes[(int) (pos >>> 3)] & 0xff;
+                if (numAcc == 0) {
+                    out.add((byte) b);
+                } else {
+                    int n = numAcc;
+                    out.add((byte) ((acc << (8 - n)) | (b >>> n)));
+                    acc = b & ((1 << n) - 1);
+                }
+                pos += 8;
+            }
+            while (pos < to) {
+                writeBit(getBit(bytes, pos++));
+            }
+        }
+
+        byte[] finish() {
+            while (numAcc != 0) {
+                writeBit(0);
+            }
+            return out.copy(0, out.length());
+        }
+    }
+
+    /**
+     * A minimal growable byte array.
+     */
+    private static class GrowableBytes {
+        private byte[] bytes = new byte[1024];
+        private int length = 0;
+
+        void add(byte b) {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            bytes[length++] = b;
+        }
+
+        void add(byte[] src, int off, int len) {
+            if (length + len > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + len));
+            }
+            System.arraycopy(src, off, bytes, length, len);
+            length += len;
+        }
+
+        byte[] array() {
+            return bytes;
+        }
+
+        int length() {
+            return length;
+        }
+
+        byte[] copy(int from, int to) {
+            return Arrays.copyOfRange(bytes, from, to);
+        }
+    }
+}
@@ -119,6 +119,7 @@ public class WpIOUtils {
      * Opens a possibly compressed input stream.
      * The underlying input stream is, in fact buffered even though
      * the returned object isn't.
+     * Bzip2 files are decompressed in parallel when more than one thread is available.
      * @param path
      * @return
      * @throws IOException
@@ -126,7 +127,11 @@ public class WpIOUtils {
     public static InputStream openInputStream(File path) throws IOException {
         InputStream input = new BufferedInputStream(new FileInputStream(path));
         if (FilenameUtils.getExtension(path.toString()).toLowerCase().startsWith("bz2")) {
-            input = new BZip2CompressorInputStream(input, true);
+            if (WpThreadUtils.getMaxThreads() > 1 && !WpThreadUtils.isSharedThread()) {
+                input = new ParallelBZip2InputStream(input);
+            } else {
+                input = new BZip2CompressorInputStream(input, true);
+            }
         } else if (FilenameUtils.getExtension(path.toString()).equalsIgnoreCase("gz")) {
             input = new GZIPInputStream(input);
         }
@@ -1,11 +1,25 @@
 package org.wikibrain.utils;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * @author Shilad Sen
  */
 public class WpThreadUtils {
     public static int MAX_THREADS = Runtime.getRuntime().availableProcessors();
 
+    private static ExecutorService sharedExecutor = null;
+
+    private static final ThreadLocal<Boolean> IS_SHARED_THREAD = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return false;
+        }
+    };
+
     public static int getMaxThreads() {
         return MAX_THREADS;
     }
@@ -13,4 +27,44 @@ public class WpThreadUtils {
     public static void setMaxThreads(int maxThreads) {
         MAX_THREADS = maxThreads;
     }
+
+    /**
+     * Returns a long-lived pool of daemon threads (sized to getMaxThreads()) for
+     * online, latency sensitive work such as answering a single query in parallel.
+     *
+     * Unlike ParallelForEach, no threads are created per call. Tasks submitted
+     * to this pool must not block waiting on other tasks in the same pool;
+     * code that may run inside such a task should check isSharedThread() and
+     * do its work on the calling thread instead.
+     *
+     * @return The shared executor.
+     */
+    public static synchronized ExecutorService getSharedExecutor() {
+        if (sharedExecutor == null) {
+            final AtomicInteger counter = new AtomicInteger();
+            sharedExecutor = Executors.newFixedThreadPool(getMaxThreads(), new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Runnable marked = new Runnable() {
+                        @Override
+                        public void run() {
+                            IS_SHARED_THREAD.set(true);
+                            r.run();
+                        }
+                    };
+                    Thread t = new Thread(marked, "wikibrain-shared-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return sharedExecutor;
+    }
+
+    /**
+     * @return True if the current thread belongs to the shared executor.
+     */
+    public static boolean isSharedThread() {
+        return IS_SHARED_THREAD.get();
+    }
 }
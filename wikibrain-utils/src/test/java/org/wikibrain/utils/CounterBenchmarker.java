@@ -0,0 +1,97 @@
+package org.wikibrain.utils;
+
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares a synchronized trove map with a ConcurrentLongCounter for counting
+ * a synthetic corpus with a Zipfian vocabulary, using increasing numbers of threads.
+ *
+ * Usage: CounterBenchmarker [numTokens] [vocabularySize]
+ *
+ * @author Shilad Sen
+ */
+public class CounterBenchmarker {
+    public static void main(String args[]) throws InterruptedException {
+        int numTokens = args.length > 0 ? Integer.valueOf(args[0]) : 20000000;
+        int vocabulary = args.length > 1 ? Integer.valueOf(args[1]) : 2000000;
+        long[] corpus = makeCorpus(new Random(0), numTokens, vocabulary);
+
+        for (int numThreads = 1; numThreads <= 2 * WpThreadUtils.getMaxThreads(); numThreads *= 2) {
+            for (int i = 0; i < 3; i++) {
+                final TLongIntMap map = new TLongIntHashMap();
+                long millis1 = time(corpus, numThreads, new Procedure<Long>() {
+                    @Override
+                    public void call(Long hash) throws Exception {
+                        synchronized (map) {
+                            map.adjustOrPutValue(hash, 1, 1);
+                        }
+                    }
+                });
+
+                final ConcurrentLongCounter counter = new ConcurrentLongCounter();
+                long millis2 = time(corpus, numThreads, new Procedure<Long>() {
+                    @Override
+                    public void call(Long hash) throws Exception {
+                        counter.increment(hash);
+                    }
+                });
+                counter.flush();
+                System.err.println(String.format(
+                        "%d threads: synchronized map took %d millis, concurrent counter took %d millis",
+                        numThreads, millis1, millis2));
+            }
+        }
+    }
+
+    private static long time(final long[] corpus, final int numThreads, final Procedure<Long> counter) throws InterruptedException {
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            final int offset = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = offset; i < corpus.length; i += numThreads) {
+                            counter.call(corpus[i]);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+        }
+        long t0 = System.currentTimeMillis();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return System.currentTimeMillis() - t0;
+    }
+
+    /**
+     * @return Pseudo-hashes of words drawn from a Zipf distribution with exponent 1.
+     */
+    private static long[] makeCorpus(Random random, int numTokens, int vocabulary) {
+        double[] cdf = new double[vocabulary];
+        double sum = 0.0;
+        for (int i = 0; i < vocabulary; i++) {
+            sum += 1.0 / (i + 1);
+            cdf[i] = sum;
+        }
+        long[] corpus = new long[numTokens];
+        for (int i = 0; i < numTokens; i++) {
+            int rank = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+            if (rank < 0) {
+                rank = -rank - 1;
+            }
+            corpus[i] = (Math.min(rank, vocabulary - 1) + 1) * 0x9e3779b97f4a7c15L;
+        }
+        return corpus;
+    }
+}
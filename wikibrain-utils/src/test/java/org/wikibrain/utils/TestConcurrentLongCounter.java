@@ -0,0 +1,156 @@
+package org.wikibrain.utils;
+
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.procedure.TLongIntProcedure;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestConcurrentLongCounter {
+
+    @Test
+    public void testSingleThread() {
+        ConcurrentLongCounter counter = new ConcurrentLongCounter(4, 10);
+        TLongIntHashMap expected = new TLongIntHashMap();
+        Random random = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            long key = random.nextInt(500) - 250;
+            counter.increment(key);
+            expected.adjustOrPutValue(key, 1, 1);
+        }
+        assertCounts(expected, counter);
+        assertEquals(0, counter.get(1000));
+        assertFalse(counter.containsKey(1000));
+
+        counter.put(3, 77);
+        assertEquals(77, counter.get(3));
+        counter.retainEntries(new TLongIntProcedure() {
+            @Override
+            public boolean execute(long key, int count) {
+                return key >= 0;
+            }
+        });
+        assertEquals(0, counter.get(-3));
+        assertEquals(77, counter.get(3));
+    }
+
+    @Test
+    public void testThreads() throws Exception {
+        final ConcurrentLongCounter counter = new ConcurrentLongCounter(8, 100);
+        final int numThreads = 6;
+        final int perThread = 50000;
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            final int seed = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    for (int i = 0; i < perThread; i++) {
+                        counter.increment(random.nextLong() % 2000);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        TLongIntHashMap expected = new TLongIntHashMap();
+        for (int t = 0; t < numThreads; t++) {
+            Random random = new Random(t);
+            for (int i = 0; i < perThread; i++) {
+                expected.adjustOrPutValue(random.nextLong() % 2000, 1, 1);
+            }
+        }
+        assertCounts(expected, counter);
+    }
+
+    @Test
+    public void testCountingAfterReads() throws Exception {
+        final ConcurrentLongCounter counter = new ConcurrentLongCounter(4, 1000);
+        TLongIntHashMap expected = new TLongIntHashMap();
+        for (int round = 0; round < 3; round++) {
+            final int seed = round;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    for (int i = 0; i < 500; i++) {
+                        counter.increment(random.nextInt(100));
+                    }
+                }
+            };
+            thread.start();
+            thread.join();
+            Random random = new Random(seed);
+            for (int i = 0; i < 500; i++) {
+                expected.adjustOrPutValue(random.nextInt(100), 1, 1);
+            }
+            // the thread's counts never reached its capacity, so reads must merge them
+            assertCounts(expected, counter);
+            assertEquals(expected.get(7), counter.get(7));
+        }
+        counter.increment(7);
+        assertEquals(expected.get(7) + 1, counter.get(7));
+    }
+
+    @Test
+    public void testSpill() throws IOException {
+        File dir = File.createTempFile("counter", null);
+        FileUtils.deleteQuietly(dir);
+        dir.mkdirs();
+        try {
+            ConcurrentLongCounter counter = new ConcurrentLongCounter(4, 50);
+            counter.setSpillDirectory(dir, 200);
+            TLongIntHashMap expected = new TLongIntHashMap();
+            Random random = new Random(2);
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < 20000; i++) {
+                    long key = random.nextLong() % 5000;
+                    counter.adjust(key, 2);
+                    expected.adjustOrPutValue(key, 2, 2);
+                }
+                assertCounts(expected, counter);
+            }
+            assertEquals(expected.get(17), counter.get(17));
+            try {
+                counter.retainEntries(new TLongIntProcedure() {
+                    @Override
+                    public boolean execute(long key, int count) {
+                        return true;
+                    }
+                });
+                fail();
+            } catch (UnsupportedOperationException e) {
+                // expected
+            }
+            counter.close();
+            assertEquals(0, dir.list().length);
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    private static void assertCounts(TLongIntHashMap expected, final ConcurrentLongCounter counter) {
+        assertEquals(expected.size(), counter.size());
+        for (long key : expected.keys()) {
+            assertEquals(expected.get(key), counter.get(key));
+        }
+        final TLongIntHashMap actual = new TLongIntHashMap();
+        counter.forEachEntry(new TLongIntProcedure() {
+            @Override
+            public boolean execute(long key, int count) {
+                assertFalse(actual.containsKey(key));
+                actual.put(key, count);
+                return true;
+            }
+        });
+        assertEquals(expected, actual);
+    }
+}
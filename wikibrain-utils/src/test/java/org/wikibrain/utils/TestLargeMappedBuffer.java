@@ -0,0 +1,50 @@
+package org.wikibrain.utils;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestLargeMappedBuffer {
+
+    @Test
+    public void testChunkBoundaries() throws IOException {
+        // 13 byte records, so ints and longs straddle the 16 byte chunks
+        File file = File.createTempFile("mapped", ".bin");
+        file.deleteOnExit();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            for (int i = 0; i < 1000; i++) {
+                out.writeByte(i);
+                out.writeInt(i * 7919);
+                out.writeLong(i * 1000000007L);
+            }
+        } finally {
+            out.close();
+        }
+
+        LargeMappedBuffer buffer = new LargeMappedBuffer(file, 4);
+        try {
+            assertEquals(13000, buffer.size());
+            for (int i = 0; i < 1000; i++) {
+                long p = 13L * i;
+                assertEquals((byte) i, buffer.get(p));
+                assertEquals(i * 7919, buffer.getInt(p + 1));
+                assertEquals(i * 1000000007L, buffer.getLong(p + 5));
+            }
+            byte[] bytes = new byte[20];
+            buffer.get(12990, bytes, 5, 10);
+            byte[] expected = FileUtils.readFileToByteArray(file);
+            for (int i = 0; i < 10; i++) {
+                assertEquals(expected[12990 + i], bytes[5 + i]);
+            }
+        } finally {
+            buffer.close();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.wikibrain.utils;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestLongSlruCache {
+    @Test
+    public void testBasic() {
+        LongSlruCache<String> cache = new LongSlruCache<String>(100, 1);
+        assertNull(cache.get(3));
+        cache.put(3, "three");
+        cache.put(-3, "minus three");
+        cache.put(4, null);
+        assertEquals("three", cache.get(3));
+        assertEquals("minus three", cache.get(-3));
+        assertNull(cache.get(4));
+        cache.put(3, "THREE");
+        assertEquals("THREE", cache.get(3));
+        assertEquals(2, cache.size());
+        assertEquals(3, cache.getHits());
+        assertEquals(2, cache.getMisses());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertNull(cache.get(3));
+    }
+
+    @Test
+    public void testBounded() {
+        Random random = new Random(1);
+        LongSlruCache<Long> cache = new LongSlruCache<Long>(1000);
+        for (int i = 0; i < 100000; i++) {
+            long key = random.nextLong();
+            cache.put(key, key);
+            assertEquals(key, (long) cache.get(key));
+        }
+        assertEquals(1000, cache.size());
+    }
+
+    @Test
+    public void testScanResistance() {
+        LongSlruCache<Integer> cache = new LongSlruCache<Integer>(100, 1);
+        // A small hot set that is used twice becomes protected
+        for (int i = 0; i < 50; i++) {
+            cache.put(i, i);
+            cache.get(i);
+        }
+        // A long scan of one-off keys should not evict it
+        for (int i = 1000; i < 10000; i++) {
+            cache.put(i, i);
+        }
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i, (int) cache.get(i));
+        }
+        assertEquals(100, cache.size());
+    }
+}
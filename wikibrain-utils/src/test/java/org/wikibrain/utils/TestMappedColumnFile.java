@@ -0,0 +1,85 @@
+package org.wikibrain.utils;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestMappedColumnFile {
+    private static final int HEADER = 0x7e57c01;
+
+    @Test
+    public void testWriteAndMap() throws IOException {
+        File dir = WpIOUtils.createTempDirectory("columns");
+        try {
+            File file = new File(dir, "columns.bin");
+            FileUtils.write(file, "an older version");
+
+            MappedColumnFile.Output out = new MappedColumnFile.Output(file);
+            try {
+                out.writeInt(HEADER);
+                out.writeInt(3);
+                out.writeColumn(new int[]{4, 5, 6});
+                out.writeColumn(DoubleBuffer.wrap(new double[]{0.5, 1.5, 2.5}));
+                out.writeColumn(ByteBuffer.wrap(new byte[]{7, 8}));
+                out.writeColumn(LongBuffer.wrap(new long[]{1L << 40, -3}));
+                out.commit();
+            } finally {
+                out.close();
+            }
+            assertFalse(new File(dir, "columns.bin.tmp").exists());
+
+            ByteBuffer buffer = MappedColumnFile.map(file, HEADER, "test file");
+            assertEquals(3, buffer.getInt(4));
+            IntBuffer ints = MappedColumnFile.intColumn(buffer, 8, 3);
+            assertEquals(3, ints.limit());
+            assertEquals(4, ints.get(0));
+            assertEquals(6, ints.get(2));
+            DoubleBuffer doubles = MappedColumnFile.doubleColumn(buffer, 20, 3);
+            assertEquals(1.5, doubles.get(1), 0.0);
+            ByteBuffer bytes = MappedColumnFile.slice(buffer, 44, 2);
+            assertEquals(2, bytes.limit());
+            assertEquals(8, bytes.get(1));
+            LongBuffer longs = MappedColumnFile.longColumn(buffer, 46, 2);
+            assertEquals(1L << 40, longs.get(0));
+            assertEquals(-3, longs.get(1));
+
+            try {
+                MappedColumnFile.map(file, HEADER + 1, "test file");
+                fail();
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    @Test
+    public void testAbandon() throws IOException {
+        File dir = WpIOUtils.createTempDirectory("columns");
+        try {
+            File file = new File(dir, "columns.bin");
+            MappedColumnFile.Output out = new MappedColumnFile.Output(file);
+            try {
+                out.writeInt(HEADER);
+            } finally {
+                out.close();
+            }
+            assertFalse(file.exists());
+            assertFalse(new File(dir, "columns.bin.tmp").exists());
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+}
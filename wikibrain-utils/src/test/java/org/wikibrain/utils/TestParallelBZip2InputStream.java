@@ -0,0 +1,100 @@
+package org.wikibrain.utils;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestParallelBZip2InputStream {
+
+    @Test
+    public void testMultipleBlocks() throws IOException {
+        byte[] data = makeData(new Random(1), 1000000);
+        byte[] compressed = compress(data, 1);
+        assertArrayEquals(data, decompress(compressed, null, 4));
+        assertArrayEquals(data, decompress(compressed, null, 1));
+    }
+
+    @Test
+    public void testIncompressible() throws IOException {
+        byte[] data = new byte[500000];
+        new Random(2).nextBytes(data);
+        assertArrayEquals(data, decompress(compress(data, 1), null, 3));
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        assertEquals(0, decompress(compress(new byte[0], 9), null, 2).length);
+    }
+
+    @Test
+    public void testConcatenatedStreams() throws IOException {
+        Random random = new Random(3);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        long[] offsets = new long[20];
+        for (int i = 0; i < offsets.length; i++) {
+            byte[] data = makeData(random, random.nextInt(300000));
+            offsets[i] = compressed.size();
+            expected.write(data);
+            compressed.write(compress(data, 1 + random.nextInt(9)));
+        }
+        assertArrayEquals(expected.toByteArray(), decompress(compressed.toByteArray(), null, 4));
+        assertArrayEquals(expected.toByteArray(), decompress(compressed.toByteArray(), offsets, 4));
+        assertArrayEquals(expected.toByteArray(), decompress(compressed.toByteArray(), new long[] { offsets[7] }, 2));
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotBZip2() throws IOException {
+        decompress("hello world".getBytes("UTF-8"), null, 2);
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorrupt() throws IOException {
+        byte[] compressed = compress(makeData(new Random(4), 300000), 1);
+        for (int i = 1000; i < 1100; i++) {
+            compressed[i] ^= 0x55;
+        }
+        decompress(compressed, null, 2);
+    }
+
+    private static byte[] decompress(byte[] compressed, long[] offsets, int maxPending) throws IOException {
+        ParallelBZip2InputStream in = new ParallelBZip2InputStream(
+                new ByteArrayInputStream(compressed), offsets, maxPending);
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] compress(byte[] data, int blockSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BZip2CompressorOutputStream bz = new BZip2CompressorOutputStream(out, blockSize);
+        bz.write(data);
+        bz.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * @return Somewhat compressible text of random words.
+     */
+    private static byte[] makeData(Random random, int length) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < length) {
+            int n = 1 + random.nextInt(8);
+            for (int i = 0; i < n; i++) {
+                sb.append((char) ('a' + random.nextInt(26)));
+            }
+            sb.append(random.nextInt(10) == 0 ? '\n' : ' ');
+        }
+        sb.setLength(length);
+        return sb.toString().getBytes();
+    }
+}
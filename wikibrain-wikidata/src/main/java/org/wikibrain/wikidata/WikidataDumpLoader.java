@@ -69,10 +69,15 @@ public class WikidataDumpLoader {
 
     /**
      * Expects file name format starting with lang + "wiki" for example, "enwiki"
+     * Files whose name contains ".json" are treated as JSON entity dumps.
      *
      * @param file
      */
     public void load(final File file) {
+        if (file.getName().contains(".json")) {
+            loadJson(file);
+            return;
+        }
         DumpSplitter parser = new DumpSplitter(file);
         ParallelForEach.iterate(
                 parser.iterator(),
@@ -97,6 +102,36 @@ public class WikidataDumpLoader {
         );
     }
 
+    /**
+     * Loads a JSON entity dump (e.g. latest-all.json.gz) with a streaming parser
+     * that drops unwanted items and languages while it reads.
+     *
+     * @param file
+     */
+    public void loadJson(final File file) {
+        WikidataStreamParser parser = new WikidataStreamParser(languages);
+        parser.setItemIds(universalIds);
+        try {
+            parser.parseDump(file, WpThreadUtils.getMaxThreads(), new Procedure<WikidataEntity>() {
+                @Override
+                public void call(WikidataEntity entity) {
+                    if (counter.incrementAndGet() % 10000 == 0) {
+                        LOG.info("processing wikidata entity " + counter.get());
+                    }
+                    try {
+                        wikidataDao.save(entity);
+                        metaDao.incrementRecords(WikidataEntity.class);
+                    } catch (DaoException e) {
+                        LOG.log(Level.WARNING, "saving of " + entity.getStringId() + " failed:", e);
+                        metaDao.incrementErrorsQuietly(WikidataEntity.class);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "reading of " + file.getPath() + " failed:", e);
+        }
+    }
+
     private void save(File file, String page) throws WpParseException, DaoException {
         if (counter.incrementAndGet() % 10000 == 0) {
             LOG.info("processing wikidata entity " + counter.get());
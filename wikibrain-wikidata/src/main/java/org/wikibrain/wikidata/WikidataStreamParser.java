@@ -0,0 +1,435 @@
+package org.wikibrain.wikidata;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import gnu.trove.set.TIntSet;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.LineIterator;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.parser.WpParseException;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Parses entities in the JSON format of the Wikidata entity dumps (e.g. latest-all.json),
+ * which is a single JSON array with one entity per line.
+ *
+ * Unlike the WikidataParser, this parser never builds a JSON tree for an entire entity.
+ * It streams through each entity and skips sitelinks, labels in unwanted languages and
+ * statements about unwanted properties without decoding them. Entities that will not be
+ * kept are abandoned as soon as their id has been read.
+ *
+ * @author Shilad Sen
+ */
+public class WikidataStreamParser {
+    private static final Logger LOG = Logger.getLogger(WikidataStreamParser.class.getName());
+
+    /**
+     * Number of lines handed to a worker thread at a time.
+     */
+    public static final int CHUNK_SIZE = 500;
+
+    /**
+     * Wanted languages by lang code, so each term's language is found with one lookup.
+     */
+    private final Map<String, Language> wantedLangs = new HashMap<String, Language>();
+    private TIntSet itemIds = null;
+    private TIntSet propertyIds = null;
+
+    public WikidataStreamParser() {
+        this(LanguageSet.ALL);
+    }
+
+    public WikidataStreamParser(LanguageSet langs) {
+        for (Language lang : langs) {
+            if (Language.hasLangCode(lang.getLangCode())) {
+                wantedLangs.put(lang.getLangCode(), lang);
+            }
+        }
+    }
+
+    /**
+     * Restricts parsing to the specified items. Properties are always parsed.
+     * @param itemIds Ids of items to keep, or null for all items.
+     */
+    public void setItemIds(TIntSet itemIds) {
+        this.itemIds = itemIds;
+    }
+
+    /**
+     * Restricts the statements that are parsed to the specified properties.
+     * @param propertyIds Ids of properties whose statements are kept, or null for all properties.
+     */
+    public void setPropertyIds(TIntSet propertyIds) {
+        this.propertyIds = propertyIds;
+    }
+
+    /**
+     * Parses every wanted entity in a dump, decoding chunks of lines in parallel.
+     *
+     * @param file The dump, optionally compressed.
+     * @param numThreads
+     * @param callback Called with each entity; it must be threadsafe. An exception thrown
+     *                 by the callback is logged and only affects its own entity.
+     * @throws IOException
+     */
+    public void parseDump(final File file, int numThreads, final Procedure<WikidataEntity> callback) throws IOException {
+        BufferedReader reader = WpIOUtils.openBufferedReader(file);
+        try {
+            ParallelForEach.iterate(
+                    new ChunkIterator(IOUtils.lineIterator(reader)),
+                    numThreads,
+                    100,
+                    new Procedure<List<String>>() {
+                        @Override
+                        public void call(List<String> lines) throws Exception {
+                            for (String line : lines) {
+                                WikidataEntity entity;
+                                try {
+                                    entity = parse(line);
+                                } catch (WpParseException e) {
+                                    LOG.log(Level.WARNING, "parsing of " + file.getPath() + " failed:", e);
+                                    continue;
+                                }
+                                if (entity == null) {
+                                    continue;
+                                }
+                                try {
+                                    callback.call(entity);
+                                } catch (Exception e) {
+                                    LOG.log(Level.WARNING, "processing of " + entity.getType() + " " + entity.getId() + " failed:", e);
+                                }
+                            }
+                        }
+                    },
+                    Integer.MAX_VALUE
+            );
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Parses one line of a JSON dump.
+     *
+     * @param line
+     * @return The entity, or null if the line is not an entity or the entity is not wanted.
+     * @throws WpParseException
+     */
+    public WikidataEntity parse(String line) throws WpParseException {
+        line = line.trim();
+        if (line.endsWith(",")) {
+            line = line.substring(0, line.length() - 1);
+        }
+        if (line.isEmpty() || line.equals("[") || line.equals("]")) {
+            return null;
+        }
+        try {
+            return parse(new JsonReader(new StringReader(line)));
+        } catch (IOException e) {
+            throw new WpParseException(e);
+        } catch (RuntimeException e) {
+            // gson signals malformed json with unchecked exceptions
+            throw new WpParseException(e);
+        }
+    }
+
+    private WikidataEntity parse(JsonReader reader) throws IOException, WpParseException {
+        WikidataEntity entity = null;
+        List<PendingClaim> claims = new ArrayList<PendingClaim>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("id")) {
+                entity = parseId(reader.nextString());
+                if (entity == null || !isWanted(entity)) {
+                    return null;    // the remainder of the line is never read
+                }
+            } else if (name.equals("labels") || name.equals("descriptions") || name.equals("aliases")) {
+                // the dumps always write the id before the terms
+                if (entity == null) {
+                    throw new WpParseException("entity field '" + name + "' appeared before its id");
+                } else if (name.equals("labels")) {
+                    parseTerms(reader, entity.getLabels());
+                } else if (name.equals("descriptions")) {
+                    parseTerms(reader, entity.getDescriptions());
+                } else {
+                    parseAliases(reader, entity);
+                }
+            } else if (name.equals("claims")) {
+                parseClaims(reader, claims);
+            } else {
+                reader.skipValue();     // type, sitelinks, etc.
+            }
+        }
+        reader.endObject();
+
+        if (entity == null) {
+            throw new WpParseException("entity has no id");
+        }
+        for (PendingClaim claim : claims) {
+            WikidataEntity prop = new WikidataEntity(WikidataEntity.Type.PROPERTY, claim.propertyId);
+            entity.getStatements().add(new WikidataStatement(claim.uuid, entity, prop, claim.value, claim.rank));
+        }
+        return entity;
+    }
+
+    private boolean isWanted(WikidataEntity entity) {
+        return entity.getType() == WikidataEntity.Type.PROPERTY
+                || itemIds == null
+                || itemIds.contains(entity.getId());
+    }
+
+    /**
+     * @return The entity for an id like "Q42" or "P31", or null for other kinds of entities.
+     */
+    private WikidataEntity parseId(String id) throws WpParseException {
+        if (id.length() < 2) {
+            throw new WpParseException("Invalid entity id: " + id);
+        }
+        char code = Character.toUpperCase(id.charAt(0));
+        if (code != WikidataEntity.Type.ITEM.code && code != WikidataEntity.Type.PROPERTY.code) {
+            return null;
+        }
+        try {
+            return new WikidataEntity(WikidataEntity.Type.getByCode(code), Integer.valueOf(id.substring(1)));
+        } catch (NumberFormatException e) {
+            throw new WpParseException("Invalid entity id: " + id);
+        }
+    }
+
+    /**
+     * Reads a map from language code to {"language" : ..., "value" : ...}.
+     */
+    private void parseTerms(JsonReader reader, Map<Language, String> terms) throws IOException {
+        if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+            reader.skipValue();     // empty terms are serialized as []
+            return;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            Language lang = wantedLangs.get(reader.nextName());
+            if (lang == null) {
+                reader.skipValue();
+                continue;
+            }
+            String value = readTermValue(reader);
+            if (value != null) {
+                terms.put(lang, value);
+            }
+        }
+        reader.endObject();
+    }
+
+    /**
+     * Reads a map from language code to a list of terms.
+     */
+    private void parseAliases(JsonReader reader, WikidataEntity entity) throws IOException {
+        if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+            reader.skipValue();
+            return;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            Language lang = wantedLangs.get(reader.nextName());
+            if (lang == null) {
+                reader.skipValue();
+                continue;
+            }
+            List<String> values = new ArrayList<String>();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                String value = readTermValue(reader);
+                if (value != null) {
+                    values.add(value);
+                }
+            }
+            reader.endArray();
+            if (!values.isEmpty()) {
+                entity.getAliases().put(lang, values);
+            }
+        }
+        reader.endObject();
+    }
+
+    private String readTermValue(JsonReader reader) throws IOException {
+        String value = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("value")) {
+                value = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return value;
+    }
+
+    /**
+     * Reads a map from property id to a list of statements.
+     */
+    private void parseClaims(JsonReader reader, List<PendingClaim> claims) throws IOException, WpParseException {
+        if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+            reader.skipValue();
+            return;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            WikidataEntity prop = parseId(reader.nextName());
+            if (prop == null
+            ||  prop.getType() != WikidataEntity.Type.PROPERTY
+            ||  (propertyIds != null && !propertyIds.contains(prop.getId()))) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                PendingClaim claim = parseOneClaim(reader, prop.getId());
+                if (claim != null) {
+                    claims.add(claim);
+                }
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+    }
+
+    private PendingClaim parseOneClaim(JsonReader reader, int propertyId) throws IOException {
+        PendingClaim claim = new PendingClaim();
+        claim.propertyId = propertyId;
+        String error = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("mainsnak")) {
+                try {
+                    claim.value = parseSnak(reader);
+                } catch (WpParseException e) {
+                    error = e.getMessage();
+                }
+            } else if (name.equals("id")) {
+                claim.uuid = reader.nextString();
+            } else if (name.equals("rank")) {
+                String rank = reader.nextString();
+                if (rank.equals("deprecated")) {
+                    claim.rank = WikidataStatement.Rank.DEPRECATED;
+                } else if (rank.equals("normal")) {
+                    claim.rank = WikidataStatement.Rank.NORMAL;
+                } else if (rank.equals("preferred")) {
+                    claim.rank = WikidataStatement.Rank.PREFERRED;
+                } else {
+                    error = "unknown rank: " + rank;
+                }
+            } else {
+                reader.skipValue();     // type, qualifiers, references
+            }
+        }
+        reader.endObject();
+        if (error != null || claim.value == null) {
+            LOG.log(Level.FINE, "skipping statement " + claim.uuid + " of property P" + propertyId + ": " + error);
+            return null;
+        }
+        return claim;
+    }
+
+    private WikidataValue parseSnak(JsonReader reader) throws IOException, WpParseException {
+        String snakType = null;
+        String valueType = null;
+        JsonElement value = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("snaktype")) {
+                snakType = reader.nextString();
+            } else if (name.equals("datavalue")) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name2 = reader.nextName();
+                    if (name2.equals("type")) {
+                        valueType = reader.nextString();
+                    } else if (name2.equals("value")) {
+                        value = new JsonParser().parse(reader);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();     // property, datatype, hash
+            }
+        }
+        reader.endObject();
+        if (snakType == null) {
+            throw new WpParseException("snak has no snaktype");
+        } else if (!snakType.equals("value")) {
+            return JsonUtils.jsonToValue(snakType, null);
+        } else if (valueType == null || value == null) {
+            throw new WpParseException("snak has no datavalue");
+        } else {
+            return JsonUtils.jsonToValue(valueType, value);
+        }
+    }
+
+    /**
+     * A statement whose item may not have been created when it was read.
+     */
+    private static class PendingClaim {
+        int propertyId;
+        String uuid;
+        WikidataValue value;
+        WikidataStatement.Rank rank;
+    }
+
+    /**
+     * Groups the lines of a dump into chunks so that the single thread reading the
+     * dump does little more than split lines.
+     */
+    private static class ChunkIterator implements Iterator<List<String>> {
+        private final LineIterator lines;
+
+        ChunkIterator(LineIterator lines) {
+            this.lines = lines;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return lines.hasNext();
+        }
+
+        @Override
+        public List<String> next() {
+            if (!lines.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            List<String> chunk = new ArrayList<String>(CHUNK_SIZE);
+            while (chunk.size() < CHUNK_SIZE && lines.hasNext()) {
+                chunk.add(lines.nextLine());
+            }
+            return chunk;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package org.wikibrain.wikidata;
+
+import gnu.trove.set.hash.TIntHashSet;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.parser.WpParseException;
+import org.wikibrain.utils.Procedure;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestWikidataStreamParser {
+    private static final String ITEM =
+            "{\"type\":\"item\",\"id\":\"Q42\"," +
+            "\"labels\":{\"en\":{\"language\":\"en\",\"value\":\"Douglas Adams\"}," +
+                        "\"de\":{\"language\":\"de\",\"value\":\"Douglas Adams\"}," +
+                        "\"simple\":{\"language\":\"simple\",\"value\":\"Douglas Adams (writer)\"}," +
+                        "\"not-a-lang\":{\"language\":\"not-a-lang\",\"value\":\"?\"}}," +
+            "\"descriptions\":{\"en\":{\"language\":\"en\",\"value\":\"English writer and humorist\"}}," +
+            "\"aliases\":{\"en\":[{\"language\":\"en\",\"value\":\"Douglas Noel Adams\"},{\"language\":\"en\",\"value\":\"DNA\"}]," +
+                         "\"fr\":[{\"language\":\"fr\",\"value\":\"Douglas Noël Adams\"}]}," +
+            "\"claims\":{" +
+                "\"P31\":[{\"mainsnak\":{\"snaktype\":\"value\",\"property\":\"P31\",\"datatype\":\"wikibase-item\"," +
+                    "\"datavalue\":{\"value\":{\"entity-type\":\"item\",\"numeric-id\":5},\"type\":\"wikibase-entityid\"}}," +
+                    "\"type\":\"statement\",\"id\":\"q42$F078E5B3\",\"rank\":\"preferred\"," +
+                    "\"references\":[{\"hash\":\"abc\",\"snaks\":{}}]}]," +
+                "\"P569\":[{\"mainsnak\":{\"snaktype\":\"value\",\"property\":\"P569\",\"datatype\":\"time\"," +
+                    "\"datavalue\":{\"value\":{\"time\":\"+00000001952-03-11T00:00:00Z\",\"timezone\":0,\"before\":0,\"after\":0,\"precision\":11," +
+                    "\"calendarmodel\":\"http://www.wikidata.org/entity/Q1985727\"},\"type\":\"time\"}}," +
+                    "\"type\":\"statement\",\"id\":\"q42$D8404CDA\",\"rank\":\"normal\"}]," +
+                "\"P1477\":[{\"mainsnak\":{\"snaktype\":\"value\",\"property\":\"P1477\",\"datatype\":\"string\"," +
+                    "\"datavalue\":{\"value\":\"Douglas Noël Adams\",\"type\":\"string\"}}," +
+                    "\"type\":\"statement\",\"id\":\"Q42$45220d20\",\"rank\":\"deprecated\"}," +
+                    "{\"mainsnak\":{\"snaktype\":\"novalue\",\"property\":\"P1477\",\"datatype\":\"string\"}," +
+                    "\"type\":\"statement\",\"id\":\"Q42$45220d21\",\"rank\":\"normal\"}]}," +
+            "\"sitelinks\":{\"enwiki\":{\"site\":\"enwiki\",\"title\":\"Douglas Adams\",\"badges\":[]}}},";
+
+    private static final String PROPERTY =
+            "{\"type\":\"property\",\"datatype\":\"wikibase-item\",\"id\":\"P31\"," +
+            "\"labels\":{\"en\":{\"language\":\"en\",\"value\":\"instance of\"}}," +
+            "\"descriptions\":[],\"aliases\":{},\"claims\":{}},";
+
+    private static final String OTHER_ITEM =
+            "{\"type\":\"item\",\"id\":\"Q5\",\"labels\":{\"en\":{\"language\":\"en\",\"value\":\"human\"}},\"claims\":{}}";
+
+    @Test
+    public void testParse() throws WpParseException {
+        WikidataStreamParser parser = new WikidataStreamParser(new LanguageSet("en,simple"));
+        WikidataEntity entity = parser.parse(ITEM);
+        assertEquals(WikidataEntity.Type.ITEM, entity.getType());
+        assertEquals(42, entity.getId());
+
+        // unwanted and unknown languages are dropped
+        assertEquals(2, entity.getLabels().size());
+        assertEquals("Douglas Adams", entity.getLabels().get(Language.EN));
+        assertEquals("Douglas Adams (writer)", entity.getLabels().get(Language.SIMPLE));
+        assertEquals("English writer and humorist", entity.getDescriptions().get(Language.EN));
+        assertEquals(1, entity.getAliases().size());
+        assertEquals(Arrays.asList("Douglas Noel Adams", "DNA"), entity.getAliases().get(Language.EN));
+
+        Map<String, WikidataStatement> statements = new HashMap<String, WikidataStatement>();
+        for (WikidataStatement st : entity.getStatements()) {
+            assertSame(entity, st.getItem());
+            statements.put(st.getId(), st);
+        }
+        assertEquals(4, statements.size());
+
+        WikidataStatement st = statements.get("q42$F078E5B3");
+        assertEquals(31, st.getProperty().getId());
+        assertEquals(WikidataValue.Type.ITEM, st.getValue().getType());
+        assertEquals(5, st.getValue().getItemValue());
+        assertEquals(WikidataStatement.Rank.PREFERRED, st.getRank());
+
+        st = statements.get("q42$D8404CDA");
+        assertEquals(569, st.getProperty().getId());
+        assertEquals(WikidataValue.Type.TIME, st.getValue().getType());
+        Calendar cal = Calendar.getInstance();
+        cal.setTime(st.getValue().getTimeValue());
+        assertEquals(1952, cal.get(Calendar.YEAR));
+        assertEquals(WikidataStatement.Rank.NORMAL, st.getRank());
+
+        st = statements.get("Q42$45220d20");
+        assertEquals(WikidataValue.Type.STRING, st.getValue().getType());
+        assertEquals("Douglas Noël Adams", st.getValue().getStringValue());
+        assertEquals(WikidataStatement.Rank.DEPRECATED, st.getRank());
+
+        st = statements.get("Q42$45220d21");
+        assertEquals(WikidataValue.Type.NOVALUE, st.getValue().getType());
+
+        WikidataEntity prop = parser.parse(PROPERTY);
+        assertEquals(WikidataEntity.Type.PROPERTY, prop.getType());
+        assertEquals(31, prop.getId());
+        assertEquals("instance of", prop.getLabels().get(Language.EN));
+        assertTrue(prop.getDescriptions().isEmpty());
+
+        assertNull(parser.parse("["));
+        assertNull(parser.parse("]"));
+    }
+
+    @Test
+    public void testPruning() throws WpParseException {
+        WikidataStreamParser parser = new WikidataStreamParser(new LanguageSet("en"));
+        parser.setItemIds(new TIntHashSet(new int[] { 5 }));
+        parser.setPropertyIds(new TIntHashSet(new int[] { 569 }));
+
+        // properties are always kept, unwanted items are not
+        assertNull(parser.parse(ITEM));
+        assertNotNull(parser.parse(PROPERTY));
+        assertEquals(5, parser.parse(OTHER_ITEM).getId());
+
+        parser.setItemIds(null);
+        WikidataEntity entity = parser.parse(ITEM);
+        assertEquals(1, entity.getStatements().size());
+        assertEquals(569, entity.getStatements().get(0).getProperty().getId());
+    }
+
+    @Test
+    public void testDump() throws IOException {
+        File tmp = File.createTempFile("wikibrain", "dump.json");
+        try {
+            FileUtils.writeLines(tmp, Arrays.asList("[", ITEM, PROPERTY, "{\"malformed", OTHER_ITEM, "]"));
+            final List<Integer> ids = Collections.synchronizedList(new ArrayList<Integer>());
+            new WikidataStreamParser(new LanguageSet("en")).parseDump(tmp, 2, new Procedure<WikidataEntity>() {
+                @Override
+                public void call(WikidataEntity entity) {
+                    ids.add(entity.getId());
+                }
+            });
+            Collections.sort(ids);
+            assertEquals(Arrays.asList(5, 31, 42), ids);
+        } finally {
+            FileUtils.deleteQuietly(tmp);
+        }
+    }
+
+    @Test
+    public void testCallbackFailure() throws IOException {
+        File tmp = File.createTempFile("wikibrain", "dump.json");
+        try {
+            FileUtils.writeLines(tmp, Arrays.asList("[", ITEM, PROPERTY, OTHER_ITEM, "]"));
+            final List<Integer> ids = Collections.synchronizedList(new ArrayList<Integer>());
+            new WikidataStreamParser(new LanguageSet("en")).parseDump(tmp, 2, new Procedure<WikidataEntity>() {
+                @Override
+                public void call(WikidataEntity entity) {
+                    if (entity.getId() == 31) {
+                        throw new IllegalStateException("failed on purpose");
+                    }
+                    ids.add(entity.getId());
+                }
+            });
+            // the failure only loses its own entity, not the rest of the chunk
+            Collections.sort(ids);
+            assertEquals(Arrays.asList(5, 42), ids);
+        } finally {
+            FileUtils.deleteQuietly(tmp);
+        }
+    }
+}